@@ -18,7 +18,7 @@ class BaseSnapshot<V extends SemiPersistent<V>> extends Snapshot<BaseSnapshot<V>
     /**
      * Map of globally visible references. It is used as a storage for {@link GlobalReference}s.
      */
-    private final TransactionalMap<Long, Object> globalMap;
+    private final TransactionalLongObjectMap<Object> globalMap;
 
     /**
      * Client specific snapshot.
@@ -33,7 +33,7 @@ class BaseSnapshot<V extends SemiPersistent<V>> extends Snapshot<BaseSnapshot<V>
      * @see Snapshot#Snapshot(long) For more details on snapshot value see {@link Snapshot#Snapshot(long)}.
      */
     public BaseSnapshot(long timestamp, V snapshot) {
-        this(timestamp, snapshot, new TransactionalMap<Long, Object>());
+        this(timestamp, snapshot, new TransactionalLongObjectMap<Object>());
     }
 
     /**
@@ -44,7 +44,7 @@ class BaseSnapshot<V extends SemiPersistent<V>> extends Snapshot<BaseSnapshot<V>
      * @param globalMap The map of global references.
      * @see Snapshot#Snapshot(long) For more details on snapshot value see {@link Snapshot#Snapshot(long)}.
      */
-    public BaseSnapshot(long timestamp, V snapshot, TransactionalMap<Long, Object> globalMap) {
+    public BaseSnapshot(long timestamp, V snapshot, TransactionalLongObjectMap<Object> globalMap) {
         super(timestamp);
         Utils.checkNull("Snapshot", snapshot);
         Utils.checkNull("Global map", globalMap);
@@ -58,7 +58,7 @@ class BaseSnapshot<V extends SemiPersistent<V>> extends Snapshot<BaseSnapshot<V>
      * @return The map of global references.
      * @see GlobalReference
      */
-    protected TransactionalMap<Long, Object> getGlobalMap() {
+    protected TransactionalLongObjectMap<Object> getGlobalMap() {
         return this.globalMap;
     }
 
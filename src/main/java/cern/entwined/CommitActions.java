@@ -0,0 +1,72 @@
+/*
+ * Entwined STM
+ * 
+ * (c) Copyright 2013 CERN. This software is distributed under the terms of the Apache License Version 2.0, copied
+ * verbatim in the file "COPYING". In applying this licence, CERN does not waive the privileges and immunities granted
+ * to it by virtue of its status as an Intergovernmental Organization or submit itself to any jurisdiction.
+ */
+package cern.entwined;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Actions that the transactional collections defer until the commit of the current thread's transaction is known to
+ * have succeeded. {@link Memory} opens a batch of actions before committing a snapshot and runs them once the new
+ * global state has been published, or discards them if any of the collections has failed to commit.
+ * <p>
+ * Actions scheduled outside of a batch, i.e. when a collection is committed directly rather than by the
+ * {@link Memory}, are run right away.
+ * 
+ * @author Ivan Koblik
+ */
+final class CommitActions {
+
+    /**
+     * The actions of the commit in progress on the current thread, <code>null</code> if there is no such commit.
+     */
+    private static final ThreadLocal<List<Runnable>> PENDING = new ThreadLocal<List<Runnable>>();
+
+    /**
+     * Utility class.
+     */
+    private CommitActions() {
+    }
+
+    /**
+     * Opens a batch of actions for the commit about to be made by the current thread.
+     */
+    static void begin() {
+        PENDING.set(new ArrayList<Runnable>());
+    }
+
+    /**
+     * Defers the action until the current commit succeeds, or runs it immediately if there is no batch open.
+     * 
+     * @param action The action.
+     */
+    static void schedule(Runnable action) {
+        Utils.checkNull("Action", action);
+        List<Runnable> pending = PENDING.get();
+        if (null == pending) {
+            action.run();
+        } else {
+            pending.add(action);
+        }
+    }
+
+    /**
+     * Closes the batch running its actions in the order they were scheduled if the commit has succeeded.
+     * 
+     * @param committed true if the commit has succeeded, false to discard the actions.
+     */
+    static void end(boolean committed) {
+        List<Runnable> pending = PENDING.get();
+        PENDING.remove();
+        if (committed && null != pending) {
+            for (Runnable action : pending) {
+                action.run();
+            }
+        }
+    }
+}
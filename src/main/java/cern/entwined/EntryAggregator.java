@@ -0,0 +1,48 @@
+/*
+ * Entwined STM
+ * 
+ * (c) Copyright 2013 CERN. This software is distributed under the terms of the Apache License Version 2.0, copied
+ * verbatim in the file "COPYING". In applying this licence, CERN does not waive the privileges and immunities granted
+ * to it by virtue of its status as an Intergovernmental Organization or submit itself to any jurisdiction.
+ */
+package cern.entwined;
+
+/**
+ * Parallel reduction of map entries, see {@link TransactionalMap#aggregate(java.util.concurrent.ForkJoinPool,
+ * EntryAggregator)}. The entries are split into chunks, every chunk is accumulated starting from a new initial result
+ * and the partial results are then combined. The methods are called concurrently from several threads, they must not
+ * modify any shared state nor the map being aggregated.
+ * 
+ * @param <K> The map key type.
+ * @param <V> The map value type.
+ * @param <R> The result type.
+ * @author Ivan Koblik
+ */
+public interface EntryAggregator<K, V, R> {
+
+    /**
+     * Returns a new initial result, combining it with any other result must return the other result.
+     * 
+     * @return The initial result.
+     */
+    public R initial();
+
+    /**
+     * Adds the entry to the partial result.
+     * 
+     * @param result The partial result.
+     * @param key The entry key.
+     * @param value The entry value.
+     * @return The updated partial result, may be the same instance.
+     */
+    public R accumulate(R result, K key, V value);
+
+    /**
+     * Combines two partial results, the entries of the left one precede the entries of the right one.
+     * 
+     * @param left The left partial result.
+     * @param right The right partial result.
+     * @return The combined result, may be one of the given instances.
+     */
+    public R combine(R left, R right);
+}
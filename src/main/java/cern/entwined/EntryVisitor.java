@@ -0,0 +1,26 @@
+/*
+ * Entwined STM
+ * 
+ * (c) Copyright 2013 CERN. This software is distributed under the terms of the Apache License Version 2.0, copied
+ * verbatim in the file "COPYING". In applying this licence, CERN does not waive the privileges and immunities granted
+ * to it by virtue of its status as an Intergovernmental Organization or submit itself to any jurisdiction.
+ */
+package cern.entwined;
+
+/**
+ * Callback receiving the entries of a map one by one, see {@link OpaqueMap#forEach(EntryVisitor)}.
+ * 
+ * @param <K> The map key type.
+ * @param <V> The map value type.
+ * @author Ivan Koblik
+ */
+public interface EntryVisitor<K, V> {
+
+    /**
+     * Called for every entry of the map.
+     * 
+     * @param key The entry key.
+     * @param value The entry value.
+     */
+    public void visit(K key, V value);
+}
@@ -0,0 +1,46 @@
+/*
+ * Entwined STM
+ * 
+ * (c) Copyright 2013 CERN. This software is distributed under the terms of the Apache License Version 2.0, copied
+ * verbatim in the file "COPYING". In applying this licence, CERN does not waive the privileges and immunities granted
+ * to it by virtue of its status as an Intergovernmental Organization or submit itself to any jurisdiction.
+ */
+package cern.entwined;
+
+/**
+ * Chooses the entries evicted from a {@link TransactionalBoundedCache}. Every entry has a score updated on every
+ * access to it, the entries with the lowest scores are evicted first. Implementations must be thread safe.
+ * 
+ * @author Ivan Koblik
+ */
+public interface EvictionPolicy {
+
+    /**
+     * Evicts the least recently used entries first.
+     */
+    public static final EvictionPolicy LRU = new EvictionPolicy() {
+        @Override
+        public long score(long previousScore, long tick) {
+            return tick;
+        }
+    };
+
+    /**
+     * Evicts the least frequently used entries first.
+     */
+    public static final EvictionPolicy LFU = new EvictionPolicy() {
+        @Override
+        public long score(long previousScore, long tick) {
+            return previousScore + 1;
+        }
+    };
+
+    /**
+     * Computes the score of an entry after it has been accessed.
+     * 
+     * @param previousScore The score before the access, 0 for an entry that has never been accessed.
+     * @param tick The number of accesses to the cache so far, it grows with every access.
+     * @return The new score.
+     */
+    public long score(long previousScore, long tick);
+}
@@ -26,7 +26,7 @@ public class GlobalReference<T> {
     /**
      * {@link GlobalReference} unique identifier.
      */
-    private final Long id;
+    private final long id;
 
     /**
      * Creates an instance of {@link GlobalReference} using given memory and object.
@@ -0,0 +1,237 @@
+/*
+ * Entwined STM
+ * 
+ * (c) Copyright 2013 CERN. This software is distributed under the terms of the Apache License Version 2.0, copied
+ * verbatim in the file "COPYING". In applying this licence, CERN does not waive the privileges and immunities granted
+ * to it by virtue of its status as an Intergovernmental Organization or submit itself to any jurisdiction.
+ */
+package cern.entwined;
+
+import java.util.Arrays;
+
+/**
+ * Open addressing hash set of primitive <code>long</code> values with linear probing. Zero is used to mark free slots
+ * and its presence in the set is tracked by a separate flag.
+ * <p>
+ * This class is not thread safe.
+ * 
+ * @author Ivan Koblik
+ */
+final class LongHashSet {
+
+    /**
+     * Elements of the set, zero marks a free slot.
+     */
+    private long[] elements;
+
+    /**
+     * The number of non-zero elements in the set.
+     */
+    private int size;
+
+    /**
+     * Capacity of the array minus one, the capacity is always a power of two.
+     */
+    private int mask;
+
+    /**
+     * True if zero is in the set.
+     */
+    private boolean hasZero;
+
+    /**
+     * Creates an empty set.
+     */
+    public LongHashSet() {
+        this.allocate(LongObjectHashMap.capacityFor(0));
+    }
+
+    /**
+     * Returns the number of elements in the set.
+     * 
+     * @return The size of the set.
+     */
+    public int size() {
+        return this.hasZero ? this.size + 1 : this.size;
+    }
+
+    /**
+     * Checks if the set has any elements.
+     * 
+     * @return true if the set is empty.
+     */
+    public boolean isEmpty() {
+        return 0 == this.size();
+    }
+
+    /**
+     * Checks if the element is in the set.
+     * 
+     * @param element The element.
+     * @return true if the set contains the element.
+     */
+    public boolean contains(long element) {
+        if (0 == element) {
+            return this.hasZero;
+        }
+        return this.slotOf(element) >= 0;
+    }
+
+    /**
+     * Adds the element to the set.
+     * 
+     * @param element The element.
+     * @return true if the set didn't contain the element.
+     */
+    public boolean add(long element) {
+        if (0 == element) {
+            boolean added = !this.hasZero;
+            this.hasZero = true;
+            return added;
+        }
+        int slot = LongObjectHashMap.indexOf(element, this.mask);
+        while (0 != this.elements[slot]) {
+            if (this.elements[slot] == element) {
+                return false;
+            }
+            slot = (slot + 1) & this.mask;
+        }
+        this.elements[slot] = element;
+        this.size++;
+        if (this.size > LongObjectHashMap.maxSize(this.mask + 1)) {
+            this.rehash(this.elements.length << 1);
+        }
+        return true;
+    }
+
+    /**
+     * Adds all the elements of the other set to this set.
+     * 
+     * @param other The set to be added.
+     */
+    public void addAll(LongHashSet other) {
+        Utils.checkNull("Set", other);
+        if (other.hasZero) {
+            this.hasZero = true;
+        }
+        for (long element : other.elements) {
+            if (0 != element) {
+                this.add(element);
+            }
+        }
+    }
+
+    /**
+     * Removes the element from the set.
+     * 
+     * @param element The element.
+     * @return true if the set contained the element.
+     */
+    public boolean remove(long element) {
+        if (0 == element) {
+            boolean removed = this.hasZero;
+            this.hasZero = false;
+            return removed;
+        }
+        int slot = this.slotOf(element);
+        if (slot < 0) {
+            return false;
+        }
+        this.size--;
+        int gap = slot;
+        int next = (gap + 1) & this.mask;
+        while (0 != this.elements[next]) {
+            int distance = (next - LongObjectHashMap.indexOf(this.elements[next], this.mask)) & this.mask;
+            if (distance >= ((next - gap) & this.mask)) {
+                this.elements[gap] = this.elements[next];
+                gap = next;
+            }
+            next = (next + 1) & this.mask;
+        }
+        this.elements[gap] = 0;
+        return true;
+    }
+
+    /**
+     * Removes all the elements keeping the allocated array.
+     */
+    public void clear() {
+        Arrays.fill(this.elements, 0);
+        this.size = 0;
+        this.hasZero = false;
+    }
+
+    /**
+     * Returns elements of the set in the iteration order.
+     * 
+     * @return The new array of elements.
+     */
+    public long[] toArray() {
+        long[] result = new long[this.size()];
+        int i = 0;
+        if (this.hasZero) {
+            result[i++] = 0;
+        }
+        for (long element : this.elements) {
+            if (0 != element) {
+                result[i++] = element;
+            }
+        }
+        return result;
+    }
+
+    @Override
+    public String toString() {
+        return Arrays.toString(this.toArray());
+    }
+
+    //
+    // Private methods
+    //
+
+    /**
+     * Finds the slot of the given non-zero element.
+     * 
+     * @param element The element.
+     * @return The slot index or -1 if the element isn't in the set.
+     */
+    private int slotOf(long element) {
+        int slot = LongObjectHashMap.indexOf(element, this.mask);
+        while (0 != this.elements[slot]) {
+            if (this.elements[slot] == element) {
+                return slot;
+            }
+            slot = (slot + 1) & this.mask;
+        }
+        return -1;
+    }
+
+    /**
+     * Allocates an empty array of the given capacity.
+     * 
+     * @param capacity The new capacity, must be a power of two.
+     */
+    private void allocate(int capacity) {
+        this.elements = new long[capacity];
+        this.mask = capacity - 1;
+    }
+
+    /**
+     * Moves all the elements to the new array of the given capacity.
+     * 
+     * @param capacity The new capacity, must be a power of two.
+     */
+    private void rehash(int capacity) {
+        long[] oldElements = this.elements;
+        this.allocate(capacity);
+        for (long element : oldElements) {
+            if (0 != element) {
+                int slot = LongObjectHashMap.indexOf(element, this.mask);
+                while (0 != this.elements[slot]) {
+                    slot = (slot + 1) & this.mask;
+                }
+                this.elements[slot] = element;
+            }
+        }
+    }
+}
@@ -0,0 +1,438 @@
+/*
+ * Entwined STM
+ * 
+ * (c) Copyright 2013 CERN. This software is distributed under the terms of the Apache License Version 2.0, copied
+ * verbatim in the file "COPYING". In applying this licence, CERN does not waive the privileges and immunities granted
+ * to it by virtue of its status as an Intergovernmental Organization or submit itself to any jurisdiction.
+ */
+package cern.entwined;
+
+import java.util.Arrays;
+import java.util.NoSuchElementException;
+
+/**
+ * Open addressing hash map with primitive <code>long</code> keys. Keys and values are kept in two parallel arrays and
+ * collisions are resolved with linear probing, so neither the keys are boxed nor entry objects are allocated.
+ * <p>
+ * A free slot is marked by <code>null</code> in the values array, user's <code>null</code> values are therefore
+ * substituted with a private sentinel. Removal shifts the following entries of the probe chain backwards instead of
+ * leaving tombstones.
+ * <p>
+ * This class is not thread safe. When used as the source of a transactional collection it must not be modified after
+ * it has been published.
+ * 
+ * @param <V> The map value type.
+ * @author Ivan Koblik
+ */
+final class LongObjectHashMap<V> {
+
+    /**
+     * Substitutes <code>null</code> values in the values array.
+     */
+    private static final Object NULL_VALUE = new Object();
+
+    /**
+     * The smallest capacity of the arrays.
+     */
+    private static final int MIN_CAPACITY = 8;
+
+    /**
+     * Keys of the map, a slot is only meaningful if the corresponding slot in {@link #values} is not null.
+     */
+    private long[] keys;
+
+    /**
+     * Values of the map, null marks a free slot.
+     */
+    private Object[] values;
+
+    /**
+     * The number of entries in the map.
+     */
+    private int size;
+
+    /**
+     * Capacity of the arrays minus one, the capacity is always a power of two.
+     */
+    private int mask;
+
+    /**
+     * Creates an empty map.
+     */
+    public LongObjectHashMap() {
+        this(0);
+    }
+
+    /**
+     * Creates an empty map that can hold the given number of entries without resizing.
+     * 
+     * @param expectedSize The expected number of entries.
+     */
+    public LongObjectHashMap(int expectedSize) {
+        if (expectedSize < 0) {
+            throw new IllegalArgumentException("Expected size must be non-negative, was " + expectedSize);
+        }
+        this.allocate(capacityFor(expectedSize));
+    }
+
+    /**
+     * Creates a copy of the given map.
+     * 
+     * @param other The map to be copied.
+     */
+    public LongObjectHashMap(LongObjectHashMap<? extends V> other) {
+        Utils.checkNull("Map", other);
+        this.keys = other.keys.clone();
+        this.values = other.values.clone();
+        this.size = other.size;
+        this.mask = other.mask;
+    }
+
+    /**
+     * Returns the number of entries in the map.
+     * 
+     * @return The number of entries.
+     */
+    public int size() {
+        return this.size;
+    }
+
+    /**
+     * Checks if the map has any entries.
+     * 
+     * @return true if the map is empty.
+     */
+    public boolean isEmpty() {
+        return 0 == this.size;
+    }
+
+    /**
+     * Checks if the map has an entry for the given key.
+     * 
+     * @param key The key.
+     * @return true if there is an entry for the key, even if its value is null.
+     */
+    public boolean containsKey(long key) {
+        return this.slotOf(key) >= 0;
+    }
+
+    /**
+     * Returns the value for the given key.
+     * 
+     * @param key The key.
+     * @return The value or null if there is no entry for the key.
+     */
+    public V get(long key) {
+        int slot = this.slotOf(key);
+        return slot < 0 ? null : this.valueAt(slot);
+    }
+
+    /**
+     * Associates the value with the given key.
+     * 
+     * @param key The key.
+     * @param value The value, may be null.
+     * @return The previous value or null if there was no entry for the key.
+     */
+    public V put(long key, V value) {
+        Object masked = null == value ? NULL_VALUE : value;
+        int slot = indexOf(key, this.mask);
+        while (null != this.values[slot]) {
+            if (this.keys[slot] == key) {
+                V oldValue = this.valueAt(slot);
+                this.values[slot] = masked;
+                return oldValue;
+            }
+            slot = (slot + 1) & this.mask;
+        }
+        this.keys[slot] = key;
+        this.values[slot] = masked;
+        this.size++;
+        if (this.size > maxSize(this.mask + 1)) {
+            this.rehash(this.values.length << 1);
+        }
+        return null;
+    }
+
+    /**
+     * Removes entry for the given key.
+     * 
+     * @param key The key.
+     * @return The removed value or null if there was no entry for the key.
+     */
+    public V remove(long key) {
+        int slot = this.slotOf(key);
+        if (slot < 0) {
+            return null;
+        }
+        V oldValue = this.valueAt(slot);
+        this.size--;
+        this.shiftBackward(slot);
+        return oldValue;
+    }
+
+    /**
+     * Removes all the entries keeping the allocated arrays.
+     */
+    public void clear() {
+        Arrays.fill(this.values, null);
+        this.size = 0;
+    }
+
+    /**
+     * Returns a cursor over the entries of the map. The map must not be modified while the cursor is in use.
+     * 
+     * @return The new cursor.
+     */
+    public Cursor cursor() {
+        return new Cursor();
+    }
+
+    /**
+     * Returns the keys of the map in the iteration order.
+     * 
+     * @return The new array of keys.
+     */
+    public long[] keys() {
+        long[] result = new long[this.size];
+        int i = 0;
+        for (Cursor cursor = this.cursor(); cursor.next();) {
+            result[i++] = cursor.key();
+        }
+        return result;
+    }
+
+    @Override
+    public int hashCode() {
+        int hash = 0;
+        for (int slot = 0; slot < this.values.length; slot++) {
+            if (null != this.values[slot]) {
+                V value = this.valueAt(slot);
+                long key = this.keys[slot];
+                hash += (int) (key ^ (key >>> 32)) ^ (null == value ? 0 : value.hashCode());
+            }
+        }
+        return hash;
+    }
+
+    /**
+     * Two maps are equal if they have the same keys and the values corresponding to the same keys are equal.
+     */
+    @Override
+    public boolean equals(Object obj) {
+        if (this == obj) {
+            return true;
+        }
+        if (!(obj instanceof LongObjectHashMap)) {
+            return false;
+        }
+        LongObjectHashMap<?> other = (LongObjectHashMap<?>) obj;
+        if (this.size != other.size) {
+            return false;
+        }
+        for (int slot = 0; slot < this.values.length; slot++) {
+            if (null != this.values[slot]) {
+                int otherSlot = other.slotOf(this.keys[slot]);
+                if (otherSlot < 0) {
+                    return false;
+                }
+                Object value = this.valueAt(slot);
+                Object otherValue = other.valueAt(otherSlot);
+                if (null == value ? null != otherValue : !value.equals(otherValue)) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder builder = new StringBuilder("{");
+        for (Cursor cursor = this.cursor(); cursor.next();) {
+            if (builder.length() > 1) {
+                builder.append(", ");
+            }
+            builder.append(cursor.key()).append('=').append(cursor.value());
+        }
+        return builder.append('}').toString();
+    }
+
+    //
+    // Private methods
+    //
+
+    /**
+     * Finds the slot of the given key.
+     * 
+     * @param key The key.
+     * @return The slot index or -1 if the key isn't in the map.
+     */
+    private int slotOf(long key) {
+        int slot = indexOf(key, this.mask);
+        while (null != this.values[slot]) {
+            if (this.keys[slot] == key) {
+                return slot;
+            }
+            slot = (slot + 1) & this.mask;
+        }
+        return -1;
+    }
+
+    /**
+     * Unmasks the value stored in the given slot.
+     * 
+     * @param slot The occupied slot.
+     * @return The user value.
+     */
+    @SuppressWarnings("unchecked")
+    private V valueAt(int slot) {
+        Object value = this.values[slot];
+        return NULL_VALUE == value ? null : (V) value;
+    }
+
+    /**
+     * Frees the given slot and moves the entries of the same probe chain that can't be found anymore to the freed
+     * positions.
+     * 
+     * @param slot The slot to be freed.
+     */
+    private void shiftBackward(int slot) {
+        int gap = slot;
+        int next = (gap + 1) & this.mask;
+        while (null != this.values[next]) {
+            int distance = (next - indexOf(this.keys[next], this.mask)) & this.mask;
+            if (distance >= ((next - gap) & this.mask)) {
+                this.keys[gap] = this.keys[next];
+                this.values[gap] = this.values[next];
+                gap = next;
+            }
+            next = (next + 1) & this.mask;
+        }
+        this.values[gap] = null;
+    }
+
+    /**
+     * Allocates empty arrays of the given capacity.
+     * 
+     * @param capacity The new capacity, must be a power of two.
+     */
+    private void allocate(int capacity) {
+        this.keys = new long[capacity];
+        this.values = new Object[capacity];
+        this.mask = capacity - 1;
+    }
+
+    /**
+     * Moves all the entries to the new arrays of the given capacity.
+     * 
+     * @param capacity The new capacity, must be a power of two.
+     */
+    private void rehash(int capacity) {
+        long[] oldKeys = this.keys;
+        Object[] oldValues = this.values;
+        this.allocate(capacity);
+        for (int i = 0; i < oldValues.length; i++) {
+            if (null != oldValues[i]) {
+                int slot = indexOf(oldKeys[i], this.mask);
+                while (null != this.values[slot]) {
+                    slot = (slot + 1) & this.mask;
+                }
+                this.keys[slot] = oldKeys[i];
+                this.values[slot] = oldValues[i];
+            }
+        }
+    }
+
+    /**
+     * Computes the preferred slot of the key, the key is scrambled so that sequential identifiers spread evenly.
+     * 
+     * @param key The key.
+     * @param mask The capacity minus one.
+     * @return The preferred slot.
+     */
+    static int indexOf(long key, int mask) {
+        long hash = key * 0x9E3779B97F4A7C15L;
+        return (int) (hash ^ (hash >>> 32)) & mask;
+    }
+
+    /**
+     * Computes the smallest power of two capacity that keeps the load factor under 3/4 for the given size.
+     * 
+     * @param expectedSize The number of entries.
+     * @return The capacity.
+     */
+    static int capacityFor(int expectedSize) {
+        int capacity = MIN_CAPACITY;
+        while (maxSize(capacity) < expectedSize) {
+            capacity <<= 1;
+        }
+        return capacity;
+    }
+
+    /**
+     * Returns the maximum number of entries allowed for the given capacity.
+     * 
+     * @param capacity The capacity.
+     * @return Three quarters of the capacity.
+     */
+    static int maxSize(int capacity) {
+        return capacity - (capacity >>> 2);
+    }
+
+    /**
+     * Forward only cursor over the entries of the map, it doesn't allocate an object per entry.
+     * 
+     * @author Ivan Koblik
+     */
+    final class Cursor {
+        /**
+         * The current slot.
+         */
+        private int slot = -1;
+
+        /**
+         * Moves the cursor to the next entry.
+         * 
+         * @return true if the cursor points to an entry, false if there are no more entries.
+         */
+        public boolean next() {
+            Object[] values = LongObjectHashMap.this.values;
+            while (++this.slot < values.length) {
+                if (null != values[this.slot]) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        /**
+         * Returns the key of the current entry.
+         * 
+         * @return The current key.
+         */
+        public long key() {
+            this.checkPosition();
+            return LongObjectHashMap.this.keys[this.slot];
+        }
+
+        /**
+         * Returns the value of the current entry.
+         * 
+         * @return The current value.
+         */
+        public V value() {
+            this.checkPosition();
+            return LongObjectHashMap.this.valueAt(this.slot);
+        }
+
+        /**
+         * Checks that the cursor points to an entry.
+         */
+        private void checkPosition() {
+            if (this.slot < 0 || this.slot >= LongObjectHashMap.this.values.length) {
+                throw new NoSuchElementException();
+            }
+        }
+    }
+}
@@ -0,0 +1,49 @@
+/*
+ * Entwined STM
+ * 
+ * (c) Copyright 2013 CERN. This software is distributed under the terms of the Apache License Version 2.0, copied
+ * verbatim in the file "COPYING". In applying this licence, CERN does not waive the privileges and immunities granted
+ * to it by virtue of its status as an Intergovernmental Organization or submit itself to any jurisdiction.
+ */
+package cern.entwined;
+
+import com.google.common.base.Function;
+
+/**
+ * Definition of a secondary index of a {@link TransactionalMap}. The index groups the map keys by the index key
+ * extracted from their values, see {@link TransactionalMap#getKeysByIndex(MapIndex, Object)}.
+ * <p>
+ * Indexes are compared by identity, the same instance must be used to register the index with a map and to query it.
+ * The key extractor must be free of side effects and must always return the same index key for the same value.
+ * 
+ * @param <V> The map value type.
+ * @param <I> The index key type.
+ * @author Ivan Koblik
+ */
+public final class MapIndex<V, I> {
+
+    /**
+     * The function extracting index keys from map values.
+     */
+    private final Function<? super V, ? extends I> keyExtractor;
+
+    /**
+     * Constructs the index definition.
+     * 
+     * @param keyExtractor The function extracting index keys from map values, values it maps to null are not indexed.
+     */
+    public MapIndex(Function<? super V, ? extends I> keyExtractor) {
+        Utils.checkNull("Key extractor", keyExtractor);
+        this.keyExtractor = keyExtractor;
+    }
+
+    /**
+     * Returns the index key of the given value.
+     * 
+     * @param value The map value.
+     * @return The index key or null if the value is not indexed or is itself null.
+     */
+    I indexKeyOf(V value) {
+        return null == value ? null : this.keyExtractor.apply(value);
+    }
+}
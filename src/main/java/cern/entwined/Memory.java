@@ -292,16 +292,24 @@ public class Memory<T extends SemiPersistent<T>> {
      * @throws ConflictException if a conflicting changes detected.
      */
     private BaseSnapshot<T> commitSnapshot(BaseSnapshot<T> transactionSnapshot) {
-        accessLock.writeLock().lock();
+        boolean committed = false;
+        CommitActions.begin();
         try {
-            BaseSnapshot<T> committedSnapshot = transactionSnapshot.commit(this.globalSnapshot);
-            this.globalSnapshot = committedSnapshot;
+            accessLock.writeLock().lock();
+            try {
+                BaseSnapshot<T> committedSnapshot = transactionSnapshot.commit(this.globalSnapshot);
+                this.globalSnapshot = committedSnapshot;
 
-            // Adding new snapshot to the tail of the post-transactional callbacks queue
-            commitQueue.add(committedSnapshot);
-            return committedSnapshot;
+                // Adding new snapshot to the tail of the post-transactional callbacks queue
+                commitQueue.add(committedSnapshot);
+                committed = true;
+                return committedSnapshot;
+            } finally {
+                accessLock.writeLock().unlock();
+            }
         } finally {
-            accessLock.writeLock().unlock();
+            // The actions deferred by the collections are run only if all of them have been committed
+            CommitActions.end(committed);
         }
     }
 
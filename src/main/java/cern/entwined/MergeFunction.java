@@ -0,0 +1,28 @@
+/*
+ * Entwined STM
+ * 
+ * (c) Copyright 2013 CERN. This software is distributed under the terms of the Apache License Version 2.0, copied
+ * verbatim in the file "COPYING". In applying this licence, CERN does not waive the privileges and immunities granted
+ * to it by virtue of its status as an Intergovernmental Organization or submit itself to any jurisdiction.
+ */
+package cern.entwined;
+
+/**
+ * Function combining an existing map value with a given one, see {@link TransactionalMap#merge}. As merges may be
+ * re-applied at commit time against a more recent value, implementations must be free of side effects and should be
+ * commutative for concurrent merges to produce a deterministic result.
+ * 
+ * @param <V> The value type.
+ * @author Ivan Koblik
+ */
+public interface MergeFunction<V> {
+
+    /**
+     * Combines the existing value with the given one.
+     * 
+     * @param oldValue The value currently associated with the key, never null.
+     * @param value The value passed to the merge call, never null.
+     * @return The new value or null to remove the entry.
+     */
+    public V merge(V oldValue, V value);
+}
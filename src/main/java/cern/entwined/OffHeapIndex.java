@@ -0,0 +1,430 @@
+/*
+ * Entwined STM
+ * 
+ * (c) Copyright 2013 CERN. This software is distributed under the terms of the Apache License Version 2.0, copied
+ * verbatim in the file "COPYING". In applying this licence, CERN does not waive the privileges and immunities granted
+ * to it by virtue of its status as an Intergovernmental Organization or submit itself to any jurisdiction.
+ */
+package cern.entwined;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Open addressing hash table mapping serialized keys to the addresses of their records in an {@link OffHeapStore}.
+ * The table is kept in pages of direct byte buffers outside of the Java heap, a slot holds the hash of the key and
+ * the address of the record, and collisions are resolved with linear probing. Removal shifts the following entries of
+ * the probe chain backwards instead of leaving tombstones.
+ * <p>
+ * A copy shares the pages with the original index and copies a page only when it is modified for the first time, so
+ * a commit copies the pages it changes and not the entire table.
+ * <p>
+ * This class is not thread safe. An index must not be modified after it has been published or copied.
+ * 
+ * @author Ivan Koblik
+ */
+final class OffHeapIndex {
+
+    /**
+     * The size of a slot: the key hash followed by the record address, zero address marks a free slot.
+     */
+    private static final int SLOT_SIZE = 12;
+
+    /**
+     * The largest number of slots in a page.
+     */
+    private static final int PAGE_SLOTS = 1024;
+
+    /**
+     * The store of the records.
+     */
+    private final OffHeapStore store;
+
+    /**
+     * The pages of the table, all of the same size.
+     */
+    private ByteBuffer[] pages;
+
+    /**
+     * Flags of the pages that have been allocated by this index and may be modified, the others are shared.
+     */
+    private boolean[] owned;
+
+    /**
+     * The number of bits of a slot index addressing a slot inside of a page.
+     */
+    private int pageBits;
+
+    /**
+     * The number of entries in the index.
+     */
+    private int size;
+
+    /**
+     * Capacity of the table minus one, the capacity is always a power of two.
+     */
+    private int mask;
+
+    /**
+     * Creates an empty index that can hold the given number of entries without resizing.
+     * 
+     * @param store The store of the records.
+     * @param expectedSize The expected number of entries.
+     */
+    public OffHeapIndex(OffHeapStore store, int expectedSize) {
+        Utils.checkNull("Store", store);
+        if (expectedSize < 0) {
+            throw new IllegalArgumentException("Expected size must be non-negative, was " + expectedSize);
+        }
+        this.store = store;
+        this.allocate(LongObjectHashMap.capacityFor(expectedSize));
+    }
+
+    /**
+     * Creates a copy of the given index sharing its pages until they are modified.
+     * 
+     * @param other The index to be copied.
+     */
+    public OffHeapIndex(OffHeapIndex other) {
+        Utils.checkNull("Index", other);
+        this.store = other.store;
+        this.pages = other.pages.clone();
+        this.owned = new boolean[other.pages.length];
+        this.pageBits = other.pageBits;
+        this.size = other.size;
+        this.mask = other.mask;
+    }
+
+    /**
+     * Returns the store of the records.
+     * 
+     * @return The store.
+     */
+    public OffHeapStore store() {
+        return this.store;
+    }
+
+    /**
+     * Returns the number of entries in the index.
+     * 
+     * @return The number of entries.
+     */
+    public int size() {
+        return this.size;
+    }
+
+    /**
+     * Returns the address of the record of the given key.
+     * 
+     * @param key The serialized key.
+     * @return The record address or zero if the key isn't in the index.
+     */
+    public long find(byte[] key) {
+        int slot = this.slotOf(key, hash(key));
+        return slot < 0 ? 0 : this.addressAt(slot);
+    }
+
+    /**
+     * Returns the identifier of the value of the given key.
+     * 
+     * @param key The serialized key.
+     * @return The value identifier or zero if the key isn't in the index.
+     */
+    public long idOf(byte[] key) {
+        long address = this.find(key);
+        return 0 == address ? 0 : this.store.id(address);
+    }
+
+    /**
+     * Associates the record with the given key.
+     * 
+     * @param key The serialized key.
+     * @param address The address of the record of the key in the store of this index.
+     */
+    public void put(byte[] key, long address) {
+        if (0 == address) {
+            throw new IllegalArgumentException("Record address must not be zero");
+        }
+        int hash = hash(key);
+        int slot = LongObjectHashMap.indexOf(hash, this.mask);
+        for (long current; 0 != (current = this.addressAt(slot)); slot = (slot + 1) & this.mask) {
+            if (this.hashAt(slot) == hash && this.store.keyEquals(current, key)) {
+                this.write(slot, hash, address);
+                return;
+            }
+        }
+        this.write(slot, hash, address);
+        this.size++;
+        if (this.size > LongObjectHashMap.maxSize(this.mask + 1)) {
+            this.rehash((this.mask + 1) << 1);
+        }
+    }
+
+    /**
+     * Removes the entry of the given key.
+     * 
+     * @param key The serialized key.
+     * @return true if the key was in the index.
+     */
+    public boolean remove(byte[] key) {
+        int slot = this.slotOf(key, hash(key));
+        if (slot < 0) {
+            return false;
+        }
+        this.size--;
+        this.shiftBackward(slot);
+        return true;
+    }
+
+    /**
+     * Checks if the other index has the same keys mapped to the values with the same identifiers.
+     * 
+     * @param other The other index.
+     * @return true if the indexes have the same entries.
+     */
+    public boolean sameEntries(OffHeapIndex other) {
+        if (this == other) {
+            return true;
+        }
+        if (this.size != other.size) {
+            return false;
+        }
+        for (Cursor cursor = this.cursor(); cursor.next();) {
+            if (other.idOf(cursor.key()) != this.store.id(cursor.address())) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Copies the records of all the entries to the given store.
+     * 
+     * @param target The store to copy the records to.
+     * @return The new index of the copied records, of the same capacity as this one.
+     */
+    public OffHeapIndex relocate(OffHeapStore target) {
+        OffHeapIndex result = new OffHeapIndex(target, 0);
+        result.allocate(this.mask + 1);
+        result.size = this.size;
+        for (int slot = 0; slot <= this.mask; slot++) {
+            long address = this.addressAt(slot);
+            if (0 != address) {
+                byte[] key = this.keyAt(address);
+                result.write(slot, this.hashAt(slot), target.moveIn(key, this.store.handle(address)).address());
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Returns a cursor over the entries of the index. The index must not be modified while the cursor is in use.
+     * 
+     * @return The new cursor.
+     */
+    public Cursor cursor() {
+        return new Cursor();
+    }
+
+    //
+    // Private methods
+    //
+
+    /**
+     * Finds the slot of the given key.
+     * 
+     * @param key The serialized key.
+     * @param hash The hash of the key.
+     * @return The slot index or -1 if the key isn't in the index.
+     */
+    private int slotOf(byte[] key, int hash) {
+        int slot = LongObjectHashMap.indexOf(hash, this.mask);
+        for (long address; 0 != (address = this.addressAt(slot)); slot = (slot + 1) & this.mask) {
+            if (this.hashAt(slot) == hash && this.store.keyEquals(address, key)) {
+                return slot;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Returns the key hash stored in the slot.
+     * 
+     * @param slot The slot index.
+     * @return The key hash.
+     */
+    private int hashAt(int slot) {
+        return this.pages[slot >>> this.pageBits].getInt(this.offsetOf(slot));
+    }
+
+    /**
+     * Returns the record address stored in the slot.
+     * 
+     * @param slot The slot index.
+     * @return The record address, zero for a free slot.
+     */
+    private long addressAt(int slot) {
+        return this.pages[slot >>> this.pageBits].getLong(this.offsetOf(slot) + 4);
+    }
+
+    /**
+     * Returns the offset of the slot in its page.
+     * 
+     * @param slot The slot index.
+     * @return The offset in bytes.
+     */
+    private int offsetOf(int slot) {
+        return (slot & ((1 << this.pageBits) - 1)) * SLOT_SIZE;
+    }
+
+    /**
+     * Writes the slot copying its page first if it is shared.
+     * 
+     * @param slot The slot index.
+     * @param hash The key hash.
+     * @param address The record address, zero to free the slot.
+     */
+    private void write(int slot, int hash, long address) {
+        int page = slot >>> this.pageBits;
+        if (!this.owned[page]) {
+            ByteBuffer copy = ByteBuffer.allocateDirect(this.pages[page].capacity());
+            copy.put(this.pages[page].duplicate()).clear();
+            this.pages[page] = copy;
+            this.owned[page] = true;
+        }
+        int offset = this.offsetOf(slot);
+        this.pages[page].putInt(offset, hash).putLong(offset + 4, address);
+    }
+
+    /**
+     * Frees the given slot and moves the entries of the same probe chain that can't be found anymore to the freed
+     * positions.
+     * 
+     * @param slot The slot to be freed.
+     */
+    private void shiftBackward(int slot) {
+        int gap = slot;
+        int next = (gap + 1) & this.mask;
+        for (long address; 0 != (address = this.addressAt(next)); next = (next + 1) & this.mask) {
+            int hash = this.hashAt(next);
+            int distance = (next - LongObjectHashMap.indexOf(hash, this.mask)) & this.mask;
+            if (distance >= ((next - gap) & this.mask)) {
+                this.write(gap, hash, address);
+                gap = next;
+            }
+        }
+        this.write(gap, 0, 0);
+    }
+
+    /**
+     * Allocates empty pages of the given total capacity.
+     * 
+     * @param capacity The new capacity, must be a power of two.
+     */
+    private void allocate(int capacity) {
+        int pageSlots = Math.min(capacity, PAGE_SLOTS);
+        this.pageBits = Integer.numberOfTrailingZeros(pageSlots);
+        this.pages = new ByteBuffer[capacity / pageSlots];
+        this.owned = new boolean[this.pages.length];
+        Arrays.fill(this.owned, true);
+        for (int i = 0; i < this.pages.length; i++) {
+            this.pages[i] = ByteBuffer.allocateDirect(pageSlots * SLOT_SIZE);
+        }
+        this.mask = capacity - 1;
+    }
+
+    /**
+     * Moves all the entries to the new pages of the given capacity, the stored hashes spare reading the keys.
+     * 
+     * @param capacity The new capacity, must be a power of two.
+     */
+    private void rehash(int capacity) {
+        OffHeapIndex old = new OffHeapIndex(this);
+        this.allocate(capacity);
+        for (int i = 0; i <= old.mask; i++) {
+            long address = old.addressAt(i);
+            if (0 != address) {
+                int hash = old.hashAt(i);
+                int slot = LongObjectHashMap.indexOf(hash, this.mask);
+                while (0 != this.addressAt(slot)) {
+                    slot = (slot + 1) & this.mask;
+                }
+                this.write(slot, hash, address);
+            }
+        }
+    }
+
+    /**
+     * Copies the key of the record to a new array.
+     * 
+     * @param address The record address.
+     * @return The serialized key.
+     */
+    private byte[] keyAt(long address) {
+        ByteBuffer buffer = this.store.key(address);
+        byte[] key = new byte[buffer.remaining()];
+        buffer.get(key);
+        return key;
+    }
+
+    /**
+     * Computes the hash of the serialized key.
+     * 
+     * @param key The serialized key.
+     * @return The hash.
+     */
+    private static int hash(byte[] key) {
+        return Arrays.hashCode(key);
+    }
+
+    /**
+     * Forward only cursor over the entries of the index.
+     * 
+     * @author Ivan Koblik
+     */
+    final class Cursor {
+        /**
+         * The current slot.
+         */
+        private int slot = -1;
+
+        /**
+         * The record address of the current slot.
+         */
+        private long address;
+
+        /**
+         * Moves the cursor to the next entry.
+         * 
+         * @return true if the cursor points to an entry, false if there are no more entries.
+         */
+        public boolean next() {
+            while (this.slot < OffHeapIndex.this.mask) {
+                this.address = addressAt(++this.slot);
+                if (0 != this.address) {
+                    return true;
+                }
+            }
+            this.address = 0;
+            return false;
+        }
+
+        /**
+         * Returns the record address of the current entry.
+         * 
+         * @return The record address.
+         */
+        public long address() {
+            return this.address;
+        }
+
+        /**
+         * Copies the serialized key of the current entry to a new array.
+         * 
+         * @return The serialized key.
+         */
+        public byte[] key() {
+            return keyAt(this.address);
+        }
+    }
+}
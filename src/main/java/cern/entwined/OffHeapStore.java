@@ -0,0 +1,361 @@
+/*
+ * Entwined STM
+ * 
+ * (c) Copyright 2013 CERN. This software is distributed under the terms of the Apache License Version 2.0, copied
+ * verbatim in the file "COPYING". In applying this licence, CERN does not waive the privileges and immunities granted
+ * to it by virtue of its status as an Intergovernmental Organization or submit itself to any jurisdiction.
+ */
+package cern.entwined;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Append only storage of serialized key-value records in direct byte buffers (arenas) allocated outside of the Java
+ * heap. A record is addressed by a <code>long</code> packing the number of its arena and its offset, it holds the
+ * identifier of the value, the serialized key and the serialized value. Stored bytes are never modified, so a record
+ * may be read concurrently from any thread that obtained its address in a thread safe way. Arenas are released by the
+ * garbage collector together with the store.
+ * <p>
+ * Overwritten records are not reclaimed in place, instead the owner of the store is expected to copy the live records
+ * to a new store once {@link #needsCompaction()} returns true. New values may be staged on the heap with
+ * {@link #stage(byte[])} and moved to the store only once it is known that they are going to be kept.
+ * 
+ * @author Ivan Koblik
+ */
+final class OffHeapStore {
+
+    /**
+     * Source of the unique value identifiers, they survive compactions. Zero is never used.
+     */
+    private static final AtomicLong VALUE_IDS = new AtomicLong();
+
+    /**
+     * The default size of an arena.
+     */
+    public static final int DEFAULT_ARENA_SIZE = 1 << 20;
+
+    /**
+     * The size of a record header: the value identifier, the key length and the value length.
+     */
+    public static final int HEADER_SIZE = 16;
+
+    /**
+     * The value length of a record holding a null value.
+     */
+    private static final int NULL_LENGTH = -1;
+
+    /**
+     * The size of a new arena, larger records get arenas of their own.
+     */
+    private final int arenaSize;
+
+    /**
+     * All the arenas of the store, the last one is being filled. The array is replaced when an arena is added, so the
+     * readers never see it modified.
+     */
+    private volatile ByteBuffer[] arenas = new ByteBuffer[0];
+
+    /**
+     * The offset of the first free byte of the last arena.
+     */
+    private int position = 0;
+
+    /**
+     * The number of bytes stored so far.
+     */
+    private long allocatedBytes = 0;
+
+    /**
+     * The number of allocated bytes after which the store should be compacted.
+     */
+    private long compactionLimit;
+
+    /**
+     * Creates an empty store.
+     * 
+     * @param arenaSize The size of a new arena in bytes.
+     */
+    public OffHeapStore(int arenaSize) {
+        if (arenaSize <= 0) {
+            throw new IllegalArgumentException("Arena size must be positive, got [" + arenaSize + "]");
+        }
+        this.arenaSize = arenaSize;
+        this.compactionLimit = arenaSize;
+    }
+
+    /**
+     * Returns the size of a new arena.
+     * 
+     * @return The arena size in bytes.
+     */
+    public int arenaSize() {
+        return this.arenaSize;
+    }
+
+    /**
+     * Returns the number of bytes stored so far, record headers and keys included.
+     * 
+     * @return The number of stored bytes.
+     */
+    public synchronized long allocatedBytes() {
+        return this.allocatedBytes;
+    }
+
+    /**
+     * Wraps a new value in a handle keeping it on the heap, until it's moved to a store with
+     * {@link #moveIn(byte[], Handle)}.
+     * 
+     * @param bytes The serialized value, null for a null value, the array is not copied.
+     * @return The handle of the staged value with a new unique identifier.
+     */
+    public static Handle stage(byte[] bytes) {
+        if (null == bytes) {
+            return new Handle(VALUE_IDS.incrementAndGet(), null, 0, NULL_LENGTH, 0);
+        }
+        return new Handle(VALUE_IDS.incrementAndGet(), ByteBuffer.wrap(bytes), 0, bytes.length, 0);
+    }
+
+    /**
+     * Stores a record of the key and the value of the given handle, which may be staged or stored in any store. The
+     * given handle is not modified.
+     * 
+     * @param key The serialized key.
+     * @param handle The handle of the value.
+     * @return The new handle of the stored value, it keeps the identifier of the given one.
+     */
+    public synchronized Handle moveIn(byte[] key, Handle handle) {
+        Utils.checkNull("Key", key);
+        Utils.checkNull("Handle", handle);
+        int recordSize = HEADER_SIZE + key.length + Math.max(0, handle.length);
+        ByteBuffer[] arenas = this.arenas;
+        if (0 == arenas.length || arenas[arenas.length - 1].capacity() - this.position < recordSize) {
+            arenas = Arrays.copyOf(arenas, arenas.length + 1);
+            arenas[arenas.length - 1] = ByteBuffer.allocateDirect(Math.max(this.arenaSize, recordSize));
+            this.arenas = arenas;
+            this.position = 0;
+        }
+        ByteBuffer arena = arenas[arenas.length - 1];
+        int offset = this.position;
+
+        // Writing through a duplicate, the position of the shared buffer never changes
+        ByteBuffer target = arena.duplicate();
+        target.position(offset);
+        target.putLong(handle.id).putInt(key.length).putInt(handle.length).put(key);
+        if (NULL_LENGTH != handle.length) {
+            target.put(handle.bytes());
+        }
+        this.position += recordSize;
+        this.allocatedBytes += recordSize;
+        long address = ((long) arenas.length << 32) | offset;
+        return new Handle(handle.id, arena, offset + HEADER_SIZE + key.length, handle.length, address);
+    }
+
+    /**
+     * Returns the handle of the value of the record.
+     * 
+     * @param address The address of the record.
+     * @return The new handle of the stored value.
+     */
+    public Handle handle(long address) {
+        ByteBuffer arena = this.arena(address);
+        int offset = (int) address;
+        int valueOffset = offset + HEADER_SIZE + arena.getInt(offset + 8);
+        return new Handle(arena.getLong(offset), arena, valueOffset, arena.getInt(offset + 12), address);
+    }
+
+    /**
+     * Returns the identifier of the value of the record.
+     * 
+     * @param address The address of the record.
+     * @return The value identifier.
+     */
+    public long id(long address) {
+        return this.arena(address).getLong((int) address);
+    }
+
+    /**
+     * Returns a read only view of the serialized key of the record.
+     * 
+     * @param address The address of the record.
+     * @return The new buffer positioned at the first byte of the key and limited by its last byte.
+     */
+    public ByteBuffer key(long address) {
+        ByteBuffer arena = this.arena(address);
+        int offset = (int) address;
+        return slice(arena, offset + HEADER_SIZE, arena.getInt(offset + 8));
+    }
+
+    /**
+     * Checks if the record has the given serialized key.
+     * 
+     * @param address The address of the record.
+     * @param key The serialized key.
+     * @return true if the record key has the same bytes.
+     */
+    public boolean keyEquals(long address, byte[] key) {
+        ByteBuffer arena = this.arena(address);
+        int offset = (int) address;
+        if (arena.getInt(offset + 8) != key.length) {
+            return false;
+        }
+        offset += HEADER_SIZE;
+        for (int i = 0; i < key.length; i++) {
+            if (arena.get(offset + i) != key[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Checks if enough bytes have been stored since the last call to {@link #resetCompactionLimit()} to make copying
+     * the live records worthwhile.
+     * 
+     * @return true if the store should be compacted.
+     */
+    public synchronized boolean needsCompaction() {
+        return this.allocatedBytes > this.compactionLimit;
+    }
+
+    /**
+     * Sets the compaction limit assuming that all the bytes stored so far are live, so that the cost of the next
+     * compaction is amortized over at least as many stored bytes.
+     */
+    public synchronized void resetCompactionLimit() {
+        this.compactionLimit = 2 * this.allocatedBytes + this.arenaSize;
+    }
+
+    //
+    // Private methods
+    //
+
+    /**
+     * Returns the arena of the record.
+     * 
+     * @param address The address of the record.
+     * @return The arena.
+     */
+    private ByteBuffer arena(long address) {
+        return this.arenas[(int) (address >>> 32) - 1];
+    }
+
+    /**
+     * Returns a read only view of a range of the buffer.
+     * 
+     * @param buffer The buffer.
+     * @param offset The offset of the range.
+     * @param length The length of the range.
+     * @return The new buffer positioned at the first byte of the range and limited by its last byte.
+     */
+    private static ByteBuffer slice(ByteBuffer buffer, int offset, int length) {
+        ByteBuffer view = buffer.asReadOnlyBuffer();
+        view.limit(offset + length);
+        view.position(offset);
+        return view.slice();
+    }
+
+    /**
+     * Immutable reference to a stored or a staged value. Handles are compared by their identifiers, copies of the same
+     * value moved to another store are considered equal.
+     * 
+     * @author Ivan Koblik
+     */
+    static final class Handle {
+        /**
+         * The unique value identifier.
+         */
+        private final long id;
+
+        /**
+         * The buffer holding the value, a heap buffer while the value is staged and null for a null value.
+         */
+        private final ByteBuffer buffer;
+
+        /**
+         * The offset of the value in the buffer.
+         */
+        private final int offset;
+
+        /**
+         * The length of the value in bytes, {@link OffHeapStore#NULL_LENGTH} for a null value.
+         */
+        private final int length;
+
+        /**
+         * The address of the record holding the value, zero while the value is staged.
+         */
+        private final long address;
+
+        /**
+         * Constructs the handle.
+         * 
+         * @param id The unique value identifier.
+         * @param buffer The buffer holding the value.
+         * @param offset The offset of the value in the buffer.
+         * @param length The length of the value in bytes.
+         * @param address The address of the record holding the value.
+         */
+        private Handle(long id, ByteBuffer buffer, int offset, int length, long address) {
+            this.id = id;
+            this.buffer = buffer;
+            this.offset = offset;
+            this.length = length;
+            this.address = address;
+        }
+
+        /**
+         * Checks if the handle refers to a null value.
+         * 
+         * @return true for a null value.
+         */
+        public boolean isNull() {
+            return NULL_LENGTH == this.length;
+        }
+
+        /**
+         * Returns a read only view of the value bytes.
+         * 
+         * @return The new buffer positioned at the first byte of the value and limited by its last byte, null for a
+         *         null value.
+         */
+        public ByteBuffer bytes() {
+            return this.isNull() ? null : slice(this.buffer, this.offset, this.length);
+        }
+
+        /**
+         * Returns the unique identifier of the value.
+         * 
+         * @return The value identifier.
+         */
+        public long id() {
+            return this.id;
+        }
+
+        /**
+         * Returns the address of the record holding the value.
+         * 
+         * @return The record address, zero while the value is staged.
+         */
+        public long address() {
+            return this.address;
+        }
+
+        @Override
+        public int hashCode() {
+            return (int) (this.id ^ (this.id >>> 32));
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (this == obj) {
+                return true;
+            }
+            if (!(obj instanceof Handle)) {
+                return false;
+            }
+            return this.id == ((Handle) obj).id;
+        }
+    }
+}
@@ -0,0 +1,786 @@
+/*
+ * Entwined STM
+ * 
+ * (c) Copyright 2013 CERN. This software is distributed under the terms of the Apache License Version 2.0, copied
+ * verbatim in the file "COPYING". In applying this licence, CERN does not waive the privileges and immunities granted
+ * to it by virtue of its status as an Intergovernmental Organization or submit itself to any jurisdiction.
+ */
+package cern.entwined;
+
+import java.util.AbstractCollection;
+import java.util.AbstractSet;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+import cern.entwined.OffHeapStore.Handle;
+import cern.entwined.exception.ConflictException;
+
+import com.google.common.collect.Maps;
+
+/**
+ * Transactional map keeping its committed entries serialized outside of the Java heap. Keys and values are encoded
+ * with the given {@link ValueCodec}s and stored as records in direct byte buffers, and the committed keys are indexed
+ * by an open addressing table kept in direct byte buffers as well, see {@link OffHeapIndex}. Only the read and write
+ * logs of the running transactions and the values they put stay on the heap, so the heap footprint of the map is
+ * about the size of its pending changes. Every read decodes the key and the value anew.
+ * <p>
+ * Keys are compared in their serialized form, the codec of the keys must encode equal keys to equal bytes. Null keys
+ * are not supported.
+ * <p>
+ * Values put by a transaction are kept on the heap until it commits, so the values of the rolled back or conflicting
+ * transactions never reach the shared buffers. If a commit of the snapshot fails in another collection after this map
+ * has been committed, its records stay in the buffers until the next compaction. A commit copies only the pages of the
+ * table that it changes.
+ * <p>
+ * The map has the conflict semantics of {@link TransactionalMap}, a read value is considered changed if a concurrent
+ * transaction has stored a new value for its key, even an equal one. Stored records are never modified; once the
+ * amount of stored bytes outgrows the live records a commit copies the live records to new buffers and the old ones
+ * are released by the garbage collector together with the last snapshot referring to them.
+ * 
+ * @param <K> The map key type.
+ * @param <V> The map value type.
+ * @author Ivan Koblik
+ */
+public class OffHeapTransactionalMap<K, V> extends SemiPersistent<OffHeapTransactionalMap<K, V>> implements
+        OpaqueMap<K, V> {
+
+    /**
+     * The committed entries, the index is never modified.
+     */
+    private final OffHeapIndex sourceIndex;
+
+    /**
+     * The codec of the keys.
+     */
+    private final ValueCodec<K> keyCodec;
+
+    /**
+     * The codec of the values.
+     */
+    private final ValueCodec<V> valueCodec;
+
+    /**
+     * The handles of the values put by this transaction that are kept on the heap until commit.
+     */
+    private final Map<K, Handle> pendingModifications = new SmallMap<K, Handle>();
+
+    /**
+     * Set of keys of the committed entries locally removed from the map.
+     */
+    private final SmallSet<K> pendingDeletions = new SmallSet<K>();
+
+    /**
+     * Set of keys of all the items that were accessed or attempted to be accessed (i.e. for non-existent keys).
+     */
+    private final SmallSet<K> accessed = new SmallSet<K>();
+
+    /**
+     * This flag is used to mark the "entire world" as has been accessed.
+     * 
+     * @see TransactionalMap
+     */
+    private boolean globallyAccessed = false;
+
+    /**
+     * This flag is set to true the first time clear method is called, the committed entries are not visible anymore
+     * and are removed at commit.
+     */
+    private boolean cleared = false;
+
+    /**
+     * This flag is set when the map is cleared unless it has been globally accessed, all the keys of the committed
+     * entries are considered accessed without copying them to the heap.
+     */
+    private boolean sourceKeysAccessed = false;
+
+    /**
+     * This flag marks the size of the map as accessed.
+     */
+    private boolean sizeAccessed = false;
+
+    /**
+     * The difference between the local size of the map and the number of committed entries.
+     */
+    private int sizeDelta = 0;
+
+    /**
+     * Constructs a new empty {@link OffHeapTransactionalMap}.
+     * 
+     * @param keyCodec The codec of the keys.
+     * @param valueCodec The codec of the values.
+     */
+    public OffHeapTransactionalMap(ValueCodec<K> keyCodec, ValueCodec<V> valueCodec) {
+        this(Collections.<K, V> emptyMap(), keyCodec, valueCodec);
+    }
+
+    /**
+     * Constructs new {@link OffHeapTransactionalMap} initializing it with the given collection. Passed collection is
+     * copied.
+     * 
+     * @param sourceMap The {@link OffHeapTransactionalMap} initial state.
+     * @param keyCodec The codec of the keys.
+     * @param valueCodec The codec of the values.
+     */
+    public OffHeapTransactionalMap(Map<K, V> sourceMap, ValueCodec<K> keyCodec, ValueCodec<V> valueCodec) {
+        this(sourceMap, keyCodec, valueCodec, OffHeapStore.DEFAULT_ARENA_SIZE);
+    }
+
+    /**
+     * Constructs new {@link OffHeapTransactionalMap} initializing it with the given collection. Passed collection is
+     * copied.
+     * 
+     * @param sourceMap The {@link OffHeapTransactionalMap} initial state.
+     * @param keyCodec The codec of the keys.
+     * @param valueCodec The codec of the values.
+     * @param arenaSize The size in bytes of a single direct buffer holding the records.
+     */
+    public OffHeapTransactionalMap(Map<K, V> sourceMap, ValueCodec<K> keyCodec, ValueCodec<V> valueCodec,
+            int arenaSize) {
+        Utils.checkNull("Source map", sourceMap);
+        Utils.checkNull("Key codec", keyCodec);
+        Utils.checkNull("Value codec", valueCodec);
+        this.keyCodec = keyCodec;
+        this.valueCodec = valueCodec;
+        OffHeapStore store = new OffHeapStore(arenaSize);
+        this.sourceIndex = new OffHeapIndex(store, sourceMap.size());
+        for (Entry<K, V> entry : sourceMap.entrySet()) {
+            byte[] key = this.encodeKey(entry.getKey());
+            this.sourceIndex.put(key, store.moveIn(key, this.stage(entry.getValue())).address());
+        }
+        store.resetCompactionLimit();
+    }
+
+    /**
+     * Constructs new {@link OffHeapTransactionalMap} on top of the given index, the index is not copied.
+     * 
+     * @param sourceIndex The committed entries.
+     * @param keyCodec The codec of the keys.
+     * @param valueCodec The codec of the values.
+     */
+    private OffHeapTransactionalMap(OffHeapIndex sourceIndex, ValueCodec<K> keyCodec, ValueCodec<V> valueCodec) {
+        this.sourceIndex = sourceIndex;
+        this.keyCodec = keyCodec;
+        this.valueCodec = valueCodec;
+    }
+
+    @Override
+    public int size() {
+        this.markSizeAccessed();
+        return this.sourceIndex.size() + this.sizeDelta;
+    }
+
+    @Override
+    public boolean isEmpty() {
+        boolean empty = 0 == this.sourceIndex.size() + this.sizeDelta;
+        if (empty) {
+            this.markSizeAccessed();
+        }
+        return empty;
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * The committed entries are not copied to the heap, they are removed at commit.
+     */
+    @Override
+    public void clear() {
+        this.markCleared();
+        this.pendingDeletions.clear();
+        this.pendingModifications.clear();
+        this.sizeDelta = -this.sourceIndex.size();
+    }
+
+    /**
+     * {@inheritDoc}
+     * 
+     * @throws IllegalArgumentException if the key is null.
+     */
+    @Override
+    public boolean containsKey(K key) {
+        this.markAccessed(key);
+        return null != this.localHandle(key);
+    }
+
+    /**
+     * {@inheritDoc}
+     * 
+     * @throws IllegalArgumentException if the key is null.
+     */
+    @Override
+    public V get(K key) {
+        this.markAccessed(key);
+        return this.decode(this.localHandle(key));
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * The value is serialized immediately and kept on the heap until commit, the returned previous value is decoded
+     * from its stored form.
+     * 
+     * @throws IllegalArgumentException if the key is null.
+     */
+    @Override
+    public V put(K key, V value) {
+        this.markAccessed(key);
+        Handle oldValue = this.localHandle(key);
+        if (null == oldValue) {
+            this.sizeDelta++;
+        }
+        this.pendingDeletions.remove(key);
+        this.pendingModifications.put(key, this.stage(value));
+        return this.decode(oldValue);
+    }
+
+    @Override
+    public void putAll(Map<? extends K, ? extends V> m) {
+        Utils.checkNull("Map", m);
+        for (Entry<? extends K, ? extends V> entry : m.entrySet()) {
+            this.put(entry.getKey(), entry.getValue());
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     * 
+     * @throws IllegalArgumentException if the key is null.
+     */
+    @Override
+    public V remove(K key) {
+        this.markAccessed(key);
+        Handle oldValue = this.localHandle(key);
+        if (null != oldValue) {
+            this.sizeDelta--;
+        }
+        if (null != this.sourceHandle(key)) {
+            this.pendingDeletions.add(key);
+        }
+        this.pendingModifications.remove(key);
+        return this.decode(oldValue);
+    }
+
+    //
+    // Views
+    //
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * Iterators of the returned set mark the map as globally accessed when created, the keys aren't logged
+     * individually.
+     */
+    @Override
+    public Set<K> keySet() {
+        return new KeySet();
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * Iterators of the returned set mark the map as globally accessed when created, the entries are decoded while
+     * iterating.
+     */
+    @Override
+    public Set<Entry<K, V>> entrySet() {
+        return new EntrySet();
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * Iterators of the returned collection mark the map as globally accessed when created, the values are decoded
+     * while iterating.
+     */
+    @Override
+    public Collection<V> values() {
+        return new Values();
+    }
+
+    @Override
+    public void forEach(EntryVisitor<? super K, ? super V> visitor) {
+        Utils.checkNull("Visitor", visitor);
+        for (EntryIterator iterator = new EntryIterator(); iterator.hasNext();) {
+            Entry<K, V> entry = iterator.next();
+            visitor.visit(entry.getKey(), entry.getValue());
+        }
+    }
+
+    //
+    // Transactional methods
+    //
+
+    @Override
+    protected OffHeapTransactionalMap<K, V> cleanCopy() {
+        return new OffHeapTransactionalMap<K, V>(this.sourceIndex, this.keyCodec, this.valueCodec);
+    }
+
+    @Override
+    protected OffHeapTransactionalMap<K, V> dirtyCopy() {
+        OffHeapTransactionalMap<K, V> copy = this.cleanCopy();
+        copy.globallyAccessed = this.globallyAccessed;
+        copy.cleared = this.cleared;
+        copy.sourceKeysAccessed = this.sourceKeysAccessed;
+        copy.sizeAccessed = this.sizeAccessed;
+        copy.sizeDelta = this.sizeDelta;
+        copy.accessed.addAll(this.accessed);
+        copy.pendingDeletions.addAll(this.pendingDeletions);
+        copy.pendingModifications.putAll(this.pendingModifications);
+        return copy;
+    }
+
+    @Override
+    protected void update(OffHeapTransactionalMap<K, V> changes, boolean onlyReadLogs) {
+        Utils.checkNull("Local changes", changes);
+        if (this.sourceIndex != changes.sourceIndex) {
+            throw new IllegalArgumentException("Updates are only possible for collections with the same source");
+        }
+        if (changes.globallyAccessed) {
+            this.markGloballyAccessed();
+        }
+        if (changes.sizeAccessed) {
+            this.markSizeAccessed();
+        }
+        if (changes.sourceKeysAccessed && !this.globallyAccessed) {
+            this.sourceKeysAccessed = true;
+        }
+        if (!this.globallyAccessed) {
+            this.accessed.addAll(changes.accessed);
+        }
+        if (!onlyReadLogs) {
+            this.cleared = changes.cleared;
+            this.sizeDelta = changes.sizeDelta;
+            this.pendingModifications.clear();
+            this.pendingModifications.putAll(changes.pendingModifications);
+            this.pendingDeletions.clear();
+            this.pendingDeletions.addAll(changes.pendingDeletions);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * The values put by this transaction are moved to the store of the global state once the changes are known not to
+     * conflict, and the changed pages of the global index are copied. If the store needs compaction the live records
+     * are copied to a new store, they keep the value identifiers so the copies don't cause conflicts.
+     */
+    @Override
+    public OffHeapTransactionalMap<K, V> commit(OffHeapTransactionalMap<K, V> globalState) {
+        Utils.checkNull("Global state", globalState);
+        if (!globalState.pendingDeletions.isEmpty() || !globalState.pendingModifications.isEmpty()
+                || !globalState.accessed.isEmpty() || globalState.globallyAccessed || globalState.cleared
+                || globalState.sizeAccessed) {
+            throw new IllegalArgumentException("Global state map must be commited before calling this method");
+        }
+
+        // Checking for conflicts, nothing could have changed if the global index is the source of this map
+        OffHeapIndex globalIndex = globalState.sourceIndex;
+        if (globalIndex != this.sourceIndex) {
+            if (this.globallyAccessed) {
+                if (!globalIndex.sameEntries(this.sourceIndex)) {
+                    throw new ConflictException("All the items of this map have been accessed "
+                            + "this prohibits commit in the case of concurrent changes");
+                }
+            } else if (this.sourceKeysAccessed) {
+                for (OffHeapIndex.Cursor cursor = this.sourceIndex.cursor(); cursor.next();) {
+                    byte[] key = cursor.key();
+                    if (globalIndex.idOf(key) != this.sourceIndex.store().id(cursor.address())) {
+                        throw new ConflictException("Conflicting changes for ["
+                                + this.keyCodec.decode(this.sourceIndex.store().key(cursor.address())) + "]");
+                    }
+                }
+            }
+            if (this.sizeAccessed && !this.globallyAccessed) {
+                if (globalIndex.size() != this.sourceIndex.size()) {
+                    throw new ConflictException("Size of this map has been accessed "
+                            + "this prohibits commit if the number of entries changes concurrently");
+                }
+                // Local size was computed assuming the modified keys are present as in the source index
+                for (K key : this.pendingModifications.keySet()) {
+                    this.checkPresence(globalIndex, key);
+                }
+                for (K key : this.pendingDeletions) {
+                    this.checkPresence(globalIndex, key);
+                }
+            }
+            for (K key : this.accessed) {
+                this.checkConsistency(globalIndex, key);
+            }
+        }
+
+        // Return current global state if there are no local modifications
+        boolean dropSource = this.cleared && 0 != this.sourceIndex.size();
+        if (this.pendingDeletions.isEmpty() && this.pendingModifications.isEmpty() && !dropSource) {
+            return globalState;
+        }
+
+        // Copying the global index and applying the changes to it, the removals first
+        OffHeapStore store = globalIndex.store();
+        OffHeapIndex index = new OffHeapIndex(globalIndex);
+        if (dropSource) {
+            for (OffHeapIndex.Cursor cursor = this.sourceIndex.cursor(); cursor.next();) {
+                index.remove(cursor.key());
+            }
+        }
+        for (K key : this.pendingDeletions) {
+            index.remove(this.encodeKey(key));
+        }
+        for (Entry<K, Handle> entry : this.pendingModifications.entrySet()) {
+            byte[] key = this.encodeKey(entry.getKey());
+            index.put(key, store.moveIn(key, entry.getValue()).address());
+        }
+
+        // Copying the live records to a new store
+        if (store.needsCompaction()) {
+            OffHeapStore compacted = new OffHeapStore(store.arenaSize());
+            index = index.relocate(compacted);
+            compacted.resetCompactionLimit();
+        }
+        return new OffHeapTransactionalMap<K, V>(index, this.keyCodec, this.valueCodec);
+    }
+
+    /**
+     * Returns the number of bytes held by the store of the committed records. Method is only for testing purposes.
+     * 
+     * @return The number of stored bytes.
+     */
+    long storedBytes() {
+        return this.sourceIndex.store().allocatedBytes();
+    }
+
+    //
+    // Private methods
+    //
+
+    /**
+     * Returns the handle of the value as it is seen by this transaction without marking the key as accessed.
+     * 
+     * @param key The key.
+     * @return The handle or null if the key is not in the map.
+     */
+    private Handle localHandle(K key) {
+        Handle pending = this.pendingModifications.get(key);
+        if (null != pending) {
+            return pending;
+        } else if (this.cleared || this.pendingDeletions.contains(key)) {
+            return null;
+        }
+        return this.sourceHandle(key);
+    }
+
+    /**
+     * Returns the handle of the committed value of the key.
+     * 
+     * @param key The key.
+     * @return The handle or null if the key is not in the source index or the map has been cleared.
+     */
+    private Handle sourceHandle(K key) {
+        if (this.cleared) {
+            return null;
+        }
+        long address = this.sourceIndex.find(this.encodeKey(key));
+        return 0 == address ? null : this.sourceIndex.store().handle(address);
+    }
+
+    /**
+     * Serializes the key.
+     * 
+     * @param key The key, must not be null.
+     * @return The serialized key.
+     */
+    private byte[] encodeKey(K key) {
+        Utils.checkNull("Key", key);
+        return this.keyCodec.encode(key);
+    }
+
+    /**
+     * Serializes the value and stages it on the heap.
+     * 
+     * @param value The value, may be null.
+     * @return The handle of the staged value.
+     */
+    private Handle stage(V value) {
+        return OffHeapStore.stage(null == value ? null : this.valueCodec.encode(value));
+    }
+
+    /**
+     * Deserializes the stored or staged value.
+     * 
+     * @param handle The handle of the value.
+     * @return The value or null if the handle is null or refers to a null value.
+     */
+    private V decode(Handle handle) {
+        return null == handle || handle.isNull() ? null : this.valueCodec.decode(handle.bytes());
+    }
+
+    /**
+     * Marks given key as accessed.
+     * 
+     * @param key The key to mark as accessed, must not be null.
+     */
+    private void markAccessed(K key) {
+        Utils.checkNull("Key", key);
+        if (!this.globallyAccessed) {
+            this.accessed.add(key);
+        }
+    }
+
+    /**
+     * Marks the entire space of keys as accessed unless the map has been cleared.
+     */
+    private void markGloballyAccessed() {
+        if (!this.cleared) {
+            // Global access is allowed after the map has been cleared.
+            this.globallyAccessed = true;
+            this.sourceKeysAccessed = false;
+            this.accessed.clear();
+        }
+    }
+
+    /**
+     * Marks the size of the map as accessed unless the map has been cleared or globally accessed.
+     */
+    private void markSizeAccessed() {
+        if (!this.cleared && !this.globallyAccessed) {
+            // Size of a cleared map doesn't depend on the global state.
+            this.sizeAccessed = true;
+        }
+    }
+
+    /**
+     * Marks the map as cleared and marks all its committed keys as accessed unless it has already been globally
+     * accessed.
+     */
+    private void markCleared() {
+        this.cleared = true;
+        if (!this.globallyAccessed) {
+            this.sourceKeysAccessed = true;
+        }
+    }
+
+    /**
+     * Checks if the key is either present in both the global and source indexes or absent in both.
+     * 
+     * @param globalIndex The global index.
+     * @param key The key to be checked.
+     */
+    private void checkPresence(OffHeapIndex globalIndex, K key) {
+        byte[] serialized = this.encodeKey(key);
+        if ((0 == this.sourceIndex.find(serialized)) != (0 == globalIndex.find(serialized))) {
+            throw new ConflictException("Conflicting changes for [" + key + "]");
+        }
+    }
+
+    /**
+     * Checks if the same value is stored for the key in the global and source indexes, the values are compared by
+     * their identifiers.
+     * 
+     * @param globalIndex The global index.
+     * @param key The key corresponding to the value to be checked.
+     */
+    private void checkConsistency(OffHeapIndex globalIndex, K key) {
+        byte[] serialized = this.encodeKey(key);
+        if (this.sourceIndex.idOf(serialized) != globalIndex.idOf(serialized)) {
+            throw new ConflictException("Conflicting changes for [" + key + "]");
+        }
+    }
+
+    /**
+     * Dynamic view on the keys of the map.
+     * 
+     * @author Ivan Koblik
+     */
+    private class KeySet extends AbstractSet<K> {
+        @Override
+        public Iterator<K> iterator() {
+            final EntryIterator entryIterator = new EntryIterator();
+            return new Iterator<K>() {
+                @Override
+                public boolean hasNext() {
+                    return entryIterator.hasNext();
+                }
+
+                @Override
+                public K next() {
+                    return entryIterator.next().getKey();
+                }
+
+                @Override
+                public void remove() {
+                    throw new UnsupportedOperationException();
+                }
+            };
+        }
+
+        @Override
+        public int size() {
+            return OffHeapTransactionalMap.this.size();
+        }
+
+        @Override
+        public boolean isEmpty() {
+            return OffHeapTransactionalMap.this.isEmpty();
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public boolean contains(Object o) {
+            return containsKey((K) o);
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public boolean remove(Object o) {
+            boolean result = containsKey((K) o);
+            OffHeapTransactionalMap.this.remove((K) o);
+            return result;
+        }
+
+        @Override
+        public void clear() {
+            OffHeapTransactionalMap.this.clear();
+        }
+    }
+
+    /**
+     * Dynamic view on the entries of the map.
+     * 
+     * @author Ivan Koblik
+     */
+    private class EntrySet extends AbstractSet<Entry<K, V>> {
+        @Override
+        public Iterator<Entry<K, V>> iterator() {
+            return new EntryIterator();
+        }
+
+        @Override
+        public int size() {
+            return OffHeapTransactionalMap.this.size();
+        }
+
+        @Override
+        public boolean isEmpty() {
+            return OffHeapTransactionalMap.this.isEmpty();
+        }
+    }
+
+    /**
+     * Dynamic view on the values of the map.
+     * 
+     * @author Ivan Koblik
+     */
+    private class Values extends AbstractCollection<V> {
+        @Override
+        public Iterator<V> iterator() {
+            final EntryIterator entryIterator = new EntryIterator();
+            return new Iterator<V>() {
+                @Override
+                public boolean hasNext() {
+                    return entryIterator.hasNext();
+                }
+
+                @Override
+                public V next() {
+                    return entryIterator.next().getValue();
+                }
+
+                @Override
+                public void remove() {
+                    throw new UnsupportedOperationException();
+                }
+            };
+        }
+
+        @Override
+        public int size() {
+            return OffHeapTransactionalMap.this.size();
+        }
+
+        @Override
+        public boolean isEmpty() {
+            return OffHeapTransactionalMap.this.isEmpty();
+        }
+    }
+
+    /**
+     * Iterator over the locally visible entries of the map decoding them on the fly. It walks the committed entries,
+     * skipping the deleted and the modified ones, and then the pending modifications. The map is marked as globally
+     * accessed once when the iterator is created, the returned entries aren't logged.
+     * 
+     * @author Ivan Koblik
+     */
+    private class EntryIterator implements Iterator<Entry<K, V>> {
+        /**
+         * Cursor over the committed entries, null if the map has been cleared.
+         */
+        private final OffHeapIndex.Cursor sourceCursor;
+
+        /**
+         * Iterator over the pending modifications.
+         */
+        private final Iterator<Entry<K, Handle>> pendingIterator;
+
+        /**
+         * The entry to be returned next, null if the iteration is over.
+         */
+        private Entry<K, V> next;
+
+        /**
+         * Constructs the iterator marking the map as globally accessed and looks up the first entry.
+         */
+        public EntryIterator() {
+            markGloballyAccessed();
+            this.sourceCursor = cleared ? null : sourceIndex.cursor();
+            this.pendingIterator = pendingModifications.entrySet().iterator();
+            this.next = this.advance();
+        }
+
+        @Override
+        public boolean hasNext() {
+            return null != this.next;
+        }
+
+        @Override
+        public Entry<K, V> next() {
+            if (null == this.next) {
+                throw new NoSuchElementException();
+            }
+            Entry<K, V> result = this.next;
+            this.next = this.advance();
+            return result;
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+
+        /**
+         * Finds the next visible entry.
+         * 
+         * @return The next entry or null if there are no more entries.
+         */
+        private Entry<K, V> advance() {
+            if (null != this.sourceCursor) {
+                OffHeapStore store = sourceIndex.store();
+                while (this.sourceCursor.next()) {
+                    long address = this.sourceCursor.address();
+                    K key = keyCodec.decode(store.key(address));
+                    if (!pendingDeletions.contains(key) && !pendingModifications.containsKey(key)) {
+                        return Maps.immutableEntry(key, decode(store.handle(address)));
+                    }
+                }
+            }
+            if (this.pendingIterator.hasNext()) {
+                Entry<K, Handle> entry = this.pendingIterator.next();
+                return Maps.immutableEntry(entry.getKey(), decode(entry.getValue()));
+            }
+            return null;
+        }
+    }
+}
@@ -7,7 +7,9 @@
  */
 package cern.entwined;
 
+import java.util.Collection;
 import java.util.Map;
+import java.util.Map.Entry;
 import java.util.Set;
 
 /**
@@ -22,8 +24,9 @@ public interface OpaqueMap<K, V> {
      * Returns the number of key-value mappings in this map. If the map contains more than <tt>Integer.MAX_VALUE</tt>
      * elements, returns <tt>Integer.MAX_VALUE</tt>.
      * <p>
-     * To preserve transactional consistency this operation marks the entire universe of keys as accessed, this means
-     * that commits to an updated global state will be rejected.
+     * To preserve transactional consistency this operation is logged as a read of the map's size. Depending on the
+     * implementation commits are then rejected if the global state has a different number of entries
+     * ({@link TransactionalMap}) or if it has been updated in any way.
      * 
      * @return the number of key-value mappings in this map
      */
@@ -32,9 +35,8 @@ public interface OpaqueMap<K, V> {
     /**
      * Returns <tt>true</tt> if this map contains no key-value mappings.
      * <p>
-     * To preserve transactional consistency this operation marks the entire universe of keys as accessed in cases when
-     * map is empty but was not cleared with call <code>clear()</code> method, this means that commits to an updated
-     * global state will be rejected.
+     * To preserve transactional consistency this operation is logged as a read of the map's size in cases when map is
+     * empty but was not cleared with call <code>clear()</code> method, see {@link #size()}.
      * 
      * @return <tt>true</tt> if this map contains no key-value mappings
      */
@@ -160,4 +162,33 @@ public interface OpaqueMap<K, V> {
      * @return a set view of the keys contained in this map
      */
     public Set<K> keySet();
+
+    /**
+     * Returns a {@link Set} view of the mappings contained in this map. The set is backed by the map, so changes to the
+     * map are reflected in the set. The view and its entries are read only.
+     * <p>
+     * Iterating over the set reads the entire map, so commits to an updated global state will be rejected.
+     * 
+     * @return a set view of the mappings contained in this map
+     */
+    public Set<Entry<K, V>> entrySet();
+
+    /**
+     * Returns a {@link Collection} view of the values contained in this map. The collection is backed by the map, so
+     * changes to the map are reflected in the collection. The view is read only.
+     * <p>
+     * Iterating over the collection reads the entire map, so commits to an updated global state will be rejected.
+     * 
+     * @return a collection view of the values contained in this map
+     */
+    public Collection<V> values();
+
+    /**
+     * Passes every mapping of this map to the given visitor.
+     * <p>
+     * This operation reads the entire map, so commits to an updated global state will be rejected.
+     * 
+     * @param visitor the visitor to be called for every mapping
+     */
+    public void forEach(EntryVisitor<? super K, ? super V> visitor);
 }
@@ -0,0 +1,514 @@
+/*
+ * Entwined STM
+ * 
+ * (c) Copyright 2013 CERN. This software is distributed under the terms of the Apache License Version 2.0, copied
+ * verbatim in the file "COPYING". In applying this licence, CERN does not waive the privileges and immunities granted
+ * to it by virtue of its status as an Intergovernmental Organization or submit itself to any jurisdiction.
+ */
+package cern.entwined;
+
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+import com.google.common.base.Objects;
+
+/**
+ * Immutable set implemented as a hash array mapped trie. Every node has up to 32 slots indexed by 5 bits of the element
+ * hash and stores only the occupied ones, so adding or removing an element copies one path of the trie, at most 7
+ * nodes, and shares the rest with the original set. Elements with equal hashes are kept in collision nodes.
+ * <p>
+ * The set permits the <code>null</code> element. It implements {@link java.util.Set} as an unmodifiable set, the
+ * mutating methods throw {@link UnsupportedOperationException}, use {@link #with(Object)} and {@link #without(Object)}
+ * instead.
+ * 
+ * @param <E> The element type.
+ * @author Ivan Koblik
+ */
+final class PersistentHashSet<E> extends AbstractSet<E> {
+
+    /**
+     * The number of hash bits used at every level of the trie.
+     */
+    private static final int BITS = 5;
+
+    /**
+     * Mask of the hash bits used at a level of the trie.
+     */
+    private static final int MASK = (1 << BITS) - 1;
+
+    /**
+     * Stands for the <code>null</code> element in the nodes.
+     */
+    private static final Object NULL = new Object();
+
+    /**
+     * The shared empty set.
+     */
+    @SuppressWarnings("rawtypes")
+    private static final PersistentHashSet EMPTY = new PersistentHashSet(new BitmapNode(0, new Object[0]), 0);
+
+    /**
+     * The root of the trie.
+     */
+    private final Node root;
+
+    /**
+     * The number of elements.
+     */
+    private final int size;
+
+    /**
+     * Constructs the set.
+     * 
+     * @param root The root of the trie.
+     * @param size The number of elements.
+     */
+    private PersistentHashSet(Node root, int size) {
+        this.root = root;
+        this.size = size;
+    }
+
+    /**
+     * Returns the empty set.
+     * 
+     * @return The empty set.
+     */
+    @SuppressWarnings("unchecked")
+    public static <E> PersistentHashSet<E> empty() {
+        return EMPTY;
+    }
+
+    @Override
+    public int size() {
+        return this.size;
+    }
+
+    @Override
+    public boolean contains(Object o) {
+        Object element = mask(o);
+        return null != this.root.find(element, hash(element), 0);
+    }
+
+    /**
+     * Returns the element of the set equal to the given one, it allows to look up the elements by a part of their
+     * state that is used by their equality.
+     * 
+     * @param element The element equal to the looked up one.
+     * @return The element of the set or <code>null</code> if there is no such element.
+     */
+    @SuppressWarnings("unchecked")
+    public E get(Object element) {
+        Object masked = mask(element);
+        return (E) unmask(this.root.find(masked, hash(masked), 0));
+    }
+
+    /**
+     * Returns a set with the given element.
+     * 
+     * @param element The added element.
+     * @return The new set or this set if it already contains the element.
+     */
+    public PersistentHashSet<E> with(E element) {
+        Object masked = mask(element);
+        Node newRoot = this.root.with(masked, hash(masked), 0);
+        return newRoot == this.root ? this : new PersistentHashSet<E>(newRoot, this.size + 1);
+    }
+
+    /**
+     * Returns a set with all the given elements.
+     * 
+     * @param elements The added elements.
+     * @return The new set or this set if it already contains all the elements.
+     */
+    public PersistentHashSet<E> withAll(Iterable<? extends E> elements) {
+        PersistentHashSet<E> result = this;
+        for (E element : elements) {
+            result = result.with(element);
+        }
+        return result;
+    }
+
+    /**
+     * Returns a set without the given element.
+     * 
+     * @param element The removed element.
+     * @return The new set or this set if it doesn't contain the element.
+     */
+    public PersistentHashSet<E> without(Object element) {
+        Object masked = mask(element);
+        Node newRoot = this.root.without(masked, hash(masked), 0);
+        if (newRoot == this.root) {
+            return this;
+        }
+        return null == newRoot ? PersistentHashSet.<E> empty() : new PersistentHashSet<E>(newRoot, this.size - 1);
+    }
+
+    /**
+     * Returns a set without any of the given elements.
+     * 
+     * @param elements The removed elements.
+     * @return The new set or this set if it doesn't contain any of the elements.
+     */
+    public PersistentHashSet<E> withoutAll(Iterable<?> elements) {
+        PersistentHashSet<E> result = this;
+        for (Object element : elements) {
+            result = result.without(element);
+        }
+        return result;
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * Walks the trie depth first.
+     */
+    @Override
+    public Iterator<E> iterator() {
+        return new Iterator<E>() {
+            /**
+             * The arrays of the nodes on the path to the current element, at most 7 levels and a collision node.
+             */
+            private final Object[][] arrays = new Object[8][];
+
+            /**
+             * The position of the next slot in every array of the path.
+             */
+            private final int[] positions = new int[8];
+
+            /**
+             * The depth of the current node, -1 when the iteration is over.
+             */
+            private int depth = 0;
+
+            /**
+             * The next element masked, null if it is not found yet.
+             */
+            private Object next;
+
+            {
+                this.arrays[0] = root.array;
+            }
+
+            @Override
+            public boolean hasNext() {
+                while (null == this.next && this.depth >= 0) {
+                    Object[] array = this.arrays[this.depth];
+                    if (this.positions[this.depth] == array.length) {
+                        this.depth--;
+                        continue;
+                    }
+                    Object slot = array[this.positions[this.depth]++];
+                    if (slot instanceof Node) {
+                        this.depth++;
+                        this.arrays[this.depth] = ((Node) slot).array;
+                        this.positions[this.depth] = 0;
+                    } else {
+                        this.next = slot;
+                    }
+                }
+                return null != this.next;
+            }
+
+            @SuppressWarnings("unchecked")
+            @Override
+            public E next() {
+                if (!this.hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                Object result = this.next;
+                this.next = null;
+                return (E) unmask(result);
+            }
+
+            @Override
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+
+    //
+    // Private methods
+    //
+
+    /**
+     * Replaces the <code>null</code> element with {@link #NULL}.
+     */
+    private static Object mask(Object element) {
+        return null == element ? NULL : element;
+    }
+
+    /**
+     * Replaces {@link #NULL} with the <code>null</code> element.
+     */
+    private static Object unmask(Object element) {
+        return NULL == element ? null : element;
+    }
+
+    /**
+     * Returns the hash of the masked element with the higher bits spread to the lower ones.
+     */
+    private static int hash(Object element) {
+        int hash = NULL == element ? 0 : element.hashCode();
+        return hash ^ (hash >>> 16);
+    }
+
+    /**
+     * Returns the bit of the slot of the hash at the level.
+     */
+    private static int bit(int hash, int shift) {
+        return 1 << ((hash >>> shift) & MASK);
+    }
+
+    /**
+     * Copies the array inserting the value at the index.
+     */
+    private static Object[] insert(Object[] array, int index, Object value) {
+        Object[] result = new Object[array.length + 1];
+        System.arraycopy(array, 0, result, 0, index);
+        result[index] = value;
+        System.arraycopy(array, index, result, index + 1, array.length - index);
+        return result;
+    }
+
+    /**
+     * Copies the array without the value at the index.
+     */
+    private static Object[] delete(Object[] array, int index) {
+        Object[] result = new Object[array.length - 1];
+        System.arraycopy(array, 0, result, 0, index);
+        System.arraycopy(array, index + 1, result, index, array.length - index - 1);
+        return result;
+    }
+
+    /**
+     * Copies the array replacing the value at the index.
+     */
+    private static Object[] replace(Object[] array, int index, Object value) {
+        Object[] result = array.clone();
+        result[index] = value;
+        return result;
+    }
+
+    /**
+     * Node of the trie, its array holds the masked elements and the child nodes.
+     */
+    private abstract static class Node {
+
+        /**
+         * The occupied slots.
+         */
+        protected final Object[] array;
+
+        /**
+         * Constructs the node.
+         * 
+         * @param array The occupied slots.
+         */
+        protected Node(Object[] array) {
+            this.array = array;
+        }
+
+        /**
+         * Finds the element of the subtrie equal to the given one.
+         * 
+         * @param element The masked element.
+         * @param hash The element hash.
+         * @param shift The number of hash bits used above this node.
+         * @return The masked element of the subtrie or null if it is not found.
+         */
+        protected abstract Object find(Object element, int hash, int shift);
+
+        /**
+         * Adds the element to the subtrie.
+         * 
+         * @param element The masked element.
+         * @param hash The element hash.
+         * @param shift The number of hash bits used above this node.
+         * @return The new node or this node if the element is already in the subtrie.
+         */
+        protected abstract Node with(Object element, int hash, int shift);
+
+        /**
+         * Removes the element from the subtrie.
+         * 
+         * @param element The masked element.
+         * @param hash The element hash.
+         * @param shift The number of hash bits used above this node.
+         * @return The new node, this node if the element is not in the subtrie or null if the subtrie is empty.
+         */
+        protected abstract Node without(Object element, int hash, int shift);
+    }
+
+    /**
+     * Node storing its slots in the order of their bits in the bitmap.
+     */
+    private static final class BitmapNode extends Node {
+
+        /**
+         * The bits of the occupied slots.
+         */
+        private final int bitmap;
+
+        /**
+         * Constructs the node.
+         * 
+         * @param bitmap The bits of the occupied slots.
+         * @param array The occupied slots.
+         */
+        private BitmapNode(int bitmap, Object[] array) {
+            super(array);
+            this.bitmap = bitmap;
+        }
+
+        @Override
+        protected Object find(Object element, int hash, int shift) {
+            int bit = bit(hash, shift);
+            if (0 == (this.bitmap & bit)) {
+                return null;
+            }
+            Object slot = this.array[this.index(bit)];
+            if (slot instanceof Node) {
+                return ((Node) slot).find(element, hash, shift + BITS);
+            }
+            return slot.equals(element) ? slot : null;
+        }
+
+        @Override
+        protected Node with(Object element, int hash, int shift) {
+            int bit = bit(hash, shift);
+            int index = this.index(bit);
+            if (0 == (this.bitmap & bit)) {
+                return new BitmapNode(this.bitmap | bit, insert(this.array, index, element));
+            }
+            Object slot = this.array[index];
+            Node child;
+            if (slot instanceof Node) {
+                child = ((Node) slot).with(element, hash, shift + BITS);
+                if (child == slot) {
+                    return this;
+                }
+            } else if (slot.equals(element)) {
+                return this;
+            } else {
+                child = pair(slot, hash(slot), element, hash, shift + BITS);
+            }
+            return new BitmapNode(this.bitmap, replace(this.array, index, child));
+        }
+
+        @Override
+        protected Node without(Object element, int hash, int shift) {
+            int bit = bit(hash, shift);
+            if (0 == (this.bitmap & bit)) {
+                return this;
+            }
+            int index = this.index(bit);
+            Object slot = this.array[index];
+            Object newSlot;
+            if (slot instanceof Node) {
+                Node child = ((Node) slot).without(element, hash, shift + BITS);
+                if (child == slot) {
+                    return this;
+                }
+                // Inlining the last element of the child
+                newSlot = null != child && 1 == child.array.length && !(child.array[0] instanceof Node) ? child.array[0]
+                        : child;
+            } else if (slot.equals(element)) {
+                newSlot = null;
+            } else {
+                return this;
+            }
+            if (null != newSlot) {
+                return new BitmapNode(this.bitmap, replace(this.array, index, newSlot));
+            }
+            if (1 == this.array.length) {
+                return null;
+            }
+            return new BitmapNode(this.bitmap & ~bit, delete(this.array, index));
+        }
+
+        /**
+         * Returns the index of the slot in the array.
+         */
+        private int index(int bit) {
+            return Integer.bitCount(this.bitmap & (bit - 1));
+        }
+
+        /**
+         * Creates the node holding the two elements with different positions.
+         */
+        private static Node pair(Object first, int firstHash, Object second, int secondHash, int shift) {
+            if (firstHash == secondHash) {
+                return new CollisionNode(firstHash, new Object[] { first, second });
+            }
+            BitmapNode empty = new BitmapNode(0, new Object[0]);
+            return empty.with(first, firstHash, shift).with(second, secondHash, shift);
+        }
+    }
+
+    /**
+     * Node holding the elements with equal hashes.
+     */
+    private static final class CollisionNode extends Node {
+
+        /**
+         * The hash of all the elements.
+         */
+        private final int hash;
+
+        /**
+         * Constructs the node.
+         * 
+         * @param hash The hash of all the elements.
+         * @param array The elements.
+         */
+        private CollisionNode(int hash, Object[] array) {
+            super(array);
+            this.hash = hash;
+        }
+
+        @Override
+        protected Object find(Object element, int hash, int shift) {
+            int index = this.hash == hash ? this.indexOf(element) : -1;
+            return index < 0 ? null : this.array[index];
+        }
+
+        @Override
+        protected Node with(Object element, int hash, int shift) {
+            if (this.hash != hash) {
+                // Nesting this node in a bitmap node to tell it apart from the new element
+                BitmapNode parent = new BitmapNode(bit(this.hash, shift), new Object[] { this });
+                return parent.with(element, hash, shift);
+            }
+            if (this.indexOf(element) >= 0) {
+                return this;
+            }
+            Object[] newArray = Arrays.copyOf(this.array, this.array.length + 1);
+            newArray[this.array.length] = element;
+            return new CollisionNode(hash, newArray);
+        }
+
+        @Override
+        protected Node without(Object element, int hash, int shift) {
+            int index = this.hash == hash ? this.indexOf(element) : -1;
+            if (index < 0) {
+                return this;
+            }
+            return 1 == this.array.length ? null : new CollisionNode(hash, delete(this.array, index));
+        }
+
+        /**
+         * Returns the index of the element in the array or -1.
+         */
+        private int indexOf(Object element) {
+            for (int i = 0; i < this.array.length; i++) {
+                if (Objects.equal(this.array[i], element)) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+    }
+}
@@ -0,0 +1,487 @@
+/*
+ * Entwined STM
+ * 
+ * (c) Copyright 2013 CERN. This software is distributed under the terms of the Apache License Version 2.0, copied
+ * verbatim in the file "COPYING". In applying this licence, CERN does not waive the privileges and immunities granted
+ * to it by virtue of its status as an Intergovernmental Organization or submit itself to any jurisdiction.
+ */
+package cern.entwined;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.Map.Entry;
+import java.util.NoSuchElementException;
+
+/**
+ * Immutable sorted map implemented as a persistent AVL tree. Every modification returns a new map which shares all the
+ * untouched nodes with the original one, so that a modification costs O(log n) time and memory.
+ * <p>
+ * The map does not permit <code>null</code> keys, while <code>null</code> values are allowed.
+ * 
+ * @param <K> The map key type.
+ * @param <V> The map value type.
+ * @author Ivan Koblik
+ */
+final class PersistentSortedMap<K, V> {
+
+    /**
+     * The comparator used to order the keys.
+     */
+    private final Comparator<? super K> comparator;
+
+    /**
+     * The tree root, <code>null</code> for an empty map.
+     */
+    private final TreeNode<K, V> root;
+
+    /**
+     * Creates an empty map ordered with the given comparator.
+     * 
+     * @param comparator The key comparator.
+     */
+    public PersistentSortedMap(Comparator<? super K> comparator) {
+        this(comparator, null);
+    }
+
+    /**
+     * Creates a map with the given root node.
+     * 
+     * @param comparator The key comparator.
+     * @param root The tree root.
+     */
+    private PersistentSortedMap(Comparator<? super K> comparator, TreeNode<K, V> root) {
+        Utils.checkNull("Comparator", comparator);
+        this.comparator = comparator;
+        this.root = root;
+    }
+
+    /**
+     * Returns the comparator used to order the keys of this map.
+     * 
+     * @return The key comparator.
+     */
+    public Comparator<? super K> comparator() {
+        return this.comparator;
+    }
+
+    /**
+     * Returns the number of entries in the map, it takes constant time.
+     * 
+     * @return The number of entries in the map.
+     */
+    public int size() {
+        return null == this.root ? 0 : this.root.size;
+    }
+
+    /**
+     * Returns <code>true</code> if there are no entries in this map.
+     * 
+     * @return <code>true</code> if the map is empty.
+     */
+    public boolean isEmpty() {
+        return null == this.root;
+    }
+
+    /**
+     * Returns the entry associated with the given key or <code>null</code> if there is no such entry.
+     * 
+     * @param key The searched key.
+     * @return The entry for the key or <code>null</code>.
+     */
+    public Entry<K, V> getEntry(K key) {
+        TreeNode<K, V> node = this.root;
+        while (null != node) {
+            int c = this.comparator.compare(key, node.key);
+            if (c < 0) {
+                node = node.left;
+            } else if (c > 0) {
+                node = node.right;
+            } else {
+                return node;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Returns the value associated with the key or <code>null</code> if there is no such key.
+     * 
+     * @param key The searched key.
+     * @return The value or <code>null</code>.
+     */
+    public V get(K key) {
+        Entry<K, V> entry = this.getEntry(key);
+        return null == entry ? null : entry.getValue();
+    }
+
+    /**
+     * Returns <code>true</code> if the map contains the given key.
+     * 
+     * @param key The searched key.
+     * @return <code>true</code> if the key is in the map.
+     */
+    public boolean containsKey(K key) {
+        return null != this.getEntry(key);
+    }
+
+    /**
+     * Returns a new map with the given key associated with the given value. If the key is already associated with the
+     * very same value returns this map.
+     * 
+     * @param key The key, must not be <code>null</code>.
+     * @param value The value.
+     * @return The updated map.
+     */
+    public PersistentSortedMap<K, V> put(K key, V value) {
+        Utils.checkNull("Key", key);
+        TreeNode<K, V> newRoot = this.put(this.root, key, value);
+        return newRoot == this.root ? this : new PersistentSortedMap<K, V>(this.comparator, newRoot);
+    }
+
+    /**
+     * Returns a new map without the given key. If the key is not in the map returns this map.
+     * 
+     * @param key The key to be removed.
+     * @return The updated map.
+     */
+    public PersistentSortedMap<K, V> remove(K key) {
+        TreeNode<K, V> newRoot = this.remove(this.root, key);
+        return newRoot == this.root ? this : new PersistentSortedMap<K, V>(this.comparator, newRoot);
+    }
+
+    /**
+     * Returns the entry with the lowest key or <code>null</code> if the map is empty.
+     * 
+     * @return The first entry.
+     */
+    public Entry<K, V> firstEntry() {
+        return first(this.root);
+    }
+
+    /**
+     * Returns the entry with the highest key or <code>null</code> if the map is empty.
+     * 
+     * @return The last entry.
+     */
+    public Entry<K, V> lastEntry() {
+        TreeNode<K, V> node = this.root;
+        if (null == node) {
+            return null;
+        }
+        while (null != node.right) {
+            node = node.right;
+        }
+        return node;
+    }
+
+    /**
+     * Returns the entry with the least key greater than (or equal to, if inclusive) the given one.
+     * 
+     * @param key The lower bound.
+     * @param inclusive Whether the bound is inclusive.
+     * @return The found entry or <code>null</code>.
+     */
+    public Entry<K, V> higherEntry(K key, boolean inclusive) {
+        TreeNode<K, V> node = this.root;
+        TreeNode<K, V> result = null;
+        while (null != node) {
+            int c = this.comparator.compare(key, node.key);
+            if (c < 0 || (c == 0 && inclusive)) {
+                result = node;
+                if (c == 0) {
+                    break;
+                }
+                node = node.left;
+            } else {
+                node = node.right;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Returns the entry with the greatest key less than (or equal to, if inclusive) the given one.
+     * 
+     * @param key The upper bound.
+     * @param inclusive Whether the bound is inclusive.
+     * @return The found entry or <code>null</code>.
+     */
+    public Entry<K, V> lowerEntry(K key, boolean inclusive) {
+        TreeNode<K, V> node = this.root;
+        TreeNode<K, V> result = null;
+        while (null != node) {
+            int c = this.comparator.compare(key, node.key);
+            if (c > 0 || (c == 0 && inclusive)) {
+                result = node;
+                if (c == 0) {
+                    break;
+                }
+                node = node.right;
+            } else {
+                node = node.left;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Returns an ascending iterator over all the entries of the map.
+     * 
+     * @return The entry iterator.
+     */
+    public Iterator<Entry<K, V>> iterator() {
+        return new EntryIterator(null, false, null, false);
+    }
+
+    /**
+     * Returns an ascending iterator over the entries in the given range of keys. A <code>null</code> bound means that
+     * the range is unbounded on that side.
+     * 
+     * @param from The lower bound or <code>null</code>.
+     * @param fromInclusive Whether the lower bound is inclusive.
+     * @param to The upper bound or <code>null</code>.
+     * @param toInclusive Whether the upper bound is inclusive.
+     * @return The entry iterator.
+     */
+    public Iterator<Entry<K, V>> iterator(K from, boolean fromInclusive, K to, boolean toInclusive) {
+        return new EntryIterator(from, fromInclusive, to, toInclusive);
+    }
+
+    //
+    // Private methods
+    //
+
+    /**
+     * Recursively inserts the key value pair copying the path to the modified node.
+     */
+    private TreeNode<K, V> put(TreeNode<K, V> node, K key, V value) {
+        if (null == node) {
+            return new TreeNode<K, V>(key, value, null, null);
+        }
+        int c = this.comparator.compare(key, node.key);
+        if (c < 0) {
+            TreeNode<K, V> left = this.put(node.left, key, value);
+            return left == node.left ? node : balance(node.key, node.value, left, node.right);
+        } else if (c > 0) {
+            TreeNode<K, V> right = this.put(node.right, key, value);
+            return right == node.right ? node : balance(node.key, node.value, node.left, right);
+        } else if (node.value == value) {
+            return node;
+        } else {
+            return new TreeNode<K, V>(node.key, value, node.left, node.right);
+        }
+    }
+
+    /**
+     * Recursively removes the key copying the path to the removed node.
+     */
+    private TreeNode<K, V> remove(TreeNode<K, V> node, K key) {
+        if (null == node) {
+            return null;
+        }
+        int c = this.comparator.compare(key, node.key);
+        if (c < 0) {
+            TreeNode<K, V> left = this.remove(node.left, key);
+            return left == node.left ? node : balance(node.key, node.value, left, node.right);
+        } else if (c > 0) {
+            TreeNode<K, V> right = this.remove(node.right, key);
+            return right == node.right ? node : balance(node.key, node.value, node.left, right);
+        } else if (null == node.left) {
+            return node.right;
+        } else if (null == node.right) {
+            return node.left;
+        } else {
+            TreeNode<K, V> successor = first(node.right);
+            return balance(successor.key, successor.value, node.left, removeFirst(node.right));
+        }
+    }
+
+    /**
+     * Returns the leftmost node of the subtree.
+     */
+    private static <K, V> TreeNode<K, V> first(TreeNode<K, V> node) {
+        if (null == node) {
+            return null;
+        }
+        while (null != node.left) {
+            node = node.left;
+        }
+        return node;
+    }
+
+    /**
+     * Removes the leftmost node of the subtree.
+     */
+    private static <K, V> TreeNode<K, V> removeFirst(TreeNode<K, V> node) {
+        if (null == node.left) {
+            return node.right;
+        }
+        return balance(node.key, node.value, removeFirst(node.left), node.right);
+    }
+
+    /**
+     * Creates a new node restoring the AVL invariant with at most two rotations.
+     */
+    private static <K, V> TreeNode<K, V> balance(K key, V value, TreeNode<K, V> left, TreeNode<K, V> right) {
+        int leftHeight = height(left);
+        int rightHeight = height(right);
+        if (leftHeight > rightHeight + 1) {
+            if (height(left.left) >= height(left.right)) {
+                return new TreeNode<K, V>(left.key, left.value, left.left, new TreeNode<K, V>(key, value, left.right, right));
+            } else {
+                TreeNode<K, V> pivot = left.right;
+                return new TreeNode<K, V>(pivot.key, pivot.value, new TreeNode<K, V>(left.key, left.value, left.left,
+                        pivot.left), new TreeNode<K, V>(key, value, pivot.right, right));
+            }
+        } else if (rightHeight > leftHeight + 1) {
+            if (height(right.right) >= height(right.left)) {
+                return new TreeNode<K, V>(right.key, right.value, new TreeNode<K, V>(key, value, left, right.left),
+                        right.right);
+            } else {
+                TreeNode<K, V> pivot = right.left;
+                return new TreeNode<K, V>(pivot.key, pivot.value, new TreeNode<K, V>(key, value, left, pivot.left),
+                        new TreeNode<K, V>(right.key, right.value, pivot.right, right.right));
+            }
+        }
+        return new TreeNode<K, V>(key, value, left, right);
+    }
+
+    /**
+     * Null safe node height.
+     */
+    private static int height(TreeNode<?, ?> node) {
+        return null == node ? 0 : node.height;
+    }
+
+    /**
+     * Null safe node size.
+     */
+    private static int size(TreeNode<?, ?> node) {
+        return null == node ? 0 : node.size;
+    }
+
+    /**
+     * Immutable tree node, doubles as the map entry.
+     * 
+     * @author Ivan Koblik
+     */
+    private static final class TreeNode<K, V> implements Entry<K, V> {
+        private final K key;
+        private final V value;
+        private final TreeNode<K, V> left;
+        private final TreeNode<K, V> right;
+        private final int height;
+        private final int size;
+
+        TreeNode(K key, V value, TreeNode<K, V> left, TreeNode<K, V> right) {
+            this.key = key;
+            this.value = value;
+            this.left = left;
+            this.right = right;
+            this.height = Math.max(height(left), height(right)) + 1;
+            this.size = size(left) + size(right) + 1;
+        }
+
+        @Override
+        public K getKey() {
+            return this.key;
+        }
+
+        @Override
+        public V getValue() {
+            return this.value;
+        }
+
+        @Override
+        public V setValue(V value) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof Entry)) {
+                return false;
+            }
+            Entry<?, ?> other = (Entry<?, ?>) obj;
+            return this.key.equals(other.getKey())
+                    && (null == this.value ? null == other.getValue() : this.value.equals(other.getValue()));
+        }
+
+        @Override
+        public int hashCode() {
+            return this.key.hashCode() ^ (null == this.value ? 0 : this.value.hashCode());
+        }
+
+        @Override
+        public String toString() {
+            return this.key + "=" + this.value;
+        }
+    }
+
+    /**
+     * Ascending in-order iterator over a range of keys. It keeps the path to the next node on an explicit stack.
+     * 
+     * @author Ivan Koblik
+     */
+    private final class EntryIterator implements Iterator<Entry<K, V>> {
+        /**
+         * The stack of nodes yet to be visited, the top is the next one.
+         */
+        private final ArrayList<TreeNode<K, V>> stack = new ArrayList<TreeNode<K, V>>();
+
+        /**
+         * The upper bound or <code>null</code> if unbounded.
+         */
+        private final K to;
+
+        /**
+         * Whether the upper bound is inclusive.
+         */
+        private final boolean toInclusive;
+
+        EntryIterator(K from, boolean fromInclusive, K to, boolean toInclusive) {
+            this.to = to;
+            this.toInclusive = toInclusive;
+            TreeNode<K, V> node = PersistentSortedMap.this.root;
+            while (null != node) {
+                int c = null == from ? 1 : comparator.compare(node.key, from);
+                if (c < 0 || (c == 0 && !fromInclusive)) {
+                    node = node.right;
+                } else {
+                    this.stack.add(node);
+                    node = node.left;
+                }
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+            if (this.stack.isEmpty()) {
+                return false;
+            }
+            if (null == this.to) {
+                return true;
+            }
+            int c = comparator.compare(this.stack.get(this.stack.size() - 1).key, this.to);
+            return c < 0 || (c == 0 && this.toInclusive);
+        }
+
+        @Override
+        public Entry<K, V> next() {
+            if (!this.hasNext()) {
+                throw new NoSuchElementException();
+            }
+            TreeNode<K, V> result = this.stack.remove(this.stack.size() - 1);
+            for (TreeNode<K, V> node = result.right; null != node; node = node.left) {
+                this.stack.add(node);
+            }
+            return result;
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+    }
+}
@@ -0,0 +1,319 @@
+/*
+ * Entwined STM
+ * 
+ * (c) Copyright 2013 CERN. This software is distributed under the terms of the Apache License Version 2.0, copied
+ * verbatim in the file "COPYING". In applying this licence, CERN does not waive the privileges and immunities granted
+ * to it by virtue of its status as an Intergovernmental Organization or submit itself to any jurisdiction.
+ */
+package cern.entwined;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * Immutable sequence of elements stored in the leaves of a 32-way trie of arrays, every update copies at most one
+ * path of the trie and shares the rest with the previous version. The last, incomplete leaf is kept apart so that
+ * appending an element usually copies only that leaf.
+ * <p>
+ * Elements are removed from the head by moving the offset of the first element, the leaves of the removed elements are
+ * released when the vector is rebuilt, which happens once more elements have been removed than there are left. So
+ * appending and removing elements take amortized constant time and positional access takes time logarithmic in the
+ * size with the base of 32, at most 6 array reads for any vector that fits in memory.
+ * 
+ * @param <E> The element type.
+ * @author Ivan Koblik
+ */
+final class PersistentVector<E> implements Iterable<E> {
+
+    /**
+     * The number of bits of an index used at every level of the trie.
+     */
+    private static final int BITS = 5;
+
+    /**
+     * The number of children of a trie node and the number of elements in a leaf.
+     */
+    private static final int WIDTH = 1 << BITS;
+
+    /**
+     * Mask of the index bits used at a level of the trie.
+     */
+    private static final int MASK = WIDTH - 1;
+
+    /**
+     * The shared empty vector.
+     */
+    @SuppressWarnings("rawtypes")
+    private static final PersistentVector EMPTY = new PersistentVector(0, 0, BITS, new Object[WIDTH], new Object[0]);
+
+    /**
+     * The number of elements including the removed ones before the offset.
+     */
+    private final int count;
+
+    /**
+     * The index of the first element.
+     */
+    private final int offset;
+
+    /**
+     * The number of index bits above the leaves.
+     */
+    private final int shift;
+
+    /**
+     * The root of the trie holding the complete leaves.
+     */
+    private final Object[] root;
+
+    /**
+     * The last leaf, it is not in the trie.
+     */
+    private final Object[] tail;
+
+    /**
+     * Constructs the vector.
+     * 
+     * @param count The number of elements including the removed ones.
+     * @param offset The index of the first element.
+     * @param shift The number of index bits above the leaves.
+     * @param root The root of the trie.
+     * @param tail The last leaf.
+     */
+    private PersistentVector(int count, int offset, int shift, Object[] root, Object[] tail) {
+        this.count = count;
+        this.offset = offset;
+        this.shift = shift;
+        this.root = root;
+        this.tail = tail;
+    }
+
+    /**
+     * Returns the empty vector.
+     * 
+     * @return The empty vector.
+     */
+    @SuppressWarnings("unchecked")
+    public static <E> PersistentVector<E> empty() {
+        return EMPTY;
+    }
+
+    /**
+     * Returns the number of elements.
+     * 
+     * @return The size of the vector.
+     */
+    public int size() {
+        return this.count - this.offset;
+    }
+
+    /**
+     * Checks if there are no elements.
+     * 
+     * @return true if the vector is empty.
+     */
+    public boolean isEmpty() {
+        return this.count == this.offset;
+    }
+
+    /**
+     * Returns the element at the given position.
+     * 
+     * @param index The position counted from the first element.
+     * @return The element.
+     * @throws IndexOutOfBoundsException If the index is negative or not less than the size.
+     */
+    @SuppressWarnings("unchecked")
+    public E get(int index) {
+        if (index < 0 || index >= this.size()) {
+            throw new IndexOutOfBoundsException("Index [" + index + "] size [" + this.size() + "]");
+        }
+        int position = this.offset + index;
+        return (E) this.leafFor(position)[position & MASK];
+    }
+
+    /**
+     * Returns a new vector with the element appended at the end.
+     * 
+     * @param element The new element.
+     * @return The new vector.
+     */
+    public PersistentVector<E> append(E element) {
+        int tailSize = this.count - this.tailOffset();
+        if (tailSize < WIDTH) {
+            Object[] newTail = Arrays.copyOf(this.tail, tailSize + 1);
+            newTail[tailSize] = element;
+            return new PersistentVector<E>(this.count + 1, this.offset, this.shift, this.root, newTail);
+        }
+
+        // The tail is full, moving it to the trie
+        Object[] newRoot;
+        int newShift = this.shift;
+        if ((this.count >>> BITS) > (1 << this.shift)) {
+            // No room left in the trie, adding a level
+            newRoot = new Object[WIDTH];
+            newRoot[0] = this.root;
+            newRoot[1] = newPath(this.shift, this.tail);
+            newShift += BITS;
+        } else {
+            newRoot = this.pushTail(this.shift, this.root, this.tail);
+        }
+        return new PersistentVector<E>(this.count + 1, this.offset, newShift, newRoot, new Object[] { element });
+    }
+
+    /**
+     * Returns a new vector with the elements appended at the end.
+     * 
+     * @param elements The new elements.
+     * @return The new vector.
+     */
+    public PersistentVector<E> appendAll(Iterable<? extends E> elements) {
+        PersistentVector<E> result = this;
+        for (E element : elements) {
+            result = result.append(element);
+        }
+        return result;
+    }
+
+    /**
+     * Returns a new vector without the given number of elements at the head.
+     * 
+     * @param n The number of removed elements, not more than the size.
+     * @return The new vector.
+     */
+    public PersistentVector<E> drop(int n) {
+        if (n < 0 || n > this.size()) {
+            throw new IndexOutOfBoundsException("Cannot drop [" + n + "] elements of [" + this.size() + "]");
+        }
+        if (0 == n) {
+            return this;
+        }
+        if (n == this.size()) {
+            return empty();
+        }
+        int newOffset = this.offset + n;
+        if (newOffset >= WIDTH && newOffset > this.count - newOffset) {
+            // Rebuilding to release the leaves of the removed elements, paid for by the removals
+            PersistentVector<E> result = empty();
+            for (int i = newOffset; i < this.count; i++) {
+                result = result.append(this.elementAt(i));
+            }
+            return result;
+        }
+        return new PersistentVector<E>(this.count, newOffset, this.shift, this.root, this.tail);
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * Reads the elements leaf by leaf.
+     */
+    @Override
+    public Iterator<E> iterator() {
+        return new Iterator<E>() {
+            private int position = offset;
+
+            private Object[] leaf = position < count ? leafFor(position) : null;
+
+            @Override
+            public boolean hasNext() {
+                return this.position < count;
+            }
+
+            @SuppressWarnings("unchecked")
+            @Override
+            public E next() {
+                if (!this.hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                if (0 == (this.position & MASK) && this.position != offset) {
+                    this.leaf = leafFor(this.position);
+                }
+                return (E) this.leaf[this.position++ & MASK];
+            }
+
+            @Override
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+
+    //
+    // Private methods
+    //
+
+    /**
+     * Returns the element at the absolute position.
+     * 
+     * @param position The position including the removed elements.
+     * @return The element.
+     */
+    @SuppressWarnings("unchecked")
+    private E elementAt(int position) {
+        return (E) this.leafFor(position)[position & MASK];
+    }
+
+    /**
+     * Returns the index of the first element of the tail.
+     * 
+     * @return The tail offset.
+     */
+    private int tailOffset() {
+        return this.count < WIDTH ? 0 : ((this.count - 1) >>> BITS) << BITS;
+    }
+
+    /**
+     * Finds the leaf holding the element at the absolute position.
+     * 
+     * @param position The position including the removed elements.
+     * @return The leaf array.
+     */
+    private Object[] leafFor(int position) {
+        if (position >= this.tailOffset()) {
+            return this.tail;
+        }
+        Object[] node = this.root;
+        for (int level = this.shift; level > 0; level -= BITS) {
+            node = (Object[]) node[(position >>> level) & MASK];
+        }
+        return node;
+    }
+
+    /**
+     * Copies the path to the rightmost leaf adding the given leaf next to it.
+     * 
+     * @param level The number of index bits above the leaves at the given node.
+     * @param parent The node.
+     * @param leaf The new leaf.
+     * @return The copied node.
+     */
+    private Object[] pushTail(int level, Object[] parent, Object[] leaf) {
+        int childIndex = ((this.count - 1) >>> level) & MASK;
+        Object[] result = parent.clone();
+        if (BITS == level) {
+            result[childIndex] = leaf;
+        } else {
+            Object[] child = (Object[]) parent[childIndex];
+            result[childIndex] = null == child ? newPath(level - BITS, leaf) : this.pushTail(level - BITS, child, leaf);
+        }
+        return result;
+    }
+
+    /**
+     * Creates the chain of nodes leading to the leaf.
+     * 
+     * @param level The number of index bits above the leaves at the top node.
+     * @param leaf The leaf.
+     * @return The top node.
+     */
+    private static Object[] newPath(int level, Object[] leaf) {
+        if (0 == level) {
+            return leaf;
+        }
+        Object[] result = new Object[WIDTH];
+        result[0] = newPath(level - BITS, leaf);
+        return result;
+    }
+}
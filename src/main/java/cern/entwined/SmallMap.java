@@ -0,0 +1,307 @@
+/*
+ * Entwined STM
+ * 
+ * (c) Copyright 2013 CERN. This software is distributed under the terms of the Apache License Version 2.0, copied
+ * verbatim in the file "COPYING". In applying this licence, CERN does not waive the privileges and immunities granted
+ * to it by virtue of its status as an Intergovernmental Organization or submit itself to any jurisdiction.
+ */
+package cern.entwined;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+import com.google.common.base.Objects;
+
+/**
+ * Map optimized for a few entries. Up to {@value #INLINE_CAPACITY} entries are kept in a pair of arrays allocated on
+ * the first insertion and are looked up by a linear scan, bigger maps are moved to a {@link HashMap}. Meant for the
+ * read and write logs of the transactional collections, most transactions touch only a few keys and an empty log
+ * allocates nothing but the map object itself.
+ * <p>
+ * Removing entries while iterating over an inline map moves the last entry into the freed slot, the entries returned
+ * by the iterator are snapshots that write their new values through to the map. This class is not thread safe.
+ * 
+ * @param <K> The key type.
+ * @param <V> The value type.
+ * @author Ivan Koblik
+ */
+final class SmallMap<K, V> extends AbstractMap<K, V> {
+
+    /**
+     * The maximum number of inline entries.
+     */
+    static final int INLINE_CAPACITY = 8;
+
+    /**
+     * The inline keys, <code>null</code> until the first insertion or if the map has been moved to a hash map.
+     */
+    private Object[] keys;
+
+    /**
+     * The inline values.
+     */
+    private Object[] values;
+
+    /**
+     * The number of inline entries.
+     */
+    private int size;
+
+    /**
+     * The hash map holding the entries once there are too many of them for the arrays.
+     */
+    private HashMap<K, V> overflow;
+
+    /**
+     * Creates an empty map.
+     */
+    public SmallMap() {
+    }
+
+    /**
+     * Creates a map with the entries of the given one.
+     * 
+     * @param source The copied map.
+     */
+    public SmallMap(Map<? extends K, ? extends V> source) {
+        this.putAll(source);
+    }
+
+    @Override
+    public int size() {
+        return null == this.overflow ? this.size : this.overflow.size();
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return 0 == this.size();
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        if (null != this.overflow) {
+            return this.overflow.containsKey(key);
+        }
+        return this.indexOf(key) >= 0;
+    }
+
+    @SuppressWarnings("unchecked")
+    @Override
+    public V get(Object key) {
+        if (null != this.overflow) {
+            return this.overflow.get(key);
+        }
+        int index = this.indexOf(key);
+        return index < 0 ? null : (V) this.values[index];
+    }
+
+    @SuppressWarnings("unchecked")
+    @Override
+    public V put(K key, V value) {
+        if (null != this.overflow) {
+            return this.overflow.put(key, value);
+        }
+        int index = this.indexOf(key);
+        if (index >= 0) {
+            V previous = (V) this.values[index];
+            this.values[index] = value;
+            return previous;
+        }
+        if (null == this.keys) {
+            this.keys = new Object[INLINE_CAPACITY];
+            this.values = new Object[INLINE_CAPACITY];
+        } else if (INLINE_CAPACITY == this.size) {
+            this.overflow = new HashMap<K, V>(4 * INLINE_CAPACITY);
+            for (int i = 0; i < this.size; i++) {
+                this.overflow.put((K) this.keys[i], (V) this.values[i]);
+            }
+            this.keys = null;
+            this.values = null;
+            this.size = 0;
+            return this.overflow.put(key, value);
+        }
+        this.keys[this.size] = key;
+        this.values[this.size] = value;
+        this.size++;
+        return null;
+    }
+
+    @SuppressWarnings("unchecked")
+    @Override
+    public V remove(Object key) {
+        if (null != this.overflow) {
+            return this.overflow.remove(key);
+        }
+        int index = this.indexOf(key);
+        if (index < 0) {
+            return null;
+        }
+        V previous = (V) this.values[index];
+        this.removeAt(index);
+        return previous;
+    }
+
+    /**
+     * Prepares the map for the given number of additional entries. If they would not fit inline the entries are moved
+     * to a hash map presized for all of them, so that bulk insertions don't rehash it as it grows.
+     * 
+     * @param additional The expected number of added entries.
+     */
+    @SuppressWarnings("unchecked")
+    public void ensureCapacity(int additional) {
+        int expected = this.size() + additional;
+        if (null != this.overflow || expected <= INLINE_CAPACITY) {
+            return;
+        }
+        this.overflow = new HashMap<K, V>(Math.max(4 * INLINE_CAPACITY, expected * 4 / 3 + 1));
+        for (int i = 0; i < this.size; i++) {
+            this.overflow.put((K) this.keys[i], (V) this.values[i]);
+        }
+        this.keys = null;
+        this.values = null;
+        this.size = 0;
+    }
+
+    @Override
+    public void putAll(Map<? extends K, ? extends V> m) {
+        if (m instanceof SmallMap) {
+            SmallMap<? extends K, ? extends V> small = (SmallMap<? extends K, ? extends V>) m;
+            if (null == small.overflow && this.isEmpty() && null == this.overflow) {
+                // Copying the arrays of an inline map
+                if (small.size > 0) {
+                    this.keys = small.keys.clone();
+                    this.values = small.values.clone();
+                    this.size = small.size;
+                }
+                return;
+            }
+        }
+        super.putAll(m);
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * Releases the arrays or the hash map, so that the map takes as little memory as a new one.
+     */
+    @Override
+    public void clear() {
+        this.keys = null;
+        this.values = null;
+        this.size = 0;
+        this.overflow = null;
+    }
+
+    @Override
+    public Set<Entry<K, V>> entrySet() {
+        return new AbstractSet<Entry<K, V>>() {
+            @Override
+            public Iterator<Entry<K, V>> iterator() {
+                if (null != overflow) {
+                    return overflow.entrySet().iterator();
+                }
+                return new InlineIterator();
+            }
+
+            @Override
+            public int size() {
+                return SmallMap.this.size();
+            }
+
+            @Override
+            public void clear() {
+                SmallMap.this.clear();
+            }
+        };
+    }
+
+    //
+    // Private methods
+    //
+
+    /**
+     * Finds the inline slot of the key.
+     * 
+     * @param key The key.
+     * @return The index of the slot or -1 if the key is not in the map.
+     */
+    private int indexOf(Object key) {
+        for (int i = 0; i < this.size; i++) {
+            if (Objects.equal(key, this.keys[i])) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Removes the inline entry moving the last entry into its slot.
+     * 
+     * @param index The index of the removed entry.
+     */
+    private void removeAt(int index) {
+        int last = this.size - 1;
+        this.keys[index] = this.keys[last];
+        this.values[index] = this.values[last];
+        this.keys[last] = null;
+        this.values[last] = null;
+        this.size = last;
+    }
+
+    /**
+     * Iterator over the inline entries.
+     * 
+     * @author Ivan Koblik
+     */
+    private class InlineIterator implements Iterator<Entry<K, V>> {
+        /**
+         * The index of the next entry.
+         */
+        private int next = 0;
+
+        /**
+         * The index of the last returned entry, -1 if there is none or it has been removed.
+         */
+        private int current = -1;
+
+        @Override
+        public boolean hasNext() {
+            return this.next < size;
+        }
+
+        @SuppressWarnings("unchecked")
+        @Override
+        public Entry<K, V> next() {
+            if (!this.hasNext()) {
+                throw new NoSuchElementException();
+            }
+            this.current = this.next++;
+            final K key = (K) keys[this.current];
+            return new SimpleEntry<K, V>(key, (V) values[this.current]) {
+                private static final long serialVersionUID = 1L;
+
+                @Override
+                public V setValue(V value) {
+                    put(key, value);
+                    return super.setValue(value);
+                }
+            };
+        }
+
+        @Override
+        public void remove() {
+            if (this.current < 0) {
+                throw new IllegalStateException();
+            }
+            removeAt(this.current);
+            // The last entry has been moved to the current slot
+            this.next = this.current;
+            this.current = -1;
+        }
+    }
+}
@@ -0,0 +1,94 @@
+/*
+ * Entwined STM
+ * 
+ * (c) Copyright 2013 CERN. This software is distributed under the terms of the Apache License Version 2.0, copied
+ * verbatim in the file "COPYING". In applying this licence, CERN does not waive the privileges and immunities granted
+ * to it by virtue of its status as an Intergovernmental Organization or submit itself to any jurisdiction.
+ */
+package cern.entwined;
+
+import java.util.AbstractSet;
+import java.util.Collection;
+import java.util.Iterator;
+
+/**
+ * Set optimized for a few elements, backed by a {@link SmallMap}. This class is not thread safe.
+ * 
+ * @param <E> The element type.
+ * @author Ivan Koblik
+ */
+final class SmallSet<E> extends AbstractSet<E> {
+
+    /**
+     * The map of the elements to {@link Boolean#TRUE}.
+     */
+    private final SmallMap<E, Boolean> map = new SmallMap<E, Boolean>();
+
+    /**
+     * Creates an empty set.
+     */
+    public SmallSet() {
+    }
+
+    /**
+     * Creates a set with the elements of the given collection.
+     * 
+     * @param source The copied collection.
+     */
+    public SmallSet(Collection<? extends E> source) {
+        this.addAll(source);
+    }
+
+    @Override
+    public int size() {
+        return this.map.size();
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return this.map.isEmpty();
+    }
+
+    @Override
+    public boolean contains(Object o) {
+        return this.map.containsKey(o);
+    }
+
+    @Override
+    public boolean add(E e) {
+        return null == this.map.put(e, Boolean.TRUE);
+    }
+
+    @Override
+    public boolean remove(Object o) {
+        return null != this.map.remove(o);
+    }
+
+    /**
+     * Prepares the set for the given number of additional elements, see {@link SmallMap#ensureCapacity(int)}.
+     * 
+     * @param additional The expected number of added elements.
+     */
+    public void ensureCapacity(int additional) {
+        this.map.ensureCapacity(additional);
+    }
+
+    @Override
+    public boolean addAll(Collection<? extends E> c) {
+        if (c instanceof SmallSet && this.isEmpty()) {
+            this.map.putAll(((SmallSet<? extends E>) c).map);
+            return !this.isEmpty();
+        }
+        return super.addAll(c);
+    }
+
+    @Override
+    public void clear() {
+        this.map.clear();
+    }
+
+    @Override
+    public Iterator<E> iterator() {
+        return this.map.keySet().iterator();
+    }
+}
@@ -0,0 +1,552 @@
+/*
+ * Entwined STM
+ * 
+ * (c) Copyright 2013 CERN. This software is distributed under the terms of the Apache License Version 2.0, copied
+ * verbatim in the file "COPYING". In applying this licence, CERN does not waive the privileges and immunities granted
+ * to it by virtue of its status as an Intergovernmental Organization or submit itself to any jurisdiction.
+ */
+package cern.entwined;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Transactional map holding at most the given number of entries. Commits that make the cache grow beyond its maximum
+ * size evict the entries with the lowest scores according to the {@link EvictionPolicy}, the entries written by the
+ * committing transaction are evicted last.
+ * <p>
+ * The scores are kept outside of the transactional state and are shared by all the snapshots of the cache. They are
+ * updated immediately on every access, also by transactions that are later rolled back, and without any
+ * synchronization between concurrent accesses to the same entry. So the scores are only approximate, but reading an
+ * entry never conflicts with other reads of it. The entries otherwise have the conflict semantics of
+ * {@link TransactionalMap}; evicting an entry is a change, it conflicts with the concurrent transactions that read it.
+ * <p>
+ * The scores are kept in order, a commit that overflows the cache takes the entries to evict from the lowest scores
+ * and removes them in the same pass that applies its changes. Only the scores of the entries that have lost them in a
+ * race with a concurrent commit have to be looked up among all the entries. The scores of the evicted entries are
+ * dropped once the whole commit succeeds, so a failed commit leaves them untouched.
+ * 
+ * @param <K> The cache key type.
+ * @param <V> The cache value type.
+ * @author Ivan Koblik
+ */
+public class TransactionalBoundedCache<K, V> extends SemiPersistent<TransactionalBoundedCache<K, V>> {
+
+    /**
+     * Orders the keys by their scores and then by the order the scores were computed in.
+     */
+    private static final Comparator<ScoredKey<?>> SCORE_ORDER = new Comparator<ScoredKey<?>>() {
+        @Override
+        public int compare(ScoredKey<?> o1, ScoredKey<?> o2) {
+            if (o1.score != o2.score) {
+                return o1.score < o2.score ? -1 : 1;
+            }
+            return o1.tick < o2.tick ? -1 : (o1.tick == o2.tick ? 0 : 1);
+        }
+    };
+
+    /**
+     * The cached entries.
+     */
+    private final TransactionalMap<K, V> delegate;
+
+    /**
+     * The maximum number of entries.
+     */
+    private final int maxSize;
+
+    /**
+     * The scores of the entries shared by all the snapshots.
+     */
+    private final AccessTracker<K> tracker;
+
+    /**
+     * The keys written by this transaction.
+     */
+    private final Set<K> written = new HashSet<K>();
+
+    /**
+     * The keys removed by this transaction.
+     */
+    private final Set<K> removed = new HashSet<K>();
+
+    /**
+     * Constructs an empty {@link TransactionalBoundedCache}.
+     * 
+     * @param maxSize The maximum number of entries, must be positive.
+     * @param policy The eviction policy.
+     */
+    public TransactionalBoundedCache(int maxSize, EvictionPolicy policy) {
+        this(Collections.<K, V> emptyMap(), maxSize, policy);
+    }
+
+    /**
+     * Constructs new {@link TransactionalBoundedCache} initializing it with the given collection. Passed collection is
+     * copied.
+     * 
+     * @param sourceMap The initial state, it must not have more entries than the maximum size.
+     * @param maxSize The maximum number of entries, must be positive.
+     * @param policy The eviction policy.
+     */
+    public TransactionalBoundedCache(Map<K, V> sourceMap, int maxSize, EvictionPolicy policy) {
+        Utils.checkNull("Source map", sourceMap);
+        Utils.checkNull("Eviction policy", policy);
+        if (maxSize <= 0) {
+            throw new IllegalArgumentException("Maximum size must be positive, got [" + maxSize + "]");
+        }
+        if (sourceMap.size() > maxSize) {
+            throw new IllegalArgumentException("Source map has more than [" + maxSize + "] entries");
+        }
+        this.delegate = new TransactionalMap<K, V>(sourceMap);
+        this.maxSize = maxSize;
+        this.tracker = new AccessTracker<K>(policy);
+        for (K key : sourceMap.keySet()) {
+            this.tracker.add(key);
+        }
+    }
+
+    /**
+     * Constructs new {@link TransactionalBoundedCache} on top of the given map.
+     * 
+     * @param delegate The cached entries.
+     * @param maxSize The maximum number of entries.
+     * @param tracker The scores of the entries.
+     */
+    private TransactionalBoundedCache(TransactionalMap<K, V> delegate, int maxSize, AccessTracker<K> tracker) {
+        this.delegate = delegate;
+        this.maxSize = maxSize;
+        this.tracker = tracker;
+    }
+
+    /**
+     * Returns the maximum number of entries.
+     * 
+     * @return The maximum size.
+     */
+    public int maxSize() {
+        return this.maxSize;
+    }
+
+    /**
+     * Returns the value of the key or <code>null</code> if there is no such key.
+     * 
+     * @param key The key.
+     * @return The value or <code>null</code>.
+     */
+    public V get(K key) {
+        V value = this.delegate.get(key);
+        if (null != value || this.delegate.containsKey(key)) {
+            this.tracker.access(key);
+        }
+        return value;
+    }
+
+    /**
+     * Checks if the cache has an entry for the key, accessing the entry.
+     * 
+     * @param key The key.
+     * @return <code>true</code> if the key is in the cache.
+     */
+    public boolean containsKey(K key) {
+        if (this.delegate.containsKey(key)) {
+            this.tracker.access(key);
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Stores the value.
+     * 
+     * @param key The key.
+     * @param value The value.
+     * @return The previous value or <code>null</code> if there was no entry for the key.
+     */
+    public V put(K key, V value) {
+        this.tracker.access(key);
+        this.written.add(key);
+        this.removed.remove(key);
+        return this.delegate.put(key, value);
+    }
+
+    /**
+     * Removes the entry of the key.
+     * 
+     * @param key The key.
+     * @return The removed value or <code>null</code> if there was no entry for the key.
+     */
+    public V remove(K key) {
+        this.written.remove(key);
+        this.removed.add(key);
+        return this.delegate.remove(key);
+    }
+
+    //
+    // Transactional methods
+    //
+
+    @Override
+    protected TransactionalBoundedCache<K, V> cleanCopy() {
+        return new TransactionalBoundedCache<K, V>(this.delegate.cleanCopy(), this.maxSize, this.tracker);
+    }
+
+    @Override
+    protected TransactionalBoundedCache<K, V> dirtyCopy() {
+        TransactionalBoundedCache<K, V> copy = new TransactionalBoundedCache<K, V>(this.delegate.dirtyCopy(),
+                this.maxSize, this.tracker);
+        copy.written.addAll(this.written);
+        copy.removed.addAll(this.removed);
+        return copy;
+    }
+
+    @Override
+    protected void update(TransactionalBoundedCache<K, V> changes, boolean onlyReadLogs) {
+        Utils.checkNull("Local changes", changes);
+        this.delegate.update(changes.delegate, onlyReadLogs);
+        if (!onlyReadLogs) {
+            this.written.clear();
+            this.written.addAll(changes.written);
+            this.removed.clear();
+            this.removed.addAll(changes.removed);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * If the committed state would have more entries than the maximum size the entries with the lowest scores are
+     * evicted by the same commit.
+     */
+    @Override
+    public TransactionalBoundedCache<K, V> commit(TransactionalBoundedCache<K, V> globalState) {
+        Utils.checkNull("Global state", globalState);
+
+        // Reading the global state through a clean copy not to mark it as accessed
+        TransactionalMap<K, V> global = globalState.delegate.cleanCopy();
+        int excess = global.size() - this.maxSize;
+        for (K key : this.written) {
+            if (!global.containsKey(key)) {
+                excess++;
+            }
+        }
+        for (K key : this.removed) {
+            if (global.containsKey(key)) {
+                excess--;
+            }
+        }
+        TransactionalMap<K, V> changes = this.delegate;
+        List<K> victims = Collections.emptyList();
+        if (excess > 0) {
+            victims = this.selectVictims(global, excess);
+            changes = this.delegate.dirtyCopy();
+            for (K key : victims) {
+                changes.removeBlind(key);
+            }
+        }
+
+        TransactionalMap<K, V> committed = changes.commit(globalState.delegate);
+        if (committed == globalState.delegate) {
+            return globalState;
+        }
+        CommitActions.schedule(new ScoreCleanup<K>(this.tracker, victims, committed, 2 * this.maxSize));
+        return new TransactionalBoundedCache<K, V>(committed, this.maxSize, this.tracker);
+    }
+
+    //
+    // Private methods
+    //
+
+    /**
+     * Finds the given number of cached entries with the lowest scores, the entries written by this transaction come
+     * last.
+     * 
+     * @param global The cached entries before the commit.
+     * @param count The number of entries to evict.
+     * @return The keys of the entries to evict.
+     */
+    private List<K> selectVictims(TransactionalMap<K, V> global, int count) {
+        List<K> victims = new ArrayList<K>(count);
+        for (ScoredKey<K> scored : this.tracker.ordered()) {
+            if (victims.size() == count) {
+                return victims;
+            }
+            if (this.tracker.isCurrent(scored) && this.isEvictable(scored.key) && global.containsKey(scored.key)) {
+                victims.add(scored.key);
+            }
+        }
+
+        // Looking for the entries that have lost their scores, unless all the evictable entries have been selected
+        int evictable = global.size();
+        for (K key : this.written) {
+            if (global.containsKey(key)) {
+                evictable--;
+            }
+        }
+        for (K key : this.removed) {
+            if (global.containsKey(key)) {
+                evictable--;
+            }
+        }
+        if (victims.size() < evictable) {
+            Set<K> selected = new HashSet<K>(victims);
+            for (K key : global.keySet()) {
+                if (victims.size() == count) {
+                    return victims;
+                }
+                if (this.isEvictable(key) && !selected.contains(key)) {
+                    victims.add(key);
+                }
+            }
+        }
+
+        // Evicting the written entries in the order of their scores
+        List<ScoredKey<K>> written = new ArrayList<ScoredKey<K>>(this.written.size());
+        for (K key : this.written) {
+            written.add(new ScoredKey<K>(key, this.tracker.score(key), 0));
+        }
+        Collections.sort(written, SCORE_ORDER);
+        for (int i = 0; victims.size() < count; i++) {
+            victims.add(written.get(i).key);
+        }
+        return victims;
+    }
+
+    /**
+     * Checks if the entry of the key may be evicted before the entries written by this transaction.
+     * 
+     * @param key The key.
+     * @return true if the key has been neither written nor removed by this transaction.
+     */
+    private boolean isEvictable(K key) {
+        return !this.written.contains(key) && !this.removed.contains(key);
+    }
+
+    /**
+     * Drops the scores of the entries that are no longer cached once the commit has succeeded.
+     * 
+     * @param <K> The key type.
+     * @author Ivan Koblik
+     */
+    private static final class ScoreCleanup<K> implements Runnable {
+        /**
+         * The scores of the entries.
+         */
+        private final AccessTracker<K> tracker;
+
+        /**
+         * The keys of the evicted entries.
+         */
+        private final List<K> evicted;
+
+        /**
+         * The committed entries.
+         */
+        private final TransactionalMap<K, ?> committed;
+
+        /**
+         * The number of scores above which the scores of all the entries that are not cached are dropped.
+         */
+        private final int maxScores;
+
+        /**
+         * Constructs the cleanup.
+         * 
+         * @param tracker The scores of the entries.
+         * @param evicted The keys of the evicted entries.
+         * @param committed The committed entries.
+         * @param maxScores The number of scores above which the scores of all the entries that are not cached are
+         *            dropped.
+         */
+        private ScoreCleanup(AccessTracker<K> tracker, List<K> evicted, TransactionalMap<K, ?> committed,
+                int maxScores) {
+            this.tracker = tracker;
+            this.evicted = evicted;
+            this.committed = committed;
+            this.maxScores = maxScores;
+        }
+
+        @Override
+        public void run() {
+            for (K key : this.evicted) {
+                this.tracker.forget(key);
+            }
+            if (this.tracker.size() > this.maxScores) {
+                // Dropping the scores of the removed entries and of the entries written by rolled back transactions
+                this.tracker.retain(this.committed.cleanCopy());
+            }
+        }
+    }
+
+    /**
+     * Key with its score.
+     * 
+     * @param <K> The key type.
+     * @author Ivan Koblik
+     */
+    private static final class ScoredKey<K> {
+        private final K key;
+
+        private final long score;
+
+        private final long tick;
+
+        private ScoredKey(K key, long score, long tick) {
+            this.key = key;
+            this.score = score;
+            this.tick = tick;
+        }
+    }
+
+    /**
+     * Thread safe approximate scores of the cached entries.
+     * 
+     * @param <K> The key type.
+     * @author Ivan Koblik
+     */
+    private static final class AccessTracker<K> {
+        /**
+         * The eviction policy computing the scores.
+         */
+        private final EvictionPolicy policy;
+
+        /**
+         * The number of accesses so far.
+         */
+        private final AtomicLong ticks = new AtomicLong();
+
+        /**
+         * The current scores of the keys.
+         */
+        private final ConcurrentMap<K, ScoredKey<K>> scores = new ConcurrentHashMap<K, ScoredKey<K>>();
+
+        /**
+         * The scores in ascending order, it may also hold the scores that have been concurrently replaced.
+         */
+        private final ConcurrentSkipListSet<ScoredKey<K>> ordered = new ConcurrentSkipListSet<ScoredKey<K>>(
+                SCORE_ORDER);
+
+        /**
+         * Constructs the tracker.
+         * 
+         * @param policy The eviction policy computing the scores.
+         */
+        private AccessTracker(EvictionPolicy policy) {
+            this.policy = policy;
+        }
+
+        /**
+         * Gives the key the lowest score unless it already has one.
+         * 
+         * @param key The key.
+         */
+        private void add(K key) {
+            ScoredKey<K> scored = new ScoredKey<K>(key, 0, this.ticks.incrementAndGet());
+            if (null == this.scores.putIfAbsent(key, scored)) {
+                this.ordered.add(scored);
+            }
+        }
+
+        /**
+         * Updates the score of the key, concurrent updates of the same key may be lost.
+         * 
+         * @param key The accessed key.
+         */
+        private void access(K key) {
+            long tick = this.ticks.incrementAndGet();
+            ScoredKey<K> previous = this.scores.get(key);
+            ScoredKey<K> scored = new ScoredKey<K>(key, this.policy.score(null == previous ? 0 : previous.score,
+                    tick), tick);
+            boolean updated;
+            if (null == previous) {
+                updated = null == this.scores.putIfAbsent(key, scored);
+            } else {
+                updated = this.scores.replace(key, previous, scored);
+            }
+            if (updated) {
+                this.ordered.add(scored);
+                if (null != previous) {
+                    this.ordered.remove(previous);
+                }
+            }
+        }
+
+        /**
+         * Returns the score of the key.
+         * 
+         * @param key The key.
+         * @return The score, 0 if the key has never been accessed.
+         */
+        private long score(K key) {
+            ScoredKey<K> scored = this.scores.get(key);
+            return null == scored ? 0 : scored.score;
+        }
+
+        /**
+         * Returns the scores in ascending order, some of them may be outdated.
+         * 
+         * @return The ordered scores.
+         */
+        private Iterable<ScoredKey<K>> ordered() {
+            return this.ordered;
+        }
+
+        /**
+         * Checks if the score is the current score of its key.
+         * 
+         * @param scored The score.
+         * @return true if the score is current, false if it has been replaced or dropped.
+         */
+        private boolean isCurrent(ScoredKey<K> scored) {
+            return this.scores.get(scored.key) == scored;
+        }
+
+        /**
+         * Drops the score of the key.
+         * 
+         * @param key The key.
+         */
+        private void forget(K key) {
+            ScoredKey<K> scored = this.scores.remove(key);
+            if (null != scored) {
+                this.ordered.remove(scored);
+            }
+        }
+
+        /**
+         * Drops the scores of the keys that are not in the map and the outdated scores.
+         * 
+         * @param map The cached entries.
+         */
+        private void retain(TransactionalMap<K, ?> map) {
+            for (Entry<K, ScoredKey<K>> entry : this.scores.entrySet()) {
+                if (!map.containsKey(entry.getKey()) && this.scores.remove(entry.getKey(), entry.getValue())) {
+                    this.ordered.remove(entry.getValue());
+                }
+            }
+            for (ScoredKey<K> scored : this.ordered) {
+                if (!this.isCurrent(scored)) {
+                    this.ordered.remove(scored);
+                }
+            }
+        }
+
+        /**
+         * Returns the number of keys with scores.
+         * 
+         * @return The number of keys.
+         */
+        private int size() {
+            return this.scores.size();
+        }
+    }
+}
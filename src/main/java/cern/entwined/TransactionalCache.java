@@ -0,0 +1,465 @@
+/*
+ * Entwined STM
+ * 
+ * (c) Copyright 2013 CERN. This software is distributed under the terms of the Apache License Version 2.0, copied
+ * verbatim in the file "COPYING". In applying this licence, CERN does not waive the privileges and immunities granted
+ * to it by virtue of its status as an Intergovernmental Organization or submit itself to any jurisdiction.
+ */
+package cern.entwined;
+
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import cern.entwined.exception.ConflictException;
+
+import com.google.common.base.Ticker;
+
+/**
+ * Transactional map whose entries expire after a time-to-live given when they are stored. Expired entries are
+ * invisible to the transactions, they behave exactly as absent ones.
+ * <p>
+ * Every transaction reads the time once, when its snapshot is taken, so an entry cannot expire in the middle of a
+ * transaction. Reading an entry conflicts only with concurrent changes to its key, an entry that has been expired
+ * both in the source and in the global state is considered unchanged even if it has been purged meanwhile.
+ * <p>
+ * Expired entries are purged from the global state by the commits using an index of the entries ordered by their
+ * expiration time. Every commit that changes the cache purges at most {@value #PURGE_BATCH} expired entries, a
+ * background transaction may request purging more of them with {@link #purgeExpired(int)}. Purging reads nothing, it
+ * never causes conflicts.
+ * 
+ * @param <K> The cache key type.
+ * @param <V> The cache value type.
+ * @author Ivan Koblik
+ */
+public class TransactionalCache<K, V> extends SemiPersistent<TransactionalCache<K, V>> {
+
+    /**
+     * The maximum number of expired entries purged by a commit on top of the ones requested with
+     * {@link #purgeExpired(int)}.
+     */
+    public static final int PURGE_BATCH = 64;
+
+    /**
+     * Expiration time of the entries that never expire.
+     */
+    private static final long NEVER = Long.MAX_VALUE;
+
+    /**
+     * Source of the sequence numbers ordering the entries that expire at the same time.
+     */
+    private static final AtomicLong SEQUENCE = new AtomicLong();
+
+    /**
+     * Orders the entries by their expiration time.
+     */
+    private static final Comparator<CacheEntry<?>> EXPIRY_ORDER = new Comparator<CacheEntry<?>>() {
+        @Override
+        public int compare(CacheEntry<?> o1, CacheEntry<?> o2) {
+            if (o1.expiresAt != o2.expiresAt) {
+                return o1.expiresAt < o2.expiresAt ? -1 : 1;
+            }
+            return o1.sequence < o2.sequence ? -1 : (o1.sequence == o2.sequence ? 0 : 1);
+        }
+    };
+
+    /**
+     * The unmodifiable map of the committed entries, including the expired ones not purged yet.
+     */
+    private final Map<K, CacheEntry<V>> sourceEntries;
+
+    /**
+     * The committed entries that expire ordered by their expiration time, mapped to their keys.
+     */
+    private final PersistentSortedMap<CacheEntry<V>, K> expiryIndex;
+
+    /**
+     * The time-to-live of the entries stored without one, in nanoseconds.
+     */
+    private final long defaultTtl;
+
+    /**
+     * The time source.
+     */
+    private final Ticker ticker;
+
+    /**
+     * The time of the snapshot, in nanoseconds as read from the ticker.
+     */
+    private final long now;
+
+    /**
+     * The new entries, <code>null</code> values stand for removed keys.
+     */
+    private final Map<K, CacheEntry<V>> pendingChanges = new SmallMap<K, CacheEntry<V>>();
+
+    /**
+     * The read keys.
+     */
+    private final Set<K> accessed = new SmallSet<K>();
+
+    /**
+     * The number of expired entries to be purged at commit on top of {@link #PURGE_BATCH}.
+     */
+    private int purgeRequest = 0;
+
+    /**
+     * Constructs an empty {@link TransactionalCache} with entries that never expire unless a time-to-live is given to
+     * {@link #put(Object, Object, long, TimeUnit)}.
+     */
+    public TransactionalCache() {
+        this(Ticker.systemTicker());
+    }
+
+    /**
+     * Constructs an empty {@link TransactionalCache} with entries that never expire unless a time-to-live is given to
+     * {@link #put(Object, Object, long, TimeUnit)}.
+     * 
+     * @param ticker The time source.
+     */
+    public TransactionalCache(Ticker ticker) {
+        this(Collections.<K, CacheEntry<V>> emptyMap(), new PersistentSortedMap<CacheEntry<V>, K>(EXPIRY_ORDER),
+                NEVER, ticker);
+    }
+
+    /**
+     * Constructs an empty {@link TransactionalCache} with the given default time-to-live.
+     * 
+     * @param defaultTtl The time-to-live of the entries stored with {@link #put(Object, Object)}, must be positive.
+     * @param unit The unit of the time-to-live.
+     */
+    public TransactionalCache(long defaultTtl, TimeUnit unit) {
+        this(defaultTtl, unit, Ticker.systemTicker());
+    }
+
+    /**
+     * Constructs an empty {@link TransactionalCache} with the given default time-to-live.
+     * 
+     * @param defaultTtl The time-to-live of the entries stored with {@link #put(Object, Object)}, must be positive.
+     * @param unit The unit of the time-to-live.
+     * @param ticker The time source.
+     */
+    public TransactionalCache(long defaultTtl, TimeUnit unit, Ticker ticker) {
+        this(Collections.<K, CacheEntry<V>> emptyMap(), new PersistentSortedMap<CacheEntry<V>, K>(EXPIRY_ORDER),
+                toNanos(defaultTtl, unit), ticker);
+    }
+
+    /**
+     * Constructs a snapshot of the given committed state.
+     * 
+     * @param sourceEntries The unmodifiable map of the committed entries.
+     * @param expiryIndex The committed entries that expire ordered by their expiration time.
+     * @param defaultTtl The default time-to-live in nanoseconds.
+     * @param ticker The time source.
+     */
+    private TransactionalCache(Map<K, CacheEntry<V>> sourceEntries, PersistentSortedMap<CacheEntry<V>, K> expiryIndex,
+            long defaultTtl, Ticker ticker) {
+        this(sourceEntries, expiryIndex, defaultTtl, ticker, Utils.checkNull("Ticker", ticker).read());
+    }
+
+    /**
+     * Constructs a snapshot of the given committed state taken at the given time.
+     * 
+     * @param sourceEntries The unmodifiable map of the committed entries.
+     * @param expiryIndex The committed entries that expire ordered by their expiration time.
+     * @param defaultTtl The default time-to-live in nanoseconds.
+     * @param ticker The time source.
+     * @param now The time of the snapshot.
+     */
+    private TransactionalCache(Map<K, CacheEntry<V>> sourceEntries, PersistentSortedMap<CacheEntry<V>, K> expiryIndex,
+            long defaultTtl, Ticker ticker, long now) {
+        this.sourceEntries = sourceEntries;
+        this.expiryIndex = expiryIndex;
+        this.defaultTtl = defaultTtl;
+        this.ticker = ticker;
+        this.now = now;
+    }
+
+    /**
+     * Returns the value of the key or <code>null</code> if there is no such key or its entry has expired.
+     * 
+     * @param key The key.
+     * @return The value or <code>null</code>.
+     */
+    public V get(K key) {
+        CacheEntry<V> entry = this.getEntry(key);
+        return null == entry ? null : entry.value;
+    }
+
+    /**
+     * Checks if the cache has an entry for the key that has not expired.
+     * 
+     * @param key The key.
+     * @return <code>true</code> if there is a live entry for the key.
+     */
+    public boolean containsKey(K key) {
+        return null != this.getEntry(key);
+    }
+
+    /**
+     * Stores the value with the default time-to-live.
+     * 
+     * @param key The key.
+     * @param value The value.
+     * @return The previous value or <code>null</code> if there was no live entry for the key.
+     */
+    public V put(K key, V value) {
+        return this.store(key, new CacheEntry<V>(value, this.expiresAfter(this.defaultTtl)));
+    }
+
+    /**
+     * Stores the value that expires after the given time-to-live, counted from the time of this snapshot.
+     * 
+     * @param key The key.
+     * @param value The value.
+     * @param ttl The time-to-live, must be positive.
+     * @param unit The unit of the time-to-live.
+     * @return The previous value or <code>null</code> if there was no live entry for the key.
+     */
+    public V put(K key, V value, long ttl, TimeUnit unit) {
+        return this.store(key, new CacheEntry<V>(value, this.expiresAfter(toNanos(ttl, unit))));
+    }
+
+    /**
+     * Removes the entry of the key.
+     * 
+     * @param key The key.
+     * @return The removed value or <code>null</code> if there was no live entry for the key.
+     */
+    public V remove(K key) {
+        return this.store(key, null);
+    }
+
+    /**
+     * Requests the commit of this transaction to purge up to the given number of expired entries on top of the
+     * {@value #PURGE_BATCH} purged by every commit. Meant for the background transactions that keep the cache small
+     * while it is not being modified. The requests are cumulative.
+     * 
+     * @param maxEntries The number of entries, must not be negative.
+     */
+    public void purgeExpired(int maxEntries) {
+        if (maxEntries < 0) {
+            throw new IllegalArgumentException("Number of entries must not be negative, got [" + maxEntries + "]");
+        }
+        this.purgeRequest = (int) Math.min(Integer.MAX_VALUE, (long) this.purgeRequest + maxEntries);
+    }
+
+    //
+    // Transactional methods
+    //
+
+    @Override
+    protected TransactionalCache<K, V> cleanCopy() {
+        return new TransactionalCache<K, V>(this.sourceEntries, this.expiryIndex, this.defaultTtl, this.ticker);
+    }
+
+    @Override
+    protected TransactionalCache<K, V> dirtyCopy() {
+        // Nested transactions share the time of the snapshot with the outer one
+        TransactionalCache<K, V> copy = new TransactionalCache<K, V>(this.sourceEntries, this.expiryIndex,
+                this.defaultTtl, this.ticker, this.now);
+        copy.update(this, false);
+        return copy;
+    }
+
+    @Override
+    protected void update(TransactionalCache<K, V> changes, boolean onlyReadLogs) {
+        Utils.checkNull("Local changes", changes);
+        if (this.sourceEntries != changes.sourceEntries) {
+            throw new IllegalArgumentException("Updates are only possible for collections with the same source");
+        }
+        this.accessed.addAll(changes.accessed);
+        if (!onlyReadLogs) {
+            this.pendingChanges.clear();
+            this.pendingChanges.putAll(changes.pendingChanges);
+            this.purgeRequest = changes.purgeRequest;
+        }
+    }
+
+    @Override
+    public TransactionalCache<K, V> commit(TransactionalCache<K, V> globalState) {
+        Utils.checkNull("Global state", globalState);
+        if (!globalState.pendingChanges.isEmpty() || !globalState.accessed.isEmpty()
+                || 0 != globalState.purgeRequest) {
+            throw new IllegalArgumentException("Global state cache must be commited before calling this method");
+        }
+
+        // Checking for conflicts, nothing could have changed if the global state is the source of this cache
+        if (globalState.sourceEntries != this.sourceEntries) {
+            for (K key : this.accessed) {
+                this.checkConsistency(globalState.sourceEntries, key);
+            }
+        }
+        if (this.pendingChanges.isEmpty() && 0 == this.purgeRequest) {
+            return globalState;
+        }
+
+        Map<K, CacheEntry<V>> entries = new HashMap<K, CacheEntry<V>>(globalState.sourceEntries);
+        PersistentSortedMap<CacheEntry<V>, K> index = globalState.expiryIndex;
+        for (Entry<K, CacheEntry<V>> change : this.pendingChanges.entrySet()) {
+            K key = change.getKey();
+            CacheEntry<V> newEntry = change.getValue();
+            CacheEntry<V> oldEntry = null == newEntry ? entries.remove(key) : entries.put(key, newEntry);
+            if (null != oldEntry && NEVER != oldEntry.expiresAt) {
+                index = index.remove(oldEntry);
+            }
+            if (null != newEntry && NEVER != newEntry.expiresAt) {
+                index = index.put(newEntry, key);
+            }
+        }
+
+        // Purging the entries from the head of the expiry index
+        long time = this.ticker.read();
+        long purgeLimit = (long) PURGE_BATCH + this.purgeRequest;
+        boolean purged = false;
+        for (long i = 0; i < purgeLimit; i++) {
+            Entry<CacheEntry<V>, K> first = index.firstEntry();
+            if (null == first || first.getKey().isAlive(time)) {
+                break;
+            }
+            index = index.remove(first.getKey());
+            entries.remove(first.getValue());
+            purged = true;
+        }
+        if (this.pendingChanges.isEmpty() && !purged) {
+            return globalState;
+        }
+        return new TransactionalCache<K, V>(Collections.unmodifiableMap(entries), index, this.defaultTtl, this.ticker);
+    }
+
+    //
+    // Private methods
+    //
+
+    /**
+     * Returns the live entry of the key marking the key as accessed.
+     * 
+     * @param key The key.
+     * @return The entry or <code>null</code> if there is no entry or it has expired.
+     */
+    private CacheEntry<V> getEntry(K key) {
+        CacheEntry<V> entry;
+        if (this.pendingChanges.containsKey(key)) {
+            entry = this.pendingChanges.get(key);
+        } else {
+            this.accessed.add(key);
+            entry = this.sourceEntries.get(key);
+        }
+        return null != entry && entry.isAlive(this.now) ? entry : null;
+    }
+
+    /**
+     * Stores the new entry or removes the key if the entry is <code>null</code>.
+     * 
+     * @param key The key.
+     * @param entry The new entry or <code>null</code>.
+     * @return The previous live value or <code>null</code>.
+     */
+    private V store(K key, CacheEntry<V> entry) {
+        CacheEntry<V> previous = this.getEntry(key);
+        this.pendingChanges.put(key, entry);
+        return null == previous ? null : previous.value;
+    }
+
+    /**
+     * Computes the expiration time of a new entry saturating on overflow.
+     * 
+     * @param ttl The time-to-live in nanoseconds.
+     * @return The expiration time.
+     */
+    private long expiresAfter(long ttl) {
+        long expiresAt = this.now + ttl;
+        return NEVER == ttl || expiresAt < this.now ? NEVER : expiresAt;
+    }
+
+    /**
+     * Checks that the entry of the key has not been changed in the global state. Entries expired by the time of this
+     * snapshot both in the source and in the global state are considered equal.
+     * 
+     * @param globalEntries The entries of the global state.
+     * @param key The key.
+     * @throws ConflictException If the entry has been changed.
+     */
+    private void checkConsistency(Map<K, CacheEntry<V>> globalEntries, K key) {
+        CacheEntry<V> sourceEntry = this.sourceEntries.get(key);
+        CacheEntry<V> globalEntry = globalEntries.get(key);
+        if (sourceEntry != globalEntry && (isAlive(sourceEntry, this.now) || isAlive(globalEntry, this.now))) {
+            throw new ConflictException("Conflicting changes for [" + key + "]");
+        }
+    }
+
+    /**
+     * Checks if the entry exists and has not expired.
+     * 
+     * @param entry The entry or <code>null</code>.
+     * @param time The current time.
+     * @return <code>true</code> if the entry is live.
+     */
+    private static boolean isAlive(CacheEntry<?> entry, long time) {
+        return null != entry && entry.isAlive(time);
+    }
+
+    /**
+     * Converts the time-to-live to nanoseconds.
+     * 
+     * @param ttl The time-to-live, must be positive.
+     * @param unit The unit of the time-to-live.
+     * @return The time-to-live in nanoseconds.
+     */
+    private static long toNanos(long ttl, TimeUnit unit) {
+        Utils.checkNull("Time unit", unit);
+        if (ttl <= 0) {
+            throw new IllegalArgumentException("Time-to-live must be positive, got [" + ttl + "]");
+        }
+        return unit.toNanos(ttl);
+    }
+
+    /**
+     * Immutable cache entry, entries are compared by identity.
+     * 
+     * @param <V> The value type.
+     * @author Ivan Koblik
+     */
+    private static final class CacheEntry<V> {
+        /**
+         * The value.
+         */
+        private final V value;
+
+        /**
+         * The expiration time in nanoseconds as read from the ticker.
+         */
+        private final long expiresAt;
+
+        /**
+         * The sequence number ordering the entries that expire at the same time.
+         */
+        private final long sequence = SEQUENCE.incrementAndGet();
+
+        /**
+         * Constructs the entry.
+         * 
+         * @param value The value.
+         * @param expiresAt The expiration time.
+         */
+        private CacheEntry(V value, long expiresAt) {
+            this.value = value;
+            this.expiresAt = expiresAt;
+        }
+
+        /**
+         * Checks if the entry has not expired by the given time.
+         * 
+         * @param time The time in nanoseconds as read from the ticker.
+         * @return <code>true</code> if the entry is live.
+         */
+        private boolean isAlive(long time) {
+            return time < this.expiresAt;
+        }
+    }
+}
@@ -0,0 +1,420 @@
+/*
+ * Entwined STM
+ * 
+ * (c) Copyright 2013 CERN. This software is distributed under the terms of the Apache License Version 2.0, copied
+ * verbatim in the file "COPYING". In applying this licence, CERN does not waive the privileges and immunities granted
+ * to it by virtue of its status as an Intergovernmental Organization or submit itself to any jurisdiction.
+ */
+package cern.entwined;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.NoSuchElementException;
+
+import cern.entwined.exception.ConflictException;
+
+import com.google.common.collect.Ordering;
+
+/**
+ * Transactional double ended queue, elements can be added and removed at both ends. It can be used as a FIFO queue,
+ * a LIFO stack or a work queue with consumers at both ends.
+ * <p>
+ * The committed elements are kept in a persistent sorted tree under consecutive positions, so adding and removing an
+ * element takes O(log n) time. Reads are logged separately for each end as the number of committed elements read from
+ * it, so the consumers of the first elements conflict only with the concurrent changes of the first elements and the
+ * consumers of the last elements only with the concurrent changes of the last elements, unless the deque is so short
+ * that they read the same elements. Reading the elements added at the same end by the transaction itself is not
+ * logged. As with {@link TransactionalQueue} peeking at an empty deque is not logged, while reading the size conflicts
+ * with any concurrent change.
+ * 
+ * @param <E> The element type.
+ * @author Ivan Koblik
+ */
+public class TransactionalDeque<E> extends SemiPersistent<TransactionalDeque<E>> {
+
+    /**
+     * The committed elements by their positions.
+     */
+    private final PersistentSortedMap<Long, E> sourceDeque;
+
+    /**
+     * The position of the first committed element, or of the next element added to the empty deque.
+     */
+    private final long first;
+
+    /**
+     * The elements added at the beginning in this transaction, in the deque order.
+     */
+    private LinkedList<E> headAdds = new LinkedList<E>();
+
+    /**
+     * The elements added at the end in this transaction, in the deque order.
+     */
+    private LinkedList<E> tailAdds = new LinkedList<E>();
+
+    /**
+     * The number of committed elements polled from the beginning.
+     */
+    private int polledFirst = 0;
+
+    /**
+     * The number of committed elements polled from the end.
+     */
+    private int polledLast = 0;
+
+    /**
+     * The number of committed elements read from the beginning, -1 if the beginning of the deque has not been read.
+     * Even discarded inner transactions can increase this value.
+     */
+    private int headDepth = -1;
+
+    /**
+     * The number of committed elements read from the end, -1 if the end of the deque has not been read. Even
+     * discarded inner transactions can increase this value.
+     */
+    private int tailDepth = -1;
+
+    /**
+     * This flag is set when the size of the deque is read.
+     */
+    private boolean sizeRead = false;
+
+    /**
+     * Creates an empty {@link TransactionalDeque}.
+     */
+    @SuppressWarnings("unchecked")
+    public TransactionalDeque() {
+        this(Collections.EMPTY_LIST);
+    }
+
+    /**
+     * Creates a {@link TransactionalDeque} with the given elements.
+     * 
+     * @param sourceCollection The initial elements, the collection is copied.
+     */
+    public TransactionalDeque(Collection<E> sourceCollection) {
+        Utils.checkNull("Source collection", sourceCollection);
+        PersistentSortedMap<Long, E> source = new PersistentSortedMap<Long, E>(
+                TransactionalDeque.<Long> naturalOrder());
+        long position = 0;
+        for (E element : sourceCollection) {
+            Utils.checkNull("Element", element);
+            source = source.put(position++, element);
+        }
+        this.sourceDeque = source;
+        this.first = 0;
+    }
+
+    /**
+     * Creates a {@link TransactionalDeque} with the given committed elements.
+     * 
+     * @param source The committed elements by their positions.
+     * @param first The position of the first element.
+     */
+    private TransactionalDeque(PersistentSortedMap<Long, E> source, long first) {
+        this.sourceDeque = source;
+        this.first = first;
+    }
+
+    /**
+     * Adds the element at the beginning of the deque.
+     * 
+     * @param element The element, must not be <code>null</code>.
+     */
+    public void offerFirst(E element) {
+        Utils.checkNull("Element", element);
+        this.headAdds.addFirst(element);
+    }
+
+    /**
+     * Adds the element at the end of the deque.
+     * 
+     * @param element The element, must not be <code>null</code>.
+     */
+    public void offerLast(E element) {
+        Utils.checkNull("Element", element);
+        this.tailAdds.addLast(element);
+    }
+
+    /**
+     * Returns the first element without removing it.
+     * 
+     * @return The first element or <code>null</code> if the deque is empty.
+     */
+    public E peekFirst() {
+        return this.first(false);
+    }
+
+    /**
+     * Returns the last element without removing it.
+     * 
+     * @return The last element or <code>null</code> if the deque is empty.
+     */
+    public E peekLast() {
+        return this.last(false);
+    }
+
+    /**
+     * Removes and returns the first element.
+     * 
+     * @return The first element or <code>null</code> if the deque is empty.
+     */
+    public E pollFirst() {
+        return this.first(true);
+    }
+
+    /**
+     * Removes and returns the last element.
+     * 
+     * @return The last element or <code>null</code> if the deque is empty.
+     */
+    public E pollLast() {
+        return this.last(true);
+    }
+
+    /**
+     * Pushes the element on the stack represented by the deque, same as {@link #offerFirst(Object)}.
+     * 
+     * @param element The element, must not be <code>null</code>.
+     */
+    public void push(E element) {
+        this.offerFirst(element);
+    }
+
+    /**
+     * Pops an element from the stack represented by the deque, same as {@link #pollFirst()} but fails if the deque is
+     * empty.
+     * 
+     * @return The first element.
+     * @throws NoSuchElementException If the deque is empty.
+     */
+    public E pop() {
+        E element = this.pollFirst();
+        if (null == element) {
+            throw new NoSuchElementException();
+        }
+        return element;
+    }
+
+    /**
+     * Checks if the deque is empty, behaves as {@link #peekFirst()}.
+     * 
+     * @return true if there are no elements.
+     */
+    public boolean isEmpty() {
+        return null == this.peekFirst();
+    }
+
+    /**
+     * Returns the number of elements, conflicts with any concurrent change of the deque.
+     * 
+     * @return The number of elements.
+     */
+    public int size() {
+        this.sizeRead = true;
+        return this.headAdds.size() + this.remaining() + this.tailAdds.size();
+    }
+
+    //
+    // SemiPersistent class methods.
+    //
+
+    @Override
+    protected TransactionalDeque<E> cleanCopy() {
+        return new TransactionalDeque<E>(this.sourceDeque, this.first);
+    }
+
+    @Override
+    protected TransactionalDeque<E> dirtyCopy() {
+        TransactionalDeque<E> copy = new TransactionalDeque<E>(this.sourceDeque, this.first);
+        copy.headAdds = new LinkedList<E>(this.headAdds);
+        copy.tailAdds = new LinkedList<E>(this.tailAdds);
+        copy.polledFirst = this.polledFirst;
+        copy.polledLast = this.polledLast;
+        copy.headDepth = this.headDepth;
+        copy.tailDepth = this.tailDepth;
+        copy.sizeRead = this.sizeRead;
+        return copy;
+    }
+
+    @Override
+    protected void update(TransactionalDeque<E> changes, boolean onlyReadLogs) {
+        Utils.checkNull("Local changes", changes);
+        if (this.sourceDeque != changes.sourceDeque || this.first != changes.first) {
+            throw new IllegalArgumentException("Updates are only possible for collections with the same source");
+        }
+        this.headDepth = Math.max(this.headDepth, changes.headDepth);
+        this.tailDepth = Math.max(this.tailDepth, changes.tailDepth);
+        this.sizeRead |= changes.sizeRead;
+        if (!onlyReadLogs) {
+            this.headAdds = changes.headAdds;
+            this.tailAdds = changes.tailAdds;
+            this.polledFirst = changes.polledFirst;
+            this.polledLast = changes.polledLast;
+        }
+    }
+
+    @Override
+    public TransactionalDeque<E> commit(TransactionalDeque<E> globalState) {
+        Utils.checkNull("Global state", globalState);
+        if (!globalState.headAdds.isEmpty() || !globalState.tailAdds.isEmpty() || 0 != globalState.polledFirst
+                || 0 != globalState.polledLast) {
+            throw new IllegalArgumentException("Global state map must be commited before calling this method");
+        }
+
+        if (globalState.sourceDeque != this.sourceDeque || globalState.first != this.first) {
+            if (this.sizeRead) {
+                throw new ConflictException("Deque's size was read while it was concurrently updated");
+            }
+            if (this.headDepth >= 0 && !this.sameHead(globalState)) {
+                throw new ConflictException("Deque's head was updated");
+            }
+            if (this.tailDepth >= 0 && !this.sameTail(globalState)) {
+                throw new ConflictException("Deque's tail was updated");
+            }
+        }
+
+        if (this.headAdds.isEmpty() && this.tailAdds.isEmpty() && 0 == this.polledFirst && 0 == this.polledLast) {
+            return globalState;
+        }
+        PersistentSortedMap<Long, E> result = globalState.sourceDeque;
+        long globalLast = globalState.first + globalState.sourceDeque.size() - 1;
+        for (int i = 0; i < this.polledFirst; i++) {
+            result = result.remove(globalState.first + i);
+        }
+        for (int i = 0; i < this.polledLast; i++) {
+            result = result.remove(globalLast - i);
+        }
+        long newFirst = globalState.first + this.polledFirst;
+        for (Iterator<E> iterator = this.headAdds.descendingIterator(); iterator.hasNext();) {
+            result = result.put(--newFirst, iterator.next());
+        }
+        long position = globalLast - this.polledLast;
+        for (E element : this.tailAdds) {
+            result = result.put(++position, element);
+        }
+        return new TransactionalDeque<E>(result, newFirst);
+    }
+
+    //
+    // Private methods
+    //
+
+    /**
+     * Returns the number of committed elements left in the local view.
+     */
+    private int remaining() {
+        return this.sourceDeque.size() - this.polledFirst - this.polledLast;
+    }
+
+    /**
+     * Reads the first element logging the read.
+     * 
+     * @param remove Whether to remove the element.
+     * @return The element or <code>null</code> if the deque is empty.
+     */
+    private E first(boolean remove) {
+        if (!this.headAdds.isEmpty()) {
+            return remove ? this.headAdds.removeFirst() : this.headAdds.getFirst();
+        }
+        if (this.remaining() > 0) {
+            E element = this.sourceDeque.get(this.first + this.polledFirst);
+            this.headDepth = Math.max(this.headDepth, this.polledFirst + 1);
+            if (remove) {
+                this.polledFirst++;
+            }
+            return element;
+        }
+        if (!this.tailAdds.isEmpty()) {
+            // All the committed elements are gone, the concurrent changes of either end would be in front.
+            this.headDepth = Math.max(this.headDepth, this.polledFirst);
+            this.tailDepth = Math.max(this.tailDepth, this.polledLast);
+            return remove ? this.tailAdds.removeFirst() : this.tailAdds.getFirst();
+        }
+        // Not logging as this is a special case to reduce number of conflicts, same as in TransactionalQueue
+        return null;
+    }
+
+    /**
+     * Reads the last element logging the read.
+     * 
+     * @param remove Whether to remove the element.
+     * @return The element or <code>null</code> if the deque is empty.
+     */
+    private E last(boolean remove) {
+        if (!this.tailAdds.isEmpty()) {
+            return remove ? this.tailAdds.removeLast() : this.tailAdds.getLast();
+        }
+        if (this.remaining() > 0) {
+            E element = this.sourceDeque.get(this.first + this.sourceDeque.size() - 1 - this.polledLast);
+            this.tailDepth = Math.max(this.tailDepth, this.polledLast + 1);
+            if (remove) {
+                this.polledLast++;
+            }
+            return element;
+        }
+        if (!this.headAdds.isEmpty()) {
+            // All the committed elements are gone, the concurrent changes of either end would be behind.
+            this.headDepth = Math.max(this.headDepth, this.polledFirst);
+            this.tailDepth = Math.max(this.tailDepth, this.polledLast);
+            return remove ? this.headAdds.removeLast() : this.headAdds.getLast();
+        }
+        return null;
+    }
+
+    /**
+     * Checks that the global state begins at the same position with the same elements as far as they were read.
+     * 
+     * @param globalState The global state.
+     * @return true if the read beginning of the deque has not changed.
+     */
+    private boolean sameHead(TransactionalDeque<E> globalState) {
+        if (globalState.first != this.first) {
+            return false;
+        }
+        for (int i = 0; i < this.headDepth; i++) {
+            if (!this.samePosition(globalState, this.first + i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Checks that the global state ends at the same position with the same elements as far as they were read.
+     * 
+     * @param globalState The global state.
+     * @return true if the read end of the deque has not changed.
+     */
+    private boolean sameTail(TransactionalDeque<E> globalState) {
+        long last = this.first + this.sourceDeque.size() - 1;
+        if (globalState.first + globalState.sourceDeque.size() - 1 != last) {
+            return false;
+        }
+        for (int i = 0; i < this.tailDepth; i++) {
+            if (!this.samePosition(globalState, last - i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Checks that the global state has the same element at the given position.
+     */
+    private boolean samePosition(TransactionalDeque<E> globalState, long position) {
+        return globalState.sourceDeque.containsKey(position)
+                && globalState.sourceDeque.get(position) == this.sourceDeque.get(position);
+    }
+
+    /**
+     * Returns natural order comparator.
+     */
+    @SuppressWarnings("unchecked")
+    private static <K> Comparator<K> naturalOrder() {
+        return (Comparator<K>) Ordering.natural();
+    }
+}
@@ -0,0 +1,188 @@
+/*
+ * Entwined STM
+ * 
+ * (c) Copyright 2013 CERN. This software is distributed under the terms of the Apache License Version 2.0, copied
+ * verbatim in the file "COPYING". In applying this licence, CERN does not waive the privileges and immunities granted
+ * to it by virtue of its status as an Intergovernmental Organization or submit itself to any jurisdiction.
+ */
+package cern.entwined;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Map.Entry;
+
+/**
+ * Transactional map with primitive <code>int</code> keys. It is a thin wrapper around
+ * {@link TransactionalLongObjectMap} and has exactly the same conflict semantics.
+ * 
+ * @param <V> The map value type.
+ * @author Ivan Koblik
+ */
+public class TransactionalIntObjectMap<V> extends SemiPersistent<TransactionalIntObjectMap<V>> {
+
+    /**
+     * The map all the calls are delegated to.
+     */
+    private final TransactionalLongObjectMap<V> delegate;
+
+    /**
+     * Constructs a new empty {@link TransactionalIntObjectMap}.
+     */
+    public TransactionalIntObjectMap() {
+        this(new TransactionalLongObjectMap<V>());
+    }
+
+    /**
+     * Constructs new {@link TransactionalIntObjectMap} initializing it with the given collection. Passed collection is
+     * copied.
+     * 
+     * @param sourceMap The {@link TransactionalIntObjectMap} initial state.
+     */
+    public TransactionalIntObjectMap(Map<Integer, ? extends V> sourceMap) {
+        this(new TransactionalLongObjectMap<V>(widen(sourceMap)));
+    }
+
+    /**
+     * Constructs new {@link TransactionalIntObjectMap} wrapping the given map.
+     * 
+     * @param delegate The map all the calls are delegated to.
+     */
+    private TransactionalIntObjectMap(TransactionalLongObjectMap<V> delegate) {
+        this.delegate = delegate;
+    }
+
+    /**
+     * Returns the number of entries in the map. Marks the map as globally accessed.
+     * 
+     * @return The number of entries.
+     */
+    public int size() {
+        return this.delegate.size();
+    }
+
+    /**
+     * Checks if the map is empty. Marks the map as globally accessed only if it is empty.
+     * 
+     * @return true if the map is empty.
+     */
+    public boolean isEmpty() {
+        return this.delegate.isEmpty();
+    }
+
+    /**
+     * Removes all the entries from the map.
+     */
+    public void clear() {
+        this.delegate.clear();
+    }
+
+    /**
+     * Checks if the map contains the key.
+     * 
+     * @param key The key.
+     * @return true if there is an entry for the key.
+     */
+    public boolean containsKey(int key) {
+        return this.delegate.containsKey(key);
+    }
+
+    /**
+     * Returns the value corresponding to the key.
+     * 
+     * @param key The key.
+     * @return The value or null if there is no entry for the key.
+     */
+    public V get(int key) {
+        return this.delegate.get(key);
+    }
+
+    /**
+     * Associates the value with the key.
+     * 
+     * @param key The key.
+     * @param value The value.
+     * @return The previous value or null if there was no entry for the key.
+     */
+    public V put(int key, V value) {
+        return this.delegate.put(key, value);
+    }
+
+    /**
+     * Copies all the entries of the given map to this map.
+     * 
+     * @param m The map to be copied.
+     */
+    public void putAll(Map<Integer, ? extends V> m) {
+        Utils.checkNull("Map", m);
+        for (Entry<Integer, ? extends V> entry : m.entrySet()) {
+            this.delegate.put(entry.getKey(), entry.getValue());
+        }
+    }
+
+    /**
+     * Removes the entry corresponding to the key.
+     * 
+     * @param key The key.
+     * @return The removed value or null if there was no entry for the key.
+     */
+    public V remove(int key) {
+        return this.delegate.remove(key);
+    }
+
+    /**
+     * Returns keys of the map. Marks the map as globally accessed.
+     * 
+     * @return The new array of keys.
+     */
+    public int[] keys() {
+        long[] keys = this.delegate.keys();
+        int[] result = new int[keys.length];
+        for (int i = 0; i < keys.length; i++) {
+            result[i] = (int) keys[i];
+        }
+        return result;
+    }
+
+    //
+    // Transactional methods
+    //
+
+    @Override
+    public TransactionalIntObjectMap<V> cleanCopy() {
+        return new TransactionalIntObjectMap<V>(this.delegate.cleanCopy());
+    }
+
+    @Override
+    protected TransactionalIntObjectMap<V> dirtyCopy() {
+        return new TransactionalIntObjectMap<V>(this.delegate.dirtyCopy());
+    }
+
+    @Override
+    protected void update(TransactionalIntObjectMap<V> changes, boolean onlyReadLogs) {
+        Utils.checkNull("Local changes", changes);
+        this.delegate.update(changes.delegate, onlyReadLogs);
+    }
+
+    @Override
+    public TransactionalIntObjectMap<V> commit(TransactionalIntObjectMap<V> globalState) {
+        Utils.checkNull("Global state", globalState);
+        TransactionalLongObjectMap<V> committed = this.delegate.commit(globalState.delegate);
+        return committed == globalState.delegate ? globalState : new TransactionalIntObjectMap<V>(committed);
+    }
+
+    /**
+     * Copies the map replacing {@link Integer} keys with {@link Long} keys.
+     * 
+     * @param map The map to be copied.
+     * @return The new map.
+     */
+    private static <V> Map<Long, V> widen(Map<Integer, ? extends V> map) {
+        Utils.checkNull("Source map", map);
+        Map<Long, V> result = new HashMap<Long, V>(map.size() * 2);
+        for (Entry<Integer, ? extends V> entry : map.entrySet()) {
+            Utils.checkNull("Key", entry.getKey());
+            result.put(entry.getKey().longValue(), entry.getValue());
+        }
+        return result;
+    }
+}
@@ -0,0 +1,389 @@
+/*
+ * Entwined STM
+ * 
+ * (c) Copyright 2013 CERN. This software is distributed under the terms of the Apache License Version 2.0, copied
+ * verbatim in the file "COPYING". In applying this licence, CERN does not waive the privileges and immunities granted
+ * to it by virtue of its status as an Intergovernmental Organization or submit itself to any jurisdiction.
+ */
+package cern.entwined;
+
+import java.util.Map;
+import java.util.Map.Entry;
+
+import cern.entwined.exception.ConflictException;
+
+/**
+ * Transactional map with primitive <code>long</code> keys. It has the same conflict semantics as
+ * {@link TransactionalMap} but keeps the source map, the local modifications and the read log in open addressing
+ * arrays, so neither the keys are boxed nor per entry objects are allocated on reads, writes or commits.
+ * 
+ * @param <V> The map value type.
+ * @author Ivan Koblik
+ */
+public class TransactionalLongObjectMap<V> extends SemiPersistent<TransactionalLongObjectMap<V>> {
+
+    /**
+     * The backbone of {@link TransactionalLongObjectMap}, it is never modified.
+     */
+    private final LongObjectHashMap<V> sourceMap;
+
+    /**
+     * Map of key value pairs of all locally added or modified values.
+     */
+    private final LongObjectHashMap<V> pendingModifications = new LongObjectHashMap<V>();
+
+    /**
+     * Set of keys of all the items locally removed from the map.
+     */
+    private final LongHashSet pendingDeletions = new LongHashSet();
+
+    /**
+     * Set of keys of all the items that were accessed or attempted to be accessed (i.e. for non-existent keys).
+     */
+    private final LongHashSet accessed = new LongHashSet();
+
+    /**
+     * This flag is used to mark the "entire world" as has been accessed.
+     * 
+     * @see TransactionalMap
+     */
+    private boolean globallyAccessed = false;
+
+    /**
+     * This flag is set to true the first time clear method is called.
+     */
+    private boolean cleared = false;
+
+    /**
+     * Constructs a new empty {@link TransactionalLongObjectMap}.
+     */
+    public TransactionalLongObjectMap() {
+        this(new LongObjectHashMap<V>());
+    }
+
+    /**
+     * Constructs new {@link TransactionalLongObjectMap} initializing it with the given collection. Passed collection
+     * is copied.
+     * 
+     * @param sourceMap The {@link TransactionalLongObjectMap} initial state.
+     */
+    public TransactionalLongObjectMap(Map<Long, ? extends V> sourceMap) {
+        this(copyOf(sourceMap));
+    }
+
+    /**
+     * Constructs new {@link TransactionalLongObjectMap} on top of the given source map, the map is not copied.
+     * 
+     * @param sourceMap The {@link TransactionalLongObjectMap} initial state.
+     */
+    private TransactionalLongObjectMap(LongObjectHashMap<V> sourceMap) {
+        Utils.checkNull("Source map", sourceMap);
+        this.sourceMap = sourceMap;
+    }
+
+    /**
+     * Returns the number of entries in the map. Marks the map as globally accessed.
+     * 
+     * @return The number of entries.
+     */
+    public int size() {
+        this.markGloballyAccessed();
+        int added = 0;
+        for (LongObjectHashMap<V>.Cursor cursor = this.pendingModifications.cursor(); cursor.next();) {
+            if (!this.sourceMap.containsKey(cursor.key())) {
+                added++;
+            }
+        }
+        return this.sourceMap.size() + added - this.pendingDeletions.size();
+    }
+
+    /**
+     * Checks if the map is empty. Marks the map as globally accessed only if it is empty.
+     * 
+     * @return true if the map is empty.
+     */
+    public boolean isEmpty() {
+        boolean empty = (this.sourceMap.size() == this.pendingDeletions.size()) && this.pendingModifications.isEmpty();
+        if (empty) {
+            this.markGloballyAccessed();
+        }
+        return empty;
+    }
+
+    /**
+     * Removes all the entries from the map.
+     */
+    public void clear() {
+        this.markCleared();
+        for (LongObjectHashMap<V>.Cursor cursor = this.sourceMap.cursor(); cursor.next();) {
+            this.pendingDeletions.add(cursor.key());
+        }
+        this.pendingModifications.clear();
+    }
+
+    /**
+     * Checks if the map contains the key.
+     * 
+     * @param key The key.
+     * @return true if there is an entry for the key.
+     */
+    public boolean containsKey(long key) {
+        this.markAccessed(key);
+        return (this.sourceMap.containsKey(key) || this.pendingModifications.containsKey(key))
+                && !this.pendingDeletions.contains(key);
+    }
+
+    /**
+     * Returns the value corresponding to the key.
+     * 
+     * @param key The key.
+     * @return The value or null if there is no entry for the key.
+     */
+    public V get(long key) {
+        this.markAccessed(key);
+        return this.localGet(key);
+    }
+
+    /**
+     * Associates the value with the key.
+     * 
+     * @param key The key.
+     * @param value The value.
+     * @return The previous value or null if there was no entry for the key.
+     */
+    public V put(long key, V value) {
+        this.markAccessed(key);
+        V oldValue = this.localGet(key);
+        this.pendingDeletions.remove(key);
+        this.pendingModifications.put(key, value);
+        return oldValue;
+    }
+
+    /**
+     * Copies all the entries of the given map to this map.
+     * 
+     * @param m The map to be copied.
+     */
+    public void putAll(Map<Long, ? extends V> m) {
+        Utils.checkNull("Map", m);
+        for (Entry<Long, ? extends V> entry : m.entrySet()) {
+            this.put(entry.getKey(), entry.getValue());
+        }
+    }
+
+    /**
+     * Removes the entry corresponding to the key.
+     * 
+     * @param key The key.
+     * @return The removed value or null if there was no entry for the key.
+     */
+    public V remove(long key) {
+        V oldValue = this.get(key); // Getting old value and marking it as accessed
+        if (this.sourceMap.containsKey(key)) {
+            this.pendingDeletions.add(key);
+        }
+        this.pendingModifications.remove(key);
+        return oldValue;
+    }
+
+    /**
+     * Returns keys of the map. Marks the map as globally accessed.
+     * 
+     * @return The new array of keys.
+     */
+    public long[] keys() {
+        this.markGloballyAccessed();
+        long[] result = new long[this.sourceMap.size() + this.pendingModifications.size()];
+        int count = 0;
+        for (LongObjectHashMap<V>.Cursor cursor = this.sourceMap.cursor(); cursor.next();) {
+            long key = cursor.key();
+            if (!this.pendingDeletions.contains(key) && !this.pendingModifications.containsKey(key)) {
+                result[count++] = key;
+            }
+        }
+        for (LongObjectHashMap<V>.Cursor cursor = this.pendingModifications.cursor(); cursor.next();) {
+            result[count++] = cursor.key();
+        }
+        if (count == result.length) {
+            return result;
+        }
+        long[] trimmed = new long[count];
+        System.arraycopy(result, 0, trimmed, 0, count);
+        return trimmed;
+    }
+
+    //
+    // Transactional methods
+    //
+
+    @Override
+    public TransactionalLongObjectMap<V> cleanCopy() {
+        return new TransactionalLongObjectMap<V>(this.sourceMap);
+    }
+
+    @Override
+    protected TransactionalLongObjectMap<V> dirtyCopy() {
+        TransactionalLongObjectMap<V> copy = new TransactionalLongObjectMap<V>(this.sourceMap);
+        copy.globallyAccessed = this.globallyAccessed;
+        copy.cleared = this.cleared;
+        copy.accessed.addAll(this.accessed);
+        copy.pendingDeletions.addAll(this.pendingDeletions);
+        copy.copyModifications(this.pendingModifications);
+        return copy;
+    }
+
+    @Override
+    protected void update(TransactionalLongObjectMap<V> changes, boolean onlyReadLogs) {
+        Utils.checkNull("Local changes", changes);
+        if (this.sourceMap != changes.sourceMap) {
+            throw new IllegalArgumentException("Updates are only possible for collections with the same source");
+        }
+        if (changes.globallyAccessed) {
+            this.markGloballyAccessed();
+        }
+        if (!this.globallyAccessed) {
+            this.accessed.addAll(changes.accessed);
+        }
+        if (!onlyReadLogs) {
+            this.cleared = changes.cleared;
+            this.pendingModifications.clear();
+            this.copyModifications(changes.pendingModifications);
+            this.pendingDeletions.clear();
+            this.pendingDeletions.addAll(changes.pendingDeletions);
+        }
+    }
+
+    @Override
+    public TransactionalLongObjectMap<V> commit(TransactionalLongObjectMap<V> globalState) {
+        Utils.checkNull("Global state", globalState);
+        if (!globalState.pendingDeletions.isEmpty() || !globalState.pendingModifications.isEmpty()
+                || !globalState.accessed.isEmpty() || globalState.globallyAccessed) {
+            throw new IllegalArgumentException("Global state map must be commited before calling this method");
+        }
+
+        // Checking for conflicts, nothing could have changed if the global map is the source of this map
+        LongObjectHashMap<V> globalMap = globalState.sourceMap;
+        if (globalMap != this.sourceMap) {
+            if (this.globallyAccessed) {
+                if (!globalMap.equals(this.sourceMap)) {
+                    throw new ConflictException("All the items of this map have been accessed "
+                            + "this prohibits commit in the case of concurrent changes");
+                }
+            }
+            for (long key : this.accessed.toArray()) {
+                this.checkConsistency(globalMap, key);
+            }
+        }
+
+        // Return current global state if there are no local modifications
+        if (this.pendingDeletions.isEmpty() && this.pendingModifications.isEmpty()) {
+            return globalState;
+        }
+
+        // Getting a copy of the global map and applying the changes to it
+        LongObjectHashMap<V> globalMapCopy = new LongObjectHashMap<V>(globalMap);
+        for (LongObjectHashMap<V>.Cursor cursor = this.pendingModifications.cursor(); cursor.next();) {
+            globalMapCopy.put(cursor.key(), cursor.value());
+        }
+        for (long key : this.pendingDeletions.toArray()) {
+            globalMapCopy.remove(key);
+        }
+        return new TransactionalLongObjectMap<V>(globalMapCopy);
+    }
+
+    //
+    // Private methods
+    //
+
+    /**
+     * Returns the locally visible value without logging the access.
+     * 
+     * @param key The key.
+     * @return The value or null if there is no entry for the key.
+     */
+    private V localGet(long key) {
+        if (this.pendingDeletions.contains(key)) {
+            return null;
+        } else if (this.pendingModifications.containsKey(key)) {
+            return this.pendingModifications.get(key);
+        }
+        return this.sourceMap.get(key);
+    }
+
+    /**
+     * Copies the given modifications to the pending modifications of this map.
+     * 
+     * @param modifications The modifications to be copied.
+     */
+    private void copyModifications(LongObjectHashMap<V> modifications) {
+        for (LongObjectHashMap<V>.Cursor cursor = modifications.cursor(); cursor.next();) {
+            this.pendingModifications.put(cursor.key(), cursor.value());
+        }
+    }
+
+    /**
+     * Marks given key as accessed.
+     * 
+     * @param key The key to mark as accessed.
+     */
+    private void markAccessed(long key) {
+        if (!this.globallyAccessed) {
+            this.accessed.add(key);
+        }
+    }
+
+    /**
+     * Marks the entire space of keys as accessed unless the map has been cleared.
+     */
+    private void markGloballyAccessed() {
+        if (!this.cleared) {
+            // Global access is allowed after the map has been cleared.
+            this.globallyAccessed = true;
+            this.accessed.clear();
+        }
+    }
+
+    /**
+     * Marks the map as cleared and marks all its items as accessed unless it has already been globally accessed.
+     */
+    private void markCleared() {
+        if (!this.globallyAccessed) {
+            this.cleared = true;
+            for (LongObjectHashMap<V>.Cursor cursor = this.sourceMap.cursor(); cursor.next();) {
+                this.accessed.add(cursor.key());
+            }
+        }
+    }
+
+    /**
+     * Simply checks if values corresponding to the key are the <b>same</b> in the global and source maps.
+     * 
+     * @param globalMap The global map.
+     * @param key The key corresponding to the value to be checked.
+     */
+    private void checkConsistency(LongObjectHashMap<V> globalMap, long key) {
+        V sourceValue = this.sourceMap.get(key);
+        V globalValue = globalMap.get(key);
+        if ((sourceValue != globalValue) || // <br>
+                ((null == sourceValue || null == globalValue)// <br>
+                && (this.sourceMap.containsKey(key) ^ globalMap.containsKey(key)))) {
+            throw new ConflictException("Conflicting changes for [" + key + "]");
+        }
+    }
+
+    /**
+     * Copies the boxed map into an open addressing map.
+     * 
+     * @param map The map to be copied.
+     * @return The new map.
+     */
+    private static <V> LongObjectHashMap<V> copyOf(Map<Long, ? extends V> map) {
+        Utils.checkNull("Source map", map);
+        LongObjectHashMap<V> copy = new LongObjectHashMap<V>(map.size());
+        for (Entry<Long, ? extends V> entry : map.entrySet()) {
+            Utils.checkNull("Key", entry.getKey());
+            copy.put(entry.getKey(), entry.getValue());
+        }
+        return copy;
+    }
+}
@@ -7,28 +7,50 @@
  */
 package cern.entwined;
 
-import static com.google.common.base.Predicates.in;
-import static com.google.common.base.Predicates.not;
-
+import java.util.AbstractCollection;
 import java.util.AbstractSet;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.NoSuchElementException;
 import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
 
 import cern.entwined.exception.ConflictException;
 
+import com.google.common.base.Equivalence;
+import com.google.common.base.Function;
+import com.google.common.base.Objects;
 import com.google.common.collect.Iterators;
-import com.google.common.collect.Sets;
+import com.google.common.collect.Maps;
 
 /**
  * Implementation of a transactional map. It logs all the reads and modifications of the data, and uses it at commit
  * time to detect conflicting transactions.
+ * <p>
+ * By default a read value is considered to be changed by a concurrent transaction if the global map refers to a
+ * different instance. A conflict policy can be given at construction in a form of {@link Equivalence}, for instance
+ * {@link Equivalence#equals()} or <code>Equivalence.equals().onResultOf(versionFunction)</code>, then only values that
+ * are not equivalent to the read ones cause conflicts.
+ * <p>
+ * Values updated with {@link #merge(Object, Object, MergeFunction)} aren't logged as read, the merges are re-applied at
+ * commit time to the most recent global value. This way concurrent transactions incrementing the same counter don't
+ * conflict.
+ * <p>
+ * Secondary indexes registered at construction group the keys by an attribute of their values, see
+ * {@link #getKeysByIndex(MapIndex, Object)}. They are updated incrementally on commit and their reads are logged per
+ * index key, so a transaction looking up one index key doesn't conflict with changes of the other index keys.
+ * <p>
+ * Keys written with {@link #putBlind(Object, Object)} or {@link #removeBlind(Object)}, or with any write if the map has
+ * the {@link WritePolicy#BLIND} policy, aren't logged as read. Concurrent blind writes of the same key don't conflict
+ * and the last committed one wins.
  * 
  * @param <K> The map key type.
  * @param <V> The map value type.
@@ -44,17 +66,23 @@ public class TransactionalMap<K, V> extends SemiPersistent<TransactionalMap<K, V
     /**
      * Map of key value pairs of all locally added or modified values.
      */
-    private final Map<K, V> pendingModifications = new HashMap<K, V>();
+    private final Map<K, V> pendingModifications = new SmallMap<K, V>();
 
     /**
      * Set of keys of all the items locally removed from the map.
      */
-    private final Set<K> pendingDeletions = new HashSet<K>();
+    private final Set<K> pendingDeletions = new SmallSet<K>();
+
+    /**
+     * Merges of the keys that haven't been read by this transaction, they are re-applied to the global values on
+     * commit.
+     */
+    private final Map<K, List<PendingMerge<V>>> pendingMerges = new SmallMap<K, List<PendingMerge<V>>>();
 
     /**
      * Set of keys of all the items that were accessed or attempted to be accessed (i.e. for non-existent keys).
      */
-    private final Set<K> accessed = new HashSet<K>();
+    private final SmallSet<K> accessed = new SmallSet<K>();
 
     /**
      * This flag is used to mark the "entire world" as has been accessed. The reasoning is quite simple; if a user knows
@@ -69,12 +97,63 @@ public class TransactionalMap<K, V> extends SemiPersistent<TransactionalMap<K, V
      */
     private boolean cleared = false;
 
+    /**
+     * This flag is set when the size of the map has been read. Unlike {@link #globallyAccessed} it only prohibits commit
+     * if a concurrent transaction has changed the number of entries in the map.
+     */
+    private boolean sizeAccessed = false;
+
+    /**
+     * The difference between the number of locally visible entries and the size of the source map. It is updated on
+     * every modification so that the size is known without comparing the key sets.
+     */
+    private int sizeDelta = 0;
+
+    /**
+     * The policy used at commit time to decide whether a read value has been changed in the global map.
+     */
+    private final Equivalence<? super V> conflictPolicy;
+
+    /**
+     * The policy of {@link #put(Object, Object)} and {@link #remove(Object)}.
+     */
+    private final WritePolicy writePolicy;
+
+    /**
+     * The number of source entries aggregated by a single task of {@link #aggregate(ForkJoinPool, EntryAggregator)}.
+     */
+    private static final int AGGREGATION_THRESHOLD = 4096;
+
+    /**
+     * The number of recent commits whose written keys are kept to validate transactions in
+     * {@link #commit(TransactionalMap)}, older transactions check all their reads.
+     */
+    private static final int WRITE_LOG_LENGTH = 32;
+
+    /**
+     * The unmodifiable secondary indexes of the source map, from the index definition to the persistent sets of map
+     * keys per index key. A set is replaced by a new instance every time its content changes.
+     */
+    private final Map<MapIndex<? super V, ?>, IndexBuckets<K>> indexes;
+
+    /**
+     * The keys written by the recent commits, shared by all the maps with the same source.
+     */
+    private final WriteLog<K> writeLog;
+
+    /**
+     * Index keys looked up by this transaction, per index.
+     */
+    private final Map<MapIndex<? super V, ?>, Set<Object>> accessedIndexKeys =
+            new HashMap<MapIndex<? super V, ?>, Set<Object>>();
+
     /**
      * Constructs a new empty {@link TransactionalMap}.
      */
     @SuppressWarnings("unchecked")
     public TransactionalMap() {
-        this(Collections.EMPTY_MAP, false);
+        this(Collections.EMPTY_MAP, false, Equivalence.identity(), WritePolicy.READ_WRITE, Collections.EMPTY_MAP,
+                new WriteLog<K>());
     }
 
     /**
@@ -83,7 +162,57 @@ public class TransactionalMap<K, V> extends SemiPersistent<TransactionalMap<K, V
      * @param sourceMap The {@link TransactionalMap} initial state.
      */
     public TransactionalMap(Map<K, V> sourceMap) {
-        this(sourceMap, true);
+        this(sourceMap, Equivalence.identity());
+    }
+
+    /**
+     * Constructs new {@link TransactionalMap} with the given conflict policy initializing it with the given
+     * collection. Passed collection is copied.
+     * 
+     * @param sourceMap The {@link TransactionalMap} initial state.
+     * @param conflictPolicy The equivalence of the read and the committed values that isn't considered a conflict.
+     */
+    public TransactionalMap(Map<K, V> sourceMap, Equivalence<? super V> conflictPolicy) {
+        this(sourceMap, conflictPolicy, Collections.<MapIndex<? super V, ?>> emptyList());
+    }
+
+    /**
+     * Constructs new {@link TransactionalMap} with the given conflict policy and secondary indexes initializing it with
+     * the given collection. Passed collection is copied.
+     * 
+     * @param sourceMap The {@link TransactionalMap} initial state.
+     * @param conflictPolicy The equivalence of the read and the committed values that isn't considered a conflict.
+     * @param indexes The secondary indexes to be maintained by the map.
+     */
+    public TransactionalMap(Map<K, V> sourceMap, Equivalence<? super V> conflictPolicy,
+            Collection<? extends MapIndex<? super V, ?>> indexes) {
+        this(sourceMap, conflictPolicy, indexes, WritePolicy.READ_WRITE);
+    }
+
+    /**
+     * Constructs new {@link TransactionalMap} with the given conflict and write policies initializing it with the given
+     * collection. Passed collection is copied.
+     * 
+     * @param sourceMap The {@link TransactionalMap} initial state.
+     * @param conflictPolicy The equivalence of the read and the committed values that isn't considered a conflict.
+     * @param writePolicy The policy of {@link #put(Object, Object)} and {@link #remove(Object)}.
+     */
+    public TransactionalMap(Map<K, V> sourceMap, Equivalence<? super V> conflictPolicy, WritePolicy writePolicy) {
+        this(sourceMap, conflictPolicy, Collections.<MapIndex<? super V, ?>> emptyList(), writePolicy);
+    }
+
+    /**
+     * Constructs new {@link TransactionalMap} with the given conflict and write policies and secondary indexes
+     * initializing it with the given collection. Passed collection is copied.
+     * 
+     * @param sourceMap The {@link TransactionalMap} initial state.
+     * @param conflictPolicy The equivalence of the read and the committed values that isn't considered a conflict.
+     * @param indexes The secondary indexes to be maintained by the map.
+     * @param writePolicy The policy of {@link #put(Object, Object)} and {@link #remove(Object)}.
+     */
+    public TransactionalMap(Map<K, V> sourceMap, Equivalence<? super V> conflictPolicy,
+            Collection<? extends MapIndex<? super V, ?>> indexes, WritePolicy writePolicy) {
+        this(sourceMap, true, conflictPolicy, writePolicy, buildIndexes(sourceMap, indexes), new WriteLog<K>());
     }
 
     /**
@@ -91,28 +220,38 @@ public class TransactionalMap<K, V> extends SemiPersistent<TransactionalMap<K, V
      * 
      * @param sourceMap The {@link TransactionalMap} initial state.
      * @param cloneSource If true passed collection is copied.
+     * @param conflictPolicy The equivalence of the read and the committed values that isn't considered a conflict.
+     * @param writePolicy The policy of {@link #put(Object, Object)} and {@link #remove(Object)}.
+     * @param indexes The secondary indexes of the source map.
+     * @param writeLog The log of the recent commits ending with the commit of the source map.
      */
-    private TransactionalMap(Map<K, V> sourceMap, boolean cloneSource) {
+    private TransactionalMap(Map<K, V> sourceMap, boolean cloneSource, Equivalence<? super V> conflictPolicy,
+            WritePolicy writePolicy, Map<MapIndex<? super V, ?>, IndexBuckets<K>> indexes, WriteLog<K> writeLog) {
         Utils.checkNull("Source map", sourceMap);
+        Utils.checkNull("Conflict policy", conflictPolicy);
+        Utils.checkNull("Write policy", writePolicy);
         if (cloneSource) {
             this.sourceMap = Collections.unmodifiableMap(new HashMap<K, V>(sourceMap));
         } else {
             this.sourceMap = sourceMap;
         }
+        this.conflictPolicy = conflictPolicy;
+        this.writePolicy = writePolicy;
+        this.indexes = indexes;
+        this.writeLog = writeLog;
     }
 
     @Override
     public int size() {
-        this.markGloballyAccessed();
-        Set<K> keys = Sets.union(this.sourceMap.keySet(), this.pendingModifications.keySet());
-        return keys.size() - this.pendingDeletions.size();
+        this.markSizeAccessed();
+        return this.sourceMap.size() + this.sizeDelta;
     }
 
     @Override
     public boolean isEmpty() {
-        boolean empty = (this.sourceMap.size() == this.pendingDeletions.size()) && this.pendingModifications.isEmpty();
+        boolean empty = 0 == this.sourceMap.size() + this.sizeDelta;
         if (empty) {
-            this.markGloballyAccessed();
+            this.markSizeAccessed();
         }
         return empty;
     }
@@ -127,6 +266,8 @@ public class TransactionalMap<K, V> extends SemiPersistent<TransactionalMap<K, V
         this.markCleared();
         this.pendingDeletions.addAll(sourceMap.keySet());
         this.pendingModifications.clear();
+        this.pendingMerges.clear();
+        this.sizeDelta = -this.sourceMap.size();
     }
 
     /*
@@ -149,12 +290,7 @@ public class TransactionalMap<K, V> extends SemiPersistent<TransactionalMap<K, V
     @Override
     public V get(K key) {
         this.markAccessed(key);
-        if (this.pendingDeletions.contains(key)) {
-            return null;
-        } else if (this.pendingModifications.containsKey(key)) {
-            return this.pendingModifications.get(key);
-        }
-        return this.sourceMap.get(key);
+        return this.localValue(key);
     }
 
     /*
@@ -164,6 +300,14 @@ public class TransactionalMap<K, V> extends SemiPersistent<TransactionalMap<K, V
      */
     @Override
     public V put(K key, V value) {
+        if (WritePolicy.BLIND == this.writePolicy) {
+            V oldValue = this.localValue(key);
+            this.putBlind(key, value);
+            return oldValue;
+        }
+        if (!this.isLocallyPresent(key)) {
+            this.sizeDelta++;
+        }
         this.accessed.add(key);
         this.pendingDeletions.remove(key);
         V oldValue = this.pendingModifications.put(key, value);
@@ -178,7 +322,6 @@ public class TransactionalMap<K, V> extends SemiPersistent<TransactionalMap<K, V
     @Override
     public void putAll(Map<? extends K, ? extends V> m) {
         Utils.checkNull("Map", m);
-        this.accessed.addAll(m.keySet());
         for (Entry<? extends K, ? extends V> entry : m.entrySet()) {
             this.put(entry.getKey(), entry.getValue());
         }
@@ -191,7 +334,15 @@ public class TransactionalMap<K, V> extends SemiPersistent<TransactionalMap<K, V
      */
     @Override
     public V remove(K key) {
+        if (WritePolicy.BLIND == this.writePolicy) {
+            V oldValue = this.localValue(key);
+            this.removeBlind(key);
+            return oldValue;
+        }
         V oldValue = this.get(key); // Getting old value and marking it as accessed
+        if (this.isLocallyPresent(key)) {
+            this.sizeDelta--;
+        }
         if (this.sourceMap.containsKey(key)) {
             this.pendingDeletions.add(key);
         }
@@ -199,15 +350,297 @@ public class TransactionalMap<K, V> extends SemiPersistent<TransactionalMap<K, V
         return oldValue;
     }
 
+    /**
+     * Returns values of all the given keys that are present in the map. The keys are marked as accessed, as if
+     * {@link #get(Object)} was called for each of them, but the lookups are done in one pass.
+     * 
+     * @param keys The keys to be looked up.
+     * @return The new map of the present keys to their values.
+     */
+    public Map<K, V> getAll(Collection<? extends K> keys) {
+        Utils.checkNull("Keys", keys);
+        this.markAccessed(keys);
+        Map<K, V> result = new HashMap<K, V>(Math.max(16, keys.size() * 4 / 3 + 1));
+        boolean noDeletions = this.pendingDeletions.isEmpty();
+        boolean noModifications = this.pendingModifications.isEmpty();
+        for (K key : keys) {
+            if (!noDeletions && this.pendingDeletions.contains(key)) {
+                continue;
+            }
+            if (!noModifications) {
+                V value = this.pendingModifications.get(key);
+                if (null != value || this.pendingModifications.containsKey(key)) {
+                    result.put(key, value);
+                    continue;
+                }
+            }
+            V value = this.sourceMap.get(key);
+            if (null != value || this.sourceMap.containsKey(key)) {
+                result.put(key, value);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Removes all the given keys from the map. The keys are marked as accessed, as if {@link #remove(Object)} was
+     * called for each of them.
+     * 
+     * @param keys The keys to be removed.
+     * @return The new map of the removed keys to their former values.
+     */
+    public Map<K, V> removeAll(Collection<? extends K> keys) {
+        Map<K, V> removed = this.getAll(keys);
+        for (K key : removed.keySet()) {
+            this.deleteLocally(key);
+        }
+        return removed;
+    }
+
+    /**
+     * Associates the value with the key without reading the previous value. Unlike {@link #put(Object, Object)} the key
+     * is not marked as accessed, the value simply overwrites whatever is in the global state at commit time, so
+     * concurrent updates of the key don't conflict with this transaction.
+     * 
+     * @param key The key.
+     * @param value The value.
+     */
+    public void putBlind(K key, V value) {
+        this.writeLocally(key, value);
+        if (!this.pendingMerges.isEmpty()) {
+            this.pendingMerges.remove(key);
+        }
+    }
+
+    /**
+     * Removes the key without reading its value. Unlike {@link #remove(Object)} the key is not marked as accessed, the
+     * entry is removed from the global state at commit time even if it has been added or updated concurrently.
+     * 
+     * @param key The key.
+     */
+    public void removeBlind(K key) {
+        if (this.isLocallyPresent(key)) {
+            this.sizeDelta--;
+        }
+        // Removing the key even if it is not in the source map, it may have been added concurrently
+        this.pendingDeletions.add(key);
+        this.pendingModifications.remove(key);
+        if (!this.pendingMerges.isEmpty()) {
+            this.pendingMerges.remove(key);
+        }
+    }
+
+    /**
+     * Copies all of the mappings from the given map to this map without reading the previous values. Unlike
+     * {@link #putAll(Map)} the keys are not marked as accessed, the values simply overwrite whatever is in the global
+     * state at commit time, so concurrent updates of the same keys don't conflict with this transaction.
+     * 
+     * @param m The mappings to be stored in this map.
+     */
+    public void putAllBlind(Map<? extends K, ? extends V> m) {
+        Utils.checkNull("Map", m);
+        for (Entry<? extends K, ? extends V> entry : m.entrySet()) {
+            this.putBlind(entry.getKey(), entry.getValue());
+        }
+    }
+
+    /**
+     * Returns the value of the key if it is present and not null, otherwise computes the value with the given function
+     * and, unless it is null, puts it into the map. The key is marked as accessed.
+     * 
+     * @param key The key.
+     * @param function The function computing the value for the key.
+     * @return The current or the computed value.
+     */
+    public V computeIfAbsent(K key, Function<? super K, ? extends V> function) {
+        Utils.checkNull("Function", function);
+        this.markAccessed(key);
+        V value = this.localValue(key);
+        if (null == value) {
+            value = function.apply(key);
+            if (null != value) {
+                this.writeLocally(key, value);
+            }
+        }
+        return value;
+    }
+
+    /**
+     * Associates the key with the given value if the map doesn't contain the key or it is mapped to null, otherwise
+     * replaces the value with the result of the merge function. If the merge function returns null the key is removed
+     * from the map.
+     * <p>
+     * Unless the key has already been read by this transaction the merge doesn't mark it as accessed, instead it is
+     * re-applied at commit time to the value found in the global state. Concurrent merges of the same key therefore
+     * don't conflict. Reading the key after the merge makes the merged value subject to the usual conflict detection.
+     * 
+     * @param key The key.
+     * @param value The value to be merged with the existing one, must not be null.
+     * @param function The merge function.
+     * @return The new value associated with the key, as seen by this transaction, or null if the key was removed.
+     */
+    public V merge(K key, V value, MergeFunction<V> function) {
+        Utils.checkNull("Value", value);
+        return this.merge(key, value, value, function);
+    }
+
+    /**
+     * Same as {@link #merge(Object, Object, MergeFunction)} but associates the key with the given absent value instead
+     * of the merged one if the map doesn't contain the key or it is mapped to null.
+     * 
+     * @param key The key.
+     * @param value The value to be merged with the existing one, must not be null.
+     * @param absentValue The value for the key if it is not in the map, null to leave the key out of the map.
+     * @param function The merge function.
+     * @return The new value associated with the key, as seen by this transaction, or null if the key was removed.
+     */
+    V merge(K key, V value, V absentValue, MergeFunction<V> function) {
+        Utils.checkNull("Merge function", function);
+        PendingMerge<V> merge = new PendingMerge<V>(value, absentValue, function);
+        // Merge is local if the key has been read or blindly written
+        if (!this.globallyAccessed && !this.cleared && !this.accessed.contains(key)
+                && (this.pendingMerges.containsKey(key) || !this.isLocallyModified(key))) {
+            List<PendingMerge<V>> merges = this.pendingMerges.get(key);
+            if (null == merges) {
+                merges = new ArrayList<PendingMerge<V>>(2);
+                this.pendingMerges.put(key, merges);
+            }
+            merges.add(merge);
+        }
+        V newValue = merge.apply(this.localValue(key));
+        if (null == newValue) {
+            this.deleteLocally(key);
+        } else {
+            this.writeLocally(key, newValue);
+        }
+        return newValue;
+    }
+
+    /**
+     * Returns the keys whose values have the given index key according to the secondary index. The lookup is logged
+     * as a read of the index key, the commit fails only if a concurrent transaction has added or removed keys with
+     * this index key. The values of the returned keys are not logged as read.
+     * 
+     * @param index The index registered with this map at construction.
+     * @param indexKey The index key.
+     * @return The new unmodifiable set of keys as seen by this transaction.
+     */
+    public <I> Set<K> getKeysByIndex(MapIndex<? super V, I> index, I indexKey) {
+        Utils.checkNull("Index", index);
+        Utils.checkNull("Index key", indexKey);
+        IndexBuckets<K> buckets = this.indexes.get(index);
+        if (null == buckets) {
+            throw new IllegalArgumentException("Index is not registered with this map");
+        }
+        this.markIndexAccessed(index, indexKey);
+        // Merged values are matched locally, they must not be re-merged on commit
+        this.markAccessed(this.pendingMerges.keySet());
+
+        Set<K> result = new HashSet<K>();
+        for (K key : buckets.get(indexKey)) {
+            if (!this.isLocallyModified(key)) {
+                result.add(key);
+            }
+        }
+        for (Entry<K, V> entry : this.pendingModifications.entrySet()) {
+            if (indexKey.equals(index.indexKeyOf(entry.getValue()))) {
+                result.add(entry.getKey());
+            }
+        }
+        return Collections.unmodifiableSet(result);
+    }
+
     //
     // Views
     //
 
+    /**
+     * {@inheritDoc}
+     * <p>
+     * Iterators of the returned set mark the map as globally accessed when created, the keys aren't logged
+     * individually.
+     */
     @Override
     public Set<K> keySet() {
         return new KeySet();
     }
 
+    /**
+     * {@inheritDoc}
+     * <p>
+     * Iterators of the returned set mark the map as globally accessed when created, the entries aren't logged
+     * individually.
+     */
+    @Override
+    public Set<Entry<K, V>> entrySet() {
+        return new EntrySet();
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * Iterators of the returned collection mark the map as globally accessed when created, the entries aren't logged
+     * individually.
+     */
+    @Override
+    public Collection<V> values() {
+        return new Values();
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * Marks the map as globally accessed once and walks the source and the pending modifications directly.
+     */
+    @Override
+    public void forEach(EntryVisitor<? super K, ? super V> visitor) {
+        Utils.checkNull("Visitor", visitor);
+        this.markGloballyAccessed();
+        boolean filterSource = !this.pendingDeletions.isEmpty() || !this.pendingModifications.isEmpty();
+        if (!this.cleared) {
+            for (Entry<K, V> entry : this.sourceMap.entrySet()) {
+                K key = entry.getKey();
+                if (!filterSource
+                        || (!this.pendingDeletions.contains(key) && !this.pendingModifications.containsKey(key))) {
+                    visitor.visit(key, entry.getValue());
+                }
+            }
+        }
+        for (Entry<K, V> entry : this.pendingModifications.entrySet()) {
+            visitor.visit(entry.getKey(), entry.getValue());
+        }
+    }
+
+    /**
+     * Reduces all the entries of the map, as seen by this transaction, in parallel in the given fork-join pool. The
+     * source map is immutable once committed, so a pool thread walks it handing out chunks of entries to the other
+     * pool threads as it goes, while the local modifications are accumulated in the calling thread. The map is marked
+     * as globally accessed once.
+     * <p>
+     * The map must not be modified until this method returns.
+     * 
+     * @param pool The pool to run the aggregation in.
+     * @param aggregator The aggregator of the entries.
+     * @return The aggregated result.
+     */
+    public <R> R aggregate(ForkJoinPool pool, EntryAggregator<? super K, ? super V, R> aggregator) {
+        Utils.checkNull("Pool", pool);
+        Utils.checkNull("Aggregator", aggregator);
+        this.markGloballyAccessed();
+        R result = aggregator.initial();
+        if (!this.cleared && !this.sourceMap.isEmpty()) {
+            result = aggregator.combine(result, pool.invoke(new SourceAggregationTask<R>(aggregator)));
+        }
+        if (!this.pendingModifications.isEmpty()) {
+            R local = aggregator.initial();
+            for (Entry<K, V> entry : this.pendingModifications.entrySet()) {
+                local = aggregator.accumulate(local, entry.getKey(), entry.getValue());
+            }
+            result = aggregator.combine(result, local);
+        }
+        return result;
+    }
+
     //
     // Transactional methods
     //
@@ -219,7 +652,8 @@ public class TransactionalMap<K, V> extends SemiPersistent<TransactionalMap<K, V
      */
     @Override
     public TransactionalMap<K, V> cleanCopy() {
-        return new TransactionalMap<K, V>(this.sourceMap, false);
+        return new TransactionalMap<K, V>(this.sourceMap, false, this.conflictPolicy, this.writePolicy,
+                this.indexes, this.writeLog);
     }
 
     /*
@@ -229,11 +663,17 @@ public class TransactionalMap<K, V> extends SemiPersistent<TransactionalMap<K, V
      */
     @Override
     protected TransactionalMap<K, V> dirtyCopy() {
-        TransactionalMap<K, V> copy = new TransactionalMap<K, V>(this.sourceMap, false);
+        TransactionalMap<K, V> copy = new TransactionalMap<K, V>(this.sourceMap, false, this.conflictPolicy,
+                this.writePolicy, this.indexes, this.writeLog);
         copy.globallyAccessed = this.globallyAccessed;
+        copy.sizeAccessed = this.sizeAccessed;
+        copy.cleared = this.cleared;
+        copy.sizeDelta = this.sizeDelta;
         copy.markAccessed(this.accessed);
+        copy.copyIndexReads(this.accessedIndexKeys);
         copy.pendingDeletions.addAll(this.pendingDeletions);
         copy.pendingModifications.putAll(this.pendingModifications);
+        copy.copyMerges(this.pendingMerges);
         return copy;
     }
 
@@ -251,12 +691,20 @@ public class TransactionalMap<K, V> extends SemiPersistent<TransactionalMap<K, V
         if (changes.globallyAccessed) {
             markGloballyAccessed();
         }
+        if (changes.sizeAccessed) {
+            this.markSizeAccessed();
+        }
         this.markAccessed(changes.accessed);
+        this.copyIndexReads(changes.accessedIndexKeys);
         if (!onlyReadLogs) {
+            this.cleared = changes.cleared;
+            this.sizeDelta = changes.sizeDelta;
             this.pendingModifications.clear();
             this.pendingModifications.putAll(changes.pendingModifications);
             this.pendingDeletions.clear();
             this.pendingDeletions.addAll(changes.pendingDeletions);
+            this.pendingMerges.clear();
+            this.copyMerges(changes.pendingMerges);
         }
     }
 
@@ -269,23 +717,68 @@ public class TransactionalMap<K, V> extends SemiPersistent<TransactionalMap<K, V
     public TransactionalMap<K, V> commit(TransactionalMap<K, V> globalState) {
         Utils.checkNull("Global state", globalState);
         if (!globalState.pendingDeletions.isEmpty() || !globalState.pendingModifications.isEmpty()
-                || !globalState.accessed.isEmpty() || globalState.globallyAccessed) {
+                || !globalState.pendingMerges.isEmpty() || !globalState.accessed.isEmpty()
+                || !globalState.accessedIndexKeys.isEmpty() || globalState.globallyAccessed
+                || globalState.sizeAccessed) {
             throw new IllegalArgumentException("Global state map must be commited before calling this method");
         }
 
-        // Checking for conflicts
-        if (this.globallyAccessed) {
-            if (!globalState.sourceMap.equals(this.sourceMap)) {
-                throw new ConflictException("All the items of this map have been accessed "
-                        + "this prohibits commit in the case of concurrent changes");
+        // Checking for conflicts, nothing could have changed if the global map is the source of this map
+        if (globalState.sourceMap != this.sourceMap) {
+            // Keys written since the source map was committed, null if they are not known anymore
+            List<Set<K>> writes = globalState.writeLog.writesSince(this.writeLog);
+            if (this.globallyAccessed) {
+                if (null != writes) {
+                    for (Set<K> writtenKeys : writes) {
+                        for (K key : writtenKeys) {
+                            checkConsistency(globalState.sourceMap, key);
+                        }
+                    }
+                } else if (!globalState.sourceMap.equals(this.sourceMap)
+                        && !this.isEquivalent(globalState.sourceMap)) {
+                    throw new ConflictException("All the items of this map have been accessed "
+                            + "this prohibits commit in the case of concurrent changes");
+                }
+            }
+            if (this.sizeAccessed && !this.globallyAccessed) {
+                if (globalState.sourceMap.size() != this.sourceMap.size()) {
+                    throw new ConflictException("Size of this map has been accessed "
+                            + "this prohibits commit if the number of entries changes concurrently");
+                }
+                // Local size was computed assuming the modified keys are present as in the source map
+                for (K key : this.pendingModifications.keySet()) {
+                    checkPresence(globalState.sourceMap, key);
+                }
+                for (K key : this.pendingDeletions) {
+                    checkPresence(globalState.sourceMap, key);
+                }
+                for (K key : this.pendingMerges.keySet()) {
+                    checkPresence(globalState.sourceMap, key);
+                }
+            }
+            if (null != writes) {
+                for (Set<K> writtenKeys : writes) {
+                    this.checkReads(globalState.sourceMap, writtenKeys);
+                }
+            } else {
+                for (K key : this.accessed) {
+                    checkConsistency(globalState.sourceMap, key);
+                }
+            }
+            for (Entry<MapIndex<? super V, ?>, Set<Object>> entry : this.accessedIndexKeys.entrySet()) {
+                IndexBuckets<K> sourceBuckets = this.indexes.get(entry.getKey());
+                IndexBuckets<K> globalBuckets = globalState.indexes.get(entry.getKey());
+                for (Object indexKey : entry.getValue()) {
+                    // Buckets are replaced on every change
+                    if (sourceBuckets.get(indexKey) != globalBuckets.get(indexKey)) {
+                        throw new ConflictException("Conflicting changes for index key [" + indexKey + "]");
+                    }
+                }
             }
-        }
-        for (K key : this.accessed) {
-            checkConsistency(globalState.sourceMap, key);
         }
 
         // Return current global state if there are no local modifications
-        if (this.pendingDeletions.isEmpty() && this.pendingModifications.isEmpty()) {
+        if (this.pendingDeletions.isEmpty() && this.pendingModifications.isEmpty() && this.pendingMerges.isEmpty()) {
             return globalState;
         }
 
@@ -302,14 +795,108 @@ public class TransactionalMap<K, V> extends SemiPersistent<TransactionalMap<K, V
             globalMapCopy.remove(key);
         }
 
+        // Re-apply merges of the keys that weren't read to the global values
+        if (!this.globallyAccessed) {
+            for (Entry<K, List<PendingMerge<V>>> entry : this.pendingMerges.entrySet()) {
+                K key = entry.getKey();
+                if (!this.accessed.contains(key)) {
+                    V value = globalState.sourceMap.get(key);
+                    for (PendingMerge<V> merge : entry.getValue()) {
+                        value = merge.apply(value);
+                    }
+                    if (null == value) {
+                        globalMapCopy.remove(key);
+                    } else {
+                        globalMapCopy.put(key, value);
+                    }
+                }
+            }
+        }
+
+        // Updating the indexes of the changed keys only
+        Set<K> changedKeys = new HashSet<K>(this.pendingModifications.keySet());
+        changedKeys.addAll(this.pendingDeletions);
+        changedKeys.addAll(this.pendingMerges.keySet());
+        Map<MapIndex<? super V, ?>, IndexBuckets<K>> indexesCopy = globalState.indexes;
+        if (!indexesCopy.isEmpty()) {
+            indexesCopy = updateIndexes(indexesCopy, globalState.sourceMap, globalMapCopy, changedKeys);
+        }
+
         // Returning a new instance of the map
-        return new TransactionalMap<K, V>(globalMapCopy);
+        return new TransactionalMap<K, V>(Collections.unmodifiableMap(globalMapCopy), false, this.conflictPolicy,
+                this.writePolicy, indexesCopy, globalState.writeLog.append(Collections.unmodifiableSet(changedKeys)));
     }
 
     //
     // Private methods
     //
 
+    /**
+     * Returns the value as it is seen by this transaction without marking the key as accessed. It is package private
+     * for {@link TransactionalMultimap} to return the values replaced by its merges.
+     * 
+     * @param key The key.
+     * @return The value or null if the key is not in the map.
+     */
+    V localValue(K key) {
+        if (this.pendingDeletions.contains(key)) {
+            return null;
+        } else if (this.pendingModifications.containsKey(key)) {
+            return this.pendingModifications.get(key);
+        }
+        return this.sourceMap.get(key);
+    }
+
+    /**
+     * Checks if the key has been locally modified or deleted.
+     * 
+     * @param key The key.
+     * @return true if there is a pending modification or deletion for the key.
+     */
+    private boolean isLocallyModified(K key) {
+        return this.pendingModifications.containsKey(key) || this.pendingDeletions.contains(key);
+    }
+
+    /**
+     * Puts the value to the pending modifications without marking the key as accessed.
+     * 
+     * @param key The key.
+     * @param value The new value.
+     */
+    private void writeLocally(K key, V value) {
+        if (!this.isLocallyPresent(key)) {
+            this.sizeDelta++;
+        }
+        this.pendingDeletions.remove(key);
+        this.pendingModifications.put(key, value);
+    }
+
+    /**
+     * Removes the key from the map without marking it as accessed.
+     * 
+     * @param key The key.
+     */
+    private void deleteLocally(K key) {
+        if (this.isLocallyPresent(key)) {
+            this.sizeDelta--;
+        }
+        if (this.sourceMap.containsKey(key)) {
+            this.pendingDeletions.add(key);
+        }
+        this.pendingModifications.remove(key);
+    }
+
+    /**
+     * Copies the given pending merges to this map, the lists of merges are copied as well.
+     * 
+     * @param merges The pending merges to be copied.
+     */
+    private void copyMerges(Map<K, List<PendingMerge<V>>> merges) {
+        for (Entry<K, List<PendingMerge<V>>> entry : merges.entrySet()) {
+            this.pendingMerges.put(entry.getKey(), new ArrayList<PendingMerge<V>>(entry.getValue()));
+        }
+    }
+
     /**
      * Marks given key as accessed.
      * 
@@ -326,8 +913,9 @@ public class TransactionalMap<K, V> extends SemiPersistent<TransactionalMap<K, V
      * 
      * @param key The keys to mark as accessed.
      */
-    private void markAccessed(Collection<K> keys) {
+    private void markAccessed(Collection<? extends K> keys) {
         if (!this.globallyAccessed) {
+            this.accessed.ensureCapacity(keys.size());
             this.accessed.addAll(keys);
         }
     }
@@ -340,55 +928,577 @@ public class TransactionalMap<K, V> extends SemiPersistent<TransactionalMap<K, V
             // Global access is allowed after the map has been cleared.
             this.globallyAccessed = true;
             this.accessed.clear();
+            this.accessedIndexKeys.clear();
         }
     }
 
     /**
-     * Marks the map as cleared and marks all its items as accessed unless it has already been globally accessed.
+     * Marks the index key as accessed unless the map has been cleared or globally accessed.
+     * 
+     * @param index The index.
+     * @param indexKey The index key.
      */
-    private void markCleared() {
-        if (!this.globallyAccessed) {
-            this.cleared = true;
-            this.markAccessed(sourceMap.keySet());
+    private void markIndexAccessed(MapIndex<? super V, ?> index, Object indexKey) {
+        if (!this.cleared && !this.globallyAccessed) {
+            // Lookups in a cleared map don't depend on the global state.
+            Set<Object> indexKeys = this.accessedIndexKeys.get(index);
+            if (null == indexKeys) {
+                indexKeys = new HashSet<Object>();
+                this.accessedIndexKeys.put(index, indexKeys);
+            }
+            indexKeys.add(indexKey);
         }
     }
 
     /**
-     * Simply checks if values corresponding to the key are the <b>same</b> in the global and source maps.
+     * Copies the given index reads to the log of this map unless it has been globally accessed.
      * 
-     * @param globalMap The global map.
-     * @param key The key corresponding to the value to be checked.
+     * @param indexReads The index keys accessed per index.
      */
-    private void checkConsistency(Map<K, V> globalMap, K key) {
-        V sourceValue = this.sourceMap.get(key);
-        V globalValue = globalMap.get(key);
-        if ((sourceValue != globalValue) || // <br>
-                ((null == sourceValue || null == globalValue)// <br>
-                && (this.sourceMap.containsKey(key) ^ globalMap.containsKey(key)))) {
-            throw new ConflictException("Conflicting changes for [" + key + "]");
+    private void copyIndexReads(Map<MapIndex<? super V, ?>, Set<Object>> indexReads) {
+        if (!this.globallyAccessed) {
+            for (Entry<MapIndex<? super V, ?>, Set<Object>> entry : indexReads.entrySet()) {
+                Set<Object> indexKeys = this.accessedIndexKeys.get(entry.getKey());
+                if (null == indexKeys) {
+                    this.accessedIndexKeys.put(entry.getKey(), new HashSet<Object>(entry.getValue()));
+                } else {
+                    indexKeys.addAll(entry.getValue());
+                }
+            }
         }
     }
 
     /**
-     * Dynamic view on the keys of the map.
-     * 
-     * @author Ivan Koblik
+     * Marks the size of the map as accessed unless the map has been cleared or globally accessed.
      */
-    private class KeySet extends AbstractSet<K> {
-        @Override
-        public Iterator<K> iterator() {
-            return new KeyIterator();
+    private void markSizeAccessed() {
+        if (!this.cleared && !this.globallyAccessed) {
+            // Size of a cleared map doesn't depend on the global state.
+            this.sizeAccessed = true;
         }
+    }
 
-        @Override
-        public int size() {
-            return TransactionalMap.this.size();
-        }
+    /**
+     * Checks if the key is present in the map as it is seen by this transaction, doesn't mark the key as accessed.
+     * 
+     * @param key The key to be checked.
+     * @return true if the key is present.
+     */
+    private boolean isLocallyPresent(K key) {
+        return (this.sourceMap.containsKey(key) || this.pendingModifications.containsKey(key))
+                && !this.pendingDeletions.contains(key);
+    }
 
-        @Override
-        public boolean isEmpty() {
-            return TransactionalMap.this.isEmpty();
-        }
+    /**
+     * Checks if the key is either present in both the global and source maps or absent in both.
+     * 
+     * @param globalMap The global map.
+     * @param key The key to be checked.
+     */
+    private void checkPresence(Map<K, V> globalMap, K key) {
+        if (this.sourceMap.containsKey(key) != globalMap.containsKey(key)) {
+            throw new ConflictException("Conflicting changes for [" + key + "]");
+        }
+    }
+
+    /**
+     * Marks the map as cleared and marks all its items as accessed unless it has already been globally accessed.
+     */
+    private void markCleared() {
+        if (!this.globallyAccessed) {
+            this.cleared = true;
+            this.markAccessed(sourceMap.keySet());
+        }
+    }
+
+    /**
+     * Checks if the global map has the same keys as the source map and all its values are equivalent to the source
+     * ones according to the conflict policy.
+     * 
+     * @param globalMap The global map.
+     * @return true if the global map is equivalent to the source map.
+     */
+    private boolean isEquivalent(Map<K, V> globalMap) {
+        if (globalMap.size() != this.sourceMap.size()) {
+            return false;
+        }
+        for (Entry<K, V> entry : globalMap.entrySet()) {
+            K key = entry.getKey();
+            if (!this.sourceMap.containsKey(key)
+                    || !this.conflictPolicy.equivalent(this.sourceMap.get(key), entry.getValue())) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Checks the keys read by this transaction that have been written by a concurrent commit, iterating over the
+     * smaller of the two sets.
+     * 
+     * @param globalMap The global map.
+     * @param writtenKeys The keys written by a concurrent commit.
+     */
+    private void checkReads(Map<K, V> globalMap, Set<K> writtenKeys) {
+        if (writtenKeys.size() < this.accessed.size()) {
+            for (K key : writtenKeys) {
+                if (this.accessed.contains(key)) {
+                    checkConsistency(globalMap, key);
+                }
+            }
+        } else {
+            for (K key : this.accessed) {
+                if (writtenKeys.contains(key)) {
+                    checkConsistency(globalMap, key);
+                }
+            }
+        }
+    }
+
+    /**
+     * Simply checks if values corresponding to the key are the <b>same</b> in the global and source maps, or
+     * equivalent according to the conflict policy.
+     * 
+     * @param globalMap The global map.
+     * @param key The key corresponding to the value to be checked.
+     */
+    private void checkConsistency(Map<K, V> globalMap, K key) {
+        V sourceValue = this.sourceMap.get(key);
+        V globalValue = globalMap.get(key);
+        if (!this.conflictPolicy.equivalent(sourceValue, globalValue) || // <br>
+                ((null == sourceValue || null == globalValue)// <br>
+                && (this.sourceMap.containsKey(key) ^ globalMap.containsKey(key)))) {
+            throw new ConflictException("Conflicting changes for [" + key + "]");
+        }
+    }
+
+    /**
+     * Builds the secondary indexes of the given map.
+     * 
+     * @param sourceMap The map to be indexed.
+     * @param indexes The index definitions.
+     * @return The new unmodifiable indexes.
+     */
+    private static <K, V> Map<MapIndex<? super V, ?>, IndexBuckets<K>> buildIndexes(Map<K, V> sourceMap,
+            Collection<? extends MapIndex<? super V, ?>> indexes) {
+        Utils.checkNull("Source map", sourceMap);
+        Utils.checkNull("Indexes", indexes);
+        Map<MapIndex<? super V, ?>, IndexBuckets<K>> emptyIndexes =
+                new HashMap<MapIndex<? super V, ?>, IndexBuckets<K>>();
+        for (MapIndex<? super V, ?> index : indexes) {
+            Utils.checkNull("Index", index);
+            emptyIndexes.put(index, IndexBuckets.<K> empty());
+        }
+        return updateIndexes(emptyIndexes, Collections.<K, V> emptyMap(), sourceMap, sourceMap.keySet());
+    }
+
+    /**
+     * Returns copies of the indexes updated for the changed keys. Only the paths to the changed sets of map keys are
+     * copied, the rest is shared with the original indexes.
+     * 
+     * @param indexes The indexes of the old map.
+     * @param oldMap The old map.
+     * @param newMap The new map.
+     * @param changedKeys The keys which values may differ in the old and new maps.
+     * @return The new unmodifiable indexes.
+     */
+    private static <K, V> Map<MapIndex<? super V, ?>, IndexBuckets<K>> updateIndexes(
+            Map<MapIndex<? super V, ?>, IndexBuckets<K>> indexes, Map<K, V> oldMap, Map<K, V> newMap,
+            Collection<K> changedKeys) {
+        Map<MapIndex<? super V, ?>, IndexBuckets<K>> result =
+                new HashMap<MapIndex<? super V, ?>, IndexBuckets<K>>(indexes);
+        for (Entry<MapIndex<? super V, ?>, IndexBuckets<K>> entry : indexes.entrySet()) {
+            MapIndex<? super V, ?> index = entry.getKey();
+            IndexBuckets<K> buckets = entry.getValue();
+            for (K key : changedKeys) {
+                Object oldIndexKey = index.indexKeyOf(oldMap.get(key));
+                Object newIndexKey = index.indexKeyOf(newMap.get(key));
+                if (Objects.equal(oldIndexKey, newIndexKey)) {
+                    continue;
+                }
+                if (null != oldIndexKey) {
+                    buckets = buckets.without(oldIndexKey, key);
+                }
+                if (null != newIndexKey) {
+                    buckets = buckets.with(newIndexKey, key);
+                }
+            }
+            result.put(index, buckets);
+        }
+        return Collections.unmodifiableMap(result);
+    }
+
+    /**
+     * Persistent sets of map keys per index key of a secondary index. Adding or removing a map key copies only the
+     * path to it in the set of its index key and the path to that set in the set of buckets, the rest is shared with
+     * the original instance.
+     * 
+     * @param <K> The map key type.
+     * @author Ivan Koblik
+     */
+    private static final class IndexBuckets<K> {
+        /**
+         * The index without buckets.
+         */
+        @SuppressWarnings({ "unchecked", "rawtypes" })
+        private static final IndexBuckets EMPTY = new IndexBuckets(PersistentHashSet.empty());
+
+        /**
+         * The non empty buckets compared by their index keys.
+         */
+        private final PersistentHashSet<Bucket<K>> buckets;
+
+        /**
+         * Constructs the index.
+         * 
+         * @param buckets The non empty buckets compared by their index keys.
+         */
+        private IndexBuckets(PersistentHashSet<Bucket<K>> buckets) {
+            this.buckets = buckets;
+        }
+
+        /**
+         * Returns the index without buckets.
+         * 
+         * @return The empty index.
+         */
+        @SuppressWarnings("unchecked")
+        public static <K> IndexBuckets<K> empty() {
+            return EMPTY;
+        }
+
+        /**
+         * Returns the map keys with the given index key.
+         * 
+         * @param indexKey The index key.
+         * @return The persistent set of map keys, the same instance until the set is changed.
+         */
+        public PersistentHashSet<K> get(Object indexKey) {
+            Bucket<K> bucket = this.buckets.get(new Bucket<K>(indexKey, null));
+            return null == bucket ? PersistentHashSet.<K> empty() : bucket.keys;
+        }
+
+        /**
+         * Returns the index with the map key added to the set of the index key.
+         * 
+         * @param indexKey The index key.
+         * @param key The map key.
+         * @return The new index or this index if the map key is already in the set.
+         */
+        public IndexBuckets<K> with(Object indexKey, K key) {
+            PersistentHashSet<K> previous = this.get(indexKey);
+            PersistentHashSet<K> updated = previous.with(key);
+            return updated == previous ? this : this.replace(indexKey, updated);
+        }
+
+        /**
+         * Returns the index with the map key removed from the set of the index key.
+         * 
+         * @param indexKey The index key.
+         * @param key The map key.
+         * @return The new index or this index if the map key is not in the set.
+         */
+        public IndexBuckets<K> without(Object indexKey, K key) {
+            PersistentHashSet<K> previous = this.get(indexKey);
+            PersistentHashSet<K> updated = previous.without(key);
+            return updated == previous ? this : this.replace(indexKey, updated);
+        }
+
+        /**
+         * Returns the index with the set of the index key replaced.
+         * 
+         * @param indexKey The index key.
+         * @param keys The new set of map keys, the bucket is dropped if it is empty.
+         * @return The new index.
+         */
+        private IndexBuckets<K> replace(Object indexKey, PersistentHashSet<K> keys) {
+            Bucket<K> bucket = new Bucket<K>(indexKey, keys);
+            PersistentHashSet<Bucket<K>> updated = this.buckets.without(bucket);
+            if (!keys.isEmpty()) {
+                updated = updated.with(bucket);
+            }
+            return new IndexBuckets<K>(updated);
+        }
+    }
+
+    /**
+     * The set of map keys of an index key, buckets are equal if their index keys are equal.
+     * 
+     * @param <K> The map key type.
+     * @author Ivan Koblik
+     */
+    private static final class Bucket<K> {
+        /**
+         * The index key.
+         */
+        private final Object indexKey;
+
+        /**
+         * The map keys with the index key.
+         */
+        private final PersistentHashSet<K> keys;
+
+        /**
+         * Constructs the bucket.
+         * 
+         * @param indexKey The index key.
+         * @param keys The map keys with the index key.
+         */
+        private Bucket(Object indexKey, PersistentHashSet<K> keys) {
+            this.indexKey = indexKey;
+            this.keys = keys;
+        }
+
+        @Override
+        public int hashCode() {
+            return this.indexKey.hashCode();
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            return obj instanceof Bucket && this.indexKey.equals(((Bucket<?>) obj).indexKey);
+        }
+    }
+
+    /**
+     * A merge call recorded to be re-applied at commit time.
+     * 
+     * @param <V> The map value type.
+     * @author Ivan Koblik
+     */
+    private static class PendingMerge<V> {
+        /**
+         * The value passed to the merge call.
+         */
+        private final V value;
+
+        /**
+         * The value of the key if it is absent.
+         */
+        private final V absentValue;
+
+        /**
+         * The merge function.
+         */
+        private final MergeFunction<V> function;
+
+        /**
+         * Constructs the merge.
+         * 
+         * @param value The value passed to the merge call.
+         * @param absentValue The value of the key if it is absent, null to remove it.
+         * @param function The merge function.
+         */
+        public PendingMerge(V value, V absentValue, MergeFunction<V> function) {
+            this.value = value;
+            this.absentValue = absentValue;
+            this.function = function;
+        }
+
+        /**
+         * Applies the merge to the given value.
+         * 
+         * @param oldValue The current value, null if absent.
+         * @return The merged value, null means the key has to be removed.
+         */
+        public V apply(V oldValue) {
+            return null == oldValue ? this.absentValue : this.function.merge(oldValue, this.value);
+        }
+    }
+
+    /**
+     * Node of the list of the keys written by the recent commits, from the most recent one to the oldest one kept. The
+     * nodes are shared by the committed maps, a transaction finds the writes committed since it has started by walking
+     * the list of the global map until it meets the node of its source map.
+     * 
+     * @param <K> The map key type.
+     * @author Ivan Koblik
+     */
+    private static final class WriteLog<K> {
+        /**
+         * The keys written by the commit.
+         */
+        private final Set<K> writtenKeys;
+
+        /**
+         * The log of the previous commit, null if it's been truncated. It is only ever reset to null, so the readers
+         * may see either value.
+         */
+        private volatile WriteLog<K> previous;
+
+        /**
+         * Constructs the log of a map that hasn't been committed to.
+         */
+        public WriteLog() {
+            this(Collections.<K> emptySet(), null);
+        }
+
+        /**
+         * Constructs the log node.
+         * 
+         * @param writtenKeys The keys written by the commit.
+         * @param previous The log of the previous commit.
+         */
+        private WriteLog(Set<K> writtenKeys, WriteLog<K> previous) {
+            this.writtenKeys = writtenKeys;
+            this.previous = previous;
+        }
+
+        /**
+         * Returns the log extended with the new commit and truncated to {@link TransactionalMap#WRITE_LOG_LENGTH}
+         * commits.
+         * 
+         * @param writtenKeys The keys written by the new commit.
+         * @return The new head of the log.
+         */
+        public WriteLog<K> append(Set<K> writtenKeys) {
+            WriteLog<K> head = new WriteLog<K>(writtenKeys, this);
+            WriteLog<K> last = head;
+            for (int i = 1; i < WRITE_LOG_LENGTH && null != last; i++) {
+                last = last.previous;
+            }
+            if (null != last) {
+                last.previous = null;
+            }
+            return head;
+        }
+
+        /**
+         * Returns the sets of keys written after the given log node.
+         * 
+         * @param source The log node of the source map.
+         * @return The sets of written keys from the most recent one or null if the source node is not in the log.
+         */
+        public List<Set<K>> writesSince(WriteLog<K> source) {
+            List<Set<K>> writes = new ArrayList<Set<K>>();
+            for (WriteLog<K> log = this; null != log; log = log.previous) {
+                if (log == source) {
+                    return writes;
+                }
+                writes.add(log.writtenKeys);
+            }
+            return null;
+        }
+    }
+
+    /**
+     * Fork-join task walking the source map and forking an {@link AggregationTask} for every chunk of entries as soon
+     * as it is filled, so the chunks are aggregated by the other pool threads while the walk goes on. The source map is
+     * not copied up front, Java 7 collections cannot be split without walking them.
+     * 
+     * @param <R> The result type.
+     * @author Ivan Koblik
+     */
+    private class SourceAggregationTask<R> extends RecursiveTask<R> {
+        private static final long serialVersionUID = 1L;
+
+        /**
+         * The aggregator of the entries.
+         */
+        private final EntryAggregator<? super K, ? super V, R> aggregator;
+
+        /**
+         * Constructs the task.
+         * 
+         * @param aggregator The aggregator of the entries.
+         */
+        public SourceAggregationTask(EntryAggregator<? super K, ? super V, R> aggregator) {
+            this.aggregator = aggregator;
+        }
+
+        @Override
+        protected R compute() {
+            List<AggregationTask<R>> forked = new ArrayList<AggregationTask<R>>();
+            Iterator<Entry<K, V>> iterator = sourceMap.entrySet().iterator();
+            int remaining = sourceMap.size();
+            while (true) {
+                Object[] chunk = new Object[Math.min(AGGREGATION_THRESHOLD, remaining)];
+                for (int i = 0; i < chunk.length; i++) {
+                    chunk[i] = iterator.next();
+                }
+                remaining -= chunk.length;
+                AggregationTask<R> task = new AggregationTask<R>(chunk, this.aggregator);
+                if (0 == remaining) {
+                    // The last chunk is aggregated by this thread, the partial results are combined in the walk order
+                    R result = task.compute();
+                    for (int i = forked.size() - 1; i >= 0; i--) {
+                        result = this.aggregator.combine(forked.get(i).join(), result);
+                    }
+                    return result;
+                }
+                task.fork();
+                forked.add(task);
+            }
+        }
+    }
+
+    /**
+     * Fork-join task aggregating a chunk of the source map entries, skipping the locally modified ones. It only reads
+     * the map, so the tasks may safely run concurrently while the calling transaction waits for the result.
+     * 
+     * @param <R> The result type.
+     * @author Ivan Koblik
+     */
+    private class AggregationTask<R> extends RecursiveTask<R> {
+        private static final long serialVersionUID = 1L;
+
+        /**
+         * The source map entries.
+         */
+        private final Object[] entries;
+
+        /**
+         * The aggregator of the entries.
+         */
+        private final EntryAggregator<? super K, ? super V, R> aggregator;
+
+        /**
+         * Constructs the task.
+         * 
+         * @param entries The source map entries.
+         * @param aggregator The aggregator of the entries.
+         */
+        public AggregationTask(Object[] entries, EntryAggregator<? super K, ? super V, R> aggregator) {
+            this.entries = entries;
+            this.aggregator = aggregator;
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        protected R compute() {
+            boolean filterSource = !pendingDeletions.isEmpty() || !pendingModifications.isEmpty();
+            R result = this.aggregator.initial();
+            for (Object element : this.entries) {
+                Entry<K, V> entry = (Entry<K, V>) element;
+                K key = entry.getKey();
+                if (!filterSource || (!pendingDeletions.contains(key) && !pendingModifications.containsKey(key))) {
+                    result = this.aggregator.accumulate(result, key, entry.getValue());
+                }
+            }
+            return result;
+        }
+    }
+
+    /**
+     * Dynamic view on the keys of the map.
+     * 
+     * @author Ivan Koblik
+     */
+    private class KeySet extends AbstractSet<K> {
+        @Override
+        public Iterator<K> iterator() {
+            return new KeyIterator();
+        }
+
+        @Override
+        public int size() {
+            return TransactionalMap.this.size();
+        }
+
+        @Override
+        public boolean isEmpty() {
+            return TransactionalMap.this.isEmpty();
+        }
 
         @Override
         @SuppressWarnings("unchecked")
@@ -425,44 +1535,180 @@ public class TransactionalMap<K, V> extends SemiPersistent<TransactionalMap<K, V
     }
 
     /**
-     * Iterator over the keys of the map.
+     * Dynamic view on the entries of the map.
      * 
      * @author Ivan Koblik
      */
-    private class KeyIterator implements Iterator<K> {
+    private class EntrySet extends AbstractSet<Entry<K, V>> {
+        @Override
+        public Iterator<Entry<K, V>> iterator() {
+            return new EntryIterator();
+        }
+
+        @Override
+        public int size() {
+            return TransactionalMap.this.size();
+        }
+
+        @Override
+        public boolean isEmpty() {
+            return TransactionalMap.this.isEmpty();
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public boolean contains(Object o) {
+            if (!(o instanceof Entry)) {
+                return false;
+            }
+            Entry<K, V> entry = (Entry<K, V>) o;
+            return containsKey(entry.getKey()) && Objects.equal(localValue(entry.getKey()), entry.getValue());
+        }
+
+        @Override
+        public boolean remove(Object o) {
+            throw new UnsupportedOperationException();
+        }
+    }
+
+    /**
+     * Dynamic view on the values of the map.
+     * 
+     * @author Ivan Koblik
+     */
+    private class Values extends AbstractCollection<V> {
+        @Override
+        public Iterator<V> iterator() {
+            final Iterator<Entry<K, V>> entryIterator = new EntryIterator();
+            return new Iterator<V>() {
+                @Override
+                public boolean hasNext() {
+                    return entryIterator.hasNext();
+                }
+
+                @Override
+                public V next() {
+                    return entryIterator.next().getValue();
+                }
+
+                @Override
+                public void remove() {
+                    throw new UnsupportedOperationException();
+                }
+            };
+        }
+
+        @Override
+        public int size() {
+            return TransactionalMap.this.size();
+        }
+
+        @Override
+        public boolean isEmpty() {
+            return TransactionalMap.this.isEmpty();
+        }
+    }
+
+    /**
+     * Iterator over the locally visible entries of the map. It walks the source entries, skipping the deleted and the
+     * modified ones, and then the pending modifications. The map is marked as globally accessed once when the iterator
+     * is created, the returned entries aren't logged, this rule is shared by all the views.
+     * 
+     * @author Ivan Koblik
+     */
+    private class EntryIterator implements Iterator<Entry<K, V>> {
         /**
-         * The delegate iterator that is a concatenation of sourceMap and pendingModifications minus pendingDeletions.
+         * Iterator over the source entries, empty if the map has been cleared.
          */
-        private final Iterator<K> keyIterator;
+        private final Iterator<Entry<K, V>> sourceIterator;
 
         /**
-         * Constructs the iterator by initializing the delegate iterator.
+         * Iterator over the pending modifications.
          */
-        public KeyIterator() {
-            // Concatenate iterators of sourceMap and pendingModifications.
-            Iterator<K> unfiltered = Iterators.concat(TransactionalMap.this.sourceMap.keySet().iterator(),
-                    TransactionalMap.this.pendingModifications.keySet().iterator());
-            // Remove the elements from pendingDeletions.
-            keyIterator = Iterators.filter(unfiltered, not(in(TransactionalMap.this.pendingDeletions)));
+        private final Iterator<Entry<K, V>> pendingIterator;
+
+        /**
+         * False if there are no local changes and the source entries don't need to be filtered.
+         */
+        private final boolean filterSource;
+
+        /**
+         * The entry to be returned next, null if the iteration is over.
+         */
+        private Entry<K, V> next;
+
+        /**
+         * Constructs the iterator marking the map as globally accessed and looks up the first entry.
+         */
+        public EntryIterator() {
+            markGloballyAccessed();
+            this.sourceIterator = cleared ? Iterators.<Entry<K, V>> emptyIterator() : sourceMap.entrySet().iterator();
+            this.pendingIterator = pendingModifications.entrySet().iterator();
+            this.filterSource = !pendingDeletions.isEmpty() || !pendingModifications.isEmpty();
+            this.next = this.advance();
         }
 
         @Override
         public boolean hasNext() {
-            boolean hasNext = keyIterator.hasNext();
-            if (!hasNext) {
-                TransactionalMap.this.markGloballyAccessed();
+            return null != this.next;
+        }
+
+        @Override
+        public Entry<K, V> next() {
+            if (null == this.next) {
+                throw new NoSuchElementException();
             }
-            return hasNext;
+            Entry<K, V> result = this.next;
+            this.next = this.advance();
+            return result;
         }
 
         @Override
-        public K next() {
-            try {
-                return keyIterator.next();
-            } catch (NoSuchElementException ex) {
-                TransactionalMap.this.markGloballyAccessed();
-                throw ex;
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+
+        /**
+         * Finds the next visible entry.
+         * 
+         * @return The next entry or null if there are no more entries.
+         */
+        private Entry<K, V> advance() {
+            while (this.sourceIterator.hasNext()) {
+                Entry<K, V> entry = this.sourceIterator.next();
+                K key = entry.getKey();
+                if (!this.filterSource || (!pendingDeletions.contains(key) && !pendingModifications.containsKey(key))) {
+                    return entry;
+                }
             }
+            if (this.pendingIterator.hasNext()) {
+                // Pending entries are mutable, they must not leak out
+                Entry<K, V> entry = this.pendingIterator.next();
+                return Maps.immutableEntry(entry.getKey(), entry.getValue());
+            }
+            return null;
+        }
+    }
+
+    /**
+     * Iterator over the keys of the map.
+     * 
+     * @author Ivan Koblik
+     */
+    private class KeyIterator implements Iterator<K> {
+        /**
+         * The delegate iterator over the locally visible entries.
+         */
+        private final Iterator<Entry<K, V>> entryIterator = new EntryIterator();
+
+        @Override
+        public boolean hasNext() {
+            return entryIterator.hasNext();
+        }
+
+        @Override
+        public K next() {
+            return entryIterator.next().getKey();
         }
 
         @Override
@@ -470,4 +1716,24 @@ public class TransactionalMap<K, V> extends SemiPersistent<TransactionalMap<K, V
             throw new UnsupportedOperationException();
         }
     }
+
+    /**
+     * The policy of the {@link TransactionalMap} writes.
+     * 
+     * @author Ivan Koblik
+     */
+    public static enum WritePolicy {
+        /**
+         * {@link TransactionalMap#put(Object, Object)} and {@link TransactionalMap#remove(Object)} return the previous
+         * value and mark the key as accessed, a concurrent update of the key causes a conflict.
+         */
+        READ_WRITE,
+
+        /**
+         * {@link TransactionalMap#put(Object, Object)} and {@link TransactionalMap#remove(Object)} behave as
+         * {@link TransactionalMap#putBlind(Object, Object)} and {@link TransactionalMap#removeBlind(Object)}. The
+         * returned previous value is the one seen by the transaction, it isn't validated at commit time.
+         */
+        BLIND
+    }
 }
@@ -7,19 +7,30 @@
  */
 package cern.entwined;
 
+import java.util.AbstractSet;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashSet;
+import java.util.Iterator;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+
+import cern.entwined.exception.ConflictException;
 
 import com.google.common.collect.ImmutableSet;
-import com.google.common.collect.Sets;
 
 /**
  * The opaque (impossible to query for all the items or get the size of the collection) transactional multimap
  * implementation.
+ * <p>
+ * Values added with {@link #put(Object, Object)} and {@link #putAll(Object, Collection)} and removed with
+ * {@link #remove(Object, Object)} don't mark the key as accessed, they are logged per value and re-applied at commit
+ * to the most recent global set of the key. Concurrent transactions adding and removing different values of the same
+ * key therefore don't conflict. The commit is rejected if a concurrent commit changed whether any of the added or
+ * removed values is in the set of the key, or if the transaction read the set, with {@link #get(Object)} or through
+ * the set returned by these methods, and it changed concurrently.
  * 
  * @author Ivan Koblik
  */
@@ -31,6 +42,12 @@ public class TransactionalMultimap<K, V> extends SemiPersistent<TransactionalMul
      */
     private final TransactionalMap<K, Set<V>> delegate;
 
+    /**
+     * The values added to or removed from the set of a key by this transaction, their presence in the set is checked
+     * at commit.
+     */
+    private final Map<K, Set<V>> touchedValues = new SmallMap<K, Set<V>>();
+
     /**
      * Constructs a new empty {@link TransactionalMultimap}.
      */
@@ -76,23 +93,6 @@ public class TransactionalMultimap<K, V> extends SemiPersistent<TransactionalMul
         }
     };
 
-    /**
-     * Stores given pair in the map, extending set associated with the key, if it already existed. This method doesn't
-     * perform null checks and doesn't copy the given collection.
-     * 
-     * @param key The key under which to store the values.
-     * @param value The values for the key.
-     * @return The old set of values replaced by the method.
-     */
-    private Set<V> unsafePut(K key, Set<V> value) {
-        if (value.isEmpty()) {
-            return this.remove(key);
-        } else {
-            Set<V> replaced = this.delegate.put(key, Collections.unmodifiableSet(value));
-            return null != replaced ? replaced : ImmutableSet.<V> of();
-        }
-    };
-
     /**
      * Delegates to {@link TransactionalMap#remove(Object)} replacing the returned <code>null</code> value with an empty
      * set.
@@ -141,67 +141,84 @@ public class TransactionalMultimap<K, V> extends SemiPersistent<TransactionalMul
     //
 
     /**
-     * Adds the value to the entry with the given key.
+     * Adds the value to the entry with the given key. The key is not marked as accessed, the addition is re-applied at
+     * commit to the global set of the key. The key is marked as accessed once the returned set is queried.
      * 
      * @param key The key that the set is stored under.
      * @param value The value that is added to the entry with the given key.
-     * @return The replaced set or an empty set if there was no entry with the given key.
+     * @return The replaced set, as seen by this transaction, or an empty set if there was no entry with the given key.
      */
     @Override
     public Set<V> put(K key, V value) {
-        Set<V> oldSet = this.delegate.get(key);
-        if (null != oldSet) {
-            HashSet<V> newSet = new HashSet<V>(oldSet);
-            newSet.add(value);
-            return this.unsafePut(key, newSet);
-        } else {
-            return this.unsafePut(key, Collections.singleton(value));
-        }
+        return this.merge(key, new ValueDelta<V>(Collections.singleton(value), Collections.<V> emptySet()));
     };
 
     /**
-     * Puts all the values in the collection with the given key.
+     * Puts all the values in the collection with the given key. The key is not marked as accessed, the additions are
+     * re-applied at commit to the global set of the key. The key is marked as accessed once the returned set is
+     * queried.
      * 
      * @param key The key that the set is stored under.
      * @param values The values that are added to the entry with the given key.
-     * @return The replaced set or an empty set if there was no entry with the given key.
+     * @return The replaced set, as seen by this transaction, or an empty set if there was no entry with the given key.
      */
     public Set<V> putAll(K key, Collection<V> values) {
         Utils.checkNull("Values", values);
-        Set<V> oldSet = this.delegate.get(key);
-        HashSet<V> newSet;
-        if (null != oldSet) {
-            newSet = new HashSet<V>(oldSet);
-            newSet.addAll(values);
-        } else {
-            newSet = new HashSet<V>(values);
+        if (values.isEmpty()) {
+            return new ReplacedSet(key, this.localSet(key));
         }
-        return this.unsafePut(key, newSet);
+        return this.merge(key, new ValueDelta<V>(new HashSet<V>(values), Collections.<V> emptySet()));
     }
 
     /**
      * Removes the given value from the entry with the given key. If there are no more values for the key, removes the
-     * whole entry from the map.
+     * whole entry from the map. The key is not marked as accessed, the removal is re-applied at commit to the global
+     * set of the key. The key is marked as accessed once the returned set is queried.
      * 
      * @param key The key to retrieve the set.
      * @param value Value to be removed from the set.
-     * @return The replaced set or an empty set if there was no entry with the given key.
+     * @return The replaced set, as seen by this transaction, or an empty set if there was no entry with the given key.
      */
     public Set<V> remove(K key, V value) {
-        Set<V> oldSet = this.delegate.get(key);
-        if (null != oldSet) {
-            Set<V> newSet = Sets.difference(oldSet, Collections.singleton(value)).immutableCopy();
-            return this.unsafePut(key, newSet);
-        }
-        return this.remove(key);
+        return this.merge(key, new ValueDelta<V>(Collections.<V> emptySet(), Collections.singleton(value)));
     };
 
+    /**
+     * Delegates to {@link TransactionalMap#aggregate(ForkJoinPool, EntryAggregator)}, the aggregator receives the
+     * unmodifiable sets of values of every key.
+     * 
+     * @param pool The pool to run the aggregation in.
+     * @param aggregator The aggregator of the entries.
+     * @return The aggregated result.
+     */
+    public <R> R aggregate(ForkJoinPool pool, EntryAggregator<? super K, ? super Set<V>, R> aggregator) {
+        return this.delegate.aggregate(pool, aggregator);
+    }
+
     //
     // Transactional methods
     //
 
     @Override
     public TransactionalMultimap<K, V> commit(TransactionalMultimap<K, V> globalState) {
+        Utils.checkNull("Global state", globalState);
+        if (!this.touchedValues.isEmpty()) {
+            TransactionalMap<K, Set<V>> source = this.delegate.cleanCopy();
+            for (Entry<K, Set<V>> entry : this.touchedValues.entrySet()) {
+                K key = entry.getKey();
+                Set<V> sourceSet = source.localValue(key);
+                Set<V> globalSet = globalState.delegate.localValue(key);
+                if (sourceSet == globalSet) {
+                    continue;
+                }
+                for (V value : entry.getValue()) {
+                    if (contains(sourceSet, value) != contains(globalSet, value)) {
+                        throw new ConflictException("Conflicting changes for value [" + value + "] of key [" + key
+                                + "]");
+                    }
+                }
+            }
+        }
         return new TransactionalMultimap<K, V>(this.delegate.commit(globalState.delegate));
     }
 
@@ -212,11 +229,191 @@ public class TransactionalMultimap<K, V> extends SemiPersistent<TransactionalMul
 
     @Override
     protected TransactionalMultimap<K, V> dirtyCopy() {
-        return new TransactionalMultimap<K, V>(this.delegate.dirtyCopy());
+        TransactionalMultimap<K, V> copy = new TransactionalMultimap<K, V>(this.delegate.dirtyCopy());
+        copy.copyTouchedValues(this.touchedValues);
+        return copy;
     }
 
     @Override
     protected void update(TransactionalMultimap<K, V> changes, boolean onlyReadLogs) {
         this.delegate.update(changes.delegate, onlyReadLogs);
+        if (!onlyReadLogs) {
+            this.touchedValues.clear();
+            this.copyTouchedValues(changes.touchedValues);
+        }
+    }
+
+    //
+    // Private methods
+    //
+
+    /**
+     * Returns the set of values of the key as seen by this transaction without marking the key as accessed.
+     * 
+     * @param key The key.
+     * @return The set of values or an empty set.
+     */
+    private Set<V> localSet(K key) {
+        Set<V> result = this.delegate.localValue(key);
+        return null != result ? result : ImmutableSet.<V> of();
+    }
+
+    /**
+     * Merges the delta with the set of values of the key.
+     * 
+     * @param key The key.
+     * @param delta The added and removed values.
+     * @return The replaced set or an empty set if there was no entry with the given key.
+     */
+    @SuppressWarnings("unchecked")
+    private Set<V> merge(K key, ValueDelta<V> delta) {
+        Set<V> replaced = this.localSet(key);
+        Set<V> absentValue = delta.added.isEmpty() ? null : PersistentHashSet.<V> empty().withAll(delta.added);
+        this.delegate.merge(key, delta, absentValue, (MergeFunction<Set<V>>) DELTA_MERGE);
+        Set<V> touched = this.touchedValues.get(key);
+        if (null == touched) {
+            touched = new HashSet<V>();
+            this.touchedValues.put(key, touched);
+        }
+        touched.addAll(delta.added);
+        touched.addAll(delta.removed);
+        return new ReplacedSet(key, replaced);
+    }
+
+    /**
+     * Copies the touched values of every key into this map, the sets of values are copied.
+     * 
+     * @param source The touched values to copy.
+     */
+    private void copyTouchedValues(Map<K, Set<V>> source) {
+        for (Entry<K, Set<V>> entry : source.entrySet()) {
+            this.touchedValues.put(entry.getKey(), new HashSet<V>(entry.getValue()));
+        }
+    }
+
+    /**
+     * Checks if the value is in the set of values.
+     * 
+     * @param values The set of values, null if the key is absent.
+     * @param value The value.
+     * @return true if the set is not null and contains the value.
+     */
+    private static <V> boolean contains(Set<V> values, V value) {
+        return null != values && values.contains(value);
+    }
+
+    /**
+     * Applies the {@link ValueDelta} to the set of values, removes the key if no values are left. All the sets of
+     * values are {@link PersistentHashSet}s, so only the changed paths are copied and an unchanged set is returned as
+     * is.
+     */
+    @SuppressWarnings("rawtypes")
+    private static final MergeFunction DELTA_MERGE = new MergeFunction<Set<Object>>() {
+        @Override
+        public Set<Object> merge(Set<Object> oldValue, Set<Object> value) {
+            ValueDelta<Object> delta = (ValueDelta<Object>) value;
+            PersistentHashSet<Object> result = (PersistentHashSet<Object>) oldValue;
+            result = result.withoutAll(delta.removed).withAll(delta.added);
+            return result.isEmpty() ? null : result;
+        }
+    };
+
+    /**
+     * The set of values replaced by a merge, it marks the key as accessed when queried for the first time.
+     */
+    private final class ReplacedSet extends AbstractSet<V> {
+
+        /**
+         * The key of the values.
+         */
+        private final K key;
+
+        /**
+         * The replaced values.
+         */
+        private final Set<V> values;
+
+        /**
+         * Whether the key has been marked as accessed.
+         */
+        private boolean accessed = false;
+
+        /**
+         * Creates the set.
+         * 
+         * @param key The key of the values.
+         * @param values The replaced values.
+         */
+        private ReplacedSet(K key, Set<V> values) {
+            this.key = key;
+            this.values = values;
+        }
+
+        @Override
+        public Iterator<V> iterator() {
+            return Collections.unmodifiableSet(this.access()).iterator();
+        }
+
+        @Override
+        public int size() {
+            return this.access().size();
+        }
+
+        @Override
+        public boolean contains(Object o) {
+            return this.access().contains(o);
+        }
+
+        /**
+         * Marks the key as accessed if it hasn't been done yet.
+         * 
+         * @return The replaced values.
+         */
+        private Set<V> access() {
+            if (!this.accessed) {
+                TransactionalMultimap.this.delegate.containsKey(this.key);
+                this.accessed = true;
+            }
+            return this.values;
+        }
+    }
+
+    /**
+     * The values added to and removed from the set of a key, as a set it contains the added values.
+     * 
+     * @param <V> The value type.
+     */
+    private static final class ValueDelta<V> extends AbstractSet<V> {
+
+        /**
+         * The added values.
+         */
+        private final Set<V> added;
+
+        /**
+         * The removed values.
+         */
+        private final Set<V> removed;
+
+        /**
+         * Creates the delta.
+         * 
+         * @param added The added values.
+         * @param removed The removed values.
+         */
+        private ValueDelta(Set<V> added, Set<V> removed) {
+            this.added = added;
+            this.removed = removed;
+        }
+
+        @Override
+        public Iterator<V> iterator() {
+            return Collections.unmodifiableSet(this.added).iterator();
+        }
+
+        @Override
+        public int size() {
+            return this.added.size();
+        }
     }
 }
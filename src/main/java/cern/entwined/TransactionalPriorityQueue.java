@@ -0,0 +1,394 @@
+/*
+ * Entwined STM
+ * 
+ * (c) Copyright 2013 CERN. This software is distributed under the terms of the Apache License Version 2.0, copied
+ * verbatim in the file "COPYING". In applying this licence, CERN does not waive the privileges and immunities granted
+ * to it by virtue of its status as an Intergovernmental Organization or submit itself to any jurisdiction.
+ */
+package cern.entwined;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.Map.Entry;
+import java.util.concurrent.atomic.AtomicLong;
+
+import cern.entwined.exception.ConflictException;
+
+import com.google.common.collect.Ordering;
+
+/**
+ * Transactional priority queue, elements are polled in the order of the comparator and elements that are equal
+ * according to the comparator in the order they were offered. The elements are kept in a persistent sorted tree, so
+ * offering and polling an element take O(log n) time.
+ * <p>
+ * Only the head of the queue is logged as read: peeking or polling an element conflicts with the concurrent changes of
+ * the elements up to the read one, offers of elements that would not have become the minimum don't conflict with the
+ * consumers. As with {@link TransactionalQueue} peeking at an empty queue is not logged, while reading the size
+ * conflicts with any concurrent change.
+ * 
+ * @param <E> The element type.
+ * @author Ivan Koblik
+ */
+public class TransactionalPriorityQueue<E> extends SemiPersistent<TransactionalPriorityQueue<E>> {
+
+    /**
+     * The element comparator.
+     */
+    private final Comparator<? super E> comparator;
+
+    /**
+     * The unmodifiable backbone of {@link TransactionalPriorityQueue}.
+     */
+    private final PersistentSortedMap<Slot<E>, E> sourceQueue;
+
+    /**
+     * The counter ordering the equal elements, shared by all the copies.
+     */
+    private final AtomicLong sequence;
+
+    /**
+     * The local state of the queue, the source without the polled elements and with the offered ones.
+     */
+    private PersistentSortedMap<Slot<E>, E> localQueue;
+
+    /**
+     * The slots of the source polled locally.
+     */
+    private SmallSet<Slot<E>> polled = new SmallSet<Slot<E>>();
+
+    /**
+     * The slots offered locally and not polled yet.
+     */
+    private SmallSet<Slot<E>> offered = new SmallSet<Slot<E>>();
+
+    /**
+     * The greatest slot that has been read from the head of the queue, <code>null</code> if none.
+     */
+    private Slot<E> readBound;
+
+    /**
+     * This flag is set when the size of the queue is read.
+     */
+    private boolean sizeRead = false;
+
+    /**
+     * Creates an empty {@link TransactionalPriorityQueue} ordered according to the natural ordering of its elements.
+     */
+    public TransactionalPriorityQueue() {
+        this(TransactionalPriorityQueue.<E> naturalOrder());
+    }
+
+    /**
+     * Creates an empty {@link TransactionalPriorityQueue} ordered according to the given comparator.
+     * 
+     * @param comparator The comparator used to order the elements.
+     */
+    @SuppressWarnings("unchecked")
+    public TransactionalPriorityQueue(Comparator<? super E> comparator) {
+        this(Collections.EMPTY_LIST, comparator);
+    }
+
+    /**
+     * Creates a {@link TransactionalPriorityQueue} with the given elements ordered according to their natural
+     * ordering.
+     * 
+     * @param sourceCollection The initial elements, the collection is copied.
+     */
+    public TransactionalPriorityQueue(Collection<E> sourceCollection) {
+        this(sourceCollection, TransactionalPriorityQueue.<E> naturalOrder());
+    }
+
+    /**
+     * Creates a {@link TransactionalPriorityQueue} with the given elements ordered according to the given comparator.
+     * 
+     * @param sourceCollection The initial elements, the collection is copied.
+     * @param comparator The comparator used to order the elements.
+     */
+    public TransactionalPriorityQueue(Collection<E> sourceCollection, Comparator<? super E> comparator) {
+        Utils.checkNull("Source collection", sourceCollection);
+        Utils.checkNull("Comparator", comparator);
+        this.comparator = comparator;
+        this.sequence = new AtomicLong();
+        PersistentSortedMap<Slot<E>, E> source = new PersistentSortedMap<Slot<E>, E>(new SlotComparator<E>(
+                comparator));
+        for (E element : sourceCollection) {
+            Utils.checkNull("Element", element);
+            source = source.put(new Slot<E>(element, this.sequence.getAndIncrement()), element);
+        }
+        this.sourceQueue = source;
+        this.localQueue = source;
+    }
+
+    /**
+     * Creates a {@link TransactionalPriorityQueue} with the given source.
+     * 
+     * @param comparator The element comparator.
+     * @param source The source tree.
+     * @param sequence The shared counter of the offered elements.
+     */
+    private TransactionalPriorityQueue(Comparator<? super E> comparator, PersistentSortedMap<Slot<E>, E> source,
+            AtomicLong sequence) {
+        this.comparator = comparator;
+        this.sourceQueue = source;
+        this.localQueue = source;
+        this.sequence = sequence;
+    }
+
+    /**
+     * Returns the comparator used to order the elements.
+     * 
+     * @return The element comparator.
+     */
+    public Comparator<? super E> comparator() {
+        return this.comparator;
+    }
+
+    /**
+     * Adds the element to the queue, it conflicts only with the transactions that have read the head of the queue
+     * past the element's position.
+     * 
+     * @param element The element, must not be <code>null</code>.
+     * @return Always true.
+     */
+    public boolean offer(E element) {
+        Utils.checkNull("Element", element);
+        Slot<E> slot = new Slot<E>(element, this.sequence.getAndIncrement());
+        this.localQueue = this.localQueue.put(slot, element);
+        this.offered.add(slot);
+        return true;
+    }
+
+    /**
+     * Returns the least element without removing it.
+     * 
+     * @return The least element or <code>null</code> if the queue is empty.
+     */
+    public E peek() {
+        Entry<Slot<E>, E> first = this.localQueue.firstEntry();
+        if (null == first) {
+            // Not logging as this is a special case to reduce number of conflicts, same as in TransactionalQueue
+            return null;
+        }
+        this.markRead(first.getKey());
+        return first.getValue();
+    }
+
+    /**
+     * Removes and returns the least element.
+     * 
+     * @return The least element or <code>null</code> if the queue is empty.
+     */
+    public E poll() {
+        Entry<Slot<E>, E> first = this.localQueue.firstEntry();
+        if (null == first) {
+            return null;
+        }
+        Slot<E> slot = first.getKey();
+        this.markRead(slot);
+        this.localQueue = this.localQueue.remove(slot);
+        if (!this.offered.remove(slot)) {
+            this.polled.add(slot);
+        }
+        return first.getValue();
+    }
+
+    /**
+     * Polls all the elements from the queue and adds them to the collection in the order of the comparator.
+     * 
+     * @param collection The collection to be populated with elements from the queue.
+     */
+    public void drainTo(Collection<E> collection) {
+        Utils.checkNull("Receiving collection", collection);
+        for (E elem = this.poll(); elem != null; elem = this.poll()) {
+            collection.add(elem);
+        }
+    }
+
+    /**
+     * Checks if the queue is empty, behaves as {@link #peek()}.
+     * 
+     * @return true if there are no elements.
+     */
+    public boolean isEmpty() {
+        return null == this.peek();
+    }
+
+    /**
+     * Returns the number of elements, conflicts with any concurrent change of the queue.
+     * 
+     * @return The number of elements.
+     */
+    public int size() {
+        this.sizeRead = true;
+        return this.localQueue.size();
+    }
+
+    //
+    // SemiPersistent class methods.
+    //
+
+    @Override
+    protected TransactionalPriorityQueue<E> cleanCopy() {
+        return new TransactionalPriorityQueue<E>(this.comparator, this.sourceQueue, this.sequence);
+    }
+
+    @Override
+    protected TransactionalPriorityQueue<E> dirtyCopy() {
+        TransactionalPriorityQueue<E> copy = new TransactionalPriorityQueue<E>(this.comparator, this.sourceQueue,
+                this.sequence);
+        copy.localQueue = this.localQueue;
+        copy.polled = new SmallSet<Slot<E>>(this.polled);
+        copy.offered = new SmallSet<Slot<E>>(this.offered);
+        copy.readBound = this.readBound;
+        copy.sizeRead = this.sizeRead;
+        return copy;
+    }
+
+    @Override
+    protected void update(TransactionalPriorityQueue<E> changes, boolean onlyReadLogs) {
+        Utils.checkNull("Local changes", changes);
+        if (this.sourceQueue != changes.sourceQueue) {
+            throw new IllegalArgumentException("Updates are only possible for collections with the same source");
+        }
+        if (null != changes.readBound) {
+            this.markRead(changes.readBound);
+        }
+        this.sizeRead |= changes.sizeRead;
+        if (!onlyReadLogs) {
+            this.localQueue = changes.localQueue;
+            this.polled = changes.polled;
+            this.offered = changes.offered;
+        }
+    }
+
+    @Override
+    public TransactionalPriorityQueue<E> commit(TransactionalPriorityQueue<E> globalState) {
+        Utils.checkNull("Global state", globalState);
+        if (!globalState.polled.isEmpty() || !globalState.offered.isEmpty()) {
+            throw new IllegalArgumentException("Global state map must be commited before calling this method");
+        }
+
+        if (globalState.sourceQueue != this.sourceQueue) {
+            if (this.sizeRead) {
+                throw new ConflictException("Queue's size was read while it was concurrently updated");
+            }
+            if (null != this.readBound && !this.sameHead(globalState.sourceQueue)) {
+                throw new ConflictException("Queue's head was updated");
+            }
+        }
+
+        if (this.polled.isEmpty() && this.offered.isEmpty()) {
+            return globalState;
+        }
+        PersistentSortedMap<Slot<E>, E> result = globalState.sourceQueue;
+        for (Slot<E> slot : this.polled) {
+            result = result.remove(slot);
+        }
+        for (Slot<E> slot : this.offered) {
+            result = result.put(slot, slot.element);
+        }
+        return new TransactionalPriorityQueue<E>(this.comparator, result, this.sequence);
+    }
+
+    //
+    // Private methods
+    //
+
+    /**
+     * Extends the read head of the queue up to the given slot.
+     * 
+     * @param slot The read slot.
+     */
+    private void markRead(Slot<E> slot) {
+        if (null == this.readBound || this.localQueue.comparator().compare(slot, this.readBound) > 0) {
+            this.readBound = slot;
+        }
+    }
+
+    /**
+     * Checks that the given tree has exactly the same slots up to the read bound as the source.
+     * 
+     * @param global The global tree.
+     * @return true if the read head of the queue has not changed.
+     */
+    private boolean sameHead(PersistentSortedMap<Slot<E>, E> global) {
+        Iterator<Entry<Slot<E>, E>> expected = this.sourceQueue.iterator(null, false, this.readBound, true);
+        Iterator<Entry<Slot<E>, E>> actual = global.iterator(null, false, this.readBound, true);
+        while (expected.hasNext()) {
+            if (!actual.hasNext() || expected.next().getKey() != actual.next().getKey()) {
+                return false;
+            }
+        }
+        return !actual.hasNext();
+    }
+
+    /**
+     * Returns natural order comparator.
+     */
+    @SuppressWarnings("unchecked")
+    private static <E> Comparator<E> naturalOrder() {
+        return (Comparator<E>) Ordering.natural();
+    }
+
+    /**
+     * An element of the queue with its offer sequence number that orders it among the equal elements.
+     * 
+     * @param <E> The element type.
+     */
+    private static final class Slot<E> {
+
+        /**
+         * The element.
+         */
+        private final E element;
+
+        /**
+         * The sequence number.
+         */
+        private final long sequence;
+
+        /**
+         * Creates the slot.
+         * 
+         * @param element The element.
+         * @param sequence The sequence number.
+         */
+        private Slot(E element, long sequence) {
+            this.element = element;
+            this.sequence = sequence;
+        }
+    }
+
+    /**
+     * Orders slots by their elements and then by their sequence numbers.
+     * 
+     * @param <E> The element type.
+     */
+    private static final class SlotComparator<E> implements Comparator<Slot<E>> {
+
+        /**
+         * The element comparator.
+         */
+        private final Comparator<? super E> comparator;
+
+        /**
+         * Creates the slot comparator.
+         * 
+         * @param comparator The element comparator.
+         */
+        private SlotComparator(Comparator<? super E> comparator) {
+            this.comparator = comparator;
+        }
+
+        @Override
+        public int compare(Slot<E> o1, Slot<E> o2) {
+            int result = this.comparator.compare(o1.element, o2.element);
+            if (0 != result) {
+                return result;
+            }
+            return o1.sequence < o2.sequence ? -1 : (o1.sequence == o2.sequence ? 0 : 1);
+        }
+    }
+}
@@ -7,12 +7,13 @@
  */
 package cern.entwined;
 
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.ConcurrentModificationException;
 import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
-import java.util.ListIterator;
 import java.util.NoSuchElementException;
 import java.util.Queue;
 
@@ -21,20 +22,33 @@ import cern.entwined.exception.ConflictException;
 /**
  * Transactional queue implementation. It supports non-conflicting simultaneous reading from the head and writing to the
  * tail.
+ * <p>
+ * The committed elements are kept in a {@link PersistentVector} shared by all the copies of the queue, so commits and
+ * copies take time proportional to the number of elements polled and offered by the transaction and not to the length
+ * of the queue.
+ * <p>
+ * Consumers that need any element rather than the next one in order may {@link #claim()} elements instead of polling
+ * them. Claims are resolved at commit to the first elements not taken by the concurrent transactions, so concurrent
+ * claimers never conflict with each other.
+ * <p>
+ * Iterating the queue, {@link #contains(Object)} and {@link #toArray()} log the elements up to the last one read in the
+ * same way as {@link #peek()}, so they conflict with the concurrent polls but not with the concurrent offers unless
+ * they read the elements offered by this transaction. Reaching the end of the queue is not logged, as for an empty
+ * queue in {@link #peek()}.
+ * <p>
+ * A queue created with a capacity rejects the offers that would make it longer than the capacity. The capacity is
+ * checked again at commit, so a transaction whose offers were accepted conflicts only if the concurrent offers have
+ * filled the queue in the meantime, and a transaction whose offer was rejected conflicts only if the concurrent polls
+ * have made room for it.
  * 
  * @author Ivan Koblik
  */
 public class TransactionalQueue<E> extends SemiPersistent<TransactionalQueue<E>> implements Queue<E> {
 
-    /**
-     * Used to initialize soruceIterator, only not to have <code>null</code>.
-     */
-    private final ListIterator<?> EMPTY_ITERATOR = Collections.EMPTY_LIST.listIterator();
-
     /**
      * The original queue, passed at construction.
      */
-    private final List<E> sourceQueue;
+    private final PersistentVector<E> sourceQueue;
 
     /**
      * Global counter of items read from the queue, needed for fast conflict detection. It is normal for this value to
@@ -43,9 +57,14 @@ public class TransactionalQueue<E> extends SemiPersistent<TransactionalQueue<E>>
     private final int globalPollCount;
 
     /**
-     * The iterator over the source queue.
+     * The number of elements of the source queue that can be read, zero for the committed global state.
+     */
+    private final int readableSize;
+
+    /**
+     * The maximum number of elements in the queue.
      */
-    private ListIterator<E> sourceIterator;
+    private final int capacity;
 
     /**
      * The queue of elements added to the queue in this transaction.
@@ -63,6 +82,17 @@ public class TransactionalQueue<E> extends SemiPersistent<TransactionalQueue<E>>
      */
     private int peekCount = 0;
 
+    /**
+     * The claims made in this transaction, in the order they were made.
+     */
+    private List<Claim<E>> claims = Collections.emptyList();
+
+    /**
+     * The least number of elements by which the queue exceeded its capacity when an offer was rejected,
+     * {@link Integer#MAX_VALUE} if no offers were rejected. Even discarded inner transactions can decrease this value.
+     */
+    private int fullMargin = Integer.MAX_VALUE;
+
     /**
      * Creates an empty {@link TransactionalQueue}.
      */
@@ -78,24 +108,56 @@ public class TransactionalQueue<E> extends SemiPersistent<TransactionalQueue<E>>
      *            {@link TransactionalQueue} initial state.
      */
     public TransactionalQueue(Collection<E> sourceCollection) {
+        this(sourceCollection, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Creates an empty {@link TransactionalQueue} that can hold at most the given number of elements.
+     * 
+     * @param capacity The maximum number of elements, must be positive.
+     */
+    @SuppressWarnings("unchecked")
+    public TransactionalQueue(int capacity) {
+        this(Collections.EMPTY_LIST, capacity);
+    }
+
+    /**
+     * Creates a new {@link TransactionalQueue} that can hold at most the given number of elements, initializing it
+     * with the given collection of elements.
+     * 
+     * @param sourceCollection The {@link Collection} of elements copy of which will be used as
+     *            {@link TransactionalQueue} initial state.
+     * @param capacity The maximum number of elements, must be positive and not less than the collection size.
+     */
+    public TransactionalQueue(Collection<E> sourceCollection, int capacity) {
         Utils.checkNull("Source collection", sourceCollection);
-        this.sourceQueue = new LinkedList<E>(sourceCollection);
+        if (capacity <= 0 || sourceCollection.size() > capacity) {
+            throw new IllegalArgumentException("Capacity [" + capacity + "] must be positive and not less than "
+                    + "the size of the source collection [" + sourceCollection.size() + "]");
+        }
+        this.sourceQueue = PersistentVector.<E> empty().appendAll(sourceCollection);
         this.globalPollCount = 0;
-        this.sourceIterator = this.sourceQueue.listIterator();
+        this.readableSize = this.sourceQueue.size();
+        this.capacity = capacity;
         this.tail = new LinkedList<E>();
     }
 
     /**
-     * Constructs the new {@link TransactionalQueue} without copying the given {@link List}.
+     * Constructs the new {@link TransactionalQueue} sharing the given source vector.
      * 
-     * @param source The source list to initialize the queue.
+     * @param source The source vector to initialize the queue.
      * @param globalPollCount The global poll count value.
+     * @param readableSize The number of elements of the source vector that can be read.
+     * @param capacity The maximum number of elements.
+     * @param tail The elements added in this transaction.
      */
-    private TransactionalQueue(List<E> source, int globalPollCount, ListIterator<E> sourceIterator, List<E> tail) {
-        Utils.checkNull("Source list", source);
+    private TransactionalQueue(PersistentVector<E> source, int globalPollCount, int readableSize, int capacity,
+            List<E> tail) {
+        Utils.checkNull("Source vector", source);
         this.sourceQueue = source;
         this.globalPollCount = globalPollCount;
-        this.sourceIterator = sourceIterator;
+        this.readableSize = readableSize;
+        this.capacity = capacity;
         this.tail = tail;
     }
 
@@ -105,16 +167,20 @@ public class TransactionalQueue<E> extends SemiPersistent<TransactionalQueue<E>>
 
     @Override
     protected TransactionalQueue<E> cleanCopy() {
-        return new TransactionalQueue<E>(this.sourceQueue, this.globalPollCount, sourceQueue.listIterator(),
-                new LinkedList<E>());
+        return new TransactionalQueue<E>(this.sourceQueue, this.globalPollCount, this.sourceQueue.size(),
+                this.capacity, new LinkedList<E>());
     }
 
     @Override
     protected TransactionalQueue<E> dirtyCopy() {
         TransactionalQueue<E> copy = new TransactionalQueue<E>(this.sourceQueue, this.globalPollCount,
-                this.sourceQueue.listIterator(Math.min(sourceQueue.size(), pollCount)), new LinkedList<E>(this.tail));
+                this.readableSize, this.capacity, new LinkedList<E>(this.tail));
         copy.peekCount = this.peekCount;
         copy.pollCount = this.pollCount;
+        copy.fullMargin = this.fullMargin;
+        if (!this.claims.isEmpty()) {
+            copy.claims = new ArrayList<Claim<E>>(this.claims);
+        }
         return copy;
     }
 
@@ -125,28 +191,41 @@ public class TransactionalQueue<E> extends SemiPersistent<TransactionalQueue<E>>
             throw new IllegalArgumentException("Updates are only possible for collections with the same source");
         }
         this.updatePeekCount(changes.peekCount);
+        this.fullMargin = Math.min(this.fullMargin, changes.fullMargin);
         if (!onlyReadLogs) {
-            this.sourceIterator = changes.sourceIterator;
             this.tail = changes.tail;
             this.pollCount = changes.pollCount;
+            this.claims = changes.claims;
         }
     }
 
     /**
-     * For performance purposes returned global state is initialized with empty iterator, therefore polling data from
-     * the collection is not possible. As it should never be done to the global state, it is safe to do that. This
-     * however does not affect clean or dirty copies.
+     * Returned global state cannot be polled as it should never be done to the global state. This however does not
+     * affect clean or dirty copies.
+     * <p>
+     * The claims are assigned the elements at the head of the queue after removing the polled elements and adding the
+     * new ones. They are resolved only once the whole transaction has been committed by the {@link Memory}, or right
+     * away if the queue is committed directly.
+     * <p>
+     * The capacity is checked against the global state, the commit fails if the offered elements no longer fit or if a
+     * rejected offer would now fit.
      */
     @Override
     @SuppressWarnings("unchecked")
     public TransactionalQueue<E> commit(TransactionalQueue<E> globalState) {
         Utils.checkNull("Global state", globalState);
-        if (0 != globalState.peekCount || !globalState.tail.isEmpty()) {
+        if (0 != globalState.peekCount || !globalState.tail.isEmpty() || !globalState.claims.isEmpty()) {
             throw new IllegalArgumentException("Global state map must be commited before calling this method");
         }
 
+        if (Integer.MAX_VALUE != this.fullMargin
+                && globalState.sourceQueue.size() - this.sourceQueue.size() + this.fullMargin < 0) {
+            // The queue was found full, but the concurrent polls have made room for the rejected offer.
+            throw new ConflictException("Queue found full was concurrently polled");
+        }
+
         // If not accessed, return the global state.
-        if (this.peekCount == 0 && tail.isEmpty()) {
+        if (this.peekCount == 0 && tail.isEmpty() && claims.isEmpty()) {
             return globalState;
         }
 
@@ -166,20 +245,26 @@ public class TransactionalQueue<E> extends SemiPersistent<TransactionalQueue<E>>
             }
         }
 
-        if (this.pollCount == 0 && tail.isEmpty()) {
+        if (this.pollCount == 0 && tail.isEmpty() && claims.isEmpty()) {
             return globalState;
         } else {
             // Remove the polled items from the head.
-            int globalSize = globalState.sourceQueue.size();
-            LinkedList<E> resultingList = new LinkedList<E>(globalState.sourceQueue.subList(
-                    Math.min(this.pollCount, globalSize), globalSize));
+            PersistentVector<E> resultingQueue = globalState.sourceQueue.drop(Math.min(this.pollCount,
+                    globalState.sourceQueue.size()));
             // Append the new items to the tail.
-            resultingList.addAll(this.tail);
+            resultingQueue = resultingQueue.appendAll(this.tail);
+            // Assign the items at the head to the claims and remove them.
+            int claimed = Math.min(this.claims.size(), resultingQueue.size());
+            if (!this.tail.isEmpty() && resultingQueue.size() - claimed > this.capacity) {
+                throw new ConflictException("Queue capacity was exceeded by concurrent offers");
+            }
+            if (!this.claims.isEmpty()) {
+                CommitActions.schedule(new ClaimResolution<E>(this.claims, resultingQueue, claimed));
+            }
+            resultingQueue = resultingQueue.drop(claimed);
             // Increase the number of polled items with the local value.
-            @SuppressWarnings("rawtypes")
-            TransactionalQueue<E> result = new TransactionalQueue<E>(resultingList, globalState.globalPollCount
-                    + this.pollCount, (ListIterator) EMPTY_ITERATOR, Collections.EMPTY_LIST);
-            return result;
+            return new TransactionalQueue<E>(resultingQueue, globalState.globalPollCount + this.pollCount + claimed,
+                    0, this.capacity, Collections.EMPTY_LIST);
         }
     }
 
@@ -192,29 +277,119 @@ public class TransactionalQueue<E> extends SemiPersistent<TransactionalQueue<E>>
         this.peekCount = Math.max(newValue, this.peekCount);
     }
 
+    /**
+     * Returns the number of elements in the local view of the queue without logging any reads.
+     * 
+     * @return The number of elements.
+     */
+    private int localSize() {
+        int sourceSize = this.pollCount < this.readableSize ? this.readableSize - this.pollCount : 0;
+        return sourceSize + tail.size();
+    }
+
     //
     // TransactionalQueue specific methods.
     //
 
+    /**
+     * Returns the maximum number of elements in the queue, {@link Integer#MAX_VALUE} if it is unbounded.
+     * 
+     * @return The capacity.
+     */
+    public int capacity() {
+        return this.capacity;
+    }
+
     /**
      * Polls all the elements from the queue and adds them to the collection.
      * 
      * @param collection The collection to be populated with elements from the queue.
      */
     public void drainTo(Collection<E> collection) {
+        this.drainTo(collection, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Polls at most the given number of elements from the queue and adds them to the collection. The elements are
+     * taken from the source and the tail at once, and the read log is updated only once.
+     * 
+     * @param collection The collection to be populated with elements from the queue.
+     * @param max The maximum number of elements to poll, must not be negative.
+     * @return The number of polled elements.
+     */
+    public int drainTo(Collection<E> collection, int max) {
         Utils.checkNull("Receiving collection", collection);
-        for (E elem = this.poll(); elem != null; elem = this.poll()) {
-            collection.add(elem);
+        if (collection == this) {
+            throw new IllegalArgumentException("Cannot drain to itself");
+        }
+        if (max < 0) {
+            throw new IllegalArgumentException("Maximum number of elements must not be negative, got [" + max + "]");
+        }
+        int fromSource = this.pollCount < this.readableSize ? Math.min(max, this.readableSize - this.pollCount) : 0;
+        for (int i = 0; i < fromSource; i++) {
+            collection.add(this.sourceQueue.get(this.pollCount + i));
+        }
+        int fromTail = Math.min(max - fromSource, this.tail.size());
+        if (fromTail > 0) {
+            List<E> slice = this.tail.subList(0, fromTail);
+            collection.addAll(slice);
+            slice.clear();
+        }
+        this.pollCount += fromSource + fromTail;
+        this.updatePeekCount(this.pollCount);
+        return fromSource + fromTail;
+    }
+
+    /**
+     * Polls at most the given number of elements from the queue.
+     * 
+     * @param max The maximum number of elements to poll, must not be negative.
+     * @return The list of the polled elements in the queue order, empty if the queue is empty.
+     */
+    public List<E> pollBatch(int max) {
+        List<E> result = new ArrayList<E>(Math.min(Math.max(max, 0), this.localSize()));
+        this.drainTo(result, max);
+        return result;
+    }
+
+    /**
+     * Claims an element of the queue without choosing it. The claim is resolved at commit to the first element not
+     * taken by the already committed transactions, so concurrent claims never conflict with each other or with the
+     * concurrent polls. The claimed elements are not visible to this transaction, the local view of the queue is not
+     * affected by the claims and they can be read only once the transaction has been committed, for instance in
+     * {@link Transaction#committed(Object)}.
+     * 
+     * @return The claim, resolved to <code>null</code> if there are no elements left for it at commit.
+     */
+    public Claim<E> claim() {
+        if (this.claims.isEmpty()) {
+            this.claims = new ArrayList<Claim<E>>();
         }
+        Claim<E> claim = new Claim<E>();
+        this.claims.add(claim);
+        return claim;
     }
 
     //
     // Queue interface methods.
     //
 
+    /**
+     * {@inheritDoc}
+     * <p>
+     * If the queue has a capacity and it is full the element is not added and the transaction conflicts with the
+     * concurrent polls that make room for it.
+     */
     @Override
     public boolean offer(E e) {
         Utils.checkNull("Element", e);
+        if (Integer.MAX_VALUE != this.capacity) {
+            int size = this.localSize();
+            if (size >= this.capacity) {
+                this.fullMargin = Math.min(this.fullMargin, size - this.capacity);
+                return false;
+            }
+        }
         return this.tail.add(e);
     }
 
@@ -222,9 +397,8 @@ public class TransactionalQueue<E> extends SemiPersistent<TransactionalQueue<E>>
     public E peek() {
         int newPeekCount = this.pollCount;
         E result;
-        if (this.sourceIterator.hasNext()) {
-            result = this.sourceIterator.next();
-            this.sourceIterator.previous(); // return back to simulate peeking
+        if (this.pollCount < this.readableSize) {
+            result = this.sourceQueue.get(this.pollCount);
             newPeekCount++;
         } else {
             int tailSize = this.tail.size();
@@ -243,9 +417,9 @@ public class TransactionalQueue<E> extends SemiPersistent<TransactionalQueue<E>>
     @Override
     public E poll() {
         E result;
-        if (this.sourceIterator.hasNext()) {
+        if (this.pollCount < this.readableSize) {
+            result = this.sourceQueue.get(this.pollCount);
             this.pollCount++;
-            result = this.sourceIterator.next();
         } else {
             int tailSize = this.tail.size();
             if (tailSize > 0) {
@@ -270,17 +444,24 @@ public class TransactionalQueue<E> extends SemiPersistent<TransactionalQueue<E>>
         if (this.isEmpty()) {
             return 0;
         }
-        int sourceSize = this.sourceIterator.hasNext() ? sourceQueue.size() - pollCount : 0;
-        return sourceSize + tail.size();
+        return this.localSize();
     }
 
     //
     // Delegating methods
     //
 
+    /**
+     * {@inheritDoc}
+     * 
+     * @throws IllegalStateException If the queue is full.
+     */
     @Override
     public boolean add(E e) {
-        return offer(e);
+        if (!offer(e)) {
+            throw new IllegalStateException("Queue is full");
+        }
+        return true;
     }
 
     @Override
@@ -325,39 +506,63 @@ public class TransactionalQueue<E> extends SemiPersistent<TransactionalQueue<E>>
     }
 
     //
-    // Unsupported operations
+    // Read only operations
     //
 
     /**
-     * This operation is not supported.
-     * 
-     * @throws UnsupportedOperationException immediately on invocation.
+     * {@inheritDoc}
+     * <p>
+     * Every returned element is logged as read, the iterator doesn't support removal and fails with
+     * {@link ConcurrentModificationException} if the queue is polled during iteration.
      */
     @Override
-    public boolean containsAll(Collection<?> c) {
-        throw new UnsupportedOperationException();
+    public Iterator<E> iterator() {
+        return new QueueIterator();
     }
 
     /**
-     * This operation is not supported.
-     * 
-     * @throws UnsupportedOperationException immediately on invocation.
+     * {@inheritDoc}
+     * <p>
+     * Logs the elements up to the found one as read, or all the elements if there is no such element.
      */
     @Override
     public boolean contains(Object o) {
-        throw new UnsupportedOperationException();
+        if (null == o) {
+            return false;
+        }
+        for (E element : this) {
+            if (o.equals(element)) {
+                return true;
+            }
+        }
+        return false;
     }
 
-    /**
-     * This operation is not supported.
-     * 
-     * @throws UnsupportedOperationException immediately on invocation.
-     */
     @Override
-    public Iterator<E> iterator() {
-        throw new UnsupportedOperationException();
+    public boolean containsAll(Collection<?> c) {
+        Utils.checkNull("Collection", c);
+        for (Object o : c) {
+            if (!this.contains(o)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public Object[] toArray() {
+        return this.copyToList().toArray();
+    }
+
+    @Override
+    public <T> T[] toArray(T[] a) {
+        return this.copyToList().toArray(a);
     }
 
+    //
+    // Unsupported operations
+    //
+
     /**
      * This operation is not supported.
      * 
@@ -388,23 +593,191 @@ public class TransactionalQueue<E> extends SemiPersistent<TransactionalQueue<E>>
         throw new UnsupportedOperationException();
     }
 
+    //
+    // Private methods
+    //
+
     /**
-     * This operation is not supported.
+     * Copies all the elements of the queue to a new list.
      * 
-     * @throws UnsupportedOperationException immediately on invocation.
+     * @return The list of the elements in the queue order.
      */
-    @Override
-    public Object[] toArray() {
-        throw new UnsupportedOperationException();
+    private List<E> copyToList() {
+        List<E> result = new ArrayList<E>();
+        for (E element : this) {
+            result.add(element);
+        }
+        return result;
     }
 
     /**
-     * This operation is not supported.
+     * Iterates over the remaining elements of the source followed by the tail, updating the peek counter.
+     */
+    private class QueueIterator implements Iterator<E> {
+
+        /**
+         * The poll counter at creation, the queue must not be polled during iteration.
+         */
+        private final int expectedPollCount = pollCount;
+
+        /**
+         * The position of the next element counted from the head of the source, including the polled elements.
+         */
+        private int position = pollCount;
+
+        /**
+         * The tail iterator, created once the source is exhausted.
+         */
+        private Iterator<E> tailIterator;
+
+        @Override
+        public boolean hasNext() {
+            this.checkForComodification();
+            return this.position < readableSize || this.tailIterator().hasNext();
+        }
+
+        @Override
+        public E next() {
+            this.checkForComodification();
+            E result;
+            if (this.position < readableSize) {
+                result = sourceQueue.get(this.position);
+            } else {
+                Iterator<E> iterator = this.tailIterator();
+                if (!iterator.hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                result = iterator.next();
+            }
+            this.position++;
+            updatePeekCount(this.position);
+            return result;
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+
+        /**
+         * Returns the tail iterator creating it if needed.
+         */
+        private Iterator<E> tailIterator() {
+            if (null == this.tailIterator) {
+                this.tailIterator = tail.iterator();
+            }
+            return this.tailIterator;
+        }
+
+        /**
+         * Checks that the queue has not been polled.
+         */
+        private void checkForComodification() {
+            if (pollCount != this.expectedPollCount) {
+                throw new ConcurrentModificationException();
+            }
+        }
+    }
+
+    /**
+     * An element of the queue claimed by a transaction and assigned to it at commit.
      * 
-     * @throws UnsupportedOperationException immediately on invocation.
+     * @param <E> The element type.
+     * @author Ivan Koblik
      */
-    @Override
-    public <T> T[] toArray(T[] a) {
-        throw new UnsupportedOperationException();
+    public static final class Claim<E> {
+
+        /**
+         * Whether the claim has been resolved.
+         */
+        private volatile boolean resolved;
+
+        /**
+         * The claimed element, written before the resolved flag.
+         */
+        private E element;
+
+        /**
+         * Claims are created only by {@link TransactionalQueue#claim()}.
+         */
+        private Claim() {
+        }
+
+        /**
+         * Checks if the claim has been resolved by committing the transaction.
+         * 
+         * @return true if the claimed element is known.
+         */
+        public boolean isResolved() {
+            return this.resolved;
+        }
+
+        /**
+         * Returns the claimed element.
+         * 
+         * @return The element or <code>null</code> if the queue had no elements left for this claim.
+         * @throws IllegalStateException If the transaction has not been committed.
+         */
+        public E get() {
+            if (!this.resolved) {
+                throw new IllegalStateException("Claim is resolved only when the transaction is committed");
+            }
+            return this.element;
+        }
+
+        /**
+         * Assigns the element to the claim.
+         * 
+         * @param element The claimed element or <code>null</code>.
+         */
+        private void resolve(E element) {
+            this.element = element;
+            this.resolved = true;
+        }
+    }
+
+    /**
+     * Resolves the claims of a transaction to the elements assigned to them at commit, scheduled with
+     * {@link CommitActions} so that the claims are not resolved if the transaction fails to commit.
+     * 
+     * @param <E> The element type.
+     * @author Ivan Koblik
+     */
+    private static final class ClaimResolution<E> implements Runnable {
+
+        /**
+         * The claims in the order they were made.
+         */
+        private final List<Claim<E>> claims;
+
+        /**
+         * The queue with the claimed elements at its head.
+         */
+        private final PersistentVector<E> queue;
+
+        /**
+         * The number of claims that got an element, the rest of them are resolved to <code>null</code>.
+         */
+        private final int claimed;
+
+        /**
+         * Constructs the resolution.
+         * 
+         * @param claims The claims in the order they were made.
+         * @param queue The queue with the claimed elements at its head.
+         * @param claimed The number of claims that got an element.
+         */
+        private ClaimResolution(List<Claim<E>> claims, PersistentVector<E> queue, int claimed) {
+            this.claims = claims;
+            this.queue = queue;
+            this.claimed = claimed;
+        }
+
+        @Override
+        public void run() {
+            for (int i = 0; i < this.claims.size(); i++) {
+                this.claims.get(i).resolve(i < this.claimed ? this.queue.get(i) : null);
+            }
+        }
     }
 }
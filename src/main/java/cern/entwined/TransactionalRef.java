@@ -7,10 +7,23 @@
  */
 package cern.entwined;
 
+import java.util.ArrayList;
+import java.util.List;
+
 import cern.entwined.exception.ConflictException;
 
+import com.google.common.base.Equivalence;
+import com.google.common.base.Function;
+
 /**
  * Transactional implementation of reference interface.
+ * <p>
+ * By default a read value is considered to be changed by a concurrent transaction if the committed reference holds a
+ * different instance. A conflict policy given at construction, in a form of {@link Equivalence}, relaxes this check to
+ * the equivalence of the read and the committed values.
+ * <p>
+ * Functions passed to {@link #commute(Function)} before the value has been read are re-applied at commit time to the
+ * most recent global value, so concurrent commutes don't conflict.
  * 
  * @param <T> The referenced value type.
  * @author Ivan Koblik
@@ -37,6 +50,17 @@ public class TransactionalRef<T> extends SemiPersistent<TransactionalRef<T>> imp
      */
     private T value = null;
 
+    /**
+     * The policy used at commit time to decide whether the read value has been changed in the global state.
+     */
+    private final Equivalence<? super T> conflictPolicy;
+
+    /**
+     * Functions commuted before the value was accessed, they are re-applied to the global value on commit.
+     */
+    private final List<Function<? super T, ? extends T>> pendingCommutes =
+            new ArrayList<Function<? super T, ? extends T>>();
+
     /**
      * Constructs the reference object with null as value.
      */
@@ -50,8 +74,20 @@ public class TransactionalRef<T> extends SemiPersistent<TransactionalRef<T>> imp
      * @param value The initial value.
      */
     public TransactionalRef(T value) {
+        this(value, Equivalence.identity());
+    }
+
+    /**
+     * Constructs the reference object with the given value and conflict policy.
+     * 
+     * @param value The initial value.
+     * @param conflictPolicy The equivalence of the read and the committed values that isn't considered a conflict.
+     */
+    public TransactionalRef(T value, Equivalence<? super T> conflictPolicy) {
+        Utils.checkNull("Conflict policy", conflictPolicy);
         this.sourceValue = value;
         this.value = this.sourceValue;
+        this.conflictPolicy = conflictPolicy;
     }
 
     /*
@@ -79,6 +115,24 @@ public class TransactionalRef<T> extends SemiPersistent<TransactionalRef<T>> imp
         return this.value;
     }
 
+    /**
+     * Updates the value with the given function. Unless the reference has already been accessed, the function is not
+     * logged as a read but re-applied at commit time to the value found in the global state, so that concurrent commutes
+     * don't conflict. The function must be free of side effects.
+     * 
+     * @param function The function computing the new value from the current one.
+     * @return The new value as seen by this transaction.
+     */
+    public T commute(Function<? super T, ? extends T> function) {
+        Utils.checkNull("Function", function);
+        if (!this.accessed) {
+            this.pendingCommutes.add(function);
+        }
+        this.updated = true;
+        this.value = function.apply(this.value);
+        return this.value;
+    }
+
     /*
      * (non-Javadoc)
      * 
@@ -86,7 +140,7 @@ public class TransactionalRef<T> extends SemiPersistent<TransactionalRef<T>> imp
      */
     @Override
     public TransactionalRef<T> cleanCopy() {
-        return new TransactionalRef<T>(this.sourceValue);
+        return new TransactionalRef<T>(this.sourceValue, this.conflictPolicy);
     }
 
     /*
@@ -96,10 +150,11 @@ public class TransactionalRef<T> extends SemiPersistent<TransactionalRef<T>> imp
      */
     @Override
     protected TransactionalRef<T> dirtyCopy() {
-        TransactionalRef<T> copy = new TransactionalRef<T>(this.sourceValue);
+        TransactionalRef<T> copy = new TransactionalRef<T>(this.sourceValue, this.conflictPolicy);
         copy.accessed = this.accessed;
         copy.updated = this.updated;
         copy.value = this.value;
+        copy.pendingCommutes.addAll(this.pendingCommutes);
         return copy;
     }
 
@@ -118,6 +173,8 @@ public class TransactionalRef<T> extends SemiPersistent<TransactionalRef<T>> imp
         if (!onlyReadLogs) {
             this.updated = changes.updated;
             this.value = changes.value;
+            this.pendingCommutes.clear();
+            this.pendingCommutes.addAll(changes.pendingCommutes);
         }
     }
 
@@ -129,19 +186,26 @@ public class TransactionalRef<T> extends SemiPersistent<TransactionalRef<T>> imp
     @Override
     public TransactionalRef<T> commit(TransactionalRef<T> globalState) {
         Utils.checkNull("Transactional reference", globalState);
-        if (globalState.accessed) {
+        if (globalState.accessed || !globalState.pendingCommutes.isEmpty()) {
             throw new IllegalArgumentException("Global state must be commited before calling this method");
         }
-        if (this.accessed && globalState.sourceValue != this.sourceValue) {
+        if (this.accessed && !this.conflictPolicy.equivalent(globalState.sourceValue, this.sourceValue)) {
             throw new ConflictException("Conflicting update detected");
         }
 
         if (!this.updated) {
             // Return current global state if value hasn't been changed.
             return globalState;
+        } else if (!this.accessed) {
+            // Value hasn't been read, only commuted. Re-applying to the global value.
+            T newValue = globalState.sourceValue;
+            for (Function<? super T, ? extends T> function : this.pendingCommutes) {
+                newValue = function.apply(newValue);
+            }
+            return new TransactionalRef<T>(newValue, this.conflictPolicy);
         } else {
             // Return updated global state with the local value.
-            return new TransactionalRef<T>(this.value);
+            return new TransactionalRef<T>(this.value, this.conflictPolicy);
         }
     }
 }
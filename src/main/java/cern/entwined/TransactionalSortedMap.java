@@ -0,0 +1,1087 @@
+/*
+ * Entwined STM
+ * 
+ * (c) Copyright 2013 CERN. This software is distributed under the terms of the Apache License Version 2.0, copied
+ * verbatim in the file "COPYING". In applying this licence, CERN does not waive the privileges and immunities granted
+ * to it by virtue of its status as an Intergovernmental Organization or submit itself to any jurisdiction.
+ */
+package cern.entwined;
+
+import java.util.AbstractMap;
+import java.util.AbstractMap.SimpleImmutableEntry;
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.NavigableMap;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+import cern.entwined.exception.ConflictException;
+
+import com.google.common.collect.Ordering;
+
+/**
+ * Implementation of a transactional sorted map. Apart from the point operations of {@link OpaqueMap} it supports
+ * ordered navigation and range views. Instead of marking the whole map as accessed, navigation and iteration log the
+ * ranges of keys that have been read, so at commit time a range read only conflicts with concurrent changes of keys
+ * inside that range.
+ * <p>
+ * The committed state is kept in a persistent sorted tree, commit therefore costs O(m log n), where m is the number of
+ * local modifications. The map does not permit <code>null</code> keys.
+ * 
+ * @param <K> The map key type.
+ * @param <V> The map value type.
+ * @author Ivan Koblik
+ */
+public class TransactionalSortedMap<K, V> extends SemiPersistent<TransactionalSortedMap<K, V>> implements
+        OpaqueMap<K, V> {
+
+    /**
+     * The unmodifiable backbone of {@link TransactionalSortedMap}.
+     */
+    private final PersistentSortedMap<K, V> sourceMap;
+
+    /**
+     * Map of key value pairs of all locally added or modified values.
+     */
+    private final TreeMap<K, V> pendingModifications;
+
+    /**
+     * Set of keys of all the items locally removed from the source map.
+     */
+    private final TreeSet<K> pendingDeletions;
+
+    /**
+     * Set of keys of all the items that were accessed or attempted to be accessed (i.e. for non-existent keys).
+     */
+    private final TreeSet<K> accessed;
+
+    /**
+     * Ranges of keys that were read through navigation methods, iteration or range views.
+     */
+    private final List<KeyRange<K>> accessedRanges = new ArrayList<KeyRange<K>>();
+
+    /**
+     * This flag is set to true the first time clear method is called. Once the map is cleared its content no longer
+     * depends on the global state, so reads are not logged anymore and commit starts from an empty map.
+     */
+    private boolean cleared = false;
+
+    /**
+     * Constructs a new empty {@link TransactionalSortedMap} ordered according to the natural ordering of its keys.
+     */
+    public TransactionalSortedMap() {
+        this(TransactionalSortedMap.<K> naturalOrder());
+    }
+
+    /**
+     * Constructs a new empty {@link TransactionalSortedMap} ordered according to the given comparator.
+     * 
+     * @param comparator The comparator used to order the keys.
+     */
+    public TransactionalSortedMap(Comparator<? super K> comparator) {
+        this(new PersistentSortedMap<K, V>(comparator));
+    }
+
+    /**
+     * Constructs new {@link TransactionalSortedMap} initializing it with the given collection and ordering it according
+     * to the natural ordering of its keys. Passed collection is copied.
+     * 
+     * @param sourceMap The {@link TransactionalSortedMap} initial state.
+     */
+    public TransactionalSortedMap(Map<K, V> sourceMap) {
+        this(sourceMap, TransactionalSortedMap.<K> naturalOrder());
+    }
+
+    /**
+     * Constructs new {@link TransactionalSortedMap} initializing it with the given collection and ordering it according
+     * to the given comparator. Passed collection is copied.
+     * 
+     * @param sourceMap The {@link TransactionalSortedMap} initial state.
+     * @param comparator The comparator used to order the keys.
+     */
+    public TransactionalSortedMap(Map<K, V> sourceMap, Comparator<? super K> comparator) {
+        this(copyOf(Utils.checkNull("Source map", sourceMap), comparator));
+    }
+
+    /**
+     * Constructs new {@link TransactionalSortedMap} with the given persistent map as its source.
+     * 
+     * @param sourceMap The {@link TransactionalSortedMap} initial state.
+     */
+    private TransactionalSortedMap(PersistentSortedMap<K, V> sourceMap) {
+        Utils.checkNull("Source map", sourceMap);
+        this.sourceMap = sourceMap;
+        this.pendingModifications = new TreeMap<K, V>(sourceMap.comparator());
+        this.pendingDeletions = new TreeSet<K>(sourceMap.comparator());
+        this.accessed = new TreeSet<K>(sourceMap.comparator());
+    }
+
+    /**
+     * Returns the comparator used to order the keys in this map.
+     * 
+     * @return The key comparator.
+     */
+    public Comparator<? super K> comparator() {
+        return this.sourceMap.comparator();
+    }
+
+    //
+    // OpaqueMap methods
+    //
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * Logs the entire range of keys as accessed, this means that the commit will be rejected if the global state changes
+     * in any way.
+     */
+    @Override
+    public int size() {
+        this.markAccessed(KeyRange.<K> all());
+        if (this.cleared) {
+            return this.pendingModifications.size();
+        }
+        int size = this.sourceMap.size() - this.pendingDeletions.size();
+        for (K key : this.pendingModifications.keySet()) {
+            if (!this.sourceMap.containsKey(key)) {
+                size++;
+            }
+        }
+        return size;
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * Only the range of keys up to the first entry is logged as accessed.
+     */
+    @Override
+    public boolean isEmpty() {
+        return null == this.higherEntry(null, false, null, false);
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * Clearing is a blind operation, it does not log any reads. Once the map is cleared its content no longer depends on
+     * the global state and all the items, including the concurrently added ones, are removed at commit.
+     */
+    @Override
+    public void clear() {
+        this.cleared = true;
+        this.pendingDeletions.clear();
+        this.pendingModifications.clear();
+    }
+
+    @Override
+    public boolean containsKey(K key) {
+        Utils.checkNull("Key", key);
+        this.markAccessed(key);
+        return null != this.getEntry(key);
+    }
+
+    @Override
+    public V get(K key) {
+        Utils.checkNull("Key", key);
+        this.markAccessed(key);
+        Entry<K, V> entry = this.getEntry(key);
+        return null == entry ? null : entry.getValue();
+    }
+
+    @Override
+    public V put(K key, V value) {
+        V oldValue = this.get(key);
+        this.pendingDeletions.remove(key);
+        this.pendingModifications.put(key, value);
+        return oldValue;
+    }
+
+    @Override
+    public void putAll(Map<? extends K, ? extends V> m) {
+        Utils.checkNull("Map", m);
+        for (Entry<? extends K, ? extends V> entry : m.entrySet()) {
+            this.put(entry.getKey(), entry.getValue());
+        }
+    }
+
+    @Override
+    public V remove(K key) {
+        V oldValue = this.get(key); // Getting old value and marking it as accessed
+        if (!this.cleared && this.sourceMap.containsKey(key)) {
+            this.pendingDeletions.add(key);
+        }
+        this.pendingModifications.remove(key);
+        return oldValue;
+    }
+
+    //
+    // Navigation methods
+    //
+
+    /**
+     * Returns the lowest key in this map. Logs the range of keys up to the returned one.
+     * 
+     * @return The lowest key.
+     * @throws NoSuchElementException if the map is empty.
+     */
+    public K firstKey() {
+        return key(this.higherEntry(null, false, null, false));
+    }
+
+    /**
+     * Returns the highest key in this map. Logs the range of keys starting from the returned one.
+     * 
+     * @return The highest key.
+     * @throws NoSuchElementException if the map is empty.
+     */
+    public K lastKey() {
+        return key(this.lowerEntry(null, false, null, false));
+    }
+
+    /**
+     * Returns the least key greater than or equal to the given key, or <code>null</code> if there is no such key. Logs
+     * the range of keys between the argument and the returned key.
+     * 
+     * @param key The key.
+     * @return The least key greater than or equal to <code>key</code>, or <code>null</code>.
+     */
+    public K ceilingKey(K key) {
+        Utils.checkNull("Key", key);
+        return keyOrNull(this.higherEntry(key, true, null, false));
+    }
+
+    /**
+     * Returns the least key strictly greater than the given key, or <code>null</code> if there is no such key. Logs the
+     * range of keys between the argument and the returned key.
+     * 
+     * @param key The key.
+     * @return The least key greater than <code>key</code>, or <code>null</code>.
+     */
+    public K higherKey(K key) {
+        Utils.checkNull("Key", key);
+        return keyOrNull(this.higherEntry(key, false, null, false));
+    }
+
+    /**
+     * Returns the greatest key less than or equal to the given key, or <code>null</code> if there is no such key. Logs
+     * the range of keys between the returned key and the argument.
+     * 
+     * @param key The key.
+     * @return The greatest key less than or equal to <code>key</code>, or <code>null</code>.
+     */
+    public K floorKey(K key) {
+        Utils.checkNull("Key", key);
+        return keyOrNull(this.lowerEntry(key, true, null, false));
+    }
+
+    /**
+     * Returns the greatest key strictly less than the given key, or <code>null</code> if there is no such key. Logs the
+     * range of keys between the returned key and the argument.
+     * 
+     * @param key The key.
+     * @return The greatest key less than <code>key</code>, or <code>null</code>.
+     */
+    public K lowerKey(K key) {
+        Utils.checkNull("Key", key);
+        return keyOrNull(this.lowerEntry(key, false, null, false));
+    }
+
+    //
+    // Views
+    //
+
+    /**
+     * Returns an ordered view of the keys contained in this map. Iteration logs the range of keys up to the last
+     * returned key, so only the full iteration marks the entire map as accessed.
+     * 
+     * @return An ordered set view of the keys contained in this map.
+     */
+    @Override
+    public Set<K> keySet() {
+        return new RangeView(KeyRange.<K> all()).keySet();
+    }
+
+    /**
+     * Returns an ordered view of the entries contained in this map. Iteration logs the range of keys up to the last
+     * returned entry, the same way as {@link #keySet()} does.
+     * 
+     * @return An ordered set view of the entries contained in this map.
+     */
+    @Override
+    public Set<Entry<K, V>> entrySet() {
+        return new RangeView(KeyRange.<K> all()).entrySet();
+    }
+
+    /**
+     * Returns a view of the values contained in this map ordered by their keys. Iteration logs the range of keys up to
+     * the last returned value.
+     * 
+     * @return A collection view of the values contained in this map.
+     */
+    @Override
+    public Collection<V> values() {
+        return new RangeView(KeyRange.<K> all()).values();
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * Entries are visited in the key order.
+     */
+    @Override
+    public void forEach(EntryVisitor<? super K, ? super V> visitor) {
+        Utils.checkNull("Visitor", visitor);
+        for (Entry<K, V> entry : this.entrySet()) {
+            visitor.visit(entry.getKey(), entry.getValue());
+        }
+    }
+
+    /**
+     * Returns a view of the portion of this map whose keys range from <code>fromKey</code> to <code>toKey</code>. The
+     * view is backed by this map and supports all the operations supported by this map, an attempt to insert a key
+     * outside of its range results in an {@link IllegalArgumentException}. Reads through the view log only the ranges
+     * of keys that have actually been visited.
+     * 
+     * @param fromKey Low endpoint of the keys in the returned map.
+     * @param fromInclusive <code>true</code> if the low endpoint is to be included in the returned view.
+     * @param toKey High endpoint of the keys in the returned map.
+     * @param toInclusive <code>true</code> if the high endpoint is to be included in the returned view.
+     * @return A view of the portion of this map whose keys range from <code>fromKey</code> to <code>toKey</code>.
+     */
+    public SortedMap<K, V> subMap(K fromKey, boolean fromInclusive, K toKey, boolean toInclusive) {
+        Utils.checkNull("From key", fromKey);
+        Utils.checkNull("To key", toKey);
+        if (this.comparator().compare(fromKey, toKey) > 0) {
+            throw new IllegalArgumentException("From key is greater than to key");
+        }
+        return new RangeView(new KeyRange<K>(fromKey, fromInclusive, toKey, toInclusive));
+    }
+
+    /**
+     * Equivalent to <code>subMap(fromKey, true, toKey, false)</code>.
+     * 
+     * @param fromKey Low endpoint (inclusive) of the keys in the returned map.
+     * @param toKey High endpoint (exclusive) of the keys in the returned map.
+     * @return A view of the portion of this map whose keys range from <code>fromKey</code> to <code>toKey</code>.
+     */
+    public SortedMap<K, V> subMap(K fromKey, K toKey) {
+        return this.subMap(fromKey, true, toKey, false);
+    }
+
+    /**
+     * Returns a view of the portion of this map whose keys are less than (or equal to, if <code>inclusive</code> is
+     * true) <code>toKey</code>. See {@link #subMap(Object, boolean, Object, boolean)} for the view semantics.
+     * 
+     * @param toKey High endpoint of the keys in the returned map.
+     * @param inclusive <code>true</code> if the high endpoint is to be included in the returned view.
+     * @return A view of the portion of this map whose keys are less than <code>toKey</code>.
+     */
+    public SortedMap<K, V> headMap(K toKey, boolean inclusive) {
+        Utils.checkNull("To key", toKey);
+        return new RangeView(new KeyRange<K>(null, false, toKey, inclusive));
+    }
+
+    /**
+     * Equivalent to <code>headMap(toKey, false)</code>.
+     * 
+     * @param toKey High endpoint (exclusive) of the keys in the returned map.
+     * @return A view of the portion of this map whose keys are strictly less than <code>toKey</code>.
+     */
+    public SortedMap<K, V> headMap(K toKey) {
+        return this.headMap(toKey, false);
+    }
+
+    /**
+     * Returns a view of the portion of this map whose keys are greater than (or equal to, if <code>inclusive</code> is
+     * true) <code>fromKey</code>. See {@link #subMap(Object, boolean, Object, boolean)} for the view semantics.
+     * 
+     * @param fromKey Low endpoint of the keys in the returned map.
+     * @param inclusive <code>true</code> if the low endpoint is to be included in the returned view.
+     * @return A view of the portion of this map whose keys are greater than <code>fromKey</code>.
+     */
+    public SortedMap<K, V> tailMap(K fromKey, boolean inclusive) {
+        Utils.checkNull("From key", fromKey);
+        return new RangeView(new KeyRange<K>(fromKey, inclusive, null, false));
+    }
+
+    /**
+     * Equivalent to <code>tailMap(fromKey, true)</code>.
+     * 
+     * @param fromKey Low endpoint (inclusive) of the keys in the returned map.
+     * @return A view of the portion of this map whose keys are greater than or equal to <code>fromKey</code>.
+     */
+    public SortedMap<K, V> tailMap(K fromKey) {
+        return this.tailMap(fromKey, true);
+    }
+
+    //
+    // Transactional methods
+    //
+
+    @Override
+    protected TransactionalSortedMap<K, V> cleanCopy() {
+        return new TransactionalSortedMap<K, V>(this.sourceMap);
+    }
+
+    @Override
+    protected TransactionalSortedMap<K, V> dirtyCopy() {
+        TransactionalSortedMap<K, V> copy = new TransactionalSortedMap<K, V>(this.sourceMap);
+        copy.cleared = this.cleared;
+        copy.accessed.addAll(this.accessed);
+        copy.accessedRanges.addAll(this.accessedRanges);
+        copy.pendingDeletions.addAll(this.pendingDeletions);
+        copy.pendingModifications.putAll(this.pendingModifications);
+        return copy;
+    }
+
+    @Override
+    protected void update(TransactionalSortedMap<K, V> changes, boolean onlyReadLogs) {
+        Utils.checkNull("Local changes", changes);
+        if (this.sourceMap != changes.sourceMap) {
+            throw new IllegalArgumentException("Updates are only possible for collections with the same source");
+        }
+        this.accessed.addAll(changes.accessed);
+        // Changes are a dirty copy of this map, so their range log starts with ranges of this one.
+        for (int i = 0; i < changes.accessedRanges.size(); i++) {
+            if (i < this.accessedRanges.size()) {
+                this.accessedRanges.set(i, changes.accessedRanges.get(i));
+            } else {
+                this.accessedRanges.add(changes.accessedRanges.get(i));
+            }
+        }
+        if (!onlyReadLogs) {
+            this.cleared = changes.cleared;
+            this.pendingModifications.clear();
+            this.pendingModifications.putAll(changes.pendingModifications);
+            this.pendingDeletions.clear();
+            this.pendingDeletions.addAll(changes.pendingDeletions);
+        }
+    }
+
+    @Override
+    public TransactionalSortedMap<K, V> commit(TransactionalSortedMap<K, V> globalState) {
+        Utils.checkNull("Global state", globalState);
+        if (!globalState.pendingDeletions.isEmpty() || !globalState.pendingModifications.isEmpty()
+                || !globalState.accessed.isEmpty() || !globalState.accessedRanges.isEmpty() || globalState.cleared) {
+            throw new IllegalArgumentException("Global state map must be commited before calling this method");
+        }
+
+        // Checking for conflicts, there can be none if the global state is still the source of this map.
+        PersistentSortedMap<K, V> globalMap = globalState.sourceMap;
+        if (globalMap != this.sourceMap) {
+            for (K key : this.accessed) {
+                if (this.isChanged(globalMap, key)) {
+                    throw new ConflictException("Conflicting changes for [" + key + "]");
+                }
+            }
+            for (KeyRange<K> range : this.accessedRanges) {
+                if (this.isChanged(globalMap, range)) {
+                    throw new ConflictException("Conflicting changes in range " + range);
+                }
+            }
+        }
+
+        // Return current global state if there are no local modifications
+        if (!this.cleared && this.pendingDeletions.isEmpty() && this.pendingModifications.isEmpty()) {
+            return globalState;
+        }
+
+        PersistentSortedMap<K, V> result = this.cleared ? new PersistentSortedMap<K, V>(globalMap.comparator())
+                : globalMap;
+        for (K key : this.pendingDeletions) {
+            result = result.remove(key);
+        }
+        for (Entry<K, V> entry : this.pendingModifications.entrySet()) {
+            result = result.put(entry.getKey(), entry.getValue());
+        }
+        return new TransactionalSortedMap<K, V>(result);
+    }
+
+    //
+    // Private methods
+    //
+
+    /**
+     * Copies the given map into a new persistent sorted map.
+     * 
+     * @param source The copied map.
+     * @param comparator The key comparator.
+     * @return The persistent copy of the map.
+     */
+    private static <K, V> PersistentSortedMap<K, V> copyOf(Map<K, V> source, Comparator<? super K> comparator) {
+        PersistentSortedMap<K, V> result = new PersistentSortedMap<K, V>(comparator);
+        for (Entry<K, V> entry : source.entrySet()) {
+            result = result.put(entry.getKey(), entry.getValue());
+        }
+        return result;
+    }
+
+    /**
+     * Returns the natural ordering comparator.
+     * 
+     * @return The comparator that uses natural ordering of the keys.
+     */
+    @SuppressWarnings("unchecked")
+    private static <K> Comparator<K> naturalOrder() {
+        return (Comparator<K>) Ordering.natural();
+    }
+
+    /**
+     * Returns the entry key or throws {@link NoSuchElementException} if entry is <code>null</code>.
+     */
+    private static <K> K key(Entry<K, ?> entry) {
+        if (null == entry) {
+            throw new NoSuchElementException();
+        }
+        return entry.getKey();
+    }
+
+    /**
+     * Returns the entry key or <code>null</code> if entry is <code>null</code>.
+     */
+    private static <K> K keyOrNull(Entry<K, ?> entry) {
+        return null == entry ? null : entry.getKey();
+    }
+
+    /**
+     * Marks given key as accessed unless the map has been cleared.
+     * 
+     * @param key The key to mark as accessed.
+     */
+    private void markAccessed(K key) {
+        if (!this.cleared) {
+            this.accessed.add(key);
+        }
+    }
+
+    /**
+     * Logs given range as accessed unless the map has been cleared.
+     * 
+     * @param range The accessed range.
+     * @return The index of the range in the log or -1 if nothing was logged.
+     */
+    private int markAccessed(KeyRange<K> range) {
+        if (this.cleared) {
+            return -1;
+        }
+        this.accessedRanges.add(range);
+        return this.accessedRanges.size() - 1;
+    }
+
+    /**
+     * Returns the local entry for the given key without logging the access.
+     * 
+     * @param key The key.
+     * @return The entry or <code>null</code> if there is no such key in the local state.
+     */
+    private Entry<K, V> getEntry(K key) {
+        if (this.pendingModifications.containsKey(key)) {
+            return new SimpleImmutableEntry<K, V>(key, this.pendingModifications.get(key));
+        } else if (this.cleared || this.pendingDeletions.contains(key)) {
+            return null;
+        }
+        return this.sourceMap.getEntry(key);
+    }
+
+    /**
+     * Finds the first local entry with the key greater than (or equal to) the given key and within the given upper
+     * bound. Logs the range between the key and the found entry, or the whole range if nothing was found.
+     * 
+     * @param key The lower bound, <code>null</code> if unbounded.
+     * @param inclusive Whether the lower bound is inclusive.
+     * @param limit The upper bound, <code>null</code> if unbounded.
+     * @param limitInclusive Whether the upper bound is inclusive.
+     * @return The found entry or <code>null</code>.
+     */
+    private Entry<K, V> higherEntry(K key, boolean inclusive, K limit, boolean limitInclusive) {
+        Entry<K, V> entry = this.localHigherEntry(key, inclusive);
+        KeyRange<K> bounds = new KeyRange<K>(key, inclusive, limit, limitInclusive);
+        if (null != entry && !bounds.isBelowUpper(entry.getKey(), this.comparator())) {
+            entry = null;
+        }
+        this.markAccessed(null == entry ? bounds : new KeyRange<K>(key, inclusive, entry.getKey(), true));
+        return entry;
+    }
+
+    /**
+     * Finds the last local entry with the key less than (or equal to) the given key and within the given lower bound.
+     * Logs the range between the found entry and the key, or the whole range if nothing was found.
+     * 
+     * @param key The upper bound, <code>null</code> if unbounded.
+     * @param inclusive Whether the upper bound is inclusive.
+     * @param limit The lower bound, <code>null</code> if unbounded.
+     * @param limitInclusive Whether the lower bound is inclusive.
+     * @return The found entry or <code>null</code>.
+     */
+    private Entry<K, V> lowerEntry(K key, boolean inclusive, K limit, boolean limitInclusive) {
+        Entry<K, V> entry = this.localLowerEntry(key, inclusive);
+        KeyRange<K> bounds = new KeyRange<K>(limit, limitInclusive, key, inclusive);
+        if (null != entry && !bounds.isAboveLower(entry.getKey(), this.comparator())) {
+            entry = null;
+        }
+        this.markAccessed(null == entry ? bounds : new KeyRange<K>(entry.getKey(), true, key, inclusive));
+        return entry;
+    }
+
+    /**
+     * Finds the first local entry with the key greater than (or equal to) the given key, without logging the access.
+     */
+    private Entry<K, V> localHigherEntry(K key, boolean inclusive) {
+        Entry<K, V> pending;
+        if (null == key) {
+            pending = this.pendingModifications.firstEntry();
+        } else {
+            pending = inclusive ? this.pendingModifications.ceilingEntry(key) : this.pendingModifications
+                    .higherEntry(key);
+        }
+        if (this.cleared) {
+            return pending;
+        }
+        Entry<K, V> source = null == key ? this.sourceMap.firstEntry() : this.sourceMap.higherEntry(key, inclusive);
+        while (null != source && this.pendingDeletions.contains(source.getKey())) {
+            source = this.sourceMap.higherEntry(source.getKey(), false);
+        }
+        if (null == pending) {
+            return source;
+        } else if (null == source || this.comparator().compare(pending.getKey(), source.getKey()) <= 0) {
+            return pending;
+        }
+        return source;
+    }
+
+    /**
+     * Finds the last local entry with the key less than (or equal to) the given key, without logging the access.
+     */
+    private Entry<K, V> localLowerEntry(K key, boolean inclusive) {
+        Entry<K, V> pending;
+        if (null == key) {
+            pending = this.pendingModifications.lastEntry();
+        } else {
+            pending = inclusive ? this.pendingModifications.floorEntry(key) : this.pendingModifications
+                    .lowerEntry(key);
+        }
+        if (this.cleared) {
+            return pending;
+        }
+        Entry<K, V> source = null == key ? this.sourceMap.lastEntry() : this.sourceMap.lowerEntry(key, inclusive);
+        while (null != source && this.pendingDeletions.contains(source.getKey())) {
+            source = this.sourceMap.lowerEntry(source.getKey(), false);
+        }
+        if (null == pending) {
+            return source;
+        } else if (null == source || this.comparator().compare(pending.getKey(), source.getKey()) >= 0) {
+            return pending;
+        }
+        return source;
+    }
+
+    /**
+     * Checks if the value corresponding to the key is not the <b>same</b> in the global and source maps.
+     * 
+     * @param globalMap The global map.
+     * @param key The checked key.
+     * @return <code>true</code> if the key has been concurrently changed.
+     */
+    private boolean isChanged(PersistentSortedMap<K, V> globalMap, K key) {
+        Entry<K, V> sourceEntry = this.sourceMap.getEntry(key);
+        Entry<K, V> globalEntry = globalMap.getEntry(key);
+        if (null == sourceEntry || null == globalEntry) {
+            return sourceEntry != globalEntry;
+        }
+        return sourceEntry.getValue() != globalEntry.getValue();
+    }
+
+    /**
+     * Walks the given range in the source and global maps simultaneously and checks that they contain the same keys
+     * with the <b>same</b> values.
+     * 
+     * @param globalMap The global map.
+     * @param range The checked range.
+     * @return <code>true</code> if any of the keys in the range has been concurrently changed.
+     */
+    private boolean isChanged(PersistentSortedMap<K, V> globalMap, KeyRange<K> range) {
+        Iterator<Entry<K, V>> sourceIterator = range.iterator(this.sourceMap);
+        Iterator<Entry<K, V>> globalIterator = range.iterator(globalMap);
+        while (sourceIterator.hasNext() && globalIterator.hasNext()) {
+            Entry<K, V> sourceEntry = sourceIterator.next();
+            Entry<K, V> globalEntry = globalIterator.next();
+            if (sourceEntry != globalEntry
+                    && (0 != this.comparator().compare(sourceEntry.getKey(), globalEntry.getKey()) || sourceEntry
+                            .getValue() != globalEntry.getValue())) {
+                return true;
+            }
+        }
+        return sourceIterator.hasNext() || globalIterator.hasNext();
+    }
+
+    /**
+     * Immutable range of keys, a <code>null</code> bound means that the range is unbounded on that side.
+     * 
+     * @param <K> The key type.
+     * @author Ivan Koblik
+     */
+    private static final class KeyRange<K> {
+        /**
+         * The unbounded range.
+         */
+        @SuppressWarnings("rawtypes")
+        private static final KeyRange ALL = new KeyRange<Object>(null, false, null, false);
+
+        private final K lower;
+        private final boolean lowerInclusive;
+        private final K upper;
+        private final boolean upperInclusive;
+
+        KeyRange(K lower, boolean lowerInclusive, K upper, boolean upperInclusive) {
+            this.lower = lower;
+            this.lowerInclusive = lowerInclusive;
+            this.upper = upper;
+            this.upperInclusive = upperInclusive;
+        }
+
+        @SuppressWarnings("unchecked")
+        static <K> KeyRange<K> all() {
+            return ALL;
+        }
+
+        /**
+         * Returns <code>true</code> if the key is not below the lower bound.
+         */
+        boolean isAboveLower(K key, Comparator<? super K> comparator) {
+            if (null == this.lower) {
+                return true;
+            }
+            int c = comparator.compare(key, this.lower);
+            return c > 0 || (c == 0 && this.lowerInclusive);
+        }
+
+        /**
+         * Returns <code>true</code> if the key is not above the upper bound.
+         */
+        boolean isBelowUpper(K key, Comparator<? super K> comparator) {
+            if (null == this.upper) {
+                return true;
+            }
+            int c = comparator.compare(key, this.upper);
+            return c < 0 || (c == 0 && this.upperInclusive);
+        }
+
+        /**
+         * Returns <code>true</code> if the key is within the range.
+         */
+        boolean contains(K key, Comparator<? super K> comparator) {
+            return this.isAboveLower(key, comparator) && this.isBelowUpper(key, comparator);
+        }
+
+        /**
+         * Returns intersection of this range with the given one.
+         */
+        KeyRange<K> intersect(KeyRange<K> other, Comparator<? super K> comparator) {
+            K newLower = this.lower;
+            boolean newLowerInclusive = this.lowerInclusive;
+            if (null != other.lower && (null == this.lower || !other.isAboveLower(this.lower, comparator))) {
+                newLower = other.lower;
+                newLowerInclusive = other.lowerInclusive;
+            }
+            K newUpper = this.upper;
+            boolean newUpperInclusive = this.upperInclusive;
+            if (null != other.upper && (null == this.upper || !other.isBelowUpper(this.upper, comparator))) {
+                newUpper = other.upper;
+                newUpperInclusive = other.upperInclusive;
+            }
+            return new KeyRange<K>(newLower, newLowerInclusive, newUpper, newUpperInclusive);
+        }
+
+        /**
+         * Returns the iterator over the entries of the persistent map within this range.
+         */
+        <V> Iterator<Entry<K, V>> iterator(PersistentSortedMap<K, V> map) {
+            return map.iterator(this.lower, this.lowerInclusive, this.upper, this.upperInclusive);
+        }
+
+        /**
+         * Returns the view of the pending modifications within this range.
+         */
+        <V> NavigableMap<K, V> subMap(NavigableMap<K, V> map) {
+            if (null != this.lower && null != this.upper) {
+                return map.subMap(this.lower, this.lowerInclusive, this.upper, this.upperInclusive);
+            } else if (null != this.lower) {
+                return map.tailMap(this.lower, this.lowerInclusive);
+            } else if (null != this.upper) {
+                return map.headMap(this.upper, this.upperInclusive);
+            }
+            return map;
+        }
+
+        @Override
+        public String toString() {
+            return (this.lowerInclusive ? "[" : "(") + (null == this.lower ? "-inf" : this.lower) + ", "
+                    + (null == this.upper ? "+inf" : this.upper) + (this.upperInclusive ? "]" : ")");
+        }
+    }
+
+    /**
+     * Dynamic view on the range of the map.
+     * 
+     * @author Ivan Koblik
+     */
+    private class RangeView extends AbstractMap<K, V> implements SortedMap<K, V> {
+        /**
+         * The range of keys of this view.
+         */
+        private final KeyRange<K> range;
+
+        RangeView(KeyRange<K> range) {
+            this.range = range;
+        }
+
+        @Override
+        public Comparator<? super K> comparator() {
+            return TransactionalSortedMap.this.comparator();
+        }
+
+        @Override
+        public Set<Entry<K, V>> entrySet() {
+            return new AbstractSet<Entry<K, V>>() {
+                @Override
+                public Iterator<Entry<K, V>> iterator() {
+                    return new RangeIterator(RangeView.this.range);
+                }
+
+                @Override
+                public int size() {
+                    return RangeView.this.size();
+                }
+
+                @Override
+                public boolean isEmpty() {
+                    return RangeView.this.isEmpty();
+                }
+            };
+        }
+
+        @Override
+        public int size() {
+            int size = 0;
+            for (Iterator<Entry<K, V>> iterator = new RangeIterator(this.range); iterator.hasNext(); iterator.next()) {
+                size++;
+            }
+            return size;
+        }
+
+        @Override
+        public boolean isEmpty() {
+            return null == higherEntry(this.range.lower, this.range.lowerInclusive, this.range.upper,
+                    this.range.upperInclusive);
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public boolean containsKey(Object key) {
+            return this.inRange(key) && TransactionalSortedMap.this.containsKey((K) key);
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public V get(Object key) {
+            return this.inRange(key) ? TransactionalSortedMap.this.get((K) key) : null;
+        }
+
+        @Override
+        public V put(K key, V value) {
+            if (!this.inRange(key)) {
+                throw new IllegalArgumentException("Key " + key + " is out of range " + this.range);
+            }
+            return TransactionalSortedMap.this.put(key, value);
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public V remove(Object key) {
+            return this.inRange(key) ? TransactionalSortedMap.this.remove((K) key) : null;
+        }
+
+        @Override
+        public void clear() {
+            List<K> keys = new ArrayList<K>(this.keySet());
+            for (K key : keys) {
+                TransactionalSortedMap.this.remove(key);
+            }
+        }
+
+        @Override
+        public K firstKey() {
+            return key(higherEntry(this.range.lower, this.range.lowerInclusive, this.range.upper,
+                    this.range.upperInclusive));
+        }
+
+        @Override
+        public K lastKey() {
+            return key(lowerEntry(this.range.upper, this.range.upperInclusive, this.range.lower,
+                    this.range.lowerInclusive));
+        }
+
+        @Override
+        public SortedMap<K, V> subMap(K fromKey, K toKey) {
+            Utils.checkNull("From key", fromKey);
+            Utils.checkNull("To key", toKey);
+            return this.narrow(new KeyRange<K>(fromKey, true, toKey, false));
+        }
+
+        @Override
+        public SortedMap<K, V> headMap(K toKey) {
+            Utils.checkNull("To key", toKey);
+            return this.narrow(new KeyRange<K>(null, false, toKey, false));
+        }
+
+        @Override
+        public SortedMap<K, V> tailMap(K fromKey) {
+            Utils.checkNull("From key", fromKey);
+            return this.narrow(new KeyRange<K>(fromKey, true, null, false));
+        }
+
+        /**
+         * Creates a new view within the intersection of this range and the given one.
+         */
+        private SortedMap<K, V> narrow(KeyRange<K> subRange) {
+            return new RangeView(this.range.intersect(subRange, this.comparator()));
+        }
+
+        /**
+         * Checks if the key is within the range of this view.
+         */
+        @SuppressWarnings("unchecked")
+        private boolean inRange(Object key) {
+            Utils.checkNull("Key", key);
+            return this.range.contains((K) key, this.comparator());
+        }
+    }
+
+    /**
+     * Ordered iterator over the local entries of a range. It merges the source entries (skipping the deleted ones) with
+     * the pending modifications and looks one entry ahead. The range of keys up to the look-ahead entry is logged as
+     * accessed, once the iterator is exhausted the whole range is logged.
+     * 
+     * @author Ivan Koblik
+     */
+    private class RangeIterator implements Iterator<Entry<K, V>> {
+        /**
+         * The iterated range.
+         */
+        private final KeyRange<K> range;
+
+        /**
+         * Iterator over the source entries in the range.
+         */
+        private final Iterator<Entry<K, V>> sourceIterator;
+
+        /**
+         * Iterator over the pending modifications in the range.
+         */
+        private final Iterator<Entry<K, V>> pendingIterator;
+
+        /**
+         * The index of the range logged by this iterator in the list of accessed ranges.
+         */
+        private final int logIndex;
+
+        private Entry<K, V> nextSource;
+        private Entry<K, V> nextPending;
+        private Entry<K, V> next;
+
+        RangeIterator(KeyRange<K> range) {
+            this.range = range;
+            this.sourceIterator = cleared ? Collections.<Entry<K, V>> emptyIterator() : range.iterator(sourceMap);
+            this.pendingIterator = range.subMap(pendingModifications).entrySet().iterator();
+            this.logIndex = markAccessed(range);
+            this.nextSource = this.advanceSource();
+            this.nextPending = this.pendingIterator.hasNext() ? this.pendingIterator.next() : null;
+            this.advance();
+        }
+
+        @Override
+        public boolean hasNext() {
+            return null != this.next;
+        }
+
+        @Override
+        public Entry<K, V> next() {
+            if (null == this.next) {
+                throw new NoSuchElementException();
+            }
+            Entry<K, V> result = this.next;
+            this.advance();
+            return result;
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+
+        /**
+         * Moves the look-ahead entry and logs the visited range.
+         */
+        private void advance() {
+            if (null == this.nextPending && null == this.nextSource) {
+                this.next = null;
+            } else if (null == this.nextSource) {
+                this.next = this.advancePending();
+            } else if (null == this.nextPending) {
+                this.next = this.nextSource;
+                this.nextSource = this.advanceSource();
+            } else {
+                int c = comparator().compare(this.nextPending.getKey(), this.nextSource.getKey());
+                if (c <= 0) {
+                    if (c == 0) {
+                        // Modified source entry.
+                        this.nextSource = this.advanceSource();
+                    }
+                    this.next = this.advancePending();
+                } else {
+                    this.next = this.nextSource;
+                    this.nextSource = this.advanceSource();
+                }
+            }
+            if (this.logIndex >= 0) {
+                KeyRange<K> visited = this.range;
+                if (null != this.next) {
+                    visited = new KeyRange<K>(this.range.lower, this.range.lowerInclusive, this.next.getKey(), true);
+                }
+                accessedRanges.set(this.logIndex, visited);
+            }
+        }
+
+        /**
+         * Returns the current pending entry and moves to the next one.
+         */
+        private Entry<K, V> advancePending() {
+            Entry<K, V> result = new SimpleImmutableEntry<K, V>(this.nextPending);
+            this.nextPending = this.pendingIterator.hasNext() ? this.pendingIterator.next() : null;
+            return result;
+        }
+
+        /**
+         * Returns the next source entry that has not been locally deleted.
+         */
+        private Entry<K, V> advanceSource() {
+            while (this.sourceIterator.hasNext()) {
+                Entry<K, V> entry = this.sourceIterator.next();
+                if (!pendingDeletions.contains(entry.getKey())) {
+                    return entry;
+                }
+            }
+            return null;
+        }
+    }
+}
@@ -0,0 +1,246 @@
+/*
+ * Entwined STM
+ * 
+ * (c) Copyright 2013 CERN. This software is distributed under the terms of the Apache License Version 2.0, copied
+ * verbatim in the file "COPYING". In applying this licence, CERN does not waive the privileges and immunities granted
+ * to it by virtue of its status as an Intergovernmental Organization or submit itself to any jurisdiction.
+ */
+package cern.entwined;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Transactional work queue split into a number of independent lanes, each of them a {@link TransactionalQueue}.
+ * Producers append elements to the lanes either in turns or by the hash of a key, consumers poll their own lane first
+ * and steal from the other lanes when it is empty. Polling conflicts only with the concurrent polls of the same lane,
+ * so as long as every consumer has a lane of its own and the lanes are not empty the consumers don't conflict.
+ * <p>
+ * The elements of a lane are polled in the order they were offered, elements offered with equal keys go to the same
+ * lane and are therefore polled in order. Checking a lane that is empty doesn't conflict with concurrent offers to
+ * it, just like for {@link TransactionalQueue}.
+ * <p>
+ * The counter choosing the lane of the next element offered in turns is shared by all the copies of the queue and is
+ * not transactional, elements offered by the rolled back transactions still advance it.
+ * 
+ * @param <E> The element type.
+ * @author Ivan Koblik
+ */
+public class TransactionalWorkQueue<E> extends SemiPersistent<TransactionalWorkQueue<E>> {
+
+    /**
+     * The lanes.
+     */
+    private final List<TransactionalQueue<E>> lanes;
+
+    /**
+     * The number of elements offered in turns so far, shared by all the copies.
+     */
+    private final AtomicInteger turn;
+
+    /**
+     * Creates an empty {@link TransactionalWorkQueue}.
+     * 
+     * @param laneCount The number of lanes, must be positive.
+     */
+    public TransactionalWorkQueue(int laneCount) {
+        if (laneCount <= 0) {
+            throw new IllegalArgumentException("Number of lanes must be positive, got [" + laneCount + "]");
+        }
+        this.lanes = new ArrayList<TransactionalQueue<E>>(laneCount);
+        for (int i = 0; i < laneCount; i++) {
+            this.lanes.add(new TransactionalQueue<E>());
+        }
+        this.turn = new AtomicInteger();
+    }
+
+    /**
+     * Creates a {@link TransactionalWorkQueue} with the given lanes.
+     * 
+     * @param lanes The lanes.
+     * @param turn The shared counter of the elements offered in turns.
+     */
+    private TransactionalWorkQueue(List<TransactionalQueue<E>> lanes, AtomicInteger turn) {
+        this.lanes = lanes;
+        this.turn = turn;
+    }
+
+    /**
+     * Returns the number of lanes.
+     * 
+     * @return The number of lanes.
+     */
+    public int laneCount() {
+        return this.lanes.size();
+    }
+
+    /**
+     * Appends the element to the next lane in turn.
+     * 
+     * @param element The element, must not be <code>null</code>.
+     */
+    public void offer(E element) {
+        int lane = (this.turn.getAndIncrement() & Integer.MAX_VALUE) % this.lanes.size();
+        this.lanes.get(lane).offer(element);
+    }
+
+    /**
+     * Appends the element to the lane chosen by the hash of the key, all the elements offered with equal keys are
+     * polled in the order they were offered.
+     * 
+     * @param key The key.
+     * @param element The element, must not be <code>null</code>.
+     */
+    public void offer(Object key, E element) {
+        this.lanes.get(this.laneOf(key)).offer(element);
+    }
+
+    /**
+     * Polls an element from the lane of the consumer or, if it is empty, from the next non empty lane.
+     * 
+     * @param consumer The consumer number, its lane is the number modulo the number of lanes.
+     * @return The element or <code>null</code> if all the lanes are empty.
+     */
+    public E poll(int consumer) {
+        int home = this.homeLane(consumer);
+        for (int i = 0; i < this.lanes.size(); i++) {
+            E element = this.lanes.get((home + i) % this.lanes.size()).poll();
+            if (null != element) {
+                return element;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Polls an element only from the lane of the consumer.
+     * 
+     * @param consumer The consumer number, its lane is the number modulo the number of lanes.
+     * @return The element or <code>null</code> if the lane is empty.
+     */
+    public E pollOwnLane(int consumer) {
+        return this.lanes.get(this.homeLane(consumer)).poll();
+    }
+
+    /**
+     * Polls all the elements of the consumer's lane and adds them to the collection.
+     * 
+     * @param consumer The consumer number, its lane is the number modulo the number of lanes.
+     * @param collection The collection to be populated with the elements.
+     */
+    public void drainOwnLaneTo(int consumer, Collection<E> collection) {
+        this.lanes.get(this.homeLane(consumer)).drainTo(collection);
+    }
+
+    /**
+     * Checks if all the lanes are empty, conflicts with the concurrent polls of any lane.
+     * 
+     * @return true if there are no elements.
+     */
+    public boolean isEmpty() {
+        for (TransactionalQueue<E> lane : this.lanes) {
+            if (!lane.isEmpty()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns the total number of elements in the lanes, conflicts with the concurrent polls of any lane.
+     * 
+     * @return The number of elements.
+     */
+    public int size() {
+        int size = 0;
+        for (TransactionalQueue<E> lane : this.lanes) {
+            size += lane.size();
+        }
+        return size;
+    }
+
+    //
+    // Transactional methods
+    //
+
+    @Override
+    protected TransactionalWorkQueue<E> cleanCopy() {
+        List<TransactionalQueue<E>> copies = new ArrayList<TransactionalQueue<E>>(this.lanes.size());
+        for (TransactionalQueue<E> lane : this.lanes) {
+            copies.add(lane.cleanCopy());
+        }
+        return new TransactionalWorkQueue<E>(copies, this.turn);
+    }
+
+    @Override
+    protected TransactionalWorkQueue<E> dirtyCopy() {
+        List<TransactionalQueue<E>> copies = new ArrayList<TransactionalQueue<E>>(this.lanes.size());
+        for (TransactionalQueue<E> lane : this.lanes) {
+            copies.add(lane.dirtyCopy());
+        }
+        return new TransactionalWorkQueue<E>(copies, this.turn);
+    }
+
+    @Override
+    protected void update(TransactionalWorkQueue<E> changes, boolean onlyReadLogs) {
+        Utils.checkNull("Local changes", changes);
+        if (this.lanes.size() != changes.lanes.size()) {
+            throw new IllegalArgumentException("Updates are only possible for queues with the same lanes");
+        }
+        for (int i = 0; i < this.lanes.size(); i++) {
+            this.lanes.get(i).update(changes.lanes.get(i), onlyReadLogs);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * Every lane is committed and checked for conflicts independently of the others.
+     */
+    @Override
+    public TransactionalWorkQueue<E> commit(TransactionalWorkQueue<E> globalState) {
+        Utils.checkNull("Global state", globalState);
+        if (this.lanes.size() != globalState.lanes.size()) {
+            throw new IllegalArgumentException("Global state must have the same lanes");
+        }
+        List<TransactionalQueue<E>> committed = new ArrayList<TransactionalQueue<E>>(this.lanes.size());
+        boolean changed = false;
+        for (int i = 0; i < this.lanes.size(); i++) {
+            TransactionalQueue<E> globalLane = globalState.lanes.get(i);
+            TransactionalQueue<E> lane = this.lanes.get(i).commit(globalLane);
+            changed |= lane != globalLane;
+            committed.add(lane);
+        }
+        return changed ? new TransactionalWorkQueue<E>(committed, this.turn) : globalState;
+    }
+
+    //
+    // Private methods
+    //
+
+    /**
+     * Returns the lane of the consumer.
+     * 
+     * @param consumer The consumer number.
+     * @return The lane index.
+     */
+    private int homeLane(int consumer) {
+        return (consumer & Integer.MAX_VALUE) % this.lanes.size();
+    }
+
+    /**
+     * Returns the lane of the key.
+     * 
+     * @param key The key.
+     * @return The lane index.
+     */
+    private int laneOf(Object key) {
+        int hash = null == key ? 0 : key.hashCode();
+        // Spreading the higher bits, as in HashMap
+        hash ^= (hash >>> 20) ^ (hash >>> 12);
+        hash ^= (hash >>> 7) ^ (hash >>> 4);
+        return (hash & Integer.MAX_VALUE) % this.lanes.size();
+    }
+}
@@ -0,0 +1,38 @@
+/*
+ * Entwined STM
+ * 
+ * (c) Copyright 2013 CERN. This software is distributed under the terms of the Apache License Version 2.0, copied
+ * verbatim in the file "COPYING". In applying this licence, CERN does not waive the privileges and immunities granted
+ * to it by virtue of its status as an Intergovernmental Organization or submit itself to any jurisdiction.
+ */
+package cern.entwined;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Serializes keys and values of an {@link OffHeapTransactionalMap}. Implementations must be thread safe, the same value
+ * must always be decoded to an equal value. Serialized keys are compared byte by byte, so a codec of keys must also
+ * encode equal keys to equal bytes.
+ * 
+ * @param <V> The value type.
+ * @author Ivan Koblik
+ */
+public interface ValueCodec<V> {
+
+    /**
+     * Serializes the value.
+     * 
+     * @param value The value, never null.
+     * @return The serialized value, the array is not retained.
+     */
+    public byte[] encode(V value);
+
+    /**
+     * Deserializes the value.
+     * 
+     * @param bytes The read only buffer positioned at the first byte of the value, the number of remaining bytes is
+     *            equal to the length of the serialized value.
+     * @return The value.
+     */
+    public V decode(ByteBuffer bytes);
+}
@@ -6,11 +6,13 @@
             TransactionalMap
             TransactionalMultimap
             TransactionalQueue
+            TransactionalSortedMap
             TransactionalRef]))
 
 ;;;; Construction helpers
 
 (defn create-map [] (TransactionalMap.))
+(defn create-sorted-map [] (TransactionalSortedMap.))
 (defn create-multimap [] (TransactionalMultimap.))
 (defn create-queue [] (TransactionalQueue.))
 (defn create-ref [] (TransactionalRef.))
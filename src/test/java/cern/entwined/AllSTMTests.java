@@ -29,7 +29,12 @@ import cern.entwined.exception.NoTransactionExceptionTest;
         SnapshotTest.class, CompositeCollectionTest.class, MemoryExceptionTest.class, ConflictExceptionTest.class,
         NoTransactionExceptionTest.class, InvocationExceptionTest.class, GlobalReferenceTest.class,
         BaseSnapshotTest.class, STMUtilsTest.class, TransactionAdapterTest.class, TransactionalQueueTest.class,
-        TransactionalMultimapTest.class, TransactionClosureTest.class, UtilsTest.class })
+        TransactionalMultimapTest.class, TransactionClosureTest.class, UtilsTest.class, PersistentSortedMapTest.class,
+        TransactionalSortedMapTest.class, LongObjectHashMapTest.class, TransactionalLongObjectMapTest.class,
+        TransactionalIntObjectMapTest.class, OffHeapTransactionalMapTest.class, TransactionalCacheTest.class,
+        TransactionalBoundedCacheTest.class, SmallMapTest.class,
+        PersistentVectorTest.class, TransactionalWorkQueueTest.class, TransactionalPriorityQueueTest.class,
+        TransactionalDequeTest.class, PersistentHashSetTest.class, OffHeapIndexTest.class, OffHeapStoreTest.class })
 public class AllSTMTests {
 
     /**
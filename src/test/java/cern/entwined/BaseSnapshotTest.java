@@ -58,13 +58,13 @@ public class BaseSnapshotTest extends SnapshotAbstractTest {
     @Test
     public void testBaseSnapshotVTransactionalMapOfLongObject() {
         testSnapshot = new TestSnapshot();
-        transactionalMap = new TransactionalMap<Long, Object>();
+        transactionalMap = new TransactionalLongObjectMap<Object>();
         new BaseSnapshot<TestSnapshot>(0l, testSnapshot, transactionalMap);
     }
 
     @Test(expected = IllegalArgumentException.class)
     public void testBaseSnapshotVTransactionalMapOfLongObject_failNullSnapshot() {
-        transactionalMap = new TransactionalMap<Long, Object>();
+        transactionalMap = new TransactionalLongObjectMap<Object>();
         new BaseSnapshot<TestSnapshot>(0l, null, transactionalMap);
     }
 
@@ -84,7 +84,7 @@ public class BaseSnapshotTest extends SnapshotAbstractTest {
     @Test
     public void testGetGlobalMap_argumentMap() {
         testSnapshot = new TestSnapshot();
-        transactionalMap = new TransactionalMap<Long, Object>();
+        transactionalMap = new TransactionalLongObjectMap<Object>();
         baseSnapshot = new BaseSnapshot<TestSnapshot>(0l, testSnapshot, transactionalMap);
         assertSame("Passed transactional map", transactionalMap, baseSnapshot.getGlobalMap());
     }
@@ -106,7 +106,7 @@ public class BaseSnapshotTest extends SnapshotAbstractTest {
     @Test
     public void testCleanCopy_delegatesForEveryField() {
         testSnapshot = new TestSnapshot(0, 0, Collections.EMPTY_MAP);
-        transactionalMap = new TransactionalMap<Long, Object>(testMap);
+        transactionalMap = new TransactionalLongObjectMap<Object>(testMap);
         baseSnapshot = new BaseSnapshot<TestSnapshot>(0l, testSnapshot, transactionalMap);
 
         baseSnapshot.getClientData().getRef1().assoc(10);
@@ -122,7 +122,7 @@ public class BaseSnapshotTest extends SnapshotAbstractTest {
     @Test
     public void testCleanCopy_doesntShareSameCollections() {
         testSnapshot = new TestSnapshot(0, 0, Collections.EMPTY_MAP);
-        transactionalMap = new TransactionalMap<Long, Object>(testMap);
+        transactionalMap = new TransactionalLongObjectMap<Object>(testMap);
         baseSnapshot = new BaseSnapshot<TestSnapshot>(0l, testSnapshot, transactionalMap);
         assertNotSame(baseSnapshot.getClientData(), baseSnapshot.cleanCopy().getClientData());
         assertNotSame(baseSnapshot.getGlobalMap(), baseSnapshot.cleanCopy().getGlobalMap());
@@ -131,7 +131,7 @@ public class BaseSnapshotTest extends SnapshotAbstractTest {
     @Test
     public void testDirtyCopy_delegatesForEveryField() {
         testSnapshot = new TestSnapshot(0, 0, Collections.EMPTY_MAP);
-        transactionalMap = new TransactionalMap<Long, Object>(testMap);
+        transactionalMap = new TransactionalLongObjectMap<Object>(testMap);
         baseSnapshot = new BaseSnapshot<TestSnapshot>(0l, testSnapshot, transactionalMap);
 
         baseSnapshot.getClientData().getRef1().assoc(10);
@@ -147,7 +147,7 @@ public class BaseSnapshotTest extends SnapshotAbstractTest {
     @Test
     public void testDirtyCopy_doesntShareSameCollections() {
         testSnapshot = new TestSnapshot(0, 0, Collections.EMPTY_MAP);
-        transactionalMap = new TransactionalMap<Long, Object>(testMap);
+        transactionalMap = new TransactionalLongObjectMap<Object>(testMap);
         baseSnapshot = new BaseSnapshot<TestSnapshot>(0l, testSnapshot, transactionalMap);
         assertNotSame(baseSnapshot.getClientData(), baseSnapshot.dirtyCopy().getClientData());
         assertNotSame(baseSnapshot.getGlobalMap(), baseSnapshot.dirtyCopy().getGlobalMap());
@@ -156,7 +156,7 @@ public class BaseSnapshotTest extends SnapshotAbstractTest {
     // ===================== Tests update() =====================
 
     private TestSnapshot testSnapshot;
-    private TransactionalMap<Long, Object> transactionalMap;
+    private TransactionalLongObjectMap<Object> transactionalMap;
 
     @Before
     public void cleanForUpdate() {
@@ -166,7 +166,7 @@ public class BaseSnapshotTest extends SnapshotAbstractTest {
 
     private void prepareSUT() {
         testSnapshot = new TestSnapshot(0, 0, Collections.EMPTY_MAP);
-        transactionalMap = new TransactionalMap<Long, Object>(testMap);
+        transactionalMap = new TransactionalLongObjectMap<Object>(testMap);
         baseSnapshot = new BaseSnapshot<TestSnapshot>(0l, testSnapshot, transactionalMap);
     }
 
@@ -191,7 +191,7 @@ public class BaseSnapshotTest extends SnapshotAbstractTest {
      */
     private BaseSnapshot<TestSnapshot> simulateConflict(boolean clientSnapshot) {
         TestSnapshot conflictingSnapshot = new TestSnapshot(1, 0, Collections.EMPTY_MAP);
-        TransactionalMap<Long, Object> conflictingMap = new TransactionalMap<Long, Object>();
+        TransactionalLongObjectMap<Object> conflictingMap = new TransactionalLongObjectMap<Object>();
         if (clientSnapshot) {
             return new BaseSnapshot<TestSnapshot>(0l, conflictingSnapshot, transactionalMap.cleanCopy());
         } else {
@@ -243,7 +243,7 @@ public class BaseSnapshotTest extends SnapshotAbstractTest {
         prepareSUTForUpdateTest(true);
 
         testSnapshot = new TestSnapshot(0, 0, Collections.EMPTY_MAP);
-        transactionalMap = new TransactionalMap<Long, Object>(testMap);
+        transactionalMap = new TransactionalLongObjectMap<Object>(testMap);
 
         BaseSnapshot<TestSnapshot> globalState = new BaseSnapshot<TestSnapshot>(0l, testSnapshot, transactionalMap);
 
@@ -257,7 +257,7 @@ public class BaseSnapshotTest extends SnapshotAbstractTest {
         prepareSUTForUpdateTest(true);
 
         testSnapshot = new TestSnapshot(0, 0, Collections.EMPTY_MAP);
-        transactionalMap = new TransactionalMap<Long, Object>(testMap);
+        transactionalMap = new TransactionalLongObjectMap<Object>(testMap);
 
         BaseSnapshot<TestSnapshot> globalState = new BaseSnapshot<TestSnapshot>(0l, testSnapshot, transactionalMap);
 
@@ -0,0 +1,152 @@
+/*
+ * Entwined STM
+ * 
+ * (c) Copyright 2013 CERN. This software is distributed under the terms of the Apache License Version 2.0, copied
+ * verbatim in the file "COPYING". In applying this licence, CERN does not waive the privileges and immunities granted
+ * to it by virtue of its status as an Intergovernmental Organization or submit itself to any jurisdiction.
+ */
+package cern.entwined;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Random;
+import java.util.Set;
+
+import org.junit.Test;
+
+/**
+ * Unit tests for {@link LongObjectHashMap}.
+ * 
+ * @author Ivan Koblik
+ */
+public class LongObjectHashMapTest {
+
+    @Test
+    public void testPut_Get() {
+        LongObjectHashMap<String> map = new LongObjectHashMap<String>();
+        assertNull(map.put(1L, "1"));
+        assertNull(map.put(-1L, "-1"));
+        assertNull(map.put(0L, "0"));
+        assertEquals("1", map.put(1L, "one"));
+        assertEquals(3, map.size());
+        assertEquals("one", map.get(1L));
+        assertEquals("-1", map.get(-1L));
+        assertEquals("0", map.get(0L));
+        assertNull(map.get(2L));
+    }
+
+    @Test
+    public void testPut_nullValue() {
+        LongObjectHashMap<String> map = new LongObjectHashMap<String>();
+        map.put(0L, null);
+        assertTrue(map.containsKey(0L));
+        assertNull(map.get(0L));
+        assertEquals(1, map.size());
+        assertNull(map.remove(0L));
+        assertFalse(map.containsKey(0L));
+        assertTrue(map.isEmpty());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testLongObjectHashMap_failNegativeSize() {
+        new LongObjectHashMap<String>(-1);
+    }
+
+    @Test
+    public void testCopy_isIndependent() {
+        LongObjectHashMap<String> map = new LongObjectHashMap<String>();
+        map.put(1L, "1");
+        LongObjectHashMap<String> copy = new LongObjectHashMap<String>(map);
+        copy.put(2L, "2");
+        copy.remove(1L);
+        assertEquals("1", map.get(1L));
+        assertFalse(map.containsKey(2L));
+        assertEquals(1, copy.size());
+    }
+
+    @Test
+    public void testEquals() {
+        LongObjectHashMap<String> map1 = new LongObjectHashMap<String>();
+        LongObjectHashMap<String> map2 = new LongObjectHashMap<String>(100);
+        for (long i = 0; i < 20; i++) {
+            map1.put(i, Long.toString(i));
+            map2.put(19 - i, Long.toString(19 - i));
+        }
+        assertEquals(map1, map2);
+        assertEquals(map1.hashCode(), map2.hashCode());
+        map2.put(3L, null);
+        assertFalse(map1.equals(map2));
+    }
+
+    @Test
+    public void testCursor() {
+        LongObjectHashMap<String> map = new LongObjectHashMap<String>();
+        map.put(5L, "5");
+        map.put(7L, "7");
+        Map<Long, String> visited = new HashMap<Long, String>();
+        for (LongObjectHashMap<String>.Cursor cursor = map.cursor(); cursor.next();) {
+            visited.put(cursor.key(), cursor.value());
+        }
+        assertEquals(2, visited.size());
+        assertEquals("5", visited.get(5L));
+        assertEquals("7", visited.get(7L));
+        assertEquals(2, map.keys().length);
+    }
+
+    @Test(expected = NoSuchElementException.class)
+    public void testCursor_failKeyBeforeNext() {
+        new LongObjectHashMap<String>().cursor().key();
+    }
+
+    @Test
+    public void testRandomOperations_consistentWithHashMap() {
+        Random random = new Random(42);
+        Map<Long, Integer> expected = new HashMap<Long, Integer>();
+        LongObjectHashMap<Integer> map = new LongObjectHashMap<Integer>();
+        for (int i = 0; i < 20000; i++) {
+            // Keys are multiples of the table size to provoke long probe chains
+            long key = random.nextInt(300) * 1024L;
+            if (random.nextInt(3) == 0) {
+                assertEquals(expected.remove(key), map.remove(key));
+            } else {
+                assertEquals(expected.put(key, i), map.put(key, i));
+            }
+            assertEquals(expected.size(), map.size());
+        }
+        for (long key = 0; key < 300 * 1024L; key += 1024) {
+            assertEquals(expected.containsKey(key), map.containsKey(key));
+            assertEquals(expected.get(key), map.get(key));
+        }
+    }
+
+    @Test
+    public void testLongHashSet() {
+        Random random = new Random(42);
+        Set<Long> expected = new HashSet<Long>();
+        LongHashSet set = new LongHashSet();
+        for (int i = 0; i < 20000; i++) {
+            long element = random.nextInt(300) - 150;
+            if (random.nextInt(3) == 0) {
+                assertEquals(expected.remove(element), set.remove(element));
+            } else {
+                assertEquals(expected.add(element), set.add(element));
+            }
+            assertEquals(expected.size(), set.size());
+        }
+        for (long element = -150; element < 150; element++) {
+            assertEquals(expected.contains(element), set.contains(element));
+        }
+        LongHashSet copy = new LongHashSet();
+        copy.addAll(set);
+        assertEquals(expected.size(), copy.toArray().length);
+        copy.clear();
+        assertTrue(copy.isEmpty());
+    }
+}
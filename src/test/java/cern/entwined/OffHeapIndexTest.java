@@ -0,0 +1,158 @@
+/*
+ * Entwined STM
+ * 
+ * (c) Copyright 2013 CERN. This software is distributed under the terms of the Apache License Version 2.0, copied
+ * verbatim in the file "COPYING". In applying this licence, CERN does not waive the privileges and immunities granted
+ * to it by virtue of its status as an Intergovernmental Organization or submit itself to any jurisdiction.
+ */
+package cern.entwined;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.Test;
+
+import cern.entwined.OffHeapStore.Handle;
+
+/**
+ * Unit tests for {@link OffHeapIndex}.
+ * 
+ * @author Ivan Koblik
+ */
+public class OffHeapIndexTest {
+
+    @Test
+    public void testPut_Find_Remove() {
+        OffHeapStore store = new OffHeapStore(64);
+        OffHeapIndex index = new OffHeapIndex(store, 0);
+        long one = store(store, 1, "one");
+        long two = store(store, 2, "two");
+        index.put(key(1), one);
+        index.put(key(2), two);
+        assertEquals(2, index.size());
+        assertEquals(one, index.find(key(1)));
+        assertEquals(0, index.find(key(3)));
+
+        long uno = store(store, 1, "uno");
+        index.put(key(1), uno);
+        assertEquals(2, index.size());
+        assertEquals(uno, index.find(key(1)));
+        assertEquals(store.id(uno), index.idOf(key(1)));
+
+        assertTrue(index.remove(key(1)));
+        assertFalse(index.remove(key(1)));
+        assertEquals(1, index.size());
+        assertEquals(0, index.idOf(key(1)));
+        assertEquals(two, index.find(key(2)));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testPut_failZeroAddress() {
+        new OffHeapIndex(new OffHeapStore(64), 0).put(key(1), 0);
+    }
+
+    @Test
+    public void testRandomOperations() {
+        OffHeapStore store = new OffHeapStore(1 << 16);
+        OffHeapIndex index = new OffHeapIndex(store, 0);
+        Map<Integer, Long> expected = new HashMap<Integer, Long>();
+        Random random = new Random(42);
+        for (int i = 0; i < 20000; i++) {
+            int key = random.nextInt(3000);
+            if (random.nextBoolean()) {
+                long address = store(store, key, "v" + i);
+                index.put(key(key), address);
+                expected.put(key, address);
+            } else {
+                assertEquals(null != expected.remove(key), index.remove(key(key)));
+            }
+        }
+        assertEquals(expected.size(), index.size());
+        for (int key = 0; key < 3000; key++) {
+            Long address = expected.get(key);
+            assertEquals(null == address ? 0 : address, index.find(key(key)));
+        }
+    }
+
+    @Test
+    public void testCopy_sharesPagesUntilModified() {
+        OffHeapStore store = new OffHeapStore(1 << 16);
+        OffHeapIndex original = new OffHeapIndex(store, 0);
+        for (int i = 0; i < 3000; i++) {
+            original.put(key(i), store(store, i, "v" + i));
+        }
+        OffHeapIndex copy = new OffHeapIndex(original);
+        for (int i = 0; i < 3000; i += 3) {
+            copy.remove(key(i));
+        }
+        copy.put(key(1), store(store, 1, "one"));
+        copy.put(key(5000), store(store, 5000, "five thousand"));
+
+        assertEquals(3000, original.size());
+        for (int i = 0; i < 3000; i++) {
+            assertEquals("v" + i, value(store, original.find(key(i))));
+        }
+        assertEquals(0, original.find(key(5000)));
+        assertEquals(2001, copy.size());
+        assertEquals("one", value(store, copy.find(key(1))));
+        assertEquals(0, copy.find(key(3)));
+        assertEquals("v4", value(store, copy.find(key(4))));
+        assertFalse(original.sameEntries(copy));
+    }
+
+    @Test
+    public void testRelocate_keepsIdentifiers() {
+        OffHeapStore store = new OffHeapStore(64);
+        OffHeapIndex index = new OffHeapIndex(store, 0);
+        for (int i = 0; i < 100; i++) {
+            index.put(key(i), store(store, i, "x" + i));
+            index.put(key(i), store(store, i, "v" + i));
+        }
+        OffHeapStore target = new OffHeapStore(64);
+        OffHeapIndex relocated = index.relocate(target);
+
+        assertTrue("Same keys and identifiers", index.sameEntries(relocated));
+        assertEquals(store.allocatedBytes() / 2, target.allocatedBytes());
+        for (int i = 0; i < 100; i++) {
+            assertEquals("v" + i, value(target, relocated.find(key(i))));
+        }
+    }
+
+    @Test
+    public void testCursor() {
+        OffHeapStore store = new OffHeapStore(64);
+        OffHeapIndex index = new OffHeapIndex(store, 0);
+        for (int i = 0; i < 10; i++) {
+            index.put(key(i), store(store, i, "v" + i));
+        }
+        Map<Integer, String> visited = new HashMap<Integer, String>();
+        for (OffHeapIndex.Cursor cursor = index.cursor(); cursor.next();) {
+            visited.put(ByteBuffer.wrap(cursor.key()).getInt(), value(store, cursor.address()));
+        }
+        assertEquals(10, visited.size());
+        assertEquals("v7", visited.get(7));
+    }
+
+    // ==================== Test fixtures ====================
+
+    private static byte[] key(int key) {
+        return ByteBuffer.allocate(4).putInt(key).array();
+    }
+
+    private static long store(OffHeapStore store, int key, String value) {
+        return store.moveIn(key(key), OffHeapStore.stage(value.getBytes())).address();
+    }
+
+    private static String value(OffHeapStore store, long address) {
+        Handle handle = store.handle(address);
+        byte[] bytes = new byte[handle.bytes().remaining()];
+        handle.bytes().get(bytes);
+        return new String(bytes);
+    }
+}
@@ -0,0 +1,75 @@
+/*
+ * Entwined STM
+ * 
+ * (c) Copyright 2013 CERN. This software is distributed under the terms of the Apache License Version 2.0, copied
+ * verbatim in the file "COPYING". In applying this licence, CERN does not waive the privileges and immunities granted
+ * to it by virtue of its status as an Intergovernmental Organization or submit itself to any jurisdiction.
+ */
+package cern.entwined;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+
+import org.junit.Test;
+
+import cern.entwined.OffHeapStore.Handle;
+
+/**
+ * Unit tests for {@link OffHeapStore}.
+ * 
+ * @author Ivan Koblik
+ */
+public class OffHeapStoreTest {
+
+    @Test
+    public void testMoveIn_returnsNewHandle() {
+        OffHeapStore store = new OffHeapStore(64);
+        Handle staged = OffHeapStore.stage(new byte[] { 1, 2, 3 });
+        Handle stored = store.moveIn(new byte[] { 9 }, staged);
+
+        assertNotSame(staged, stored);
+        assertEquals("Copies are equal", staged, stored);
+        assertEquals("Staged handle is not modified", 0, staged.address());
+        assertFalse(staged.bytes().isDirect());
+        assertTrue(stored.bytes().isDirect());
+        assertEquals(ByteBuffer.wrap(new byte[] { 1, 2, 3 }), stored.bytes());
+        assertEquals(OffHeapStore.HEADER_SIZE + 4, store.allocatedBytes());
+    }
+
+    @Test
+    public void testHandle_readsRecord() {
+        OffHeapStore store = new OffHeapStore(16);
+        long first = store.moveIn(new byte[] { 1 }, OffHeapStore.stage(new byte[] { 5, 6 })).address();
+        Handle stored = store.moveIn(new byte[] { 2, 3 }, OffHeapStore.stage(null));
+        long second = stored.address();
+
+        assertEquals(ByteBuffer.wrap(new byte[] { 5, 6 }), store.handle(first).bytes());
+        assertTrue(store.keyEquals(first, new byte[] { 1 }));
+        assertFalse(store.keyEquals(first, new byte[] { 2 }));
+        assertEquals(ByteBuffer.wrap(new byte[] { 2, 3 }), store.key(second));
+        assertEquals(stored.id(), store.id(second));
+        assertTrue(store.handle(second).isNull());
+        assertNull(store.handle(second).bytes());
+    }
+
+    @Test
+    public void testNeedsCompaction() {
+        OffHeapStore store = new OffHeapStore(32);
+        store.moveIn(new byte[4], OffHeapStore.stage(new byte[8]));
+        assertFalse(store.needsCompaction());
+        store.moveIn(new byte[4], OffHeapStore.stage(new byte[8]));
+        assertTrue(store.needsCompaction());
+        store.resetCompactionLimit();
+        assertFalse(store.needsCompaction());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testOffHeapStore_failNonPositiveArenaSize() {
+        new OffHeapStore(0);
+    }
+}
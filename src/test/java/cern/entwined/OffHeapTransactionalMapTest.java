@@ -0,0 +1,405 @@
+/*
+ * Entwined STM
+ * 
+ * (c) Copyright 2013 CERN. This software is distributed under the terms of the Apache License Version 2.0, copied
+ * verbatim in the file "COPYING". In applying this licence, CERN does not waive the privileges and immunities granted
+ * to it by virtue of its status as an Intergovernmental Organization or submit itself to any jurisdiction.
+ */
+package cern.entwined;
+
+import static cern.entwined.test.TestUtils.newList;
+import static cern.entwined.test.TestUtils.newMap;
+import static cern.entwined.test.TestUtils.newSet;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+
+import org.junit.Test;
+
+import cern.entwined.exception.ConflictException;
+
+/**
+ * Unit tests for {@link OffHeapTransactionalMap}.
+ * 
+ * @author Ivan Koblik
+ */
+public class OffHeapTransactionalMapTest {
+
+    @Test
+    public void testOffHeapTransactionalMapMap_copiesSource() {
+        Map<Integer, String> sourceMap = new HashMap<Integer, String>(newMap(newList(1, 2), newList("one", "two")));
+        OffHeapTransactionalMap<Integer, String> map = new OffHeapTransactionalMap<Integer, String>(sourceMap,
+                KEY_CODEC, CODEC);
+        sourceMap.clear();
+        assertEquals("one", map.get(1));
+        assertEquals("two", map.get(2));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testOffHeapTransactionalMap_failNullCodec() {
+        new OffHeapTransactionalMap<Integer, String>(KEY_CODEC, null);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testOffHeapTransactionalMap_failNullKeyCodec() {
+        new OffHeapTransactionalMap<Integer, String>(null, CODEC);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testOffHeapTransactionalMap_failNonPositiveArenaSize() {
+        new OffHeapTransactionalMap<Integer, String>(new HashMap<Integer, String>(), KEY_CODEC, CODEC, 0);
+    }
+
+    // ==================== Local operation tests ====================
+
+    @Test
+    public void testPut_Get_Remove() {
+        OffHeapTransactionalMap<Integer, String> map = defaultFixture();
+        assertEquals("one", map.put(1, "uno"));
+        assertEquals("uno", map.get(1));
+        assertNull(map.put(4, "four"));
+        assertTrue(map.containsKey(4));
+        assertEquals("two", map.remove(2));
+        assertFalse(map.containsKey(2));
+        assertNull(map.put(5, null));
+        assertTrue(map.containsKey(5));
+        assertNull(map.get(5));
+        assertEquals(4, map.size());
+    }
+
+    @Test
+    public void testViews() {
+        OffHeapTransactionalMap<Integer, String> map = defaultFixture();
+        map.put(1, "uno");
+        map.remove(3);
+        assertEquals(newSet(1, 2), map.keySet());
+        assertEquals(newSet("uno", "two"), new HashSet<String>(map.values()));
+        assertEquals(newMap(newList(1, 2), newList("uno", "two")), toMap(map));
+    }
+
+    @Test
+    public void testForEach() {
+        OffHeapTransactionalMap<Integer, String> map = defaultFixture();
+        map.put(4, "four");
+        final Map<Integer, String> visited = new HashMap<Integer, String>();
+        map.forEach(new EntryVisitor<Integer, String>() {
+            @Override
+            public void visit(Integer key, String value) {
+                visited.put(key, value);
+            }
+        });
+        assertEquals(newMap(newList(1, 2, 3, 4), newList("one", "two", "three", "four")), visited);
+    }
+
+    @Test
+    public void testClear() {
+        OffHeapTransactionalMap<Integer, String> map = defaultFixture();
+        map.clear();
+        assertTrue(map.isEmpty());
+        assertNull(map.get(1));
+    }
+
+    // ==================== Transactional tests ====================
+
+    @Test
+    public void testCommit_appliesChanges() {
+        OffHeapTransactionalMap<Integer, String> map = defaultFixture();
+        OffHeapTransactionalMap<Integer, String> global = map.cleanCopy();
+        map.put(1, "uno");
+        map.remove(2);
+        map.put(4, "four");
+        OffHeapTransactionalMap<Integer, String> committed = map.commit(global);
+        assertEquals(newMap(newList(1, 3, 4), newList("uno", "three", "four")), toMap(committed));
+        assertEquals("Global state untouched", "one", global.get(1));
+    }
+
+    @Test
+    public void testCommit_noChangesReturnsGlobalState() {
+        OffHeapTransactionalMap<Integer, String> map = defaultFixture();
+        OffHeapTransactionalMap<Integer, String> global = map.cleanCopy();
+        map.get(1);
+        assertSame(global, map.commit(global));
+    }
+
+    @Test(expected = ConflictException.class)
+    public void testCommit_failReadConflict() {
+        OffHeapTransactionalMap<Integer, String> map = defaultFixture();
+        OffHeapTransactionalMap<Integer, String> global = concurrentPut(map, 1, "one");
+        map.get(1);
+        map.put(2, "dos");
+        map.commit(global);
+    }
+
+    @Test
+    public void testCommit_noConflictForOtherKeys() {
+        OffHeapTransactionalMap<Integer, String> map = defaultFixture();
+        OffHeapTransactionalMap<Integer, String> global = concurrentPut(map, 1, "uno");
+        map.get(2);
+        map.put(3, "tres");
+        OffHeapTransactionalMap<Integer, String> committed = map.commit(global);
+        assertEquals(newMap(newList(1, 2, 3), newList("uno", "two", "tres")), toMap(committed));
+    }
+
+    @Test
+    public void testCommit_compactionKeepsValuesAndDoesNotConflict() {
+        OffHeapTransactionalMap<Integer, String> global = new OffHeapTransactionalMap<Integer, String>(newMap(
+                newList(1, 2), newList("one", "two")), KEY_CODEC, CODEC, 16);
+        OffHeapTransactionalMap<Integer, String> reader = global.cleanCopy();
+        assertEquals("one", reader.get(1));
+        for (int i = 0; i < 100; i++) {
+            global = concurrentPut(global, 2, "value " + i);
+        }
+        reader.put(3, "three");
+        OffHeapTransactionalMap<Integer, String> committed = reader.commit(global);
+        assertEquals(newMap(newList(1, 2, 3), newList("one", "value 99", "three")), toMap(committed));
+    }
+
+    @Test
+    public void testPut_valuesStoredOnlyOnCommit() {
+        OffHeapTransactionalMap<Integer, String> map = defaultFixture();
+        OffHeapTransactionalMap<Integer, String> global = map.cleanCopy();
+        long storedBytes = global.storedBytes();
+        map.put(4, "four");
+        map.put(1, "uno");
+        map.put(1, "eins");
+        map.put(5, "five");
+        map.remove(5);
+        assertEquals("Uncommitted values are kept on the heap", storedBytes, global.storedBytes());
+        OffHeapTransactionalMap<Integer, String> committed = map.commit(global);
+        assertEquals("Only the live values are stored", storedBytes + recordSize("four") + recordSize("eins"),
+                committed.storedBytes());
+        assertEquals(newMap(newList(1, 2, 3, 4), newList("eins", "two", "three", "four")), toMap(committed));
+    }
+
+    @Test
+    public void testCommit_conflictDoesntStoreValues() {
+        OffHeapTransactionalMap<Integer, String> map = defaultFixture();
+        OffHeapTransactionalMap<Integer, String> global = concurrentPut(map, 1, "uno");
+        long storedBytes = global.storedBytes();
+        map.get(1);
+        map.put(2, "dos");
+        try {
+            map.commit(global);
+            fail("Expected conflict");
+        } catch (ConflictException e) {
+            // Expected
+        }
+        assertEquals(storedBytes, global.storedBytes());
+    }
+
+    @Test
+    public void testCommit_storesNestedTransactionValues() {
+        OffHeapTransactionalMap<Integer, String> map = defaultFixture();
+        OffHeapTransactionalMap<Integer, String> global = map.cleanCopy();
+        long storedBytes = global.storedBytes();
+        OffHeapTransactionalMap<Integer, String> nested = map.dirtyCopy();
+        nested.put(4, "four");
+        map.update(nested, false);
+        OffHeapTransactionalMap<Integer, String> committed = map.commit(global);
+        assertEquals(storedBytes + recordSize("four"), committed.storedBytes());
+        assertEquals("four", committed.get(4));
+    }
+
+    @Test
+    public void testCommit_compactionStoresOnlyLiveValues() {
+        OffHeapTransactionalMap<Integer, String> global = new OffHeapTransactionalMap<Integer, String>(newMap(
+                newList(1), newList("one")), KEY_CODEC, CODEC, 16);
+        for (int i = 0; i < 100; i++) {
+            global = concurrentPut(global, 1, "value " + (i % 10));
+        }
+        assertTrue("Live value and the ones stored since compaction",
+                global.storedBytes() <= 2 * recordSize("value 0"));
+        assertEquals("value 9", global.get(1));
+    }
+
+    @Test
+    public void testUpdate() {
+        OffHeapTransactionalMap<Integer, String> map = defaultFixture();
+        OffHeapTransactionalMap<Integer, String> copy = map.dirtyCopy();
+        copy.put(1, "uno");
+        map.update(copy, true);
+        assertEquals("one", map.get(1));
+        map.update(copy, false);
+        assertEquals("uno", map.get(1));
+    }
+
+    @Test(expected = ConflictException.class)
+    public void testUpdate_copiesReadLog() {
+        OffHeapTransactionalMap<Integer, String> map = defaultFixture();
+        OffHeapTransactionalMap<Integer, String> global = concurrentPut(map, 2, "dos");
+        OffHeapTransactionalMap<Integer, String> copy = map.dirtyCopy();
+        copy.get(2);
+        map.update(copy, true);
+        map.commit(global);
+    }
+
+    @Test
+    public void testMemory_concurrentAppends() {
+        OffHeapTransactionalMap<Integer, String> map = new OffHeapTransactionalMap<Integer, String>(newMap(newList(1),
+                newList("")), KEY_CODEC, CODEC, 32);
+        Memory<OffHeapTransactionalMap<Integer, String>> memory = new Memory<OffHeapTransactionalMap<Integer, String>>(
+                map);
+        for (int i = 0; i < 50; i++) {
+            memory.runTransaction(new TransactionAdapter<OffHeapTransactionalMap<Integer, String>>() {
+                @Override
+                public boolean run(OffHeapTransactionalMap<Integer, String> data) {
+                    data.put(1, data.get(1) + "x");
+                    return true;
+                }
+            });
+        }
+        memory.runTransaction(new TransactionAdapter<OffHeapTransactionalMap<Integer, String>>() {
+            @Override
+            public boolean run(OffHeapTransactionalMap<Integer, String> data) {
+                assertEquals(50, data.get(1).length());
+                return false;
+            }
+        });
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testPut_failNullKey() {
+        defaultFixture().put(null, "null");
+    }
+
+    @Test
+    public void testCommit_clearRemovesCommittedEntries() {
+        OffHeapTransactionalMap<Integer, String> map = defaultFixture();
+        OffHeapTransactionalMap<Integer, String> global = map.cleanCopy();
+        map.clear();
+        map.put(2, "dos");
+        assertEquals(1, map.size());
+        OffHeapTransactionalMap<Integer, String> committed = map.commit(global);
+        assertEquals(newMap(newList(2), newList("dos")), toMap(committed));
+        assertEquals("Snapshot is not changed", "one", global.get(1));
+    }
+
+    @Test(expected = ConflictException.class)
+    public void testCommit_clearConflictsWithChangedCommittedEntry() {
+        OffHeapTransactionalMap<Integer, String> map = defaultFixture();
+        OffHeapTransactionalMap<Integer, String> global = concurrentPut(map, 3, "tres");
+        map.clear();
+        map.commit(global);
+    }
+
+    @Test(expected = ConflictException.class)
+    public void testCommit_sizeConflictsWithConcurrentInsert() {
+        OffHeapTransactionalMap<Integer, String> map = defaultFixture();
+        OffHeapTransactionalMap<Integer, String> global = concurrentPut(map, 4, "four");
+        map.size();
+        map.put(5, "five");
+        map.commit(global);
+    }
+
+    @Test
+    public void testCommit_manyEntriesKeepSnapshots() {
+        OffHeapTransactionalMap<Integer, String> global = new OffHeapTransactionalMap<Integer, String>(KEY_CODEC,
+                CODEC);
+        OffHeapTransactionalMap<Integer, String> writer = global.cleanCopy();
+        for (int i = 0; i < 5000; i++) {
+            writer.put(i, "value " + i);
+        }
+        OffHeapTransactionalMap<Integer, String> filled = writer.commit(global);
+
+        OffHeapTransactionalMap<Integer, String> remover = filled.cleanCopy();
+        for (int i = 0; i < 5000; i += 2) {
+            remover.remove(i);
+        }
+        remover.put(1, "one");
+        OffHeapTransactionalMap<Integer, String> halved = remover.commit(filled);
+
+        OffHeapTransactionalMap<Integer, String> check = filled.cleanCopy();
+        assertEquals(5000, check.size());
+        for (int i = 0; i < 5000; i++) {
+            assertEquals("value " + i, check.get(i));
+        }
+        check = halved.cleanCopy();
+        assertEquals(2500, check.size());
+        for (int i = 0; i < 5000; i++) {
+            assertEquals(0 == i % 2 ? null : 1 == i ? "one" : "value " + i, check.get(i));
+        }
+    }
+
+    @Test
+    public void testCommit_concurrentNewKeySurvivesClear() {
+        OffHeapTransactionalMap<Integer, String> map = defaultFixture();
+        OffHeapTransactionalMap<Integer, String> global = concurrentPut(map, 4, "four");
+        map.clear();
+        OffHeapTransactionalMap<Integer, String> committed = map.commit(global);
+        assertEquals("Only the entries seen by the transaction are removed", newMap(newList(4), newList("four")),
+                toMap(committed));
+    }
+
+    // ==================== Test fixtures ====================
+
+    /**
+     * Encodes strings in UTF-8.
+     */
+    private static final ValueCodec<String> CODEC = new ValueCodec<String>() {
+        private final Charset utf8 = Charset.forName("UTF-8");
+
+        @Override
+        public byte[] encode(String value) {
+            return value.getBytes(utf8);
+        }
+
+        @Override
+        public String decode(ByteBuffer bytes) {
+            return utf8.decode(bytes).toString();
+        }
+    };
+
+    /**
+     * Encodes integers in four bytes.
+     */
+    private static final ValueCodec<Integer> KEY_CODEC = new ValueCodec<Integer>() {
+        @Override
+        public byte[] encode(Integer value) {
+            return ByteBuffer.allocate(4).putInt(value).array();
+        }
+
+        @Override
+        public Integer decode(ByteBuffer bytes) {
+            return bytes.getInt();
+        }
+    };
+
+    /**
+     * Returns the number of bytes taken by a record of an integer key and the given value.
+     */
+    private static long recordSize(String value) {
+        return OffHeapStore.HEADER_SIZE + 4 + CODEC.encode(value).length;
+    }
+
+    private static OffHeapTransactionalMap<Integer, String> defaultFixture() {
+        return new OffHeapTransactionalMap<Integer, String>(newMap(newList(1, 2, 3), newList("one", "two", "three")),
+                KEY_CODEC, CODEC);
+    }
+
+    private static Map<Integer, String> toMap(OffHeapTransactionalMap<Integer, String> map) {
+        Map<Integer, String> result = new HashMap<Integer, String>();
+        for (Map.Entry<Integer, String> entry : map.entrySet()) {
+            result.put(entry.getKey(), entry.getValue());
+        }
+        return result;
+    }
+
+    /**
+     * Simulates a concurrent transaction putting the value to the map.
+     */
+    private static OffHeapTransactionalMap<Integer, String> concurrentPut(OffHeapTransactionalMap<Integer, String> map,
+            Integer key, String value) {
+        OffHeapTransactionalMap<Integer, String> concurrent = map.cleanCopy();
+        concurrent.put(key, value);
+        return concurrent.commit(map.cleanCopy());
+    }
+}
@@ -0,0 +1,165 @@
+/*
+ * Entwined STM
+ * 
+ * (c) Copyright 2013 CERN. This software is distributed under the terms of the Apache License Version 2.0, copied
+ * verbatim in the file "COPYING". In applying this licence, CERN does not waive the privileges and immunities granted
+ * to it by virtue of its status as an Intergovernmental Organization or submit itself to any jurisdiction.
+ */
+package cern.entwined;
+
+import static cern.entwined.test.TestUtils.newList;
+import static cern.entwined.test.TestUtils.newSet;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+
+import org.junit.Test;
+
+/**
+ * Unit tests for {@link PersistentHashSet}.
+ * 
+ * @author Ivan Koblik
+ */
+public class PersistentHashSetTest {
+
+    @Test
+    public void testEmpty() {
+        PersistentHashSet<Integer> set = PersistentHashSet.empty();
+        assertTrue(set.isEmpty());
+        assertEquals(0, set.size());
+        assertFalse(set.iterator().hasNext());
+        assertFalse(set.contains(1));
+    }
+
+    @Test
+    public void testWith_Contains() {
+        PersistentHashSet<Integer> set = PersistentHashSet.<Integer> empty().with(1).with(2).with(3);
+        assertEquals(3, set.size());
+        assertTrue(set.contains(2));
+        assertFalse(set.contains(4));
+        assertEquals(newSet(1, 2, 3), set);
+    }
+
+    @Test
+    public void testWith_presentReturnsSameSet() {
+        PersistentHashSet<Integer> set = PersistentHashSet.<Integer> empty().withAll(newList(1, 2));
+        assertSame(set, set.with(2));
+    }
+
+    @Test
+    public void testWith_doesntChangeOriginal() {
+        PersistentHashSet<Integer> original = PersistentHashSet.<Integer> empty().withAll(newList(1, 2));
+        PersistentHashSet<Integer> changed = original.with(3).without(1);
+        assertEquals(newSet(1, 2), original);
+        assertEquals(newSet(2, 3), changed);
+    }
+
+    @Test
+    public void testWith_null() {
+        PersistentHashSet<Integer> set = PersistentHashSet.<Integer> empty().with(null).with(0);
+        assertEquals(2, set.size());
+        assertTrue(set.contains(null));
+        assertEquals(newSet(null, 0), set);
+        assertEquals(newSet(0), set.without(null));
+    }
+
+    @Test
+    public void testWithout() {
+        PersistentHashSet<Integer> set = PersistentHashSet.<Integer> empty().withAll(newList(1, 2, 3));
+        assertSame(set, set.without(4));
+        assertEquals(newSet(1, 3), set.without(2));
+        assertSame(PersistentHashSet.empty(), set.withoutAll(newList(1, 2, 3)));
+    }
+
+    @Test
+    public void testGet() {
+        Integer element = new Integer(1000);
+        PersistentHashSet<Integer> set = PersistentHashSet.<Integer> empty().with(element).with(2).with(null);
+        assertSame(element, set.get(new Integer(1000)));
+        assertEquals((Integer) 2, set.get(2));
+        assertNull(set.get(3));
+        assertNull(set.get(null));
+    }
+
+    @Test
+    public void testGet_collisions() {
+        Colliding a = new Colliding(1);
+        PersistentHashSet<Object> set = PersistentHashSet.empty().with(a).with(new Colliding(2));
+        assertSame(a, set.get(new Colliding(1)));
+        assertNull(set.get(new Colliding(3)));
+    }
+
+    @Test
+    public void testCollisions() {
+        Colliding a = new Colliding(1);
+        Colliding b = new Colliding(2);
+        Colliding c = new Colliding(3);
+        PersistentHashSet<Object> set = PersistentHashSet.empty().with(a).with(b).with(c).with(17).with(39);
+        assertEquals(5, set.size());
+        assertEquals(newSet(a, b, c, 17, 39), set);
+        assertSame(set, set.with(new Colliding(2)));
+        set = set.without(new Colliding(1));
+        assertEquals(newSet(b, c, 17, 39), set);
+        set = set.without(b).without(17).without(39);
+        assertEquals(newSet(c), set);
+        assertTrue(set.without(c).isEmpty());
+    }
+
+    @Test
+    public void testRandomOperations() {
+        Random random = new Random(42);
+        Set<Integer> expected = new HashSet<Integer>();
+        PersistentHashSet<Integer> set = PersistentHashSet.empty();
+        for (int i = 0; i < 20000; i++) {
+            Integer value = random.nextInt(2000) - 1000;
+            if (random.nextBoolean()) {
+                expected.add(value);
+                set = set.with(value);
+            } else {
+                expected.remove(value);
+                set = set.without(value);
+            }
+            assertEquals(expected.size(), set.size());
+        }
+        assertEquals(expected, set);
+        assertEquals(expected.hashCode(), set.hashCode());
+    }
+
+    @Test(expected = UnsupportedOperationException.class)
+    public void testAdd_unsupported() {
+        PersistentHashSet.<Integer> empty().add(1);
+    }
+
+    @Test(expected = UnsupportedOperationException.class)
+    public void testIteratorRemove_unsupported() {
+        PersistentHashSet.<Integer> empty().with(1).iterator().remove();
+    }
+
+    /**
+     * Object with a constant hash code.
+     */
+    private static final class Colliding {
+
+        private final int id;
+
+        private Colliding(int id) {
+            this.id = id;
+        }
+
+        @Override
+        public int hashCode() {
+            return 7;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            return obj instanceof Colliding && ((Colliding) obj).id == this.id;
+        }
+    }
+}
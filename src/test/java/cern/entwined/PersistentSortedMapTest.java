@@ -0,0 +1,170 @@
+/*
+ * Entwined STM
+ * 
+ * (c) Copyright 2013 CERN. This software is distributed under the terms of the Apache License Version 2.0, copied
+ * verbatim in the file "COPYING". In applying this licence, CERN does not waive the privileges and immunities granted
+ * to it by virtue of its status as an Intergovernmental Organization or submit itself to any jurisdiction.
+ */
+package cern.entwined;
+
+import static cern.entwined.test.TestUtils.newList;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map.Entry;
+import java.util.Random;
+import java.util.TreeMap;
+
+import org.junit.Test;
+
+import com.google.common.collect.Ordering;
+
+/**
+ * Unit tests for {@link PersistentSortedMap}.
+ * 
+ * @author Ivan Koblik
+ */
+public class PersistentSortedMapTest {
+
+    @Test
+    public void testPut_Get() {
+        PersistentSortedMap<Integer, String> map = newMap();
+        map = map.put(2, "2").put(1, "1").put(3, "3");
+        assertEquals(3, map.size());
+        assertEquals("1", map.get(1));
+        assertEquals("2", map.get(2));
+        assertEquals("3", map.get(3));
+        assertNull(map.get(4));
+        assertFalse(map.containsKey(4));
+    }
+
+    @Test
+    public void testPut_doesntModifyOriginal() {
+        PersistentSortedMap<Integer, String> map = newMap().put(1, "1");
+        PersistentSortedMap<Integer, String> updated = map.put(1, "one").put(2, "2");
+        assertEquals("1", map.get(1));
+        assertEquals(1, map.size());
+        assertEquals("one", updated.get(1));
+        assertEquals(2, updated.size());
+    }
+
+    @Test
+    public void testPut_sameValueReturnsSameMap() {
+        String value = "1";
+        PersistentSortedMap<Integer, String> map = newMap().put(1, value);
+        assertSame(map, map.put(1, value));
+    }
+
+    @Test
+    public void testPut_nullValue() {
+        PersistentSortedMap<Integer, String> map = newMap().put(1, null);
+        assertTrue(map.containsKey(1));
+        assertNull(map.get(1));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testPut_failNullKey() {
+        newMap().put(null, "1");
+    }
+
+    @Test
+    public void testRemove() {
+        PersistentSortedMap<Integer, String> map = newMap().put(1, "1").put(2, "2");
+        PersistentSortedMap<Integer, String> updated = map.remove(1);
+        assertFalse(updated.containsKey(1));
+        assertEquals(1, updated.size());
+        assertTrue(map.containsKey(1));
+    }
+
+    @Test
+    public void testRemove_missingKeyReturnsSameMap() {
+        PersistentSortedMap<Integer, String> map = newMap().put(1, "1");
+        assertSame(map, map.remove(2));
+    }
+
+    @Test
+    public void testNavigation() {
+        PersistentSortedMap<Integer, String> map = newMap().put(10, "10").put(20, "20").put(30, "30");
+        assertEquals(10, (int) map.firstEntry().getKey());
+        assertEquals(30, (int) map.lastEntry().getKey());
+        assertEquals(20, (int) map.higherEntry(20, true).getKey());
+        assertEquals(30, (int) map.higherEntry(20, false).getKey());
+        assertEquals(20, (int) map.higherEntry(15, false).getKey());
+        assertNull(map.higherEntry(30, false));
+        assertEquals(20, (int) map.lowerEntry(20, true).getKey());
+        assertEquals(10, (int) map.lowerEntry(20, false).getKey());
+        assertNull(map.lowerEntry(10, false));
+        assertNull(newMap().firstEntry());
+        assertNull(newMap().lastEntry());
+    }
+
+    @Test
+    public void testIterator_range() {
+        PersistentSortedMap<Integer, String> map = newMap();
+        for (int i = 0; i < 10; i++) {
+            map = map.put(i, Integer.toString(i));
+        }
+        assertEquals(newList(2, 3, 4), keys(map.iterator(2, true, 4, true)));
+        assertEquals(newList(3), keys(map.iterator(2, false, 4, false)));
+        assertEquals(newList(0, 1), keys(map.iterator(null, false, 2, false)));
+        assertEquals(newList(8, 9), keys(map.iterator(7, false, null, false)));
+        assertEquals(10, keys(map.iterator()).size());
+        assertEquals(newList(), keys(map.iterator(20, true, null, false)));
+    }
+
+    @Test
+    public void testRandomOperations_consistentWithTreeMap() {
+        Random random = new Random(42);
+        TreeMap<Integer, Integer> expected = new TreeMap<Integer, Integer>();
+        PersistentSortedMap<Integer, Integer> map = new PersistentSortedMap<Integer, Integer>(
+                Ordering.<Integer> natural());
+        for (int i = 0; i < 5000; i++) {
+            int key = random.nextInt(500);
+            if (random.nextInt(3) == 0) {
+                expected.remove(key);
+                map = map.remove(key);
+            } else {
+                expected.put(key, i);
+                map = map.put(key, i);
+            }
+            assertEquals(expected.size(), map.size());
+        }
+        List<Integer> actualKeys = new ArrayList<Integer>();
+        for (Iterator<Entry<Integer, Integer>> iterator = map.iterator(); iterator.hasNext();) {
+            Entry<Integer, Integer> entry = iterator.next();
+            actualKeys.add(entry.getKey());
+            assertEquals(expected.get(entry.getKey()), entry.getValue());
+        }
+        assertEquals(new ArrayList<Integer>(expected.keySet()), actualKeys);
+        for (int key = -1; key < 501; key++) {
+            assertEquals(expected.ceilingKey(key), keyOrNull(map.higherEntry(key, true)));
+            assertEquals(expected.higherKey(key), keyOrNull(map.higherEntry(key, false)));
+            assertEquals(expected.floorKey(key), keyOrNull(map.lowerEntry(key, true)));
+            assertEquals(expected.lowerKey(key), keyOrNull(map.lowerEntry(key, false)));
+        }
+    }
+
+    // ==================== Test fixtures ====================
+
+    private static PersistentSortedMap<Integer, String> newMap() {
+        return new PersistentSortedMap<Integer, String>(Ordering.<Integer> natural());
+    }
+
+    private static <K> List<K> keys(Iterator<? extends Entry<K, ?>> iterator) {
+        List<K> result = new ArrayList<K>();
+        while (iterator.hasNext()) {
+            result.add(iterator.next().getKey());
+        }
+        return result;
+    }
+
+    private static <K> K keyOrNull(Entry<K, ?> entry) {
+        return null == entry ? null : entry.getKey();
+    }
+}
@@ -0,0 +1,131 @@
+/*
+ * Entwined STM
+ * 
+ * (c) Copyright 2013 CERN. This software is distributed under the terms of the Apache License Version 2.0, copied
+ * verbatim in the file "COPYING". In applying this licence, CERN does not waive the privileges and immunities granted
+ * to it by virtue of its status as an Intergovernmental Organization or submit itself to any jurisdiction.
+ */
+package cern.entwined;
+
+import static cern.entwined.test.TestUtils.newList;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+/**
+ * Unit tests for {@link PersistentVector}.
+ * 
+ * @author Ivan Koblik
+ */
+public class PersistentVectorTest {
+
+    @Test
+    public void testEmpty() {
+        PersistentVector<Integer> vector = PersistentVector.empty();
+        assertTrue(vector.isEmpty());
+        assertEquals(0, vector.size());
+        assertFalse(vector.iterator().hasNext());
+    }
+
+    @Test
+    public void testAppend_Get() {
+        PersistentVector<Integer> vector = PersistentVector.empty();
+        vector = vector.append(1).append(2).append(3);
+        assertEquals(3, vector.size());
+        assertEquals(Integer.valueOf(1), vector.get(0));
+        assertEquals(Integer.valueOf(3), vector.get(2));
+    }
+
+    @Test
+    public void testAppend_manyLevels() {
+        int size = 40000;
+        PersistentVector<Integer> vector = PersistentVector.<Integer> empty().appendAll(range(0, size));
+        assertEquals(size, vector.size());
+        for (int i = 0; i < size; i++) {
+            assertEquals(Integer.valueOf(i), vector.get(i));
+        }
+        assertEquals(range(0, size), toList(vector));
+    }
+
+    @Test
+    public void testAppend_doesntModifyOriginal() {
+        PersistentVector<Integer> vector = PersistentVector.<Integer> empty().appendAll(range(0, 100));
+        PersistentVector<Integer> first = vector.append(100);
+        PersistentVector<Integer> second = vector.append(-1);
+        assertEquals(range(0, 100), toList(vector));
+        assertEquals(range(0, 101), toList(first));
+        assertEquals(Integer.valueOf(-1), second.get(100));
+    }
+
+    @Test(expected = IndexOutOfBoundsException.class)
+    public void testGet_failOutOfBounds() {
+        PersistentVector.<Integer> empty().append(1).get(1);
+    }
+
+    @Test(expected = IndexOutOfBoundsException.class)
+    public void testGet_failDroppedElement() {
+        PersistentVector.<Integer> empty().appendAll(newList(1, 2)).drop(1).get(-1);
+    }
+
+    @Test
+    public void testDrop() {
+        PersistentVector<Integer> vector = PersistentVector.<Integer> empty().appendAll(range(0, 100));
+        PersistentVector<Integer> dropped = vector.drop(10);
+        assertEquals(90, dropped.size());
+        assertEquals(Integer.valueOf(10), dropped.get(0));
+        assertEquals(range(10, 100), toList(dropped));
+        assertEquals("Original unchanged", range(0, 100), toList(vector));
+        assertSame(vector, vector.drop(0));
+        assertTrue(vector.drop(100).isEmpty());
+    }
+
+    @Test
+    public void testDrop_thenAppend() {
+        PersistentVector<Integer> vector = PersistentVector.empty();
+        List<Integer> expected = new ArrayList<Integer>();
+        for (int i = 0; i < 5000; i++) {
+            vector = vector.append(i).append(-i);
+            expected.add(i);
+            expected.add(-i);
+            vector = vector.drop(1);
+            expected.remove(0);
+            assertEquals(expected.size(), vector.size());
+        }
+        assertEquals(expected, toList(vector));
+        for (int i = 0; i < expected.size(); i++) {
+            assertEquals(expected.get(i), vector.get(i));
+        }
+    }
+
+    @Test(expected = IndexOutOfBoundsException.class)
+    public void testDrop_failTooMany() {
+        PersistentVector.<Integer> empty().appendAll(newList(1, 2)).drop(3);
+    }
+
+    @Test(expected = UnsupportedOperationException.class)
+    public void testIterator_failRemove() {
+        PersistentVector.<Integer> empty().append(1).iterator().remove();
+    }
+
+    private static List<Integer> range(int from, int to) {
+        List<Integer> result = new ArrayList<Integer>();
+        for (int i = from; i < to; i++) {
+            result.add(i);
+        }
+        return result;
+    }
+
+    private static List<Integer> toList(PersistentVector<Integer> vector) {
+        List<Integer> result = new ArrayList<Integer>();
+        for (Integer element : vector) {
+            result.add(element);
+        }
+        return result;
+    }
+}
@@ -0,0 +1,166 @@
+/*
+ * Entwined STM
+ * 
+ * (c) Copyright 2013 CERN. This software is distributed under the terms of the Apache License Version 2.0, copied
+ * verbatim in the file "COPYING". In applying this licence, CERN does not waive the privileges and immunities granted
+ * to it by virtue of its status as an Intergovernmental Organization or submit itself to any jurisdiction.
+ */
+package cern.entwined;
+
+import static cern.entwined.test.TestUtils.newList;
+import static cern.entwined.test.TestUtils.newMap;
+import static cern.entwined.test.TestUtils.newSet;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+
+import org.junit.Test;
+
+/**
+ * Unit tests for {@link SmallMap} and {@link SmallSet}.
+ * 
+ * @author Ivan Koblik
+ */
+public class SmallMapTest {
+
+    @Test
+    public void testPut_Get_Remove() {
+        SmallMap<Integer, String> map = new SmallMap<Integer, String>();
+        assertTrue(map.isEmpty());
+        assertNull(map.put(1, "one"));
+        assertNull(map.put(2, "two"));
+        assertEquals("one", map.put(1, "uno"));
+        assertEquals(2, map.size());
+        assertEquals("uno", map.get(1));
+        assertTrue(map.containsKey(2));
+        assertEquals("uno", map.remove(1));
+        assertFalse(map.containsKey(1));
+        assertNull(map.remove(1));
+        assertEquals(newMap(newList(2), newList("two")), map);
+    }
+
+    @Test
+    public void testNullKeysAndValues() {
+        SmallMap<Integer, String> map = new SmallMap<Integer, String>();
+        map.put(null, "null");
+        map.put(1, null);
+        assertEquals("null", map.get(null));
+        assertTrue(map.containsKey(1));
+        assertNull(map.get(1));
+        assertFalse(map.containsKey(2));
+    }
+
+    @Test
+    public void testOverflow() {
+        SmallMap<Integer, String> map = new SmallMap<Integer, String>();
+        Map<Integer, String> expected = new HashMap<Integer, String>();
+        for (int i = 0; i < 3 * SmallMap.INLINE_CAPACITY; i++) {
+            map.put(i, "value " + i);
+            expected.put(i, "value " + i);
+            assertEquals(expected, map);
+        }
+        for (int i = 0; i < 3 * SmallMap.INLINE_CAPACITY; i += 2) {
+            assertEquals("value " + i, map.remove(i));
+            expected.remove(i);
+        }
+        assertEquals(expected, map);
+        map.clear();
+        assertTrue(map.isEmpty());
+        map.put(1, "one");
+        assertEquals(newMap(newList(1), newList("one")), map);
+    }
+
+    @Test
+    public void testEnsureCapacity() {
+        SmallMap<Integer, String> map = new SmallMap<Integer, String>(newMap(newList(1, 2), newList("one", "two")));
+        map.ensureCapacity(1);
+        assertEquals(newMap(newList(1, 2), newList("one", "two")), map);
+        map.ensureCapacity(2 * SmallMap.INLINE_CAPACITY);
+        assertEquals(newMap(newList(1, 2), newList("one", "two")), map);
+        for (int i = 3; i < 3 * SmallMap.INLINE_CAPACITY; i++) {
+            map.put(i, "value " + i);
+        }
+        assertEquals(3 * SmallMap.INLINE_CAPACITY - 1, map.size());
+        assertEquals("one", map.remove(1));
+        assertEquals("value 3", map.get(3));
+    }
+
+    @Test
+    public void testIterator_remove() {
+        SmallMap<Integer, String> map = new SmallMap<Integer, String>(newMap(newList(1, 2, 3, 4), newList("one",
+                "two", "three", "four")));
+        Set<Integer> visited = new HashSet<Integer>();
+        for (Iterator<Entry<Integer, String>> iterator = map.entrySet().iterator(); iterator.hasNext();) {
+            Entry<Integer, String> entry = iterator.next();
+            visited.add(entry.getKey());
+            if (entry.getKey() % 2 == 1) {
+                iterator.remove();
+            }
+        }
+        assertEquals(newSet(1, 2, 3, 4), visited);
+        assertEquals(newMap(newList(2, 4), newList("two", "four")), map);
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testIterator_failRemoveTwice() {
+        SmallMap<Integer, String> map = new SmallMap<Integer, String>(newMap(newList(1, 2), newList("one", "two")));
+        Iterator<Entry<Integer, String>> iterator = map.entrySet().iterator();
+        iterator.next();
+        iterator.remove();
+        iterator.remove();
+    }
+
+    @Test
+    public void testEntry_setValueWritesThrough() {
+        SmallMap<Integer, String> map = new SmallMap<Integer, String>(newMap(newList(1), newList("one")));
+        Entry<Integer, String> entry = map.entrySet().iterator().next();
+        assertEquals("one", entry.setValue("uno"));
+        assertEquals("uno", entry.getValue());
+        assertEquals("uno", map.get(1));
+    }
+
+    @Test
+    public void testPutAll_copyIsIndependent() {
+        SmallMap<Integer, String> map = new SmallMap<Integer, String>(newMap(newList(1, 2), newList("one", "two")));
+        SmallMap<Integer, String> copy = new SmallMap<Integer, String>(map);
+        copy.put(3, "three");
+        copy.remove(1);
+        assertEquals(newMap(newList(1, 2), newList("one", "two")), map);
+        assertEquals(newMap(newList(2, 3), newList("two", "three")), copy);
+    }
+
+    // ==================== SmallSet tests ====================
+
+    @Test
+    public void testSmallSet() {
+        SmallSet<Integer> set = new SmallSet<Integer>();
+        assertTrue(set.add(1));
+        assertFalse(set.add(1));
+        for (int i = 2; i <= 2 * SmallMap.INLINE_CAPACITY; i++) {
+            set.add(i);
+        }
+        assertEquals(2 * SmallMap.INLINE_CAPACITY, set.size());
+        assertTrue(set.remove(1));
+        assertFalse(set.remove(1));
+        assertFalse(set.contains(1));
+        assertTrue(set.contains(2));
+    }
+
+    @Test
+    public void testSmallSet_addAllCopyIsIndependent() {
+        SmallSet<Integer> set = new SmallSet<Integer>(newSet(1, 2, 3));
+        SmallSet<Integer> copy = new SmallSet<Integer>(set);
+        copy.remove(1);
+        copy.add(4);
+        assertEquals(newSet(1, 2, 3), set);
+        assertEquals(newSet(2, 3, 4), copy);
+    }
+}
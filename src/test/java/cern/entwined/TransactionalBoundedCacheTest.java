@@ -0,0 +1,339 @@
+/*
+ * Entwined STM
+ * 
+ * (c) Copyright 2013 CERN. This software is distributed under the terms of the Apache License Version 2.0, copied
+ * verbatim in the file "COPYING". In applying this licence, CERN does not waive the privileges and immunities granted
+ * to it by virtue of its status as an Intergovernmental Organization or submit itself to any jurisdiction.
+ */
+package cern.entwined;
+
+import static cern.entwined.test.TestUtils.newList;
+import static cern.entwined.test.TestUtils.newMap;
+import static cern.entwined.test.TestUtils.newSet;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+import cern.entwined.exception.ConflictException;
+
+/**
+ * Unit tests for {@link TransactionalBoundedCache}.
+ * 
+ * @author Ivan Koblik
+ */
+public class TransactionalBoundedCacheTest {
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testTransactionalBoundedCache_failNonPositiveSize() {
+        new TransactionalBoundedCache<Integer, String>(0, EvictionPolicy.LRU);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testTransactionalBoundedCache_failNullPolicy() {
+        new TransactionalBoundedCache<Integer, String>(1, null);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testTransactionalBoundedCache_failSourceTooLarge() {
+        new TransactionalBoundedCache<Integer, String>(newMap(newList(1, 2), newList("one", "two")), 1,
+                EvictionPolicy.LRU);
+    }
+
+    // ==================== Local operation tests ====================
+
+    @Test
+    public void testPut_Get_Remove() {
+        TransactionalBoundedCache<Integer, String> cache = defaultFixture(EvictionPolicy.LRU);
+        assertEquals(3, cache.maxSize());
+        assertEquals("one", cache.put(1, "uno"));
+        assertEquals("uno", cache.get(1));
+        assertTrue(cache.containsKey(2));
+        assertEquals("two", cache.remove(2));
+        assertFalse(cache.containsKey(2));
+        assertNull(cache.get(2));
+    }
+
+    @Test
+    public void testPut_localStateMayExceedMaxSize() {
+        TransactionalBoundedCache<Integer, String> cache = defaultFixture(EvictionPolicy.LRU);
+        cache.put(3, "three");
+        cache.put(4, "four");
+        for (int i = 1; i <= 4; i++) {
+            assertTrue(cache.containsKey(i));
+        }
+    }
+
+    // ==================== Eviction tests ====================
+
+    @Test
+    public void testCommit_evictsLeastRecentlyUsed() {
+        TransactionalBoundedCache<Integer, String> global = new TransactionalBoundedCache<Integer, String>(newMap(
+                newList(1, 2), newList("one", "two")), 2, EvictionPolicy.LRU);
+        TransactionalBoundedCache<Integer, String> reader = global.cleanCopy();
+        reader.get(1);
+        reader.get(2);
+        reader.get(1);
+        TransactionalBoundedCache<Integer, String> writer = global.cleanCopy();
+        writer.put(3, "three");
+        global = writer.commit(global);
+        assertEquals(newSet(1, 3), keys(global, 1, 2, 3));
+    }
+
+    @Test
+    public void testCommit_evictsLeastFrequentlyUsed() {
+        TransactionalBoundedCache<Integer, String> global = new TransactionalBoundedCache<Integer, String>(newMap(
+                newList(1, 2), newList("one", "two")), 2, EvictionPolicy.LFU);
+        TransactionalBoundedCache<Integer, String> reader = global.cleanCopy();
+        reader.get(2);
+        reader.get(2);
+        reader.get(1);
+        TransactionalBoundedCache<Integer, String> writer = global.cleanCopy();
+        writer.put(3, "three");
+        global = writer.commit(global);
+        assertEquals(newSet(2, 3), keys(global, 1, 2, 3));
+    }
+
+    @Test
+    public void testCommit_writtenEntriesEvictedLast() {
+        TransactionalBoundedCache<Integer, String> global = new TransactionalBoundedCache<Integer, String>(2,
+                EvictionPolicy.LFU);
+        TransactionalBoundedCache<Integer, String> cache = global.cleanCopy();
+        cache.put(1, "one");
+        global = cache.commit(global);
+        for (int i = 0; i < 10; i++) {
+            global.cleanCopy().get(1);
+        }
+        cache = global.cleanCopy();
+        cache.put(2, "two");
+        cache.put(3, "three");
+        global = cache.commit(global);
+        assertEquals(newSet(2, 3), keys(global, 1, 2, 3));
+    }
+
+    @Test
+    public void testCommit_evictsDownToMaxSize() {
+        TransactionalBoundedCache<Integer, String> global = defaultFixture(EvictionPolicy.LRU);
+        TransactionalBoundedCache<Integer, String> cache = global.cleanCopy();
+        for (int i = 3; i < 10; i++) {
+            cache.put(i, "value");
+        }
+        global = cache.commit(global);
+        assertEquals(newSet(7, 8, 9), keys(global, 1, 2, 3, 4, 5, 6, 7, 8, 9));
+    }
+
+    @Test
+    public void testCommit_noEvictionWithinMaxSize() {
+        TransactionalBoundedCache<Integer, String> global = defaultFixture(EvictionPolicy.LRU);
+        TransactionalBoundedCache<Integer, String> cache = global.cleanCopy();
+        cache.remove(1);
+        cache.put(3, "three");
+        global = cache.commit(global);
+        assertEquals(newSet(2, 3), keys(global, 1, 2, 3));
+    }
+
+    @Test
+    public void testCommit_skipsScoresOfRemovedEntries() {
+        TransactionalBoundedCache<Integer, String> global = new TransactionalBoundedCache<Integer, String>(newMap(
+                newList(1, 2), newList("one", "two")), 2, EvictionPolicy.LRU);
+        TransactionalBoundedCache<Integer, String> cache = global.cleanCopy();
+        cache.remove(1);
+        global = cache.commit(global);
+        cache = global.cleanCopy();
+        cache.put(3, "three");
+        cache.put(4, "four");
+        global = cache.commit(global);
+        assertEquals(newSet(3, 4), keys(global, 1, 2, 3, 4));
+    }
+
+    @Test
+    public void testCommit_noChangesReturnsGlobalState() {
+        TransactionalBoundedCache<Integer, String> global = defaultFixture(EvictionPolicy.LRU);
+        TransactionalBoundedCache<Integer, String> cache = global.cleanCopy();
+        cache.get(1);
+        assertSame(global, cache.commit(global));
+    }
+
+    // ==================== Transactional tests ====================
+
+    @Test
+    public void testCommit_concurrentReadsDoNotConflict() {
+        TransactionalBoundedCache<Integer, String> global = defaultFixture(EvictionPolicy.LRU);
+        TransactionalBoundedCache<Integer, String> first = global.cleanCopy();
+        TransactionalBoundedCache<Integer, String> second = global.cleanCopy();
+        first.get(1);
+        first.put(2, "dos");
+        second.get(1);
+        second.put(3, "three");
+        global = first.commit(global);
+        global = second.commit(global);
+        TransactionalBoundedCache<Integer, String> check = global.cleanCopy();
+        assertEquals("one", check.get(1));
+        assertEquals("dos", check.get(2));
+        assertEquals("three", check.get(3));
+    }
+
+    @Test(expected = ConflictException.class)
+    public void testCommit_failReadConflict() {
+        TransactionalBoundedCache<Integer, String> global = defaultFixture(EvictionPolicy.LRU);
+        TransactionalBoundedCache<Integer, String> cache = global.cleanCopy();
+        TransactionalBoundedCache<Integer, String> concurrent = global.cleanCopy();
+        concurrent.put(1, "uno");
+        global = concurrent.commit(global);
+        cache.get(1);
+        cache.put(3, "three");
+        cache.commit(global);
+    }
+
+    @Test(expected = ConflictException.class)
+    public void testCommit_evictionOfReadEntryConflicts() {
+        TransactionalBoundedCache<Integer, String> global = new TransactionalBoundedCache<Integer, String>(newMap(
+                newList(1), newList("one")), 1, EvictionPolicy.LRU);
+        TransactionalBoundedCache<Integer, String> cache = global.cleanCopy();
+        cache.get(1);
+        TransactionalBoundedCache<Integer, String> concurrent = global.cleanCopy();
+        concurrent.put(2, "two");
+        global = concurrent.commit(global);
+        cache.put(3, "three");
+        cache.commit(global);
+    }
+
+    @Test
+    public void testUpdate() {
+        TransactionalBoundedCache<Integer, String> global = new TransactionalBoundedCache<Integer, String>(newMap(
+                newList(1, 2), newList("one", "two")), 2, EvictionPolicy.LFU);
+        TransactionalBoundedCache<Integer, String> cache = global.cleanCopy();
+        TransactionalBoundedCache<Integer, String> nested = cache.dirtyCopy();
+        nested.put(3, "three");
+        cache.update(nested, true);
+        assertNull(cache.get(3));
+        cache.update(nested, false);
+        assertEquals("three", cache.get(3));
+        for (int i = 0; i < 10; i++) {
+            global.cleanCopy().get(1);
+            global.cleanCopy().get(2);
+        }
+        global = cache.commit(global);
+        assertTrue("Written key must survive eviction", global.cleanCopy().containsKey(3));
+    }
+
+    @Test
+    public void testCommit_failedCommitKeepsScores() {
+        TransactionalBoundedCache<Integer, String> cache = new TransactionalBoundedCache<Integer, String>(newMap(
+                newList(1, 2), newList("one", "two")), 2, EvictionPolicy.LFU);
+        for (int i = 0; i < 3; i++) {
+            cache.cleanCopy().get(2);
+        }
+        cache.cleanCopy().get(1);
+        CompositeCollection composite = new CompositeCollection(cache, new TransactionalRef<Integer>(0));
+        final Memory<CompositeCollection> memory = new Memory<CompositeCollection>(composite);
+        final AtomicInteger attempts = new AtomicInteger();
+        memory.runTransaction(new TransactionAdapter<CompositeCollection>() {
+            @Override
+            public boolean run(CompositeCollection data) {
+                TransactionalBoundedCache<Integer, String> cache = data.get(0);
+                TransactionalRef<Integer> ref = data.get(1);
+                ref.assoc(ref.deref() + 1);
+                if (1 == attempts.incrementAndGet()) {
+                    // Evicts the entry of the key 1, then the reference conflicts with this concurrent update
+                    cache.put(3, "three");
+                    Thread thread = new Thread(new Runnable() {
+                        @Override
+                        public void run() {
+                            memory.runTransaction(new TransactionAdapter<CompositeCollection>() {
+                                @Override
+                                public boolean run(CompositeCollection data) {
+                                    TransactionalRef<Integer> ref = data.get(1);
+                                    ref.assoc(10);
+                                    return true;
+                                }
+                            });
+                        }
+                    });
+                    thread.start();
+                    MemoryTest.joinThread(thread);
+                }
+                return true;
+            }
+        });
+        assertEquals(2, attempts.get());
+
+        // The key 1 reaches the score of the key 2 only if it has kept its score, the older score is evicted first
+        memory.runTransaction(new TransactionAdapter<CompositeCollection>() {
+            @Override
+            public boolean run(CompositeCollection data) {
+                TransactionalBoundedCache<Integer, String> cache = data.get(0);
+                cache.get(1);
+                cache.get(1);
+                cache.put(4, "four");
+                return true;
+            }
+        });
+        memory.runTransaction(new TransactionAdapter<CompositeCollection>() {
+            @Override
+            public boolean run(CompositeCollection data) {
+                TransactionalBoundedCache<Integer, String> cache = data.get(0);
+                assertEquals(newSet(1, 4), keys(cache, 1, 2, 3, 4));
+                return false;
+            }
+        });
+    }
+
+    @Test
+    public void testCompositeCollection() {
+        CompositeCollection composite = new CompositeCollection(defaultFixture(EvictionPolicy.LRU),
+                new TransactionalRef<Integer>(0));
+        Memory<CompositeCollection> memory = new Memory<CompositeCollection>(composite);
+        for (int i = 3; i < 6; i++) {
+            final int key = i;
+            memory.runTransaction(new TransactionAdapter<CompositeCollection>() {
+                @Override
+                public boolean run(CompositeCollection data) {
+                    TransactionalBoundedCache<Integer, String> cache = data.get(0);
+                    TransactionalRef<Integer> counter = data.get(1);
+                    cache.put(key, "value " + key);
+                    counter.assoc(counter.deref() + 1);
+                    return true;
+                }
+            });
+        }
+        memory.runTransaction(new TransactionAdapter<CompositeCollection>() {
+            @Override
+            public boolean run(CompositeCollection data) {
+                TransactionalBoundedCache<Integer, String> cache = data.get(0);
+                TransactionalRef<Integer> counter = data.get(1);
+                assertEquals(Integer.valueOf(3), counter.deref());
+                assertEquals(newSet(3, 4, 5), keys(cache, 1, 2, 3, 4, 5));
+                return false;
+            }
+        });
+    }
+
+    // ==================== Test fixtures ====================
+
+    private static TransactionalBoundedCache<Integer, String> defaultFixture(EvictionPolicy policy) {
+        return new TransactionalBoundedCache<Integer, String>(newMap(newList(1, 2), newList("one", "two")), 3,
+                policy);
+    }
+
+    /**
+     * Returns the given keys present in the cache.
+     */
+    private static Set<Integer> keys(TransactionalBoundedCache<Integer, String> cache, Integer... keys) {
+        TransactionalBoundedCache<Integer, String> copy = cache.cleanCopy();
+        Set<Integer> result = new HashSet<Integer>();
+        for (Integer key : keys) {
+            if (copy.containsKey(key)) {
+                result.add(key);
+            }
+        }
+        return result;
+    }
+}
@@ -0,0 +1,400 @@
+/*
+ * Entwined STM
+ * 
+ * (c) Copyright 2013 CERN. This software is distributed under the terms of the Apache License Version 2.0, copied
+ * verbatim in the file "COPYING". In applying this licence, CERN does not waive the privileges and immunities granted
+ * to it by virtue of its status as an Intergovernmental Organization or submit itself to any jurisdiction.
+ */
+package cern.entwined;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import cern.entwined.exception.ConflictException;
+
+import com.google.common.base.Ticker;
+
+/**
+ * Unit tests for {@link TransactionalCache}.
+ * 
+ * @author Ivan Koblik
+ */
+public class TransactionalCacheTest {
+
+    private ManualTicker ticker;
+
+    @Before
+    public void setUp() {
+        ticker = new ManualTicker();
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testTransactionalCache_failNullTicker() {
+        new TransactionalCache<Integer, String>(null);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testTransactionalCache_failNonPositiveTtl() {
+        new TransactionalCache<Integer, String>(0, TimeUnit.SECONDS, ticker);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testTransactionalCache_failNullUnit() {
+        new TransactionalCache<Integer, String>(1, null, ticker);
+    }
+
+    // ==================== Local operation tests ====================
+
+    @Test
+    public void testPut_Get_Remove() {
+        TransactionalCache<Integer, String> cache = new TransactionalCache<Integer, String>(ticker);
+        assertNull(cache.put(1, "one"));
+        assertEquals("one", cache.put(1, "uno"));
+        assertEquals("uno", cache.get(1));
+        assertTrue(cache.containsKey(1));
+        assertEquals("uno", cache.remove(1));
+        assertNull(cache.get(1));
+        assertFalse(cache.containsKey(1));
+        assertNull(cache.remove(1));
+    }
+
+    @Test
+    public void testPut_nullValue() {
+        TransactionalCache<Integer, String> cache = new TransactionalCache<Integer, String>(ticker);
+        cache.put(1, null);
+        assertTrue(cache.containsKey(1));
+        assertNull(cache.get(1));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testPut_failNonPositiveTtl() {
+        new TransactionalCache<Integer, String>(ticker).put(1, "one", -1, TimeUnit.SECONDS);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testPurgeExpired_failNegative() {
+        new TransactionalCache<Integer, String>(ticker).purgeExpired(-1);
+    }
+
+    @Test
+    public void testGet_expiredEntriesInvisible() {
+        TransactionalCache<Integer, String> global = committedFixture();
+        assertEquals("one", global.cleanCopy().get(1));
+        ticker.advance(10, TimeUnit.SECONDS);
+        TransactionalCache<Integer, String> cache = global.cleanCopy();
+        assertNull(cache.get(1));
+        assertFalse(cache.containsKey(1));
+        assertEquals("Entry without the time-to-live never expires", "forever", cache.get(3));
+        assertEquals("Longer time-to-live", "two", cache.get(2));
+    }
+
+    @Test
+    public void testGet_timeIsFixedForSnapshot() {
+        TransactionalCache<Integer, String> cache = committedFixture().cleanCopy();
+        ticker.advance(1, TimeUnit.HOURS);
+        assertEquals("one", cache.get(1));
+    }
+
+    @Test
+    public void testPut_defaultTtl() {
+        TransactionalCache<Integer, String> global = new TransactionalCache<Integer, String>(5, TimeUnit.SECONDS,
+                ticker);
+        TransactionalCache<Integer, String> cache = global.cleanCopy();
+        cache.put(1, "one");
+        global = cache.commit(global);
+        ticker.advance(4, TimeUnit.SECONDS);
+        assertEquals("one", global.cleanCopy().get(1));
+        ticker.advance(1, TimeUnit.SECONDS);
+        assertNull(global.cleanCopy().get(1));
+    }
+
+    @Test
+    public void testPut_expiredPreviousValue() {
+        TransactionalCache<Integer, String> global = committedFixture();
+        ticker.advance(10, TimeUnit.SECONDS);
+        TransactionalCache<Integer, String> cache = global.cleanCopy();
+        assertNull(cache.put(1, "uno"));
+        assertEquals("uno", cache.get(1));
+    }
+
+    // ==================== Transactional tests ====================
+
+    @Test
+    public void testCommit_appliesChanges() {
+        TransactionalCache<Integer, String> global = committedFixture();
+        TransactionalCache<Integer, String> cache = global.cleanCopy();
+        cache.put(1, "uno", 1, TimeUnit.HOURS);
+        cache.remove(2);
+        TransactionalCache<Integer, String> committed = cache.commit(global);
+        TransactionalCache<Integer, String> check = committed.cleanCopy();
+        assertEquals("uno", check.get(1));
+        assertFalse(check.containsKey(2));
+        assertEquals("forever", check.get(3));
+        assertEquals("Global state untouched", "one", global.cleanCopy().get(1));
+    }
+
+    @Test
+    public void testCommit_noChangesReturnsGlobalState() {
+        TransactionalCache<Integer, String> global = committedFixture();
+        TransactionalCache<Integer, String> cache = global.cleanCopy();
+        cache.get(1);
+        assertSame(global, cache.commit(global));
+    }
+
+    @Test
+    public void testCommit_nothingToPurgeReturnsGlobalState() {
+        TransactionalCache<Integer, String> global = committedFixture();
+        TransactionalCache<Integer, String> cache = global.cleanCopy();
+        cache.purgeExpired(100);
+        assertSame(global, cache.commit(global));
+    }
+
+    @Test(expected = ConflictException.class)
+    public void testCommit_failReadConflict() {
+        TransactionalCache<Integer, String> global = committedFixture();
+        TransactionalCache<Integer, String> cache = global.cleanCopy();
+        global = concurrentPut(global, 1, "uno");
+        cache.get(1);
+        cache.put(4, "four");
+        cache.commit(global);
+    }
+
+    @Test
+    public void testCommit_noConflictForOtherKeys() {
+        TransactionalCache<Integer, String> global = committedFixture();
+        TransactionalCache<Integer, String> cache = global.cleanCopy();
+        global = concurrentPut(global, 1, "uno");
+        cache.get(2);
+        cache.put(4, "four");
+        TransactionalCache<Integer, String> check = cache.commit(global).cleanCopy();
+        assertEquals("uno", check.get(1));
+        assertEquals("four", check.get(4));
+    }
+
+    @Test
+    public void testCommit_purgeOfExpiredEntryDoesNotConflict() {
+        TransactionalCache<Integer, String> global = committedFixture();
+        ticker.advance(10, TimeUnit.SECONDS);
+        TransactionalCache<Integer, String> cache = global.cleanCopy();
+        assertNull(cache.get(1));
+        global = purge(global);
+        cache.put(4, "four");
+        TransactionalCache<Integer, String> check = cache.commit(global).cleanCopy();
+        assertNull(check.get(1));
+        assertEquals("four", check.get(4));
+    }
+
+    @Test(expected = ConflictException.class)
+    public void testCommit_purgeOfEntryLiveForSnapshotConflicts() {
+        TransactionalCache<Integer, String> global = committedFixture();
+        TransactionalCache<Integer, String> cache = global.cleanCopy();
+        assertEquals("one", cache.get(1));
+        ticker.advance(10, TimeUnit.SECONDS);
+        global = purge(global);
+        cache.put(4, "four");
+        cache.commit(global);
+    }
+
+    @Test
+    public void testCommit_expiredEntryReplacedByExpiredEntryDoesNotConflict() {
+        TransactionalCache<Integer, String> global = committedFixture();
+        TransactionalCache<Integer, String> concurrent = global.cleanCopy();
+        concurrent.put(1, "uno", 2, TimeUnit.SECONDS);
+        ticker.advance(10, TimeUnit.SECONDS);
+        TransactionalCache<Integer, String> cache = global.cleanCopy();
+        global = concurrent.commit(global);
+        assertNull(cache.get(1));
+        cache.put(4, "four");
+        assertEquals("four", cache.commit(global).cleanCopy().get(4));
+    }
+
+    @Test
+    public void testCommit_purgesInBatches() {
+        TransactionalCache<Integer, String> global = new TransactionalCache<Integer, String>(ticker);
+        TransactionalCache<Integer, String> cache = global.cleanCopy();
+        int count = 3 * TransactionalCache.PURGE_BATCH;
+        for (int i = 0; i < count; i++) {
+            cache.put(i, "value", 1 + i, TimeUnit.SECONDS);
+        }
+        global = cache.commit(global);
+
+        // Readers that saw the entries live conflict with their purge
+        List<TransactionalCache<Integer, String>> readers = new ArrayList<TransactionalCache<Integer, String>>();
+        for (int i = 0; i < count; i++) {
+            TransactionalCache<Integer, String> reader = global.cleanCopy();
+            assertEquals("value", reader.get(i));
+            reader.put(-2, "reader");
+            readers.add(reader);
+        }
+        ticker.advance(count, TimeUnit.SECONDS);
+
+        // A regular commit purges one batch, the earliest entries first
+        TransactionalCache<Integer, String> writer = global.cleanCopy();
+        writer.put(-1, "writer");
+        global = writer.commit(global);
+        assertPurged(readers, global, 0, TransactionalCache.PURGE_BATCH, true);
+        assertPurged(readers, global, TransactionalCache.PURGE_BATCH, count, false);
+
+        // A background transaction purges the requested number on top of the batch
+        TransactionalCache<Integer, String> purger = global.cleanCopy();
+        purger.purgeExpired(TransactionalCache.PURGE_BATCH / 2);
+        global = purger.commit(global);
+        assertPurged(readers, global, 0, TransactionalCache.PURGE_BATCH * 5 / 2, true);
+        assertPurged(readers, global, TransactionalCache.PURGE_BATCH * 5 / 2, count, false);
+        assertEquals("writer", global.cleanCopy().get(-1));
+    }
+
+    @Test
+    public void testCommit_overwriteRemovesStaleIndexEntry() {
+        TransactionalCache<Integer, String> global = new TransactionalCache<Integer, String>(ticker);
+        TransactionalCache<Integer, String> cache = global.cleanCopy();
+        cache.put(1, "short", 1, TimeUnit.SECONDS);
+        global = cache.commit(global);
+        cache = global.cleanCopy();
+        cache.put(1, "long", 1, TimeUnit.HOURS);
+        global = cache.commit(global);
+        ticker.advance(1, TimeUnit.MINUTES);
+        assertSame("Stale expiry must not purge the new entry", global, purge(global));
+        assertEquals("long", global.cleanCopy().get(1));
+    }
+
+    @Test
+    public void testUpdate() {
+        TransactionalCache<Integer, String> cache = committedFixture().cleanCopy();
+        TransactionalCache<Integer, String> copy = cache.dirtyCopy();
+        copy.put(1, "uno");
+        cache.update(copy, true);
+        assertEquals("one", cache.get(1));
+        cache.update(copy, false);
+        assertEquals("uno", cache.get(1));
+    }
+
+    @Test
+    public void testDirtyCopy_keepsSnapshotTime() {
+        TransactionalCache<Integer, String> global = committedFixture();
+        TransactionalCache<Integer, String> cache = global.cleanCopy();
+        assertEquals("one", cache.get(1));
+        ticker.advance(10, TimeUnit.SECONDS);
+        TransactionalCache<Integer, String> nested = cache.dirtyCopy();
+        assertEquals("Entry alive in the outer transaction is alive in the nested one", "one", nested.get(1));
+        nested.put(4, "four", 30, TimeUnit.SECONDS);
+        cache.update(nested, false);
+        assertEquals("four", cache.get(4));
+        assertEquals("four", cache.commit(global).cleanCopy().get(4));
+    }
+
+    @Test(expected = ConflictException.class)
+    public void testUpdate_copiesReadLog() {
+        TransactionalCache<Integer, String> global = committedFixture();
+        TransactionalCache<Integer, String> cache = global.cleanCopy();
+        global = concurrentPut(global, 2, "dos");
+        TransactionalCache<Integer, String> copy = cache.dirtyCopy();
+        copy.get(2);
+        cache.update(copy, true);
+        cache.put(4, "four");
+        cache.commit(global);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testCommit_failDirtyGlobalState() {
+        TransactionalCache<Integer, String> global = committedFixture();
+        TransactionalCache<Integer, String> cache = global.cleanCopy();
+        global.purgeExpired(1);
+        cache.commit(global);
+    }
+
+    @Test
+    public void testMemory_expiryInTransactions() {
+        Memory<TransactionalCache<Integer, String>> memory = new Memory<TransactionalCache<Integer, String>>(
+                new TransactionalCache<Integer, String>(1, TimeUnit.SECONDS, ticker));
+        memory.runTransaction(new TransactionAdapter<TransactionalCache<Integer, String>>() {
+            @Override
+            public boolean run(TransactionalCache<Integer, String> data) {
+                data.put(1, "one");
+                return true;
+            }
+        });
+        ticker.advance(1, TimeUnit.SECONDS);
+        memory.runTransaction(new TransactionAdapter<TransactionalCache<Integer, String>>() {
+            @Override
+            public boolean run(TransactionalCache<Integer, String> data) {
+                assertNull(data.get(1));
+                return false;
+            }
+        });
+    }
+
+    // ==================== Test fixtures ====================
+
+    /**
+     * Returns the committed cache with key 1 expiring after 5 seconds, key 2 after 20 seconds and key 3 never.
+     */
+    private TransactionalCache<Integer, String> committedFixture() {
+        TransactionalCache<Integer, String> global = new TransactionalCache<Integer, String>(ticker);
+        TransactionalCache<Integer, String> cache = global.cleanCopy();
+        cache.put(1, "one", 5, TimeUnit.SECONDS);
+        cache.put(2, "two", 20, TimeUnit.SECONDS);
+        cache.put(3, "forever");
+        return cache.commit(global);
+    }
+
+    /**
+     * Simulates a concurrent transaction putting the value to the cache.
+     */
+    private static TransactionalCache<Integer, String> concurrentPut(TransactionalCache<Integer, String> global,
+            Integer key, String value) {
+        TransactionalCache<Integer, String> concurrent = global.cleanCopy();
+        concurrent.put(key, value);
+        return concurrent.commit(global);
+    }
+
+    /**
+     * Simulates a background transaction purging the expired entries.
+     */
+    private static TransactionalCache<Integer, String> purge(TransactionalCache<Integer, String> global) {
+        TransactionalCache<Integer, String> purger = global.cleanCopy();
+        purger.purgeExpired(Integer.MAX_VALUE);
+        return purger.commit(global);
+    }
+
+    /**
+     * Checks if the keys in the range have been purged by committing the readers of the keys.
+     */
+    private static void assertPurged(List<TransactionalCache<Integer, String>> readers,
+            TransactionalCache<Integer, String> global, int from, int to, boolean purged) {
+        for (int i = from; i < to; i++) {
+            try {
+                readers.get(i).commit(global);
+                assertFalse("Key " + i + " must be purged", purged);
+            } catch (ConflictException e) {
+                assertTrue("Key " + i + " must not be purged", purged);
+            }
+        }
+    }
+
+    /**
+     * Ticker advanced manually by the tests.
+     */
+    private static class ManualTicker extends Ticker {
+        private long time = 1000;
+
+        @Override
+        public long read() {
+            return time;
+        }
+
+        public void advance(long duration, TimeUnit unit) {
+            time += unit.toNanos(duration);
+        }
+    }
+}
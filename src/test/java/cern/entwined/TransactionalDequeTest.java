@@ -0,0 +1,309 @@
+/*
+ * Entwined STM
+ * 
+ * (c) Copyright 2013 CERN. This software is distributed under the terms of the Apache License Version 2.0, copied
+ * verbatim in the file "COPYING". In applying this licence, CERN does not waive the privileges and immunities granted
+ * to it by virtue of its status as an Intergovernmental Organization or submit itself to any jurisdiction.
+ */
+package cern.entwined;
+
+import static cern.entwined.test.TestUtils.newList;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+import org.junit.Test;
+
+import cern.entwined.exception.ConflictException;
+
+/**
+ * Unit tests for {@link TransactionalDeque}.
+ * 
+ * @author Ivan Koblik
+ */
+public class TransactionalDequeTest {
+
+    // ==================== Constructor tests ====================
+
+    @Test
+    public void testTransactionalDeque() {
+        TransactionalDeque<Integer> deque = new TransactionalDeque<Integer>();
+        assertTrue(deque.isEmpty());
+        assertNull(deque.pollFirst());
+        assertNull(deque.pollLast());
+        assertNull(deque.peekLast());
+    }
+
+    @Test
+    public void testTransactionalDeque_copiesCollection() {
+        List<Integer> source = new ArrayList<Integer>(newList(1, 2, 3));
+        TransactionalDeque<Integer> deque = new TransactionalDeque<Integer>(source);
+        source.clear();
+        assertEquals(newList(1, 2, 3), drain(deque));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testTransactionalDeque_failNullElement() {
+        new TransactionalDeque<Integer>(newList(1, null));
+    }
+
+    // ==================== Local operation tests ====================
+
+    @Test
+    public void testBothEnds() {
+        TransactionalDeque<Integer> deque = new TransactionalDeque<Integer>(newList(2, 3));
+        deque.offerFirst(1);
+        deque.offerLast(4);
+        deque.offerFirst(0);
+        assertEquals(5, deque.size());
+        assertEquals(Integer.valueOf(0), deque.peekFirst());
+        assertEquals(Integer.valueOf(4), deque.peekLast());
+        assertEquals(Integer.valueOf(4), deque.pollLast());
+        assertEquals(Integer.valueOf(3), deque.pollLast());
+        assertEquals(newList(0, 1, 2), drain(deque));
+    }
+
+    @Test
+    public void testPollFirst_reachesTailAdds() {
+        TransactionalDeque<Integer> deque = new TransactionalDeque<Integer>(newList(1));
+        deque.offerLast(2);
+        deque.offerLast(3);
+        assertEquals(Integer.valueOf(1), deque.pollFirst());
+        assertEquals(Integer.valueOf(2), deque.pollFirst());
+        assertEquals(Integer.valueOf(3), deque.peekLast());
+    }
+
+    @Test
+    public void testPollLast_reachesHeadAdds() {
+        TransactionalDeque<Integer> deque = new TransactionalDeque<Integer>(newList(3));
+        deque.offerFirst(2);
+        deque.offerFirst(1);
+        assertEquals(Integer.valueOf(3), deque.pollLast());
+        assertEquals(Integer.valueOf(2), deque.pollLast());
+        assertEquals(Integer.valueOf(1), deque.pollLast());
+        assertTrue(deque.isEmpty());
+    }
+
+    @Test
+    public void testPush_Pop() {
+        TransactionalDeque<Integer> deque = new TransactionalDeque<Integer>();
+        deque.push(1);
+        deque.push(2);
+        assertEquals(Integer.valueOf(2), deque.pop());
+        assertEquals(Integer.valueOf(1), deque.pop());
+    }
+
+    @Test(expected = NoSuchElementException.class)
+    public void testPop_failEmpty() {
+        new TransactionalDeque<Integer>().pop();
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testOfferFirst_failNull() {
+        new TransactionalDeque<Integer>().offerFirst(null);
+    }
+
+    // ==================== Transactional tests ====================
+
+    @Test
+    public void testCommit() {
+        TransactionalDeque<Integer> global = new TransactionalDeque<Integer>(newList(1, 2, 3, 4));
+        TransactionalDeque<Integer> copy = global.cleanCopy();
+        copy.pollFirst();
+        copy.pollLast();
+        copy.offerFirst(10);
+        copy.offerFirst(9);
+        copy.offerLast(20);
+        global = copy.commit(global);
+        assertEquals(newList(9, 10, 2, 3, 20), drain(global.cleanCopy()));
+
+        copy = global.cleanCopy();
+        assertEquals(Integer.valueOf(9), copy.pollFirst());
+        copy.offerFirst(8);
+        global = copy.commit(global);
+        assertEquals(newList(8, 10, 2, 3, 20), drain(global.cleanCopy()));
+    }
+
+    @Test
+    public void testCommit_emptied() {
+        TransactionalDeque<Integer> global = new TransactionalDeque<Integer>(newList(1, 2));
+        TransactionalDeque<Integer> copy = global.cleanCopy();
+        drain(copy);
+        global = copy.commit(global);
+        assertTrue(global.cleanCopy().isEmpty());
+
+        copy = global.cleanCopy();
+        copy.offerLast(3);
+        copy.offerFirst(2);
+        global = copy.commit(global);
+        assertEquals(newList(2, 3), drain(global.cleanCopy()));
+    }
+
+    @Test
+    public void testCommit_noChangesReturnsGlobalState() {
+        TransactionalDeque<Integer> global = new TransactionalDeque<Integer>(newList(1));
+        TransactionalDeque<Integer> copy = global.cleanCopy();
+        copy.peekFirst();
+        copy.peekLast();
+        assertSame(global, copy.commit(global));
+    }
+
+    @Test
+    public void testCommit_oppositeEndsDontConflict() {
+        TransactionalDeque<Integer> global = new TransactionalDeque<Integer>(newList(1, 2, 3));
+        TransactionalDeque<Integer> head = global.cleanCopy();
+        TransactionalDeque<Integer> tail = global.cleanCopy();
+        assertEquals(Integer.valueOf(1), head.pollFirst());
+        head.offerFirst(0);
+        assertEquals(Integer.valueOf(3), tail.pollLast());
+        tail.offerLast(4);
+        global = head.commit(global);
+        global = tail.commit(global);
+        assertEquals(newList(0, 2, 4), drain(global.cleanCopy()));
+    }
+
+    @Test(expected = ConflictException.class)
+    public void testCommit_sameEndConflicts() {
+        TransactionalDeque<Integer> global = new TransactionalDeque<Integer>(newList(1, 2, 3));
+        TransactionalDeque<Integer> first = global.cleanCopy();
+        TransactionalDeque<Integer> second = global.cleanCopy();
+        first.pollLast();
+        second.peekLast();
+        global = first.commit(global);
+        second.commit(global);
+    }
+
+    @Test(expected = ConflictException.class)
+    public void testCommit_offerFirstConflictsWithHeadReader() {
+        TransactionalDeque<Integer> global = new TransactionalDeque<Integer>(newList(1, 2));
+        TransactionalDeque<Integer> reader = global.cleanCopy();
+        TransactionalDeque<Integer> producer = global.cleanCopy();
+        reader.peekFirst();
+        producer.offerFirst(0);
+        global = producer.commit(global);
+        reader.commit(global);
+    }
+
+    @Test(expected = ConflictException.class)
+    public void testCommit_oppositeEndsConflictWhenNearlyEmpty() {
+        TransactionalDeque<Integer> global = new TransactionalDeque<Integer>(newList(1, 2));
+        TransactionalDeque<Integer> head = global.cleanCopy();
+        TransactionalDeque<Integer> tail = global.cleanCopy();
+        head.pollFirst();
+        head.pollFirst();
+        tail.pollLast();
+        global = tail.commit(global);
+        head.commit(global);
+    }
+
+    @Test(expected = ConflictException.class)
+    public void testCommit_readingOwnTailAddsConflictsWithOfferLast() {
+        TransactionalDeque<Integer> global = new TransactionalDeque<Integer>(newList(1));
+        TransactionalDeque<Integer> reader = global.cleanCopy();
+        TransactionalDeque<Integer> producer = global.cleanCopy();
+        reader.offerLast(3);
+        reader.pollFirst();
+        assertEquals(Integer.valueOf(3), reader.pollFirst());
+        producer.offerLast(2);
+        global = producer.commit(global);
+        reader.commit(global);
+    }
+
+    @Test
+    public void testCommit_ownHeadAddsDontConflict() {
+        TransactionalDeque<Integer> global = new TransactionalDeque<Integer>(newList(1));
+        TransactionalDeque<Integer> stack = global.cleanCopy();
+        TransactionalDeque<Integer> other = global.cleanCopy();
+        stack.push(2);
+        assertEquals(Integer.valueOf(2), stack.peekFirst());
+        other.push(3);
+        global = other.commit(global);
+        global = stack.commit(global);
+        assertEquals(newList(2, 3, 1), drain(global.cleanCopy()));
+    }
+
+    @Test
+    public void testCommit_emptyDequeDoesntConflictWithOffer() {
+        TransactionalDeque<Integer> global = new TransactionalDeque<Integer>();
+        TransactionalDeque<Integer> consumer = global.cleanCopy();
+        TransactionalDeque<Integer> producer = global.cleanCopy();
+        assertNull(consumer.pollFirst());
+        producer.offerLast(1);
+        global = producer.commit(global);
+        global = consumer.commit(global);
+        assertEquals(newList(1), drain(global.cleanCopy()));
+    }
+
+    @Test(expected = ConflictException.class)
+    public void testCommit_sizeConflictsWithAnyChange() {
+        TransactionalDeque<Integer> global = new TransactionalDeque<Integer>(newList(1, 2, 3));
+        TransactionalDeque<Integer> reader = global.cleanCopy();
+        TransactionalDeque<Integer> producer = global.cleanCopy();
+        reader.size();
+        producer.offerLast(4);
+        global = producer.commit(global);
+        reader.commit(global);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testCommit_failDirtyGlobalState() {
+        TransactionalDeque<Integer> global = new TransactionalDeque<Integer>();
+        TransactionalDeque<Integer> dirty = global.cleanCopy();
+        dirty.offerLast(1);
+        global.cleanCopy().commit(dirty);
+    }
+
+    @Test
+    public void testUpdate() {
+        TransactionalDeque<Integer> global = new TransactionalDeque<Integer>(newList(1, 2, 3));
+        TransactionalDeque<Integer> copy = global.cleanCopy();
+        TransactionalDeque<Integer> nested = copy.dirtyCopy();
+        nested.pollLast();
+        nested.offerFirst(0);
+
+        copy.update(nested, true);
+        assertEquals("Only read logs are copied", Integer.valueOf(3), copy.peekLast());
+
+        copy.update(nested, false);
+        global = copy.commit(global);
+        assertEquals(newList(0, 1, 2), drain(global.cleanCopy()));
+    }
+
+    @Test(expected = ConflictException.class)
+    public void testUpdate_readLogsAreCopied() {
+        TransactionalDeque<Integer> global = new TransactionalDeque<Integer>(newList(1, 2));
+        TransactionalDeque<Integer> copy = global.cleanCopy();
+        TransactionalDeque<Integer> nested = copy.dirtyCopy();
+        nested.peekLast();
+        copy.update(nested, true);
+
+        TransactionalDeque<Integer> producer = global.cleanCopy();
+        producer.offerLast(3);
+        global = producer.commit(global);
+        copy.commit(global);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testUpdate_failDifferentSource() {
+        new TransactionalDeque<Integer>().update(new TransactionalDeque<Integer>(), false);
+    }
+
+    /**
+     * Polls all the elements of the deque from the beginning.
+     * 
+     * @param deque The deque.
+     * @return The polled elements.
+     */
+    private static <E> List<E> drain(TransactionalDeque<E> deque) {
+        List<E> result = new ArrayList<E>();
+        for (E element = deque.pollFirst(); null != element; element = deque.pollFirst()) {
+            result.add(element);
+        }
+        return result;
+    }
+}
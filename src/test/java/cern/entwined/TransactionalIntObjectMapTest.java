@@ -0,0 +1,96 @@
+/*
+ * Entwined STM
+ * 
+ * (c) Copyright 2013 CERN. This software is distributed under the terms of the Apache License Version 2.0, copied
+ * verbatim in the file "COPYING". In applying this licence, CERN does not waive the privileges and immunities granted
+ * to it by virtue of its status as an Intergovernmental Organization or submit itself to any jurisdiction.
+ */
+package cern.entwined;
+
+import static cern.entwined.test.TestUtils.newList;
+import static cern.entwined.test.TestUtils.newMap;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+
+import org.junit.Test;
+
+import cern.entwined.exception.ConflictException;
+
+/**
+ * Unit tests for {@link TransactionalIntObjectMap}.
+ * 
+ * @author Ivan Koblik
+ */
+public class TransactionalIntObjectMapTest {
+
+    @Test
+    public void testLocalOperations() {
+        TransactionalIntObjectMap<String> map = defaultFixture();
+        assertEquals("1", map.put(1, "one"));
+        assertEquals("one", map.get(1));
+        assertEquals("2", map.remove(2));
+        assertFalse(map.containsKey(2));
+        assertNull(map.put(-5, "-5"));
+        assertEquals(2, map.size());
+        int[] keys = map.keys();
+        Arrays.sort(keys);
+        assertTrue(Arrays.equals(new int[] { -5, 1 }, keys));
+        map.clear();
+        assertTrue(map.isEmpty());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testTransactionalIntObjectMapMap_failNullArgument() {
+        new TransactionalIntObjectMap<String>(null);
+    }
+
+    @Test
+    public void testCommit() {
+        TransactionalIntObjectMap<String> map = defaultFixture();
+        TransactionalIntObjectMap<String> global = map.cleanCopy();
+        map.put(3, "3");
+        TransactionalIntObjectMap<String> committed = map.commit(global);
+        assertEquals("3", committed.get(3));
+        assertEquals("1", committed.get(1));
+    }
+
+    @Test
+    public void testCommit_noChangesReturnsGlobalState() {
+        TransactionalIntObjectMap<String> map = defaultFixture();
+        TransactionalIntObjectMap<String> global = map.cleanCopy();
+        map.get(1);
+        assertSame(global, map.commit(global));
+    }
+
+    @Test(expected = ConflictException.class)
+    public void testCommit_failConflict() {
+        TransactionalIntObjectMap<String> map = defaultFixture();
+        TransactionalIntObjectMap<String> concurrent = map.cleanCopy();
+        concurrent.put(1, "uno");
+        TransactionalIntObjectMap<String> global = concurrent.commit(map.cleanCopy());
+        map.get(1);
+        map.commit(global);
+    }
+
+    @Test
+    public void testUpdate() {
+        TransactionalIntObjectMap<String> map = defaultFixture();
+        TransactionalIntObjectMap<String> copy = map.dirtyCopy();
+        copy.put(1, "one");
+        map.update(copy, true);
+        assertEquals("1", map.get(1));
+        map.update(copy, false);
+        assertEquals("one", map.get(1));
+    }
+
+    // ==================== Test fixtures ====================
+
+    private static TransactionalIntObjectMap<String> defaultFixture() {
+        return new TransactionalIntObjectMap<String>(newMap(newList(1, 2), newList("1", "2")));
+    }
+}
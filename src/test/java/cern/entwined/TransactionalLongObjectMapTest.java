@@ -0,0 +1,233 @@
+/*
+ * Entwined STM
+ * 
+ * (c) Copyright 2013 CERN. This software is distributed under the terms of the Apache License Version 2.0, copied
+ * verbatim in the file "COPYING". In applying this licence, CERN does not waive the privileges and immunities granted
+ * to it by virtue of its status as an Intergovernmental Organization or submit itself to any jurisdiction.
+ */
+package cern.entwined;
+
+import static cern.entwined.test.TestUtils.newList;
+import static cern.entwined.test.TestUtils.newMap;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Test;
+
+import cern.entwined.exception.ConflictException;
+
+/**
+ * Unit tests for {@link TransactionalLongObjectMap}.
+ * 
+ * @author Ivan Koblik
+ */
+public class TransactionalLongObjectMapTest {
+
+    @Test
+    public void testTransactionalLongObjectMapMap_copiesSource() {
+        Map<Long, Integer> sourceMap = new HashMap<Long, Integer>(newMap(newList(1L, 2L), newList(10, 20)));
+        TransactionalLongObjectMap<Integer> map = new TransactionalLongObjectMap<Integer>(sourceMap);
+        sourceMap.clear();
+        assertEquals((Integer) 10, map.get(1L));
+        assertEquals((Integer) 20, map.get(2L));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testTransactionalLongObjectMapMap_failNullArgument() {
+        new TransactionalLongObjectMap<Integer>(null);
+    }
+
+    // ==================== Local operation tests ====================
+
+    @Test
+    public void testPut_Get_Remove() {
+        TransactionalLongObjectMap<Integer> map = defaultFixture();
+        assertEquals((Integer) 10, map.put(1L, 11));
+        assertEquals((Integer) 11, map.get(1L));
+        assertNull(map.put(5L, 50));
+        assertTrue(map.containsKey(5L));
+        assertEquals((Integer) 20, map.remove(2L));
+        assertFalse(map.containsKey(2L));
+        assertNull(map.put(2L, 21));
+        assertEquals((Integer) 21, map.get(2L));
+        assertEquals((Integer) 50, map.remove(5L));
+        assertNull(map.get(5L));
+    }
+
+    @Test
+    public void testSize_Keys() {
+        TransactionalLongObjectMap<Integer> map = defaultFixture();
+        map.put(1L, 11);
+        map.put(4L, 40);
+        map.remove(2L);
+        assertEquals(3, map.size());
+        long[] keys = map.keys();
+        Arrays.sort(keys);
+        assertTrue(Arrays.equals(new long[] { 1L, 3L, 4L }, keys));
+    }
+
+    @Test
+    public void testClear() {
+        TransactionalLongObjectMap<Integer> map = defaultFixture();
+        map.put(10L, 100);
+        map.clear();
+        assertTrue(map.isEmpty());
+        assertEquals(0, map.size());
+        assertFalse(map.containsKey(1L));
+        assertFalse(map.containsKey(10L));
+    }
+
+    // ==================== Transactional tests ====================
+
+    @Test
+    public void testCommit_appliesChanges() {
+        TransactionalLongObjectMap<Integer> map = defaultFixture();
+        TransactionalLongObjectMap<Integer> global = map.cleanCopy();
+        map.put(1L, 11);
+        map.remove(2L);
+        map.put(4L, 40);
+        TransactionalLongObjectMap<Integer> committed = map.commit(global);
+        assertEquals((Integer) 11, committed.get(1L));
+        assertFalse(committed.containsKey(2L));
+        assertEquals((Integer) 30, committed.get(3L));
+        assertEquals((Integer) 40, committed.get(4L));
+        assertNull("Global state untouched", global.get(4L));
+    }
+
+    @Test
+    public void testCommit_noChangesReturnsGlobalState() {
+        TransactionalLongObjectMap<Integer> map = defaultFixture();
+        TransactionalLongObjectMap<Integer> global = map.cleanCopy();
+        map.get(1L);
+        assertSame(global, map.commit(global));
+    }
+
+    @Test(expected = ConflictException.class)
+    public void testCommit_failReadConflict() {
+        TransactionalLongObjectMap<Integer> map = defaultFixture();
+        TransactionalLongObjectMap<Integer> global = concurrentPut(map, 1L, 1000);
+        map.get(1L);
+        map.commit(global);
+    }
+
+    @Test(expected = ConflictException.class)
+    public void testCommit_failMissingKeyConflict() {
+        TransactionalLongObjectMap<Integer> map = defaultFixture();
+        TransactionalLongObjectMap<Integer> global = concurrentPut(map, 7L, 1000);
+        map.containsKey(7L);
+        map.put(8L, 80);
+        map.commit(global);
+    }
+
+    @Test
+    public void testCommit_noConflictForOtherKeys() {
+        TransactionalLongObjectMap<Integer> map = defaultFixture();
+        TransactionalLongObjectMap<Integer> global = concurrentPut(map, 1L, 1000);
+        map.get(2L);
+        map.put(3L, 31);
+        TransactionalLongObjectMap<Integer> committed = map.commit(global);
+        assertEquals((Integer) 1000, committed.get(1L));
+        assertEquals((Integer) 31, committed.get(3L));
+    }
+
+    @Test(expected = ConflictException.class)
+    public void testCommit_failGlobalAccessConflict() {
+        TransactionalLongObjectMap<Integer> map = defaultFixture();
+        TransactionalLongObjectMap<Integer> global = concurrentPut(map, 100L, 1000);
+        map.size();
+        map.commit(global);
+    }
+
+    @Test
+    public void testCommit_clearedMapIgnoresNewKeys() {
+        TransactionalLongObjectMap<Integer> map = defaultFixture();
+        TransactionalLongObjectMap<Integer> global = concurrentPut(map, 100L, 1000);
+        map.clear();
+        map.size();
+        TransactionalLongObjectMap<Integer> committed = map.commit(global);
+        assertEquals((Integer) 1000, committed.get(100L));
+        assertFalse(committed.containsKey(1L));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testCommit_failNotCommittedGlobalState() {
+        TransactionalLongObjectMap<Integer> map = defaultFixture();
+        TransactionalLongObjectMap<Integer> global = map.cleanCopy();
+        global.get(1L);
+        map.commit(global);
+    }
+
+    @Test
+    public void testUpdate() {
+        TransactionalLongObjectMap<Integer> map = defaultFixture();
+        TransactionalLongObjectMap<Integer> copy = map.dirtyCopy();
+        copy.put(1L, 11);
+        copy.get(2L);
+
+        map.update(copy, true);
+        assertEquals((Integer) 10, map.get(1L));
+
+        map.update(copy, false);
+        assertEquals((Integer) 11, map.get(1L));
+    }
+
+    @Test(expected = ConflictException.class)
+    public void testUpdate_copiesReadLog() {
+        TransactionalLongObjectMap<Integer> map = defaultFixture();
+        TransactionalLongObjectMap<Integer> global = concurrentPut(map, 2L, 1000);
+        TransactionalLongObjectMap<Integer> copy = map.dirtyCopy();
+        copy.get(2L);
+        map.update(copy, true);
+        map.commit(global);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testUpdate_failDifferentSource() {
+        defaultFixture().update(defaultFixture(), false);
+    }
+
+    @Test
+    public void testMemory_concurrentIncrements() {
+        final Memory<TransactionalLongObjectMap<Integer>> memory = new Memory<TransactionalLongObjectMap<Integer>>(
+                defaultFixture());
+        for (int i = 0; i < 10; i++) {
+            memory.runTransaction(new TransactionAdapter<TransactionalLongObjectMap<Integer>>() {
+                @Override
+                public boolean run(TransactionalLongObjectMap<Integer> data) {
+                    data.put(1L, data.get(1L) + 1);
+                    return true;
+                }
+            });
+        }
+        memory.runTransaction(new TransactionAdapter<TransactionalLongObjectMap<Integer>>() {
+            @Override
+            public boolean run(TransactionalLongObjectMap<Integer> data) {
+                assertEquals((Integer) 20, data.get(1L));
+                return false;
+            }
+        });
+    }
+
+    // ==================== Test fixtures ====================
+
+    private static TransactionalLongObjectMap<Integer> defaultFixture() {
+        return new TransactionalLongObjectMap<Integer>(newMap(newList(1L, 2L, 3L), newList(10, 20, 30)));
+    }
+
+    /**
+     * Simulates a concurrent transaction putting the value to the map.
+     */
+    private static TransactionalLongObjectMap<Integer> concurrentPut(TransactionalLongObjectMap<Integer> map,
+            long key, Integer value) {
+        TransactionalLongObjectMap<Integer> concurrent = map.cleanCopy();
+        concurrent.put(key, value);
+        return concurrent.commit(map.cleanCopy());
+    }
+}
@@ -17,18 +17,28 @@ import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 import java.util.NoSuchElementException;
 import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
 
 import org.junit.Test;
 
 import cern.entwined.exception.ConflictException;
 
+import com.google.common.base.Equivalence;
+import com.google.common.base.Function;
+import com.google.common.base.Functions;
 import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Iterators;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Ordering;
 
 /**
  * Unit test for {@link TransactionalMap}.
@@ -613,17 +623,97 @@ public class TransactionalMapTest {
      * Test method for {@link cern.entwined.TransactionalMap#size()}
      */
     @Test(expected = ConflictException.class)
-    public void testSize_marksAsGloballyAccessed() {
+    public void testSize_conflictsWithNewKey() {
         defaultFixture(12);
         localMap.size();
         localMap.commit(globalState);
     }
 
+    /**
+     * Test method for {@link cern.entwined.TransactionalMap#size()}
+     */
+    @Test
+    public void testSize_doesntConflictWithValueChange() {
+        defaultFixture(1);
+        assertEquals(4, localMap.size());
+        localMap.put(3, 30);
+        TransactionalMap<Integer, Integer> result = localMap.commit(globalState);
+        assertEquals((Integer) 10, result.get(1));
+        assertEquals((Integer) 30, result.get(3));
+    }
+
+    /**
+     * Test method for {@link cern.entwined.TransactionalMap#size()}
+     */
+    @Test(expected = ConflictException.class)
+    public void testSize_conflictsWithRemovedKey() {
+        defaultFixture();
+        globalState.remove(4);
+        globalState = globalState.commit(localMap.cleanCopy());
+        localMap.size();
+        localMap.commit(globalState);
+    }
+
+    /**
+     * Test method for {@link cern.entwined.TransactionalMap#size()}
+     */
+    @Test
+    public void testSize_doesntConflictWithReplacedKey() {
+        defaultFixture();
+        TransactionalMap<Integer, Integer> concurrent = localMap.cleanCopy();
+        concurrent.remove(4);
+        concurrent.put(5, 9);
+        globalState = concurrent.commit(localMap.cleanCopy());
+        localMap.size();
+        localMap.commit(globalState);
+    }
+
+    /**
+     * Test method for {@link cern.entwined.TransactionalMap#size()}
+     */
+    @Test(expected = ConflictException.class)
+    public void testSize_conflictsWhenLocallyAddedKeyAddedConcurrently() {
+        defaultFixture();
+        TransactionalMap<Integer, Integer> concurrent = localMap.cleanCopy();
+        concurrent.remove(4);
+        concurrent.put(5, 9);
+        globalState = concurrent.commit(localMap.cleanCopy());
+        localMap.put(5, 10);
+        assertEquals(5, localMap.size());
+        localMap.commit(globalState);
+    }
+
+    /**
+     * Test method for {@link cern.entwined.TransactionalMap#size()}
+     */
+    @Test
+    public void testSize_trackedThroughModifications() {
+        defaultFixture();
+        localMap.put(1, 1);
+        localMap.put(5, 5);
+        localMap.put(5, 6);
+        assertEquals(5, localMap.size());
+        localMap.remove(1);
+        localMap.remove(1);
+        localMap.remove(7);
+        assertEquals(4, localMap.size());
+        localMap.remove(5);
+        localMap.put(1, 1);
+        assertEquals(4, localMap.size());
+        TransactionalMap<Integer, Integer> copy = localMap.dirtyCopy();
+        copy.put(6, 6);
+        assertEquals(5, copy.size());
+        localMap.update(copy, true);
+        assertEquals(4, localMap.size());
+        localMap.update(copy, false);
+        assertEquals(5, localMap.size());
+    }
+
     /**
      * Test method for {@link cern.entwined.TransactionalMap#size()}
      */
     @Test(expected = ConflictException.class)
-    public void testSize_marksAsGloballyAccessedAsClearDoesntMatterWhenUsedAfter() {
+    public void testSize_clearDoesntMatterWhenUsedAfter() {
         defaultFixture(12);
         localMap.size();
         localMap.clear();
@@ -647,7 +737,7 @@ public class TransactionalMapTest {
      * Test method for {@link cern.entwined.TransactionalMap#isEmpty()}
      */
     @Test(expected = ConflictException.class)
-    public void testIsEmpty_marksAsGloballyAccessedWhenEmpty() {
+    public void testIsEmpty_conflictsWhenEmpty() {
         Map<Integer, Integer> sourceMap = ImmutableMap.<Integer, Integer> of();
         localMap = new TransactionalMap<Integer, Integer>(sourceMap);
 
@@ -662,7 +752,7 @@ public class TransactionalMapTest {
      * Test method for {@link cern.entwined.TransactionalMap#isEmpty()}
      */
     @Test(expected = ConflictException.class)
-    public void testIsEmpty_marksAsGloballyAccessedWhenEmptied() {
+    public void testIsEmpty_conflictsWhenEmptied() {
         defaultFixture(12);
         for (Integer i : newList(1, 2, 3, 4)) {
             localMap.remove(i);
@@ -692,7 +782,7 @@ public class TransactionalMapTest {
      * Test method for {@link cern.entwined.TransactionalMap#isEmpty()}
      */
     @Test(expected = ConflictException.class)
-    public void testIsEmpty_marksAsGloballyAccessedAsClearDoesntMatterWhenCalledAfter() {
+    public void testIsEmpty_clearDoesntMatterWhenCalledAfter() {
         defaultFixture(12);
         for (Integer i : newList(1, 2, 3, 4)) {
             localMap.remove(i);
@@ -926,7 +1016,7 @@ public class TransactionalMapTest {
     public void testUpdateLogsOnly_globallyAccessedPreserved() {
         defaultFixture(1);
         TransactionalMap<Integer, Integer> copyMap = localMap.dirtyCopy();
-        copyMap.size();
+        Iterators.size(copyMap.keySet().iterator());
 
         localMap.update(copyMap, true);
         localMap.commit(globalState);
@@ -1573,9 +1663,1101 @@ public class TransactionalMapTest {
         iterator.remove();
     }
 
-    // =======================================================
-    // ==================== Test fixtures ====================
-    // =======================================================
+    // ==================== Conflict policy tests ====================
+
+    @Test(expected = ConflictException.class)
+    public void testCommit_identityPolicy_failEqualValue() {
+        TransactionalMap<Integer, String> local = new TransactionalMap<Integer, String>(newMap(1, new String("a")));
+        TransactionalMap<Integer, String> global = new TransactionalMap<Integer, String>(newMap(1, new String("a")));
+        local.get(1);
+        local.commit(global);
+    }
+
+    @Test
+    public void testCommit_equalsPolicy_equalValueDoesntConflict() {
+        TransactionalMap<Integer, String> local = new TransactionalMap<Integer, String>(newMap(1, new String("a")),
+                Equivalence.equals());
+        TransactionalMap<Integer, String> global = new TransactionalMap<Integer, String>(newMap(1, new String("a")));
+        local.get(1);
+        local.put(2, "b");
+        TransactionalMap<Integer, String> committed = local.commit(global);
+        assertEquals("b", committed.get(2));
+    }
+
+    @Test(expected = ConflictException.class)
+    public void testCommit_equalsPolicy_failDifferentValue() {
+        TransactionalMap<Integer, String> local = new TransactionalMap<Integer, String>(newMap(1, "a"),
+                Equivalence.equals());
+        TransactionalMap<Integer, String> global = new TransactionalMap<Integer, String>(newMap(1, "b"));
+        local.get(1);
+        local.commit(global);
+    }
+
+    @Test(expected = ConflictException.class)
+    public void testCommit_equalsPolicy_failRemovedNullValue() {
+        Map<Integer, String> sourceMap = new HashMap<Integer, String>();
+        sourceMap.put(1, null);
+        TransactionalMap<Integer, String> local = new TransactionalMap<Integer, String>(sourceMap,
+                Equivalence.equals());
+        TransactionalMap<Integer, String> global = new TransactionalMap<Integer, String>();
+        local.get(1);
+        local.commit(global);
+    }
+
+    @Test
+    public void testCommit_versionPolicy_sameVersionDoesntConflict() {
+        Equivalence<String> sameVersion = Equivalence.equals().onResultOf(new Function<String, Character>() {
+            @Override
+            public Character apply(String input) {
+                return input.charAt(0);
+            }
+        });
+        TransactionalMap<Integer, String> local = new TransactionalMap<Integer, String>(newMap(1, "1:old"),
+                sameVersion);
+        TransactionalMap<Integer, String> global = new TransactionalMap<Integer, String>(newMap(1, "1:new"));
+        local.get(1);
+        local.commit(global);
+
+        TransactionalMap<Integer, String> newerGlobal = new TransactionalMap<Integer, String>(newMap(1, "2:new"));
+        local = local.cleanCopy();
+        local.get(1);
+        try {
+            local.commit(newerGlobal);
+            fail("Different version must conflict");
+        } catch (ConflictException ex) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testCommit_equalsPolicy_globalAccessWithEqualValues() {
+        TransactionalMap<Integer, String> local = new TransactionalMap<Integer, String>(newMap(1, new String("a")),
+                Equivalence.equals());
+        TransactionalMap<Integer, String> global = new TransactionalMap<Integer, String>(newMap(1, new String("a")));
+        local.size();
+        local.commit(global);
+    }
+
+    @Test
+    public void testCommit_keepsConflictPolicy() {
+        TransactionalMap<Integer, String> local = new TransactionalMap<Integer, String>(newMap(1, "a"),
+                Equivalence.equals());
+        local.put(2, "b");
+        TransactionalMap<Integer, String> committed = local.commit(local.cleanCopy());
+
+        TransactionalMap<Integer, String> next = committed.cleanCopy();
+        next.get(1);
+        TransactionalMap<Integer, String> concurrent = committed.cleanCopy();
+        concurrent.put(1, new String("a"));
+        next.commit(concurrent.commit(committed));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testTransactionalMapMapOfKVEquivalence_failNullPolicy() {
+        new TransactionalMap<Integer, String>(newMap(1, "a"), null);
+    }
+
+    // ==================== Merge tests ====================
+
+    /**
+     * Test method for {@link cern.entwined.TransactionalMap#merge(Object, Object, MergeFunction)}.
+     */
+    @Test
+    public void testMerge_localValues() {
+        defaultFixture();
+        assertEquals((Integer) 6, localMap.merge(1, 1, SUM));
+        assertEquals((Integer) 1, localMap.merge(10, 1, SUM));
+        assertEquals(null, localMap.merge(2, -6, SUM));
+        assertEquals((Integer) 6, localMap.get(1));
+        assertEquals((Integer) 1, localMap.get(10));
+        assertFalse(localMap.containsKey(2));
+        assertEquals(4, localMap.size());
+    }
+
+    /**
+     * Test method for {@link cern.entwined.TransactionalMap#merge(Object, Object, MergeFunction)}.
+     */
+    @Test(expected = IllegalArgumentException.class)
+    public void testMerge_failNullValue() {
+        defaultFixture();
+        localMap.merge(1, null, SUM);
+    }
+
+    /**
+     * Test method for {@link cern.entwined.TransactionalMap#merge(Object, Object, MergeFunction)}.
+     */
+    @Test
+    public void testMerge_reappliedToGlobalValue() {
+        defaultFixture(1, 5);
+        localMap.merge(1, 100, SUM);
+        localMap.merge(1, 100, SUM);
+        localMap.merge(5, 100, SUM);
+        localMap.merge(7, 100, SUM);
+        TransactionalMap<Integer, Integer> result = localMap.commit(globalState);
+        assertEquals("Merged with concurrently updated value", (Integer) 210, result.get(1));
+        assertEquals("Merged with concurrently added value", (Integer) 111, result.get(5));
+        assertEquals("Absent key", (Integer) 100, result.get(7));
+    }
+
+    /**
+     * Test method for {@link cern.entwined.TransactionalMap#merge(Object, Object, MergeFunction)}.
+     */
+    @Test
+    public void testMerge_removalReappliedToGlobalValue() {
+        defaultFixture(2);
+        assertEquals(null, localMap.merge(2, -6, SUM));
+        TransactionalMap<Integer, Integer> result = localMap.commit(globalState);
+        assertEquals("Global value 10 merged", (Integer) 4, result.get(2));
+    }
+
+    /**
+     * Test method for {@link cern.entwined.TransactionalMap#merge(Object, Object, MergeFunction)}.
+     */
+    @Test(expected = ConflictException.class)
+    public void testMerge_readAfterMergeConflicts() {
+        defaultFixture(1);
+        localMap.merge(1, 100, SUM);
+        localMap.get(1);
+        localMap.commit(globalState);
+    }
+
+    /**
+     * Test method for {@link cern.entwined.TransactionalMap#merge(Object, Object, MergeFunction)}.
+     */
+    @Test(expected = ConflictException.class)
+    public void testMerge_mergeAfterReadConflicts() {
+        defaultFixture(1);
+        localMap.get(1);
+        localMap.merge(1, 100, SUM);
+        localMap.commit(globalState);
+    }
+
+    /**
+     * Test method for {@link cern.entwined.TransactionalMap#merge(Object, Object, MergeFunction)}.
+     */
+    @Test
+    public void testMerge_putAfterMergeWins() {
+        defaultFixture(1);
+        localMap.merge(1, 100, SUM);
+        try {
+            localMap.put(1, 0);
+            localMap.commit(globalState);
+            fail("Put marks the key as accessed");
+        } catch (ConflictException ex) {
+            // expected
+        }
+        defaultFixture();
+        localMap.merge(1, 100, SUM);
+        localMap.put(1, 0);
+        assertEquals((Integer) 0, localMap.commit(globalState).get(1));
+    }
+
+    /**
+     * Test method for {@link cern.entwined.TransactionalMap#merge(Object, Object, MergeFunction)}.
+     */
+    @Test
+    public void testMerge_dirtyCopyAndUpdate() {
+        defaultFixture(1);
+        TransactionalMap<Integer, Integer> copy = localMap.dirtyCopy();
+        copy.merge(1, 100, SUM);
+        localMap.update(copy, true);
+        assertSame("Only logs updated", globalState, localMap.commit(globalState));
+        localMap.update(copy, false);
+        TransactionalMap<Integer, Integer> nested = localMap.dirtyCopy();
+        nested.merge(1, 1, SUM);
+        localMap.update(nested, false);
+        assertEquals((Integer) 111, localMap.commit(globalState).get(1));
+    }
+
+    /**
+     * Test method for {@link cern.entwined.TransactionalMap#merge(Object, Object, MergeFunction)}.
+     */
+    @Test(expected = ConflictException.class)
+    public void testMerge_sizeReadConflictsWithConcurrentInsertion() {
+        defaultFixture();
+        TransactionalMap<Integer, Integer> concurrent = localMap.cleanCopy();
+        concurrent.remove(4);
+        concurrent.put(5, 9);
+        globalState = concurrent.commit(localMap.cleanCopy());
+        localMap.merge(5, 1, SUM);
+        localMap.size();
+        localMap.commit(globalState);
+    }
+
+    /**
+     * Test method for {@link cern.entwined.TransactionalMap#merge(Object, Object, MergeFunction)}.
+     */
+    @Test
+    public void testMerge_concurrentIncrementsDontConflict() throws InterruptedException {
+        final Memory<TransactionalMap<Integer, Integer>> memory = new Memory<TransactionalMap<Integer, Integer>>(
+                new TransactionalMap<Integer, Integer>());
+        final int[] runs = new int[1];
+        Thread[] threads = new Thread[4];
+        for (int i = 0; i < threads.length; i++) {
+            threads[i] = new Thread() {
+                @Override
+                public void run() {
+                    for (int j = 0; j < 250; j++) {
+                        memory.runTransaction(new TransactionAdapter<TransactionalMap<Integer, Integer>>() {
+                            @Override
+                            public boolean run(TransactionalMap<Integer, Integer> data) {
+                                synchronized (runs) {
+                                    runs[0]++;
+                                }
+                                data.merge(1, 1, SUM);
+                                return true;
+                            }
+                        });
+                    }
+                }
+            };
+            threads[i].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertEquals("No retries", 1000, runs[0]);
+        memory.runTransaction(new TransactionAdapter<TransactionalMap<Integer, Integer>>() {
+            @Override
+            public boolean run(TransactionalMap<Integer, Integer> data) {
+                assertEquals((Integer) 1000, data.get(1));
+                return false;
+            }
+        });
+    }
+
+    // ==================== Bulk operation tests ====================
+
+    /**
+     * Test method for {@link cern.entwined.TransactionalMap#getAll(java.util.Collection)}.
+     */
+    @Test
+    public void testGetAll() {
+        defaultFixture();
+        localMap.put(5, 9);
+        localMap.put(1, null);
+        localMap.remove(2);
+        Map<Integer, Integer> expected = new HashMap<Integer, Integer>();
+        expected.put(1, null);
+        expected.put(3, 7);
+        expected.put(5, 9);
+        assertEquals(expected, localMap.getAll(newList(1, 2, 3, 5, 6)));
+    }
+
+    /**
+     * Test method for {@link cern.entwined.TransactionalMap#getAll(java.util.Collection)}.
+     */
+    @Test(expected = ConflictException.class)
+    public void testGetAll_marksAccessed() {
+        defaultFixture(12);
+        localMap.getAll(newList(1, 12));
+        localMap.commit(globalState);
+    }
+
+    /**
+     * Test method for {@link cern.entwined.TransactionalMap#removeAll(java.util.Collection)}.
+     */
+    @Test
+    public void testRemoveAll() {
+        defaultFixture(10);
+        localMap.put(5, 9);
+        assertEquals(newMap(newList(1, 5), newList(5, 9)), localMap.removeAll(newList(1, 5, 6)));
+        assertFalse(localMap.containsKey(1));
+        assertFalse(localMap.containsKey(5));
+        TransactionalMap<Integer, Integer> result = localMap.commit(globalState);
+        assertEquals(newSet(2, 3, 4, 10), result.keySet());
+    }
+
+    /**
+     * Test method for {@link cern.entwined.TransactionalMap#removeAll(java.util.Collection)}.
+     */
+    @Test(expected = ConflictException.class)
+    public void testRemoveAll_marksAccessed() {
+        defaultFixture(1);
+        localMap.removeAll(newList(1));
+        localMap.commit(globalState);
+    }
+
+    /**
+     * Test method for {@link cern.entwined.TransactionalMap#putAllBlind(java.util.Map)}.
+     */
+    @Test
+    public void testPutAllBlind_doesntConflict() {
+        defaultFixture(1, 12);
+        localMap.putAllBlind(newMap(newList(1, 12, 13), newList(100, 120, 130)));
+        assertEquals((Integer) 130, localMap.get(13));
+        TransactionalMap<Integer, Integer> result = localMap.commit(globalState);
+        assertEquals((Integer) 100, result.get(1));
+        assertEquals((Integer) 120, result.get(12));
+        assertEquals((Integer) 130, result.get(13));
+    }
+
+    /**
+     * Test method for {@link cern.entwined.TransactionalMap#putAllBlind(java.util.Map)}.
+     */
+    @Test(expected = ConflictException.class)
+    public void testPutAllBlind_sizeReadChecksPresence() {
+        defaultFixture();
+        TransactionalMap<Integer, Integer> concurrent = localMap.cleanCopy();
+        concurrent.remove(4);
+        concurrent.put(12, 9);
+        globalState = concurrent.commit(localMap.cleanCopy());
+        localMap.putAllBlind(newMap(newList(12), newList(120)));
+        assertEquals(5, localMap.size());
+        localMap.commit(globalState);
+    }
+
+    /**
+     * Test method for {@link cern.entwined.TransactionalMap#putAllBlind(java.util.Map)}.
+     */
+    @Test
+    public void testPutAllBlind_overridesMergeAndMergeAppliesLocally() {
+        defaultFixture(1);
+        localMap.merge(1, 100, SUM);
+        localMap.putAllBlind(newMap(newList(1), newList(0)));
+        localMap.merge(1, 1, SUM);
+        assertEquals((Integer) 1, localMap.commit(globalState).get(1));
+    }
+
+    /**
+     * Test method for {@link cern.entwined.TransactionalMap#putAll(java.util.Map)}.
+     */
+    @Test(expected = ConflictException.class)
+    public void testPutAll_marksAccessed() {
+        defaultFixture(1);
+        localMap.putAll(newMap(newList(1), newList(100)));
+        localMap.commit(globalState);
+    }
+
+    /**
+     * Test method for {@link cern.entwined.TransactionalMap#computeIfAbsent(Object, com.google.common.base.Function)}.
+     */
+    @Test
+    public void testComputeIfAbsent() {
+        defaultFixture();
+        Function<Integer, Integer> square = new Function<Integer, Integer>() {
+            @Override
+            public Integer apply(Integer input) {
+                return input * input;
+            }
+        };
+        assertEquals((Integer) 5, localMap.computeIfAbsent(1, square));
+        assertEquals((Integer) 100, localMap.computeIfAbsent(10, square));
+        assertEquals((Integer) 100, localMap.get(10));
+        assertEquals(5, localMap.size());
+    }
+
+    /**
+     * Test method for {@link cern.entwined.TransactionalMap#computeIfAbsent(Object, com.google.common.base.Function)}.
+     */
+    @Test(expected = ConflictException.class)
+    public void testComputeIfAbsent_marksAccessed() {
+        defaultFixture(12);
+        localMap.computeIfAbsent(12, Functions.constant(1));
+        localMap.commit(globalState);
+    }
+
+    // ==================== Entry and value view tests ====================
+
+    /**
+     * Test method for {@link cern.entwined.TransactionalMap#entrySet()}.
+     */
+    @Test
+    public void testEntrySet() {
+        defaultFixture();
+        localMap.put(1, 50);
+        localMap.put(5, 9);
+        localMap.remove(3);
+
+        Map<Integer, Integer> entries = new HashMap<Integer, Integer>();
+        for (Map.Entry<Integer, Integer> entry : localMap.entrySet()) {
+            assertTrue("Duplicate key", null == entries.put(entry.getKey(), entry.getValue()));
+        }
+        assertEquals(newMap(newList(1, 2, 4, 5), newList(50, 6, 8, 9)), entries);
+        assertEquals(4, localMap.entrySet().size());
+        assertTrue(localMap.entrySet().contains(Maps.immutableEntry(1, 50)));
+        assertFalse(localMap.entrySet().contains(Maps.immutableEntry(1, 5)));
+        assertFalse(localMap.entrySet().contains(Maps.immutableEntry(3, 7)));
+    }
+
+    /**
+     * Test method for {@link cern.entwined.TransactionalMap#entrySet()}.
+     */
+    @Test
+    public void testEntrySet_cleared() {
+        defaultFixture();
+        localMap.clear();
+        localMap.put(2, 60);
+        Iterator<Map.Entry<Integer, Integer>> iterator = localMap.entrySet().iterator();
+        assertEquals(Maps.immutableEntry(2, 60), iterator.next());
+        assertFalse(iterator.hasNext());
+    }
+
+    /**
+     * Test method for {@link cern.entwined.TransactionalMap#entrySet()}.
+     */
+    @Test(expected = UnsupportedOperationException.class)
+    public void testEntrySet_setValueUnsupported() {
+        defaultFixture();
+        localMap.put(1, 50);
+        for (Map.Entry<Integer, Integer> entry : localMap.entrySet()) {
+            entry.setValue(0);
+        }
+    }
+
+    /**
+     * Test method for {@link cern.entwined.TransactionalMap#entrySet()}.
+     */
+    @Test(expected = ConflictException.class)
+    public void testEntrySet_iterationMarksAsGloballyAccessed() {
+        defaultFixture(10);
+        localMap.entrySet().iterator();
+        localMap.commit(globalState);
+    }
+
+    /**
+     * Test method for {@link cern.entwined.TransactionalMap#values()}.
+     */
+    @Test
+    public void testValues() {
+        defaultFixture();
+        localMap.put(1, 50);
+        localMap.remove(2);
+        assertEquals(3, localMap.values().size());
+        assertEquals(newSet(50, 7, 8), new HashSet<Integer>(localMap.values()));
+        assertTrue(localMap.values().contains(50));
+        assertFalse(localMap.values().contains(5));
+    }
+
+    /**
+     * Test method for {@link cern.entwined.TransactionalMap#values()}.
+     */
+    @Test(expected = ConflictException.class)
+    public void testValues_iterationMarksAsGloballyAccessed() {
+        defaultFixture(10);
+        localMap.values().iterator();
+        localMap.commit(globalState);
+    }
+
+    /**
+     * Test method for {@link cern.entwined.TransactionalMap#keySet()}.
+     */
+    @Test(expected = ConflictException.class)
+    public void testKeySet_iterationMarksAsGloballyAccessed() {
+        defaultFixture(10);
+        localMap.keySet().iterator();
+        localMap.commit(globalState);
+    }
+
+    /**
+     * Test method for {@link cern.entwined.TransactionalMap#keySet()}, modified source keys are returned once.
+     */
+    @Test
+    public void testKeySet_modifiedKeysReturnedOnce() {
+        defaultFixture();
+        localMap.put(1, 50);
+        localMap.put(2, 60);
+        assertEquals(newList(1, 2, 3, 4), Ordering.natural().sortedCopy(localMap.keySet()));
+    }
+
+    /**
+     * Test method for {@link cern.entwined.TransactionalMap#forEach(EntryVisitor)}.
+     */
+    @Test
+    public void testForEach() {
+        defaultFixture();
+        localMap.put(1, 50);
+        localMap.put(5, 9);
+        localMap.remove(3);
+        final Map<Integer, Integer> visited = new HashMap<Integer, Integer>();
+        localMap.forEach(new EntryVisitor<Integer, Integer>() {
+            @Override
+            public void visit(Integer key, Integer value) {
+                assertTrue("Duplicate key", null == visited.put(key, value));
+            }
+        });
+        assertEquals(newMap(newList(1, 2, 4, 5), newList(50, 6, 8, 9)), visited);
+    }
+
+    /**
+     * Test method for {@link cern.entwined.TransactionalMap#forEach(EntryVisitor)}.
+     */
+    @Test(expected = ConflictException.class)
+    public void testForEach_marksAsGloballyAccessed() {
+        defaultFixture(10);
+        localMap.forEach(new EntryVisitor<Integer, Integer>() {
+            @Override
+            public void visit(Integer key, Integer value) {
+            }
+        });
+        localMap.commit(globalState);
+    }
+
+    /**
+     * Test method for {@link cern.entwined.TransactionalMap#forEach(EntryVisitor)}.
+     */
+    @Test(expected = IllegalArgumentException.class)
+    public void testForEach_failNullVisitor() {
+        defaultFixture();
+        localMap.forEach(null);
+    }
+
+    // ==================== Secondary index tests ====================
+
+    /**
+     * Test method for {@link cern.entwined.TransactionalMap#getKeysByIndex(MapIndex, Object)}.
+     */
+    @Test
+    public void testGetKeysByIndex() {
+        TransactionalMap<Integer, Integer> map = indexedFixture();
+        assertEquals(newSet(2, 4), map.getKeysByIndex(PARITY, "even"));
+        map.put(5, 10);
+        map.put(1, 6);
+        map.remove(4);
+        assertEquals(newSet(1, 2, 5), map.getKeysByIndex(PARITY, "even"));
+        assertEquals(newSet(3), map.getKeysByIndex(PARITY, "odd"));
+        assertEquals(newSet(), map.getKeysByIndex(PARITY, "none"));
+    }
+
+    /**
+     * Test method for {@link cern.entwined.TransactionalMap#getKeysByIndex(MapIndex, Object)}.
+     */
+    @Test
+    public void testGetKeysByIndex_cleared() {
+        TransactionalMap<Integer, Integer> map = indexedFixture();
+        map.clear();
+        map.put(7, 70);
+        assertEquals(newSet(7), map.getKeysByIndex(PARITY, "even"));
+        assertEquals(newSet(), map.getKeysByIndex(PARITY, "odd"));
+    }
+
+    /**
+     * Test method for {@link cern.entwined.TransactionalMap#getKeysByIndex(MapIndex, Object)}.
+     */
+    @Test(expected = IllegalArgumentException.class)
+    public void testGetKeysByIndex_failNotRegistered() {
+        indexedFixture().getKeysByIndex(new MapIndex<Integer, String>(Functions.constant("even")), "even");
+    }
+
+    /**
+     * Test method for {@link cern.entwined.TransactionalMap#commit(TransactionalMap)}.
+     */
+    @Test
+    public void testGetKeysByIndex_commitUpdatesIndex() {
+        TransactionalMap<Integer, Integer> map = indexedFixture();
+        TransactionalMap<Integer, Integer> global = map.cleanCopy();
+        map.put(1, 6);
+        map.remove(2);
+        map.merge(3, 1, SUM);
+        map.put(9, 9);
+        TransactionalMap<Integer, Integer> committed = map.commit(global);
+        assertEquals(newSet(1, 3, 4), committed.getKeysByIndex(PARITY, "even"));
+        assertEquals(newSet(9), committed.getKeysByIndex(PARITY, "odd"));
+        assertEquals("Global state untouched", newSet(2, 4), global.getKeysByIndex(PARITY, "even"));
+    }
+
+    /**
+     * Test method for {@link cern.entwined.TransactionalMap#commit(TransactionalMap)}.
+     */
+    @Test
+    public void testGetKeysByIndex_commitEmptiesAndRefillsIndexKey() {
+        TransactionalMap<Integer, Integer> map = indexedFixture();
+        TransactionalMap<Integer, Integer> reader = map.cleanCopy();
+        map.remove(2);
+        map.remove(4);
+        TransactionalMap<Integer, Integer> global = map.commit(map.cleanCopy());
+        assertEquals(newSet(), global.getKeysByIndex(PARITY, "even"));
+        assertEquals(newSet(1, 3), global.getKeysByIndex(PARITY, "odd"));
+
+        TransactionalMap<Integer, Integer> local = global.cleanCopy();
+        local.put(6, 6);
+        global = local.commit(global.cleanCopy());
+        assertEquals(newSet(6), global.getKeysByIndex(PARITY, "even"));
+
+        reader.getKeysByIndex(PARITY, "even");
+        reader.put(7, 7);
+        try {
+            reader.commit(global.cleanCopy());
+            fail("Expected conflict on the index key");
+        } catch (ConflictException e) {
+            // Expected
+        }
+    }
+
+    /**
+     * Test method for {@link cern.entwined.TransactionalMap#commit(TransactionalMap)}.
+     */
+    @Test
+    public void testGetKeysByIndex_commitRemergesIntoIndex() {
+        TransactionalMap<Integer, Integer> map = indexedFixture();
+        TransactionalMap<Integer, Integer> global = concurrentPut(map, 3, 8);
+        map.merge(3, 1, SUM);
+        TransactionalMap<Integer, Integer> committed = map.commit(global);
+        assertEquals((Integer) 9, committed.get(3));
+        assertEquals(newSet(1, 3), committed.getKeysByIndex(PARITY, "odd"));
+    }
+
+    /**
+     * Test method for {@link cern.entwined.TransactionalMap#commit(TransactionalMap)}.
+     */
+    @Test(expected = ConflictException.class)
+    public void testGetKeysByIndex_failConflictOnSameIndexKey() {
+        TransactionalMap<Integer, Integer> map = indexedFixture();
+        TransactionalMap<Integer, Integer> global = concurrentPut(map, 9, 10);
+        map.getKeysByIndex(PARITY, "even");
+        map.commit(global);
+    }
+
+    /**
+     * Test method for {@link cern.entwined.TransactionalMap#commit(TransactionalMap)}.
+     */
+    @Test(expected = ConflictException.class)
+    public void testGetKeysByIndex_failConflictOnRemovedKey() {
+        TransactionalMap<Integer, Integer> map = indexedFixture();
+        TransactionalMap<Integer, Integer> global = concurrentPut(map, 2, 7);
+        map.getKeysByIndex(PARITY, "even");
+        map.commit(global);
+    }
+
+    /**
+     * Test method for {@link cern.entwined.TransactionalMap#commit(TransactionalMap)}.
+     */
+    @Test
+    public void testGetKeysByIndex_noConflictOnOtherIndexKeys() {
+        TransactionalMap<Integer, Integer> map = indexedFixture();
+        TransactionalMap<Integer, Integer> global = concurrentPut(map, 9, 11);
+        global = concurrentPut(global, 2, 60);
+        assertEquals(newSet(2, 4), map.getKeysByIndex(PARITY, "even"));
+        map.put(7, 100);
+        TransactionalMap<Integer, Integer> committed = map.commit(global);
+        assertEquals(newSet(2, 4, 7), committed.getKeysByIndex(PARITY, "even"));
+        assertEquals(newSet(1, 3, 9), committed.getKeysByIndex(PARITY, "odd"));
+    }
+
+    /**
+     * Test method for {@link cern.entwined.TransactionalMap#update(TransactionalMap, boolean)}.
+     */
+    @Test(expected = ConflictException.class)
+    public void testGetKeysByIndex_updateCopiesIndexReads() {
+        TransactionalMap<Integer, Integer> map = indexedFixture();
+        TransactionalMap<Integer, Integer> global = concurrentPut(map, 9, 10);
+        TransactionalMap<Integer, Integer> copy = map.dirtyCopy();
+        copy.getKeysByIndex(PARITY, "even");
+        map.update(copy, true);
+        map.commit(global);
+    }
+
+    /**
+     * Test method for {@link cern.entwined.TransactionalMap#getKeysByIndex(MapIndex, Object)} in a {@link Memory}.
+     */
+    @Test
+    public void testGetKeysByIndex_memory() {
+        Memory<TransactionalMap<Integer, Integer>> memory = new Memory<TransactionalMap<Integer, Integer>>(
+                indexedFixture());
+        memory.runTransaction(new TransactionAdapter<TransactionalMap<Integer, Integer>>() {
+            @Override
+            public boolean run(TransactionalMap<Integer, Integer> data) {
+                for (Integer key : data.getKeysByIndex(PARITY, "odd")) {
+                    data.put(key, data.get(key) + 1);
+                }
+                return true;
+            }
+        });
+        memory.runTransaction(new TransactionAdapter<TransactionalMap<Integer, Integer>>() {
+            @Override
+            public boolean run(TransactionalMap<Integer, Integer> data) {
+                assertEquals(newSet(1, 2, 3, 4), data.getKeysByIndex(PARITY, "even"));
+                assertEquals(newSet(), data.getKeysByIndex(PARITY, "odd"));
+                return false;
+            }
+        });
+    }
+
+    // ==================== Aggregation tests ====================
+
+    /**
+     * Test method for {@link cern.entwined.TransactionalMap#aggregate(ForkJoinPool, EntryAggregator)}.
+     */
+    @Test
+    public void testAggregate() {
+        Map<Integer, Integer> sourceMap = new HashMap<Integer, Integer>();
+        for (int i = 0; i < 100000; i++) {
+            sourceMap.put(i, i);
+        }
+        TransactionalMap<Integer, Integer> map = new TransactionalMap<Integer, Integer>(sourceMap);
+        map.put(0, 1000);
+        map.put(-1, 1);
+        map.remove(99999);
+        long expected = 99998L * 99999L + 1000;
+
+        ForkJoinPool pool = new ForkJoinPool(4);
+        try {
+            assertEquals((Long) expected, map.aggregate(pool, LONG_SUM));
+            assertEquals((Long) 1001L, new TransactionalMap<Integer, Integer>(newMap(newList(1), newList(1000)))
+                    .aggregate(pool, LONG_SUM));
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    /**
+     * Test method for {@link cern.entwined.TransactionalMap#aggregate(ForkJoinPool, EntryAggregator)}.
+     */
+    @Test
+    public void testAggregate_combinesInOrder() {
+        Map<Integer, Integer> sourceMap = new HashMap<Integer, Integer>();
+        for (int i = 0; i < 10000; i++) {
+            sourceMap.put(i, i);
+        }
+        TransactionalMap<Integer, Integer> map = new TransactionalMap<Integer, Integer>(sourceMap);
+        map.put(3, 0);
+        map.put(-1, 0);
+        map.remove(5000);
+        List<Integer> expected = new ArrayList<Integer>();
+        for (Integer key : sourceMap.keySet()) {
+            if (3 != key && 5000 != key) {
+                expected.add(key);
+            }
+        }
+
+        ForkJoinPool pool = new ForkJoinPool(4);
+        try {
+            List<Integer> keys = map.aggregate(pool, KEY_LIST);
+            assertEquals(expected, keys.subList(0, expected.size()));
+            assertEquals(newSet(3, -1), new HashSet<Integer>(keys.subList(expected.size(), keys.size())));
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    /**
+     * Test method for {@link cern.entwined.TransactionalMap#aggregate(ForkJoinPool, EntryAggregator)}.
+     */
+    @Test
+    public void testAggregate_cleared() {
+        defaultFixture();
+        localMap.clear();
+        localMap.put(7, 70);
+        ForkJoinPool pool = new ForkJoinPool(2);
+        try {
+            assertEquals((Long) 77L, localMap.aggregate(pool, LONG_SUM));
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    /**
+     * Test method for {@link cern.entwined.TransactionalMap#aggregate(ForkJoinPool, EntryAggregator)}.
+     */
+    @Test(expected = ConflictException.class)
+    public void testAggregate_marksAsGloballyAccessed() {
+        defaultFixture(10);
+        ForkJoinPool pool = new ForkJoinPool(2);
+        try {
+            localMap.aggregate(pool, LONG_SUM);
+        } finally {
+            pool.shutdown();
+        }
+        localMap.commit(globalState);
+    }
+
+    /**
+     * Test method for {@link cern.entwined.TransactionalMap#aggregate(ForkJoinPool, EntryAggregator)}.
+     */
+    @Test(expected = IllegalArgumentException.class)
+    public void testAggregate_failNullPool() {
+        defaultFixture();
+        localMap.aggregate(null, LONG_SUM);
+    }
+
+    // ==================== Write log validation tests ====================
+
+    /**
+     * Test method for {@link cern.entwined.TransactionalMap#commit(TransactionalMap)}.
+     */
+    @Test(expected = ConflictException.class)
+    public void testCommit_writeLogDetectsConflict() {
+        TransactionalMap<Integer, Integer> map = new TransactionalMap<Integer, Integer>(newMap(newList(1, 2, 3),
+                newList(10, 20, 30)));
+        TransactionalMap<Integer, Integer> global = concurrentPut(map, 2, 21);
+        global = concurrentPut(global, 3, 31);
+        map.get(2);
+        map.put(1, 11);
+        map.commit(global);
+    }
+
+    /**
+     * Test method for {@link cern.entwined.TransactionalMap#commit(TransactionalMap)}.
+     */
+    @Test
+    public void testCommit_writeLogIgnoresOtherKeys() {
+        TransactionalMap<Integer, Integer> map = new TransactionalMap<Integer, Integer>(newMap(newList(1, 2, 3),
+                newList(10, 20, 30)));
+        TransactionalMap<Integer, Integer> global = concurrentPut(map, 3, 31);
+        global = concurrentPut(global, 4, 40);
+        map.get(1);
+        map.get(2);
+        map.put(1, 11);
+        TransactionalMap<Integer, Integer> committed = map.commit(global);
+        assertEquals((Integer) 11, committed.get(1));
+        assertEquals((Integer) 31, committed.get(3));
+        assertEquals((Integer) 40, committed.get(4));
+    }
+
+    /**
+     * Test method for {@link cern.entwined.TransactionalMap#commit(TransactionalMap)}.
+     */
+    @Test(expected = ConflictException.class)
+    public void testCommit_writeLogDetectsGlobalConflict() {
+        TransactionalMap<Integer, Integer> map = new TransactionalMap<Integer, Integer>(newMap(newList(1, 2, 3),
+                newList(10, 20, 30)));
+        TransactionalMap<Integer, Integer> global = concurrentPut(map, 4, 40);
+        map.entrySet().iterator();
+        map.put(1, 11);
+        map.commit(global);
+    }
+
+    /**
+     * Test method for {@link cern.entwined.TransactionalMap#commit(TransactionalMap)}.
+     */
+    @Test
+    public void testCommit_writeLogAppliesConflictPolicy() {
+        TransactionalMap<Integer, Integer> map = new TransactionalMap<Integer, Integer>(newMap(newList(1, 2, 3),
+                newList(1000, 2000, 3000)), Equivalence.equals());
+        TransactionalMap<Integer, Integer> global = concurrentPut(map, 2, new Integer(2000));
+        map.get(2);
+        map.entrySet().iterator();
+        map.put(1, 11);
+        assertEquals((Integer) 11, map.commit(global).get(1));
+    }
+
+    /**
+     * Test method for {@link cern.entwined.TransactionalMap#commit(TransactionalMap)}, the oldest writes are forgotten
+     * and all the reads are checked.
+     */
+    @Test(expected = ConflictException.class)
+    public void testCommit_truncatedWriteLogDetectsConflict() {
+        TransactionalMap<Integer, Integer> map = new TransactionalMap<Integer, Integer>(newMap(newList(1, 2, 3),
+                newList(10, 20, 30)));
+        TransactionalMap<Integer, Integer> global = concurrentPut(map, 2, 21);
+        for (int i = 0; i < 100; i++) {
+            global = concurrentPut(global, 3, i);
+        }
+        map.get(2);
+        map.put(1, 11);
+        map.commit(global);
+    }
+
+    /**
+     * Test method for {@link cern.entwined.TransactionalMap#commit(TransactionalMap)}.
+     */
+    @Test
+    public void testCommit_truncatedWriteLogIgnoresOtherKeys() {
+        TransactionalMap<Integer, Integer> map = new TransactionalMap<Integer, Integer>(newMap(newList(1, 2, 3),
+                newList(10, 20, 30)));
+        TransactionalMap<Integer, Integer> global = map.cleanCopy();
+        for (int i = 0; i < 100; i++) {
+            global = concurrentPut(global, 3, i);
+        }
+        map.get(2);
+        map.put(1, 11);
+        assertEquals((Integer) 99, map.commit(global).get(3));
+    }
+
+    // ==================== Blind write tests ====================
+
+    /**
+     * Test method for {@link cern.entwined.TransactionalMap#putBlind(Object, Object)}.
+     */
+    @Test
+    public void testPutBlind_concurrentWritersDontConflict() {
+        defaultFixture();
+        TransactionalMap<Integer, Integer> first = localMap.cleanCopy();
+        TransactionalMap<Integer, Integer> second = localMap.cleanCopy();
+        first.putBlind(1, 100);
+        second.putBlind(1, 200);
+        second.putBlind(10, 10);
+
+        TransactionalMap<Integer, Integer> global = first.commit(localMap.cleanCopy());
+        global = second.commit(global);
+        assertEquals((Integer) 200, global.get(1));
+        assertEquals((Integer) 10, global.get(10));
+    }
+
+    /**
+     * Test method for {@link cern.entwined.TransactionalMap#putBlind(Object, Object)}.
+     */
+    @Test(expected = ConflictException.class)
+    public void testPutBlind_failReadKeyConflicts() {
+        defaultFixture(1);
+        localMap.get(1);
+        localMap.putBlind(1, 100);
+        localMap.commit(globalState);
+    }
+
+    /**
+     * Test method for {@link cern.entwined.TransactionalMap#putBlind(Object, Object)}.
+     */
+    @Test
+    public void testPutBlind_discardsPendingMerges() {
+        defaultFixture(1);
+        localMap.merge(1, 1, SUM);
+        localMap.putBlind(1, 100);
+        assertEquals((Integer) 100, localMap.commit(globalState).get(1));
+    }
+
+    /**
+     * Test method for {@link cern.entwined.TransactionalMap#removeBlind(Object)}.
+     */
+    @Test
+    public void testRemoveBlind() {
+        defaultFixture();
+        TransactionalMap<Integer, Integer> global = concurrentPut(localMap, 10, 100);
+        global = concurrentPut(global, 1, 50);
+        localMap.removeBlind(1);
+        localMap.removeBlind(10);
+        localMap.removeBlind(20);
+
+        TransactionalMap<Integer, Integer> committed = localMap.commit(global);
+        assertFalse(committed.containsKey(1));
+        assertFalse("Concurrently added key is removed", committed.containsKey(10));
+        assertEquals((Integer) 6, committed.get(2));
+    }
+
+    /**
+     * Test method for {@link cern.entwined.TransactionalMap#removeBlind(Object)}.
+     */
+    @Test
+    public void testRemoveBlind_putAfterRemove() {
+        defaultFixture();
+        localMap.removeBlind(1);
+        localMap.removeBlind(10);
+        assertEquals(3, localMap.size());
+        assertFalse(localMap.containsKey(1));
+        localMap.putBlind(10, 100);
+        assertEquals(4, localMap.size());
+        assertEquals((Integer) 100, localMap.commit(localMap.cleanCopy()).get(10));
+    }
+
+    /**
+     * Test method for {@link cern.entwined.TransactionalMap.WritePolicy#BLIND}.
+     */
+    @Test
+    public void testWritePolicyBlind() {
+        TransactionalMap<Integer, Integer> map = new TransactionalMap<Integer, Integer>(newMap(newList(1, 2),
+                newList(10, 20)), Equivalence.identity(), TransactionalMap.WritePolicy.BLIND);
+        TransactionalMap<Integer, Integer> global = concurrentPut(map, 1, 11);
+        global = concurrentPut(global, 2, 21);
+        assertEquals((Integer) 10, map.put(1, 12));
+        assertEquals((Integer) 20, map.remove(2));
+        TransactionalMap<Integer, Integer> committed = map.commit(global);
+        assertEquals((Integer) 12, committed.get(1));
+        assertFalse(committed.containsKey(2));
+
+        // Policy is kept by the committed map
+        TransactionalMap<Integer, Integer> next = committed.cleanCopy();
+        next.put(1, 13);
+        assertEquals((Integer) 13, next.commit(concurrentPut(committed, 1, 0)).get(1));
+    }
+
+    /**
+     * Test method for {@link cern.entwined.TransactionalMap.WritePolicy#BLIND}.
+     */
+    @Test(expected = IllegalArgumentException.class)
+    public void testWritePolicy_failNull() {
+        new TransactionalMap<Integer, Integer>(newMap(newList(1), newList(10)), Equivalence.identity(),
+                (TransactionalMap.WritePolicy) null);
+    }
+
+    // =======================================================
+    // ==================== Test fixtures ====================
+    // =======================================================
+
+    /**
+     * Sums the old and the new values, returns null for zero.
+     */
+    private static final MergeFunction<Integer> SUM = new MergeFunction<Integer>() {
+        @Override
+        public Integer merge(Integer oldValue, Integer value) {
+            int sum = oldValue + value;
+            return 0 == sum ? null : sum;
+        }
+    };
+
+    /**
+     * Sums the keys and the values of the entries.
+     */
+    private static final EntryAggregator<Integer, Integer, Long> LONG_SUM =
+            new EntryAggregator<Integer, Integer, Long>() {
+                @Override
+                public Long initial() {
+                    return 0L;
+                }
+
+                @Override
+                public Long accumulate(Long result, Integer key, Integer value) {
+                    return result + key + value;
+                }
+
+                @Override
+                public Long combine(Long left, Long right) {
+                    return left + right;
+                }
+            };
+
+    /**
+     * Aggregator listing the keys in the order they are accumulated.
+     */
+    private static final EntryAggregator<Integer, Integer, List<Integer>> KEY_LIST =
+            new EntryAggregator<Integer, Integer, List<Integer>>() {
+                @Override
+                public List<Integer> initial() {
+                    return new ArrayList<Integer>();
+                }
+
+                @Override
+                public List<Integer> accumulate(List<Integer> result, Integer key, Integer value) {
+                    result.add(key);
+                    return result;
+                }
+
+                @Override
+                public List<Integer> combine(List<Integer> left, List<Integer> right) {
+                    List<Integer> result = new ArrayList<Integer>(left);
+                    result.addAll(right);
+                    return result;
+                }
+            };
+
+    /**
+     * Index of the values by their parity.
+     */
+    private static final MapIndex<Integer, String> PARITY = new MapIndex<Integer, String>(
+            new Function<Integer, String>() {
+                @Override
+                public String apply(Integer input) {
+                    return 0 == input % 2 ? "even" : "odd";
+                }
+            });
+
+    /**
+     * Creates a map indexed by {@link #PARITY} with values 5, 6, 7, 8 for keys 1 to 4.
+     */
+    private static TransactionalMap<Integer, Integer> indexedFixture() {
+        Map<Integer, Integer> sourceMap = newMap(newList(1, 2, 3, 4), newList(5, 6, 7, 8));
+        return new TransactionalMap<Integer, Integer>(sourceMap, Equivalence.identity(),
+                Collections.singleton(PARITY));
+    }
+
+    /**
+     * Simulates a concurrent transaction putting the value to the map.
+     */
+    private static TransactionalMap<Integer, Integer> concurrentPut(TransactionalMap<Integer, Integer> map,
+            Integer key, Integer value) {
+        TransactionalMap<Integer, Integer> concurrent = map.cleanCopy();
+        concurrent.put(key, value);
+        return concurrent.commit(map.cleanCopy());
+    }
 
     /**
      * Creates a local map and touches listed keys.
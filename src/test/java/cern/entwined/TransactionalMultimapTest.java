@@ -11,10 +11,12 @@ import static cern.entwined.test.TestUtils.newMap;
 import static cern.entwined.test.TestUtils.newSet;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
 
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
 
 import org.junit.After;
 import org.junit.Before;
@@ -384,7 +386,7 @@ public class TransactionalMultimapTest {
         conflicting = conflicting.commit(globalState);
 
         TransactionalMultimap<Integer, Long> dirtyCopy = map.dirtyCopy();
-        dirtyCopy.put(2, 1l);
+        dirtyCopy.get(2);
         map.update(dirtyCopy, true);
 
         map.commit(conflicting);
@@ -410,4 +412,172 @@ public class TransactionalMultimapTest {
 
         map.commit(conflicting);
     }
+
+    @Test
+    public void testCommit_concurrentValuesOfSameKeyDontConflict() {
+        TransactionalMultimap<Integer, Long> global = new TransactionalMultimap<Integer, Long>();
+        TransactionalMultimap<Integer, Long> initial = global.cleanCopy();
+        initial.putAll(1, newSet(1l, 2l));
+        global = initial.commit(global);
+
+        TransactionalMultimap<Integer, Long> first = global.cleanCopy();
+        TransactionalMultimap<Integer, Long> second = global.cleanCopy();
+        TransactionalMultimap<Integer, Long> third = global.cleanCopy();
+        first.put(1, 3l);
+        second.put(1, 4l);
+        second.remove(1, 1l);
+        third.putAll(2, newSet(5l));
+        global = first.commit(global);
+        global = second.commit(global);
+        global = third.commit(global);
+
+        TransactionalMultimap<Integer, Long> check = global.cleanCopy();
+        assertEquals(newSet(2l, 3l, 4l), check.get(1));
+        assertEquals(newSet(5l), check.get(2));
+    }
+
+    @Test
+    public void testCommit_removalsEmptyingKeyRemoveIt() {
+        TransactionalMultimap<Integer, Long> global = new TransactionalMultimap<Integer, Long>();
+        TransactionalMultimap<Integer, Long> initial = global.cleanCopy();
+        initial.putAll(1, newSet(1l, 2l));
+        global = initial.commit(global);
+
+        TransactionalMultimap<Integer, Long> first = global.cleanCopy();
+        TransactionalMultimap<Integer, Long> second = global.cleanCopy();
+        TransactionalMultimap<Integer, Long> third = global.cleanCopy();
+        first.remove(1, 1l);
+        second.remove(1, 2l);
+        third.remove(2, 1l);
+        global = first.commit(global);
+        global = second.commit(global);
+        global = third.commit(global);
+
+        TransactionalMultimap<Integer, Long> check = global.cleanCopy();
+        assertFalse(check.containsKey(1));
+        assertFalse("Removal from absent key doesn't add it", check.containsKey(2));
+        assertTrue(check.isEmpty());
+    }
+
+    @Test
+    public void testCommit_unchangedSetsAreShared() {
+        TransactionalMultimap<Integer, Long> global = new TransactionalMultimap<Integer, Long>();
+        TransactionalMultimap<Integer, Long> initial = global.cleanCopy();
+        initial.putAll(1, newSet(1l, 2l));
+        initial.putAll(2, newSet(3l));
+        global = initial.commit(global);
+        Set<Long> before = global.cleanCopy().get(1);
+
+        TransactionalMultimap<Integer, Long> writer = global.cleanCopy();
+        writer.put(1, 2l);
+        writer.put(2, 4l);
+        global = writer.commit(global);
+
+        TransactionalMultimap<Integer, Long> check = global.cleanCopy();
+        assertSame("Adding a present value keeps the set", before, check.get(1));
+        assertEquals(newSet(3l, 4l), check.get(2));
+        assertEquals("Snapshot is not changed", newSet(1l, 2l), before);
+    }
+
+    @Test(expected = ConflictException.class)
+    public void testCommit_addingRemovedValueConflicts() {
+        TransactionalMultimap<Integer, Long> global = new TransactionalMultimap<Integer, Long>();
+        TransactionalMultimap<Integer, Long> initial = global.cleanCopy();
+        initial.putAll(1, newSet(1l, 2l));
+        global = initial.commit(global);
+
+        TransactionalMultimap<Integer, Long> remover = global.cleanCopy();
+        TransactionalMultimap<Integer, Long> adder = global.cleanCopy();
+        remover.remove(1, 1l);
+        adder.put(1, 1l);
+        global = remover.commit(global);
+        adder.commit(global);
+    }
+
+    @Test(expected = ConflictException.class)
+    public void testCommit_removingAddedValueConflicts() {
+        TransactionalMultimap<Integer, Long> global = new TransactionalMultimap<Integer, Long>();
+        TransactionalMultimap<Integer, Long> initial = global.cleanCopy();
+        initial.putAll(1, newSet(1l, 2l));
+        global = initial.commit(global);
+
+        TransactionalMultimap<Integer, Long> adder = global.cleanCopy();
+        TransactionalMultimap<Integer, Long> remover = global.cleanCopy();
+        adder.putAll(1, newSet(3l, 4l));
+        remover.remove(1, 3l);
+        global = adder.commit(global);
+        remover.commit(global);
+    }
+
+    @Test(expected = ConflictException.class)
+    public void testCommit_nestedTouchedValuesAreChecked() {
+        TransactionalMultimap<Integer, Long> global = new TransactionalMultimap<Integer, Long>();
+        TransactionalMultimap<Integer, Long> first = global.cleanCopy();
+        TransactionalMultimap<Integer, Long> second = global.cleanCopy();
+        TransactionalMultimap<Integer, Long> nested = first.dirtyCopy();
+        nested.put(1, 1l);
+        first.update(nested, false);
+        second.put(1, 1l);
+        global = second.commit(global);
+        first.commit(global);
+    }
+
+    @Test(expected = ConflictException.class)
+    public void testCommit_queriedReplacedSetConflictsWithValueChange() {
+        TransactionalMultimap<Integer, Long> global = new TransactionalMultimap<Integer, Long>();
+        TransactionalMultimap<Integer, Long> initial = global.cleanCopy();
+        initial.putAll(1, newSet(1l, 2l));
+        global = initial.commit(global);
+
+        TransactionalMultimap<Integer, Long> reader = global.cleanCopy();
+        TransactionalMultimap<Integer, Long> writer = global.cleanCopy();
+        assertEquals("Replaced set", newSet(1l, 2l), reader.put(1, 3l));
+        writer.remove(1, 2l);
+        global = writer.commit(global);
+        reader.commit(global);
+    }
+
+    @Test(expected = ConflictException.class)
+    public void testCommit_readSetConflictsWithValueChange() {
+        TransactionalMultimap<Integer, Long> global = new TransactionalMultimap<Integer, Long>();
+        TransactionalMultimap<Integer, Long> reader = global.cleanCopy();
+        TransactionalMultimap<Integer, Long> writer = global.cleanCopy();
+        reader.put(1, 1l);
+        assertEquals(newSet(1l), reader.get(1));
+        writer.put(1, 2l);
+        global = writer.commit(global);
+        reader.commit(global);
+    }
+
+    /**
+     * Test method for {@link cern.entwined.TransactionalMultimap#aggregate(ForkJoinPool, EntryAggregator)}.
+     */
+    @Test
+    public void testAggregate() {
+        TransactionalMultimap<Integer, Long> map = new TransactionalMultimap<Integer, Long>();
+        map.putAll(1, newSet(1l, 2l));
+        map.put(2, 3l);
+        ForkJoinPool pool = new ForkJoinPool(2);
+        try {
+            Integer count = map.aggregate(pool, new EntryAggregator<Integer, Set<Long>, Integer>() {
+                @Override
+                public Integer initial() {
+                    return 0;
+                }
+
+                @Override
+                public Integer accumulate(Integer result, Integer key, Set<Long> value) {
+                    return result + value.size();
+                }
+
+                @Override
+                public Integer combine(Integer left, Integer right) {
+                    return left + right;
+                }
+            });
+            assertEquals((Integer) 3, count);
+        } finally {
+            pool.shutdown();
+        }
+    }
 }
@@ -0,0 +1,288 @@
+/*
+ * Entwined STM
+ * 
+ * (c) Copyright 2013 CERN. This software is distributed under the terms of the Apache License Version 2.0, copied
+ * verbatim in the file "COPYING". In applying this licence, CERN does not waive the privileges and immunities granted
+ * to it by virtue of its status as an Intergovernmental Organization or submit itself to any jurisdiction.
+ */
+package cern.entwined;
+
+import static cern.entwined.test.TestUtils.newList;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+import org.junit.Test;
+
+import cern.entwined.exception.ConflictException;
+
+/**
+ * Unit tests for {@link TransactionalPriorityQueue}.
+ * 
+ * @author Ivan Koblik
+ */
+public class TransactionalPriorityQueueTest {
+
+    // ==================== Constructor tests ====================
+
+    @Test
+    public void testTransactionalPriorityQueue() {
+        TransactionalPriorityQueue<Integer> queue = new TransactionalPriorityQueue<Integer>();
+        assertTrue(queue.isEmpty());
+        assertNull(queue.poll());
+    }
+
+    @Test
+    public void testTransactionalPriorityQueue_copiesCollection() {
+        List<Integer> source = new ArrayList<Integer>(newList(3, 1, 2));
+        TransactionalPriorityQueue<Integer> queue = new TransactionalPriorityQueue<Integer>(source);
+        source.clear();
+        assertEquals(newList(1, 2, 3), drain(queue));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testTransactionalPriorityQueue_failNullComparator() {
+        new TransactionalPriorityQueue<Integer>((Comparator<Integer>) null);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testTransactionalPriorityQueue_failNullElement() {
+        new TransactionalPriorityQueue<Integer>(newList(1, null));
+    }
+
+    // ==================== Local operation tests ====================
+
+    @Test
+    public void testOffer_Poll_ordered() {
+        TransactionalPriorityQueue<Integer> queue = new TransactionalPriorityQueue<Integer>();
+        queue.offer(5);
+        queue.offer(1);
+        queue.offer(3);
+        assertEquals(3, queue.size());
+        assertEquals(Integer.valueOf(1), queue.peek());
+        assertEquals(newList(1, 3, 5), drain(queue));
+        assertTrue(queue.isEmpty());
+    }
+
+    @Test
+    public void testOffer_comparator() {
+        TransactionalPriorityQueue<Integer> queue = new TransactionalPriorityQueue<Integer>(newList(1, 3, 2),
+                Collections.<Integer> reverseOrder());
+        assertEquals(newList(3, 2, 1), drain(queue));
+    }
+
+    @Test
+    public void testOffer_equalElementsInOfferOrder() {
+        TransactionalPriorityQueue<String> queue = new TransactionalPriorityQueue<String>(
+                String.CASE_INSENSITIVE_ORDER);
+        queue.offer("b");
+        queue.offer("A");
+        queue.offer("a");
+        queue.offer("B");
+        assertEquals(newList("A", "a", "b", "B"), drain(queue));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testOffer_failNull() {
+        new TransactionalPriorityQueue<Integer>().offer(null);
+    }
+
+    // ==================== Transactional tests ====================
+
+    @Test
+    public void testCommit() {
+        TransactionalPriorityQueue<Integer> global = new TransactionalPriorityQueue<Integer>(newList(2, 4));
+        TransactionalPriorityQueue<Integer> copy = global.cleanCopy();
+        assertEquals(Integer.valueOf(2), copy.poll());
+        copy.offer(3);
+        copy.offer(1);
+        assertEquals(Integer.valueOf(1), copy.poll());
+        global = copy.commit(global);
+        assertEquals(newList(3, 4), drain(global.cleanCopy()));
+    }
+
+    @Test
+    public void testCommit_noChangesReturnsGlobalState() {
+        TransactionalPriorityQueue<Integer> global = new TransactionalPriorityQueue<Integer>(newList(1));
+        TransactionalPriorityQueue<Integer> copy = global.cleanCopy();
+        copy.peek();
+        assertSame(global, copy.commit(global));
+    }
+
+    @Test
+    public void testCommit_greaterOfferDoesntConflictWithConsumer() {
+        TransactionalPriorityQueue<Integer> global = new TransactionalPriorityQueue<Integer>(newList(2, 4));
+        TransactionalPriorityQueue<Integer> consumer = global.cleanCopy();
+        TransactionalPriorityQueue<Integer> producer = global.cleanCopy();
+        assertEquals(Integer.valueOf(2), consumer.poll());
+        producer.offer(3);
+        global = producer.commit(global);
+        global = consumer.commit(global);
+        assertEquals(newList(3, 4), drain(global.cleanCopy()));
+    }
+
+    @Test
+    public void testCommit_equalOfferDoesntConflictWithConsumer() {
+        TransactionalPriorityQueue<Integer> global = new TransactionalPriorityQueue<Integer>(newList(2));
+        TransactionalPriorityQueue<Integer> consumer = global.cleanCopy();
+        TransactionalPriorityQueue<Integer> producer = global.cleanCopy();
+        consumer.poll();
+        producer.offer(2);
+        global = producer.commit(global);
+        global = consumer.commit(global);
+        assertEquals(newList(2), drain(global.cleanCopy()));
+    }
+
+    @Test(expected = ConflictException.class)
+    public void testCommit_newMinimumConflictsWithConsumer() {
+        TransactionalPriorityQueue<Integer> global = new TransactionalPriorityQueue<Integer>(newList(2, 4));
+        TransactionalPriorityQueue<Integer> consumer = global.cleanCopy();
+        TransactionalPriorityQueue<Integer> producer = global.cleanCopy();
+        consumer.peek();
+        producer.offer(1);
+        global = producer.commit(global);
+        consumer.commit(global);
+    }
+
+    @Test(expected = ConflictException.class)
+    public void testCommit_concurrentConsumersConflict() {
+        TransactionalPriorityQueue<Integer> global = new TransactionalPriorityQueue<Integer>(newList(2, 4));
+        TransactionalPriorityQueue<Integer> first = global.cleanCopy();
+        TransactionalPriorityQueue<Integer> second = global.cleanCopy();
+        first.poll();
+        second.poll();
+        global = first.commit(global);
+        second.commit(global);
+    }
+
+    @Test
+    public void testCommit_emptyQueueDoesntConflictWithOffer() {
+        TransactionalPriorityQueue<Integer> global = new TransactionalPriorityQueue<Integer>();
+        TransactionalPriorityQueue<Integer> consumer = global.cleanCopy();
+        TransactionalPriorityQueue<Integer> producer = global.cleanCopy();
+        assertNull(consumer.poll());
+        producer.offer(1);
+        global = producer.commit(global);
+        global = consumer.commit(global);
+        assertEquals(newList(1), drain(global.cleanCopy()));
+    }
+
+    @Test(expected = ConflictException.class)
+    public void testCommit_sizeConflictsWithAnyChange() {
+        TransactionalPriorityQueue<Integer> global = new TransactionalPriorityQueue<Integer>(newList(2));
+        TransactionalPriorityQueue<Integer> reader = global.cleanCopy();
+        TransactionalPriorityQueue<Integer> producer = global.cleanCopy();
+        reader.size();
+        producer.offer(10);
+        global = producer.commit(global);
+        reader.commit(global);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testCommit_failDirtyGlobalState() {
+        TransactionalPriorityQueue<Integer> global = new TransactionalPriorityQueue<Integer>();
+        TransactionalPriorityQueue<Integer> dirty = global.cleanCopy();
+        dirty.offer(1);
+        global.cleanCopy().commit(dirty);
+    }
+
+    @Test
+    public void testUpdate() {
+        TransactionalPriorityQueue<Integer> global = new TransactionalPriorityQueue<Integer>(newList(1, 2));
+        TransactionalPriorityQueue<Integer> copy = global.cleanCopy();
+        TransactionalPriorityQueue<Integer> nested = copy.dirtyCopy();
+        nested.poll();
+        nested.offer(3);
+
+        copy.update(nested, true);
+        assertEquals("Only read logs are copied", Integer.valueOf(1), copy.peek());
+
+        copy.update(nested, false);
+        assertEquals(Integer.valueOf(2), copy.peek());
+        global = copy.commit(global);
+        assertEquals(newList(2, 3), drain(global.cleanCopy()));
+    }
+
+    @Test(expected = ConflictException.class)
+    public void testUpdate_readLogsAreCopied() {
+        TransactionalPriorityQueue<Integer> global = new TransactionalPriorityQueue<Integer>(newList(2));
+        TransactionalPriorityQueue<Integer> copy = global.cleanCopy();
+        TransactionalPriorityQueue<Integer> nested = copy.dirtyCopy();
+        nested.peek();
+        copy.update(nested, true);
+
+        TransactionalPriorityQueue<Integer> producer = global.cleanCopy();
+        producer.offer(1);
+        global = producer.commit(global);
+        copy.commit(global);
+    }
+
+    @Test
+    public void testDirtyCopy_independent() {
+        TransactionalPriorityQueue<Integer> copy = new TransactionalPriorityQueue<Integer>(newList(1, 2)).cleanCopy();
+        copy.poll();
+        TransactionalPriorityQueue<Integer> dirty = copy.dirtyCopy();
+        dirty.poll();
+        assertEquals(Integer.valueOf(2), copy.peek());
+        assertTrue(dirty.isEmpty());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testUpdate_failDifferentSource() {
+        new TransactionalPriorityQueue<Integer>().update(new TransactionalPriorityQueue<Integer>(), false);
+    }
+
+    @Test
+    public void testMemory_scheduledTasks() {
+        Memory<TransactionalPriorityQueue<Long>> memory = new Memory<TransactionalPriorityQueue<Long>>(
+                new TransactionalPriorityQueue<Long>());
+        for (final long time : new long[] { 30, 10, 20 }) {
+            memory.runTransaction(new TransactionAdapter<TransactionalPriorityQueue<Long>>() {
+                @Override
+                public boolean run(TransactionalPriorityQueue<Long> data) {
+                    data.offer(time);
+                    return true;
+                }
+            });
+        }
+        final List<Long> due = new ArrayList<Long>();
+        memory.runTransaction(new TransactionAdapter<TransactionalPriorityQueue<Long>>() {
+            @Override
+            public boolean run(TransactionalPriorityQueue<Long> data) {
+                due.clear();
+                while (null != data.peek() && data.peek() <= 20) {
+                    due.add(data.poll());
+                }
+                return true;
+            }
+        });
+        assertEquals(newList(10L, 20L), due);
+        memory.runTransaction(new TransactionAdapter<TransactionalPriorityQueue<Long>>() {
+            @Override
+            public boolean run(TransactionalPriorityQueue<Long> data) {
+                assertEquals(Long.valueOf(30), data.peek());
+                assertFalse(data.isEmpty());
+                return false;
+            }
+        });
+    }
+
+    /**
+     * Polls all the elements of the queue.
+     * 
+     * @param queue The queue.
+     * @return The polled elements.
+     */
+    private static <E> List<E> drain(TransactionalPriorityQueue<E> queue) {
+        List<E> result = new ArrayList<E>();
+        queue.drainTo(result);
+        return result;
+    }
+}
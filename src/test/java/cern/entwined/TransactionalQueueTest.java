@@ -8,13 +8,17 @@
 package cern.entwined;
 
 import static cern.entwined.test.TestUtils.newList;
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
 import java.util.ArrayList;
+import java.util.ConcurrentModificationException;
+import java.util.Iterator;
 import java.util.List;
 import java.util.NoSuchElementException;
 
@@ -645,19 +649,101 @@ public class TransactionalQueueTest {
         assertTrue(queue.isEmpty());
     }
 
-    @Test(expected = UnsupportedOperationException.class)
+    @Test
     public void testContainsAll() {
-        new TransactionalQueue<Integer>().containsAll(newList(1, 2, 3));
+        TransactionalQueue<Integer> queue = new TransactionalQueue<Integer>(newList(1, 2, 3));
+        assertTrue(queue.containsAll(newList(3, 1)));
+        assertFalse(queue.containsAll(newList(1, 4)));
     }
 
-    @Test(expected = UnsupportedOperationException.class)
+    @Test
     public void testContains() {
-        new TransactionalQueue<Integer>().contains(1);
+        TransactionalQueue<Integer> queue = new TransactionalQueue<Integer>(newList(1, 2));
+        queue.offer(3);
+        assertTrue(queue.contains(2));
+        assertTrue(queue.contains(3));
+        assertFalse(queue.contains(4));
+        assertFalse(queue.contains(null));
+        queue.poll();
+        assertFalse("Polled element", queue.contains(1));
     }
 
-    @Test(expected = UnsupportedOperationException.class)
+    @Test
     public void testIterator() {
-        new TransactionalQueue<Integer>().iterator();
+        TransactionalQueue<Integer> queue = new TransactionalQueue<Integer>(newList(1, 2, 3));
+        queue.poll();
+        queue.offer(4);
+        List<Integer> iterated = new ArrayList<Integer>();
+        for (Integer element : queue) {
+            iterated.add(element);
+        }
+        assertEquals(newList(2, 3, 4), iterated);
+        assertEquals("Iteration doesn't poll", 3, queue.size());
+    }
+
+    @Test(expected = NoSuchElementException.class)
+    public void testIterator_failNextAtEnd() {
+        Iterator<Integer> iterator = new TransactionalQueue<Integer>(newList(1)).iterator();
+        iterator.next();
+        iterator.next();
+    }
+
+    @Test(expected = ConcurrentModificationException.class)
+    public void testIterator_failPollDuringIteration() {
+        TransactionalQueue<Integer> queue = new TransactionalQueue<Integer>(newList(1, 2));
+        Iterator<Integer> iterator = queue.iterator();
+        iterator.next();
+        queue.poll();
+        iterator.next();
+    }
+
+    @Test(expected = UnsupportedOperationException.class)
+    public void testIterator_failRemove() {
+        Iterator<Integer> iterator = new TransactionalQueue<Integer>(newList(1)).iterator();
+        iterator.next();
+        iterator.remove();
+    }
+
+    @Test
+    public void testIterator_doesntConflictWithOffer() {
+        TransactionalQueue<Integer> global = new TransactionalQueue<Integer>(newList(1, 2));
+        TransactionalQueue<Integer> reader = global.cleanCopy();
+        assertEquals(newList(1, 2), newList(reader.toArray(new Integer[0])));
+        assertFalse(reader.contains(5));
+        global = extendGlobalState(global, 3);
+        reader.commit(global);
+    }
+
+    @Test(expected = ConflictException.class)
+    public void testIterator_conflictsWithPoll() {
+        TransactionalQueue<Integer> global = new TransactionalQueue<Integer>(newList(1, 2));
+        TransactionalQueue<Integer> reader = global.cleanCopy();
+        assertTrue(reader.contains(2));
+        reader.commit(pollGlobalState(global));
+    }
+
+    @Test(expected = ConflictException.class)
+    public void testIterator_readingOwnOffersConflictsWithOffer() {
+        TransactionalQueue<Integer> global = new TransactionalQueue<Integer>(newList(1));
+        TransactionalQueue<Integer> reader = global.cleanCopy();
+        reader.offer(2);
+        assertTrue(reader.contains(2));
+        reader.commit(extendGlobalState(global, 3));
+    }
+
+    @Test
+    public void testIterator_readLogsAreUpdated() {
+        TransactionalQueue<Integer> global = new TransactionalQueue<Integer>(newList(1, 2));
+        TransactionalQueue<Integer> copy = global.cleanCopy();
+        TransactionalQueue<Integer> nested = copy.dirtyCopy();
+        nested.contains(1);
+        copy.update(nested, true);
+        try {
+            copy.commit(pollGlobalState(global));
+            fail("Poll of the read element must conflict");
+        } catch (ConflictException e) {
+            // Expected
+        }
     }
 
     @Test(expected = UnsupportedOperationException.class)
@@ -675,14 +761,348 @@ public class TransactionalQueueTest {
         new TransactionalQueue<Integer>().retainAll(newList(1, 2, 3));
     }
 
-    @Test(expected = UnsupportedOperationException.class)
+    @Test
     public void testToArray() {
-        new TransactionalQueue<Integer>().toArray();
+        TransactionalQueue<Integer> queue = new TransactionalQueue<Integer>(newList(1, 2));
+        queue.offer(3);
+        assertArrayEquals(new Object[] { 1, 2, 3 }, queue.toArray());
+        assertEquals(0, new TransactionalQueue<Integer>().toArray().length);
     }
 
-    @Test(expected = UnsupportedOperationException.class)
+    @Test
     public void testToArrayTArray() {
-        new TransactionalQueue<Integer>().toArray(new Integer[2]);
+        TransactionalQueue<Integer> queue = new TransactionalQueue<Integer>(newList(1, 2));
+        Integer[] array = new Integer[3];
+        assertSame("Fits into the given array", array, queue.toArray(array));
+        assertArrayEquals(new Integer[] { 1, 2, null }, array);
+    }
+
+    // ==================== Batch tests ====================
+
+    @Test
+    public void testPollBatch() {
+        TransactionalQueue<Integer> queue = new TransactionalQueue<Integer>(newList(1, 2, 3));
+        queue.offer(4);
+        queue.offer(5);
+        assertEquals(newList(1, 2), queue.pollBatch(2));
+        assertEquals("Across source and tail", newList(3, 4), queue.pollBatch(2));
+        assertEquals(newList(5), queue.pollBatch(10));
+        assertTrue(queue.pollBatch(10).isEmpty());
+        assertTrue(new TransactionalQueue<Integer>(newList(1)).pollBatch(0).isEmpty());
+    }
+
+    @Test
+    public void testDrainToMax() {
+        TransactionalQueue<Integer> queue = new TransactionalQueue<Integer>(newList(1, 2));
+        queue.offer(3);
+        List<Integer> drainedTo = new ArrayList<Integer>();
+        assertEquals(1, queue.drainTo(drainedTo, 1));
+        assertEquals(2, queue.drainTo(drainedTo, 5));
+        assertEquals(0, queue.drainTo(drainedTo, 5));
+        assertEquals(newList(1, 2, 3), drainedTo);
+        queue.offer(4);
+        assertEquals("Polls after the batch", Integer.valueOf(4), queue.poll());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testDrainToMax_failNegative() {
+        new TransactionalQueue<Integer>().drainTo(new ArrayList<Integer>(), -1);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testDrainToMax_failItself() {
+        TransactionalQueue<Integer> queue = new TransactionalQueue<Integer>();
+        queue.drainTo(queue, 1);
+    }
+
+    @Test
+    public void testPollBatch_commit() {
+        TransactionalQueue<Integer> global = new TransactionalQueue<Integer>(newList(1, 2, 3));
+        TransactionalQueue<Integer> copy = global.cleanCopy();
+        copy.offer(4);
+        assertEquals(newList(1, 2), copy.pollBatch(2));
+        TransactionalQueue<Integer> producer = global.cleanCopy();
+        producer.offer(5);
+        global = producer.commit(global);
+        global = copy.commit(global);
+        assertEquals(newList(3, 5, 4), drain(global.cleanCopy()));
+    }
+
+    @Test(expected = ConflictException.class)
+    public void testPollBatch_conflictsWithPoll() {
+        TransactionalQueue<Integer> global = new TransactionalQueue<Integer>(newList(1, 2, 3));
+        TransactionalQueue<Integer> copy = global.cleanCopy();
+        copy.pollBatch(2);
+        copy.commit(pollGlobalState(global));
+    }
+
+    // ==================== Capacity tests ====================
+
+    @Test
+    public void testCapacity_offerRejectedWhenFull() {
+        TransactionalQueue<Integer> queue = new TransactionalQueue<Integer>(newList(1), 2);
+        assertEquals(2, queue.capacity());
+        assertTrue(queue.offer(2));
+        assertFalse("Queue is full", queue.offer(3));
+        queue.poll();
+        assertTrue("Room made by poll", queue.offer(3));
+        assertEquals(newList(2, 3), drain(queue));
+        assertEquals(Integer.MAX_VALUE, new TransactionalQueue<Integer>().capacity());
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testCapacity_failAddWhenFull() {
+        TransactionalQueue<Integer> queue = new TransactionalQueue<Integer>(1);
+        queue.add(1);
+        queue.add(2);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testCapacity_failNonPositive() {
+        new TransactionalQueue<Integer>(0);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testCapacity_failSourceLargerThanCapacity() {
+        new TransactionalQueue<Integer>(newList(1, 2, 3), 2);
+    }
+
+    @Test
+    public void testCapacity_offersWithinCapacityDontConflict() {
+        TransactionalQueue<Integer> global = new TransactionalQueue<Integer>(newList(1), 3);
+        TransactionalQueue<Integer> first = global.cleanCopy();
+        TransactionalQueue<Integer> second = global.cleanCopy();
+        assertTrue(first.offer(2));
+        assertTrue(second.offer(3));
+        global = first.commit(global);
+        global = second.commit(global);
+        assertEquals(newList(1, 2, 3), drain(global.cleanCopy()));
+    }
+
+    @Test(expected = ConflictException.class)
+    public void testCapacity_concurrentOffersExceedingCapacityConflict() {
+        TransactionalQueue<Integer> global = new TransactionalQueue<Integer>(newList(1), 2);
+        TransactionalQueue<Integer> first = global.cleanCopy();
+        TransactionalQueue<Integer> second = global.cleanCopy();
+        assertTrue(first.offer(2));
+        assertTrue(second.offer(3));
+        global = first.commit(global);
+        second.commit(global);
+    }
+
+    @Test
+    public void testCapacity_pollMakesRoomForConcurrentOffer() {
+        TransactionalQueue<Integer> global = new TransactionalQueue<Integer>(newList(1), 2);
+        TransactionalQueue<Integer> producer = global.cleanCopy();
+        TransactionalQueue<Integer> consumer = global.cleanCopy();
+        TransactionalQueue<Integer> other = global.cleanCopy();
+        assertTrue(producer.offer(2));
+        assertTrue(other.offer(3));
+        consumer.poll();
+        global = consumer.commit(global);
+        global = producer.commit(global);
+        global = other.commit(global);
+        assertEquals(newList(2, 3), drain(global.cleanCopy()));
+    }
+
+    @Test(expected = ConflictException.class)
+    public void testCapacity_observedFullConflictsWithPoll() {
+        TransactionalQueue<Integer> global = new TransactionalQueue<Integer>(newList(1, 2), 2);
+        TransactionalQueue<Integer> producer = global.cleanCopy();
+        assertFalse(producer.offer(3));
+        producer.commit(pollGlobalState(global));
+    }
+
+    @Test
+    public void testCapacity_observedFullDoesntConflictWithOffer() {
+        TransactionalQueue<Integer> global = new TransactionalQueue<Integer>(newList(1), 3);
+        TransactionalQueue<Integer> producer = global.cleanCopy();
+        assertTrue(producer.offer(2));
+        assertTrue(producer.offer(3));
+        assertFalse(producer.offer(4));
+
+        TransactionalQueue<Integer> other = global.cleanCopy();
+        other.poll();
+        assertTrue(other.offer(5));
+        global = other.commit(global);
+        global = producer.commit(global);
+        assertEquals(newList(5, 2, 3), drain(global.cleanCopy()));
+    }
+
+    @Test(expected = ConflictException.class)
+    public void testCapacity_observedFullIsUpdated() {
+        TransactionalQueue<Integer> global = new TransactionalQueue<Integer>(newList(1), 1);
+        TransactionalQueue<Integer> copy = global.cleanCopy();
+        TransactionalQueue<Integer> nested = copy.dirtyCopy();
+        assertFalse(nested.offer(2));
+        copy.update(nested, true);
+        copy.commit(pollGlobalState(global));
+    }
+
+    // ==================== Claim tests ====================
+
+    @Test
+    public void testClaim_concurrentClaimsDontConflict() {
+        TransactionalQueue<Integer> global = new TransactionalQueue<Integer>(newList(1, 2, 3));
+        TransactionalQueue<Integer> first = global.cleanCopy();
+        TransactionalQueue<Integer> second = global.cleanCopy();
+        TransactionalQueue.Claim<Integer> firstClaim = first.claim();
+        TransactionalQueue.Claim<Integer> secondClaim = second.claim();
+        TransactionalQueue.Claim<Integer> thirdClaim = second.claim();
+        assertEquals("Claims don't change the local view", 3, second.size());
+
+        global = second.commit(global);
+        global = first.commit(global);
+        assertEquals(Integer.valueOf(1), secondClaim.get());
+        assertEquals(Integer.valueOf(2), thirdClaim.get());
+        assertEquals(Integer.valueOf(3), firstClaim.get());
+        assertTrue(global.cleanCopy().isEmpty());
+    }
+
+    @Test
+    public void testClaim_emptyQueue() {
+        TransactionalQueue<Integer> global = new TransactionalQueue<Integer>(newList(1));
+        TransactionalQueue<Integer> copy = global.cleanCopy();
+        TransactionalQueue.Claim<Integer> first = copy.claim();
+        TransactionalQueue.Claim<Integer> second = copy.claim();
+        global = copy.commit(global);
+        assertTrue(second.isResolved());
+        assertEquals(Integer.valueOf(1), first.get());
+        assertNull("Nothing left to claim", second.get());
+    }
+
+    @Test
+    public void testClaim_ownOfferedElement() {
+        TransactionalQueue<Integer> global = new TransactionalQueue<Integer>();
+        TransactionalQueue<Integer> copy = global.cleanCopy();
+        copy.offer(1);
+        copy.offer(2);
+        TransactionalQueue.Claim<Integer> claim = copy.claim();
+        global = copy.commit(global);
+        assertEquals(Integer.valueOf(1), claim.get());
+        assertEquals(newList(2), drain(global.cleanCopy()));
+    }
+
+    @Test
+    public void testClaim_afterPolls() {
+        TransactionalQueue<Integer> global = new TransactionalQueue<Integer>(newList(1, 2, 3));
+        TransactionalQueue<Integer> copy = global.cleanCopy();
+        TransactionalQueue.Claim<Integer> claim = copy.claim();
+        assertEquals(Integer.valueOf(1), copy.poll());
+        global = copy.commit(global);
+        assertEquals(Integer.valueOf(2), claim.get());
+        assertEquals(newList(3), drain(global.cleanCopy()));
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testClaim_failGetBeforeCommit() {
+        TransactionalQueue<Integer> queue = new TransactionalQueue<Integer>(newList(1));
+        TransactionalQueue.Claim<Integer> claim = queue.cleanCopy().claim();
+        assertFalse(claim.isResolved());
+        claim.get();
+    }
+
+    @Test(expected = ConflictException.class)
+    public void testClaim_pollConflictsWithCommittedClaim() {
+        TransactionalQueue<Integer> global = new TransactionalQueue<Integer>(newList(1, 2));
+        TransactionalQueue<Integer> claimer = global.cleanCopy();
+        TransactionalQueue<Integer> poller = global.cleanCopy();
+        claimer.claim();
+        poller.poll();
+        global = claimer.commit(global);
+        poller.commit(global);
+    }
+
+    @Test
+    public void testClaim_committedPollDoesntConflictWithClaim() {
+        TransactionalQueue<Integer> global = new TransactionalQueue<Integer>(newList(1, 2));
+        TransactionalQueue<Integer> claimer = global.cleanCopy();
+        TransactionalQueue<Integer> poller = global.cleanCopy();
+        TransactionalQueue.Claim<Integer> claim = claimer.claim();
+        poller.poll();
+        global = poller.commit(global);
+        global = claimer.commit(global);
+        assertEquals(Integer.valueOf(2), claim.get());
+    }
+
+    @Test
+    public void testClaim_update() {
+        TransactionalQueue<Integer> queue = new TransactionalQueue<Integer>(newList(1, 2));
+        TransactionalQueue<Integer> copy = queue.cleanCopy();
+        TransactionalQueue<Integer> nested = copy.dirtyCopy();
+        TransactionalQueue.Claim<Integer> claim = nested.claim();
+
+        copy.update(nested, true);
+        assertSame("Only read logs are copied", queue, copy.commit(queue));
+        assertFalse(claim.isResolved());
+
+        copy.update(nested, false);
+        TransactionalQueue<Integer> global = copy.commit(queue);
+        assertEquals(Integer.valueOf(1), claim.get());
+        assertEquals(newList(2), drain(global.cleanCopy()));
+    }
+
+    @Test
+    public void testClaim_dirtyCopyKeepsClaims() {
+        TransactionalQueue<Integer> queue = new TransactionalQueue<Integer>(newList(1, 2));
+        TransactionalQueue<Integer> copy = queue.cleanCopy();
+        TransactionalQueue.Claim<Integer> claim = copy.claim();
+        TransactionalQueue<Integer> dirty = copy.dirtyCopy();
+        TransactionalQueue.Claim<Integer> dirtyClaim = dirty.claim();
+        copy.commit(queue);
+        assertEquals(Integer.valueOf(1), claim.get());
+        assertFalse("Claims of the dirty copy are not shared", dirtyClaim.isResolved());
+    }
+
+    @Test
+    public void testClaim_notResolvedWhenOtherCollectionConflicts() {
+        CompositeCollection composite = new CompositeCollection(new TransactionalQueue<Integer>(newList(1, 2)),
+                new TransactionalRef<Integer>(0));
+        final Memory<CompositeCollection> memory = new Memory<CompositeCollection>(composite);
+        final List<TransactionalQueue.Claim<Integer>> claims = new ArrayList<TransactionalQueue.Claim<Integer>>();
+        memory.runTransaction(new TransactionAdapter<CompositeCollection>() {
+            @Override
+            public boolean run(CompositeCollection data) {
+                TransactionalQueue<Integer> queue = data.get(0);
+                TransactionalRef<Integer> ref = data.get(1);
+                claims.add(queue.claim());
+                ref.assoc(ref.deref() + 1);
+                if (1 == claims.size()) {
+                    // The queue is committed first, then the reference conflicts with this concurrent update
+                    Thread thread = new Thread(new Runnable() {
+                        @Override
+                        public void run() {
+                            memory.runTransaction(new TransactionAdapter<CompositeCollection>() {
+                                @Override
+                                public boolean run(CompositeCollection data) {
+                                    TransactionalRef<Integer> ref = data.get(1);
+                                    ref.assoc(10);
+                                    return true;
+                                }
+                            });
+                        }
+                    });
+                    thread.start();
+                    MemoryTest.joinThread(thread);
+                }
+                return true;
+            }
+        });
+        assertEquals(2, claims.size());
+        assertFalse("Claim of the failed attempt must not be resolved", claims.get(0).isResolved());
+        assertEquals(Integer.valueOf(1), claims.get(1).get());
+    }
+
+    /**
+     * Polls all the elements of the queue.
+     * 
+     * @param queue The queue.
+     * @return The polled elements.
+     */
+    private <E> List<E> drain(TransactionalQueue<E> queue) {
+        List<E> result = new ArrayList<E>();
+        queue.drainTo(result);
+        return result;
     }
 
     /**
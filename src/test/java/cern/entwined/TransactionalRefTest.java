@@ -14,6 +14,9 @@ import org.junit.Test;
 
 import cern.entwined.exception.ConflictException;
 
+import com.google.common.base.Equivalence;
+import com.google.common.base.Function;
+
 /**
  * Unit tests of {@link TransactionalRef} class.
  * 
@@ -320,4 +323,95 @@ public class TransactionalRefTest {
         TransactionalRef<Integer> globalState = new TransactionalRef<Integer>(100);
         assertSame("Locally updated value", globalState, localState.commit(globalState));
     }
+
+    // ============== Conflict policy tests ==============
+
+    @Test(expected = ConflictException.class)
+    public void testCommit_identityPolicy_failEqualValue() {
+        TransactionalRef<String> localState = new TransactionalRef<String>(new String("a"));
+        localState.deref();
+        localState.commit(new TransactionalRef<String>(new String("a")));
+    }
+
+    @Test
+    public void testCommit_equalsPolicy_equalValueDoesntConflict() {
+        TransactionalRef<String> localState = new TransactionalRef<String>(new String("a"), Equivalence.equals());
+        localState.assoc(localState.deref() + "b");
+        TransactionalRef<String> committed = localState.commit(new TransactionalRef<String>(new String("a")));
+        assertEquals("ab", committed.deref());
+    }
+
+    @Test(expected = ConflictException.class)
+    public void testCommit_equalsPolicy_failDifferentValue() {
+        TransactionalRef<String> localState = new TransactionalRef<String>("a", Equivalence.equals());
+        localState.deref();
+        localState.commit(new TransactionalRef<String>("b"));
+    }
+
+    @Test
+    public void testCommit_keepsConflictPolicy() {
+        TransactionalRef<String> localState = new TransactionalRef<String>("a", Equivalence.equals());
+        localState.assoc(new String("b"));
+        TransactionalRef<String> committed = localState.commit(localState.cleanCopy());
+
+        TransactionalRef<String> next = committed.cleanCopy();
+        next.deref();
+        next.commit(new TransactionalRef<String>(new String("b")));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testTransactionalRefTEquivalence_failNullPolicy() {
+        new TransactionalRef<String>("a", null);
+    }
+
+    // ============== Commute tests ==============
+
+    @Test
+    public void testCommute_reappliedToGlobalValue() {
+        TransactionalRef<Integer> localState = new TransactionalRef<Integer>(10);
+        assertEquals((Integer) 11, localState.commute(INCREMENT));
+        assertEquals((Integer) 12, localState.commute(INCREMENT));
+        TransactionalRef<Integer> committed = localState.commit(new TransactionalRef<Integer>(100));
+        assertEquals((Integer) 102, committed.deref());
+    }
+
+    @Test(expected = ConflictException.class)
+    public void testCommute_readAfterCommuteConflicts() {
+        TransactionalRef<Integer> localState = new TransactionalRef<Integer>(10);
+        localState.commute(INCREMENT);
+        localState.deref();
+        localState.commit(new TransactionalRef<Integer>(100));
+    }
+
+    @Test
+    public void testCommute_assocAfterCommuteWins() {
+        TransactionalRef<Integer> localState = new TransactionalRef<Integer>(10);
+        localState.commute(INCREMENT);
+        localState.assoc(0);
+        assertEquals((Integer) 0, localState.commit(localState.cleanCopy()).deref());
+    }
+
+    @Test
+    public void testCommute_dirtyCopyAndUpdate() {
+        TransactionalRef<Integer> localState = new TransactionalRef<Integer>(10);
+        TransactionalRef<Integer> copy = localState.dirtyCopy();
+        copy.commute(INCREMENT);
+        localState.update(copy, true);
+        TransactionalRef<Integer> globalState = new TransactionalRef<Integer>(100);
+        assertSame(globalState, localState.commit(globalState));
+        localState.update(copy, false);
+        assertEquals((Integer) 101, localState.commit(globalState).deref());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testCommute_failNullFunction() {
+        new TransactionalRef<Integer>(10).commute(null);
+    }
+
+    private static final Function<Integer, Integer> INCREMENT = new Function<Integer, Integer>() {
+        @Override
+        public Integer apply(Integer input) {
+            return input + 1;
+        }
+    };
 }
@@ -0,0 +1,395 @@
+/*
+ * Entwined STM
+ * 
+ * (c) Copyright 2013 CERN. This software is distributed under the terms of the Apache License Version 2.0, copied
+ * verbatim in the file "COPYING". In applying this licence, CERN does not waive the privileges and immunities granted
+ * to it by virtue of its status as an Intergovernmental Organization or submit itself to any jurisdiction.
+ */
+package cern.entwined;
+
+import static cern.entwined.test.TestUtils.newList;
+import static cern.entwined.test.TestUtils.newMap;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.SortedMap;
+
+import org.junit.Test;
+
+import cern.entwined.exception.ConflictException;
+
+/**
+ * Unit tests for {@link TransactionalSortedMap}.
+ * 
+ * @author Ivan Koblik
+ */
+public class TransactionalSortedMapTest {
+
+    TransactionalSortedMap<Integer, Integer> localMap;
+    TransactionalSortedMap<Integer, Integer> globalState;
+
+    // ==================== Constructor tests ====================
+
+    @Test
+    public void testTransactionalSortedMap() {
+        assertTrue(new TransactionalSortedMap<Integer, Integer>().isEmpty());
+    }
+
+    @Test
+    public void testTransactionalSortedMap_comparator() {
+        TransactionalSortedMap<Integer, Integer> map = new TransactionalSortedMap<Integer, Integer>(newMap(newList(1,
+                2, 3), newList(1, 2, 3)), Collections.reverseOrder());
+        assertEquals(newList(3, 2, 1), new ArrayList<Integer>(map.keySet()));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testTransactionalSortedMap_failNullMap() {
+        new TransactionalSortedMap<Integer, Integer>((Map<Integer, Integer>) null);
+    }
+
+    // ==================== Local operation tests ====================
+
+    @Test
+    public void testPut_Get_Remove() {
+        defaultFixture();
+        assertEquals(20, (int) localMap.put(2, 200));
+        assertNull(localMap.put(5, 500));
+        assertEquals(200, (int) localMap.get(2));
+        assertEquals(500, (int) localMap.get(5));
+        assertEquals(30, (int) localMap.remove(3));
+        assertNull(localMap.get(3));
+        assertFalse(localMap.containsKey(3));
+        assertEquals(500, (int) localMap.remove(5));
+        assertFalse(localMap.containsKey(5));
+        assertEquals(3, localMap.size());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testGet_failNullKey() {
+        defaultFixture();
+        localMap.get(null);
+    }
+
+    @Test
+    public void testClear() {
+        defaultFixture();
+        localMap.clear();
+        assertTrue(localMap.isEmpty());
+        localMap.put(10, 100);
+        assertEquals(1, localMap.size());
+        assertEquals(newList(10), new ArrayList<Integer>(localMap.keySet()));
+    }
+
+    @Test
+    public void testKeySet_orderedWithLocalChanges() {
+        defaultFixture();
+        localMap.put(0, 0);
+        localMap.put(3, 300);
+        localMap.remove(2);
+        localMap.put(6, 600);
+        assertEquals(newList(0, 1, 3, 4, 6), new ArrayList<Integer>(localMap.keySet()));
+        assertEquals(newList(0, 10, 300, 40, 600), new ArrayList<Integer>(localMap.subMap(0, 10).values()));
+    }
+
+    @Test
+    public void testNavigation() {
+        defaultFixture();
+        localMap.remove(2);
+        localMap.put(5, 50);
+        assertEquals(1, (int) localMap.firstKey());
+        assertEquals(5, (int) localMap.lastKey());
+        assertEquals(3, (int) localMap.ceilingKey(2));
+        assertEquals(3, (int) localMap.ceilingKey(3));
+        assertEquals(4, (int) localMap.higherKey(3));
+        assertNull(localMap.higherKey(5));
+        assertEquals(1, (int) localMap.floorKey(2));
+        assertEquals(1, (int) localMap.lowerKey(3));
+        assertNull(localMap.lowerKey(1));
+    }
+
+    @Test(expected = NoSuchElementException.class)
+    public void testFirstKey_failEmpty() {
+        new TransactionalSortedMap<Integer, Integer>().firstKey();
+    }
+
+    @Test
+    public void testRangeViews() {
+        defaultFixture();
+        assertEquals(newList(2, 3), new ArrayList<Integer>(localMap.subMap(2, 4).keySet()));
+        assertEquals(newList(2, 3, 4), new ArrayList<Integer>(localMap.subMap(2, true, 4, true).keySet()));
+        assertEquals(newList(1, 2), new ArrayList<Integer>(localMap.headMap(3).keySet()));
+        assertEquals(newList(3, 4), new ArrayList<Integer>(localMap.tailMap(3).keySet()));
+        assertEquals(newList(4), new ArrayList<Integer>(localMap.tailMap(3, false).keySet()));
+
+        SortedMap<Integer, Integer> view = localMap.subMap(2, 4);
+        assertEquals(2, view.size());
+        assertEquals(2, (int) view.firstKey());
+        assertEquals(3, (int) view.lastKey());
+        assertNull(view.get(4));
+        assertEquals(newList(3), new ArrayList<Integer>(view.tailMap(3).keySet()));
+        view.put(2, 0);
+        assertEquals(0, (int) localMap.get(2));
+        view.clear();
+        assertEquals(newList(1, 4), new ArrayList<Integer>(localMap.keySet()));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testRangeViews_failPutOutOfRange() {
+        defaultFixture();
+        localMap.subMap(2, 4).put(4, 0);
+    }
+
+    // ==================== Conflict detection tests ====================
+
+    @Test
+    public void testCommit_rangeReadNotConflictingWithChangesOutsideRange() {
+        defaultFixture();
+        readAll(localMap.subMap(2, true, 3, true));
+        globalState = globalState(newMap(newList(1, 2, 3, 4, 10), newList(100, 20, 30, 400, 1000)));
+        localMap.commit(globalState);
+    }
+
+    @Test(expected = ConflictException.class)
+    public void testCommit_rangeReadConflictingWithUpdateInRange() {
+        defaultFixture();
+        readAll(localMap.subMap(2, true, 3, true));
+        globalState = globalState(newMap(newList(1, 2, 3, 4), newList(10, 20, 300, 40)));
+        localMap.commit(globalState);
+    }
+
+    @Test(expected = ConflictException.class)
+    public void testCommit_rangeReadConflictingWithInsertionInRange() {
+        localMap = new TransactionalSortedMap<Integer, Integer>(newMap(newList(10, 20, 30), newList(1, 2, 3)));
+        readAll(localMap.subMap(10, 30));
+        globalState = globalState(newMap(newList(10, 15, 20, 30), newList(1, 0, 2, 3)));
+        localMap.commit(globalState);
+    }
+
+    @Test
+    public void testCommit_rangeReadNotConflictingWithInsertionOutsideRange() {
+        localMap = new TransactionalSortedMap<Integer, Integer>(newMap(newList(10, 20, 30), newList(1, 2, 3)));
+        readAll(localMap.subMap(10, 20));
+        globalState = globalState(newMap(newList(10, 20, 25, 30), newList(1, 2, 0, 3)));
+        localMap.commit(globalState);
+    }
+
+    @Test
+    public void testCommit_partialIterationOnlyLogsVisitedRange() {
+        defaultFixture();
+        Iterator<Integer> iterator = localMap.keySet().iterator();
+        assertEquals(1, (int) iterator.next());
+        // Look-ahead makes key 2 visited, but not 3 and 4.
+        globalState = globalState(newMap(newList(1, 2, 3, 4), newList(10, 20, 300, 400)));
+        localMap.commit(globalState);
+    }
+
+    @Test(expected = ConflictException.class)
+    public void testCommit_fullIterationConflictsWithAppend() {
+        defaultFixture();
+        readAll(localMap);
+        globalState = globalState(newMap(newList(1, 2, 3, 4, 5), newList(10, 20, 30, 40, 50)));
+        localMap.commit(globalState);
+    }
+
+    @Test
+    public void testCommit_ceilingKeyNotConflictingOutsideReadRange() {
+        defaultFixture();
+        assertEquals(2, (int) localMap.ceilingKey(2));
+        globalState = globalState(newMap(newList(1, 2, 3, 4), newList(100, 20, 300, 400)));
+        localMap.commit(globalState);
+    }
+
+    @Test(expected = ConflictException.class)
+    public void testCommit_ceilingKeyConflictingWithInsertionBeforeResult() {
+        Map<Integer, Integer> source = newMap(newList(10, 20), newList(10, 20));
+        localMap = new TransactionalSortedMap<Integer, Integer>(source);
+        assertEquals(20, (int) localMap.ceilingKey(11));
+        globalState = globalState(newMap(newList(10, 15, 20), newList(10, 15, 20)));
+        localMap.commit(globalState);
+    }
+
+    @Test(expected = ConflictException.class)
+    public void testCommit_pointReadConflicting() {
+        defaultFixture();
+        localMap.get(2);
+        globalState = globalState(newMap(newList(1, 2, 3, 4), newList(10, 200, 30, 40)));
+        localMap.commit(globalState);
+    }
+
+    @Test
+    public void testCommit_pointReadNotConflicting() {
+        defaultFixture();
+        localMap.get(2);
+        globalState = globalState(newMap(newList(1, 2, 3, 4, 5), newList(10, 20, 30, 40, 50)));
+        // Values are compared by identity, so global state must share them with the source.
+        localMap.commit(globalState);
+    }
+
+    @Test(expected = ConflictException.class)
+    public void testCommit_isEmptyConflictsWithInsertion() {
+        localMap = new TransactionalSortedMap<Integer, Integer>();
+        assertTrue(localMap.isEmpty());
+        localMap.commit(globalState(newMap(newList(1), newList(1))));
+    }
+
+    @Test
+    public void testCommit_clearIsBlind() {
+        defaultFixture();
+        localMap.clear();
+        localMap.put(7, 70);
+        TransactionalSortedMap<Integer, Integer> result = localMap.commit(globalState(newMap(newList(1, 5),
+                newList(10, 50))));
+        assertEquals(newList(7), new ArrayList<Integer>(result.keySet()));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testCommit_failGlobalStateAccessed() {
+        defaultFixture();
+        globalState.get(1);
+        localMap.commit(globalState);
+    }
+
+    // ==================== Commit accuracy tests ====================
+
+    @Test
+    public void testCommitResult_unmodifiedReturnsGlobalState() {
+        defaultFixture();
+        localMap.get(1);
+        assertSame(globalState, localMap.commit(globalState));
+    }
+
+    @Test
+    public void testCommitResult_appliesChanges() {
+        defaultFixture();
+        localMap.put(5, 50);
+        localMap.put(1, 100);
+        localMap.remove(3);
+        TransactionalSortedMap<Integer, Integer> result = localMap.commit(globalState(newMap(newList(1, 2, 3, 4, 6),
+                newList(10, 20, 30, 40, 60))));
+        assertEquals(newList(1, 2, 4, 5, 6), new ArrayList<Integer>(result.keySet()));
+        assertEquals(100, (int) result.cleanCopy().get(1));
+    }
+
+    // ==================== Dirty copy/update tests ====================
+
+    @Test
+    public void testDirtyCopy_copiesChangesAndLogs() {
+        defaultFixture();
+        localMap.put(5, 50);
+        TransactionalSortedMap<Integer, Integer> copy = localMap.dirtyCopy();
+        assertEquals(50, (int) copy.get(5));
+        copy.remove(1);
+        assertTrue(localMap.containsKey(1));
+        localMap.update(copy, false);
+        assertFalse(localMap.containsKey(1));
+    }
+
+    @Test(expected = ConflictException.class)
+    public void testUpdateLogsOnly_rangeLogsPreserved() {
+        defaultFixture();
+        TransactionalSortedMap<Integer, Integer> copy = localMap.dirtyCopy();
+        readAll(copy.headMap(3));
+        localMap.update(copy, true);
+        localMap.commit(globalState(newMap(newList(1, 2, 3, 4), newList(10, 200, 30, 40))));
+    }
+
+    // ==================== Memory integration tests ====================
+
+    @Test
+    public void testMemory_rangeScanAndConcurrentWriteOutsideRange() {
+        final Memory<TransactionalSortedMap<Integer, Integer>> memory = new Memory<TransactionalSortedMap<Integer, Integer>>(
+                new TransactionalSortedMap<Integer, Integer>(newMap(newList(1, 2, 3, 4), newList(10, 20, 30, 40))));
+        final int[] runs = new int[] { 0 };
+        memory.runTransaction(new TransactionAdapter<TransactionalSortedMap<Integer, Integer>>() {
+            @Override
+            public boolean run(TransactionalSortedMap<Integer, Integer> data) throws Exception {
+                runs[0]++;
+                readAll(data.subMap(1, 3));
+                if (runs[0] == 1) {
+                    writeConcurrently(memory, 4);
+                }
+                return true;
+            }
+        });
+        assertEquals("No retries expected", 1, runs[0]);
+    }
+
+    @Test
+    public void testMemory_rangeScanAndConcurrentWriteInsideRange() {
+        final Memory<TransactionalSortedMap<Integer, Integer>> memory = new Memory<TransactionalSortedMap<Integer, Integer>>(
+                new TransactionalSortedMap<Integer, Integer>(newMap(newList(1, 2, 3, 4), newList(10, 20, 30, 40))));
+        final int[] runs = new int[] { 0 };
+        memory.runTransaction(new TransactionAdapter<TransactionalSortedMap<Integer, Integer>>() {
+            @Override
+            public boolean run(TransactionalSortedMap<Integer, Integer> data) throws Exception {
+                runs[0]++;
+                readAll(data.subMap(1, 3));
+                if (runs[0] == 1) {
+                    writeConcurrently(memory, 2);
+                }
+                return true;
+            }
+        });
+        assertEquals("One retry expected", 2, runs[0]);
+    }
+
+    // =======================================================
+    // ==================== Test fixtures ====================
+    // =======================================================
+
+    /**
+     * Initializes local map and global state with the same source.
+     */
+    private void defaultFixture() {
+        localMap = new TransactionalSortedMap<Integer, Integer>(newMap(newList(1, 2, 3, 4), newList(10, 20, 30, 40)));
+        globalState = localMap.cleanCopy();
+    }
+
+    /**
+     * Creates a global state that shares values with the source for equal keys, as values are compared by identity.
+     */
+    private TransactionalSortedMap<Integer, Integer> globalState(Map<Integer, Integer> content) {
+        return new TransactionalSortedMap<Integer, Integer>(content);
+    }
+
+    private static void readAll(TransactionalSortedMap<Integer, Integer> map) {
+        for (Integer key : map.keySet()) {
+            map.get(key);
+        }
+    }
+
+    private static void readAll(SortedMap<Integer, Integer> map) {
+        for (Map.Entry<Integer, Integer> entry : map.entrySet()) {
+            entry.getValue();
+        }
+    }
+
+    /**
+     * Commits an update of the given key in a concurrent thread.
+     */
+    private static void writeConcurrently(final Memory<TransactionalSortedMap<Integer, Integer>> memory,
+            final int key) throws InterruptedException {
+        Thread thread = new Thread() {
+            @Override
+            public void run() {
+                memory.runTransaction(new TransactionAdapter<TransactionalSortedMap<Integer, Integer>>() {
+                    @Override
+                    public boolean run(TransactionalSortedMap<Integer, Integer> data) throws Exception {
+                        data.put(key, -key);
+                        return true;
+                    }
+                });
+            }
+        };
+        thread.start();
+        thread.join();
+    }
+}
@@ -0,0 +1,241 @@
+/*
+ * Entwined STM
+ * 
+ * (c) Copyright 2013 CERN. This software is distributed under the terms of the Apache License Version 2.0, copied
+ * verbatim in the file "COPYING". In applying this licence, CERN does not waive the privileges and immunities granted
+ * to it by virtue of its status as an Intergovernmental Organization or submit itself to any jurisdiction.
+ */
+package cern.entwined;
+
+import static cern.entwined.test.TestUtils.newList;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+
+import org.junit.Test;
+
+import cern.entwined.exception.ConflictException;
+
+/**
+ * Unit tests for {@link TransactionalWorkQueue}.
+ * 
+ * @author Ivan Koblik
+ */
+public class TransactionalWorkQueueTest {
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testTransactionalWorkQueue_failNonPositiveLanes() {
+        new TransactionalWorkQueue<Integer>(0);
+    }
+
+    // ==================== Local operation tests ====================
+
+    @Test
+    public void testOffer_inTurns() {
+        TransactionalWorkQueue<Integer> queue = new TransactionalWorkQueue<Integer>(2);
+        assertEquals(2, queue.laneCount());
+        for (int i = 0; i < 6; i++) {
+            queue.offer(i);
+        }
+        assertEquals(6, queue.size());
+        List<Integer> first = new ArrayList<Integer>();
+        queue.drainOwnLaneTo(0, first);
+        List<Integer> second = new ArrayList<Integer>();
+        queue.drainOwnLaneTo(1, second);
+        assertEquals(newList(0, 2, 4), first);
+        assertEquals(newList(1, 3, 5), second);
+        assertTrue(queue.isEmpty());
+    }
+
+    @Test
+    public void testOffer_byKeyKeepsOrder() {
+        TransactionalWorkQueue<Integer> queue = new TransactionalWorkQueue<Integer>(4);
+        for (int i = 0; i < 20; i++) {
+            queue.offer("key", i);
+        }
+        List<Integer> polled = new ArrayList<Integer>();
+        for (Integer element = queue.poll(3); null != element; element = queue.poll(3)) {
+            polled.add(element);
+        }
+        List<Integer> expected = new ArrayList<Integer>();
+        for (int i = 0; i < 20; i++) {
+            expected.add(i);
+        }
+        assertEquals(expected, polled);
+    }
+
+    @Test
+    public void testPoll_stealsFromOtherLanes() {
+        TransactionalWorkQueue<Integer> queue = new TransactionalWorkQueue<Integer>(3);
+        queue.offer(1);
+        queue.offer(2);
+        assertNull(queue.pollOwnLane(2));
+        assertEquals(Integer.valueOf(1), queue.poll(2));
+        assertEquals(Integer.valueOf(2), queue.poll(2));
+        assertNull(queue.poll(2));
+        assertTrue(queue.isEmpty());
+    }
+
+    @Test
+    public void testPoll_ownLaneFirst() {
+        TransactionalWorkQueue<Integer> queue = new TransactionalWorkQueue<Integer>(2);
+        queue.offer(1);
+        queue.offer(2);
+        assertEquals(Integer.valueOf(2), queue.poll(1));
+        assertEquals(Integer.valueOf(1), queue.poll(1));
+    }
+
+    // ==================== Transactional tests ====================
+
+    @Test
+    public void testCommit_consumersOfDifferentLanesDontConflict() {
+        TransactionalWorkQueue<Integer> global = fixture(2, 1, 2, 3, 4);
+        TransactionalWorkQueue<Integer> first = global.cleanCopy();
+        TransactionalWorkQueue<Integer> second = global.cleanCopy();
+        Integer a = first.poll(0);
+        Integer b = second.poll(1);
+        global = first.commit(global);
+        global = second.commit(global);
+        TransactionalWorkQueue<Integer> check = global.cleanCopy();
+        List<Integer> rest = new ArrayList<Integer>();
+        for (Integer element = check.poll(0); null != element; element = check.poll(0)) {
+            rest.add(element);
+        }
+        rest.add(a);
+        rest.add(b);
+        assertEquals(4, rest.size());
+        assertTrue(rest.containsAll(newList(1, 2, 3, 4)));
+    }
+
+    @Test(expected = ConflictException.class)
+    public void testCommit_consumersOfSameLaneConflict() {
+        TransactionalWorkQueue<Integer> global = fixture(2, 1, 2, 3, 4);
+        TransactionalWorkQueue<Integer> first = global.cleanCopy();
+        TransactionalWorkQueue<Integer> second = global.cleanCopy();
+        first.poll(0);
+        second.poll(2);
+        global = first.commit(global);
+        second.commit(global);
+    }
+
+    @Test
+    public void testCommit_producerDoesntConflictWithConsumer() {
+        TransactionalWorkQueue<Integer> global = fixture(2, 1, 2);
+        TransactionalWorkQueue<Integer> consumer = global.cleanCopy();
+        TransactionalWorkQueue<Integer> producer = global.cleanCopy();
+        consumer.poll(0);
+        producer.offer(3);
+        producer.offer(4);
+        global = producer.commit(global);
+        global = consumer.commit(global);
+        assertEquals(3, global.cleanCopy().size());
+    }
+
+    @Test
+    public void testCommit_emptyLaneDoesntConflictWithOffer() {
+        TransactionalWorkQueue<Integer> global = new TransactionalWorkQueue<Integer>(2);
+        TransactionalWorkQueue<Integer> consumer = global.cleanCopy();
+        assertNull(consumer.pollOwnLane(0));
+        consumer.offer(1);
+        TransactionalWorkQueue<Integer> producer = global.cleanCopy();
+        producer.offer(2);
+        global = producer.commit(global);
+        global = consumer.commit(global);
+        assertEquals(2, global.cleanCopy().size());
+    }
+
+    @Test
+    public void testCommit_noChangesReturnsGlobalState() {
+        TransactionalWorkQueue<Integer> global = fixture(2, 1);
+        TransactionalWorkQueue<Integer> copy = global.cleanCopy();
+        assertSame(global, copy.commit(global));
+    }
+
+    @Test
+    public void testUpdate() {
+        TransactionalWorkQueue<Integer> queue = fixture(2, 1, 2).cleanCopy();
+        TransactionalWorkQueue<Integer> nested = queue.dirtyCopy();
+        nested.poll(0);
+        queue.update(nested, true);
+        assertEquals(2, queue.size());
+        queue.update(nested, false);
+        assertEquals(1, queue.size());
+        assertFalse(queue.isEmpty());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testUpdate_failDifferentLanes() {
+        fixture(2).update(fixture(3), false);
+    }
+
+    @Test
+    public void testMemory_concurrentConsumers() throws InterruptedException {
+        final int consumers = 4;
+        final int elements = 400;
+        Integer[] initial = new Integer[elements];
+        for (int i = 0; i < elements; i++) {
+            initial[i] = i;
+        }
+        final Memory<TransactionalWorkQueue<Integer>> memory = new Memory<TransactionalWorkQueue<Integer>>(fixture(
+                consumers, initial));
+        final List<Integer> consumed = new ArrayList<Integer>();
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int c = 0; c < consumers; c++) {
+            final int consumer = c;
+            Thread thread = new Thread() {
+                @Override
+                public void run() {
+                    final boolean[] done = new boolean[1];
+                    while (!done[0]) {
+                        memory.runTransaction(new TransactionAdapter<TransactionalWorkQueue<Integer>>() {
+                            private Integer polled;
+
+                            @Override
+                            public boolean run(TransactionalWorkQueue<Integer> data) {
+                                this.polled = data.poll(consumer);
+                                return null != this.polled;
+                            }
+
+                            @Override
+                            public void committed(TransactionalWorkQueue<Integer> data) {
+                                synchronized (consumed) {
+                                    consumed.add(this.polled);
+                                }
+                            }
+                        });
+                        synchronized (consumed) {
+                            done[0] = consumed.size() >= elements;
+                        }
+                    }
+                }
+            };
+            threads.add(thread);
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertEquals(elements, consumed.size());
+        assertEquals(elements, new HashSet<Integer>(consumed).size());
+    }
+
+    // ==================== Test fixtures ====================
+
+    /**
+     * Creates a committed queue with the elements offered in turns.
+     */
+    private static TransactionalWorkQueue<Integer> fixture(int lanes, Integer... elements) {
+        TransactionalWorkQueue<Integer> global = new TransactionalWorkQueue<Integer>(lanes);
+        TransactionalWorkQueue<Integer> copy = global.cleanCopy();
+        for (Integer element : elements) {
+            copy.offer(element);
+        }
+        return copy.commit(global);
+    }
+}
@@ -39,3 +39,23 @@
     (deliver start-latch :ok)
     (.await barrier)
     (stm/intrans memory data (apply str (for [k (.keySet data)] [k (.get data k)])))))
+
+(def sum (reify cern.entwined.MergeFunction
+           (merge [_ old-value value] (+ old-value value))))
+
+(defn make-trmerge-fn [memory key]
+  (fn []
+    @start-latch
+    (doseq [x (range 1000)]
+      (stm/intrans memory m
+                   (.merge m key 1 sum)
+                   true))
+    (.await barrier)))
+
+(defn run-transactional-map-merge []
+  (let [memory (cern.entwined.Memory. (stm/create-map))]
+    (doseq [i (range 10)]
+      (schedule-update (make-trmerge-fn memory (* i 13))))
+    (deliver start-latch :ok)
+    (.await barrier)
+    (stm/intrans memory data (apply str (for [k (.keySet data)] [k (.get data k)])))))